@@ -19,12 +19,14 @@ import org.orbeon.oxf.pipeline.api.PipelineContext;
 import org.orbeon.oxf.util.LoggerFactory;
 
 import javax.naming.InitialContext;
+import javax.naming.NamingException;
 import javax.sql.DataSource;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Represent a database context for processors using SQL connections.
@@ -34,6 +36,8 @@ public class DatabaseContext {
     private static Logger logger = LoggerFactory.createLogger(DatabaseContext.class);
     public static final String DATASOURCE_CONTEXT = "datasource-context"; // used by DatabaseContext
 
+    private static final ConcurrentMap<String, DataSource> dataSources = new ConcurrentHashMap<String, DataSource>();
+
     /**
      * Get a connection valid for this pipeline execution, given a JDBC JNDI name.
      *
@@ -51,13 +55,7 @@ public class DatabaseContext {
         if (connection == null) {
             try {
                 // Create connection from datasource
-                javax.naming.Context initialContext = new InitialContext();
-                javax.naming.Context envContext = (javax.naming.Context) initialContext.lookup("java:comp/env");
-                DataSource ds = (DataSource) envContext.lookup(jndiName);
-                if (ds == null) {
-                    throw new OXFException("Cannot find DataSource object by looking-up: " + jndiName);
-                }
-                Connection newConnection = ds.getConnection();
+                Connection newConnection = getConnection(jndiName);
                 // Set connection properties
                 setConnectionProperties(newConnection, pipelineContext, jndiName);
                 // Save connection into context
@@ -84,24 +82,25 @@ public class DatabaseContext {
      */
     public static Connection getConnection(PipelineContext pipelineContext, Datasource datasource) {
         // Try to obtain connection from context
-        Connection connection = (Connection) getContext(pipelineContext).connections.get(datasource.toString());
+        Connection connection;
+        synchronized (DatabaseContext.class) {
+            connection = (Connection) getContext(pipelineContext).connections.get(datasource.toString());
+        }
         if (connection == null) {
+            // Get connection from the pool for this datasource, which can wait for a connection to be returned, so
+            // this is done outside the lock
+            final Connection newConnection;
+            try {
+                newConnection = JDBCConnectionPool.getPool(datasource).getConnection();
+            } catch (IllegalArgumentException e) {
+                throw new OXFException(e.getMessage());
+            } catch (SQLException e) {
+                throw new OXFException("Cannot get connection from pool for datasource: " + datasource, e);
+            }
+
             synchronized (DatabaseContext.class) {
                 connection = (Connection) getContext(pipelineContext).connections.get(datasource.toString());
                 if (connection == null) {
-                    // Create connection
-                    try {
-                        Class.forName(datasource.getDriverClassName());
-                    } catch (ClassNotFoundException e) {
-                        throw new OXFException("Cannot load JDBC driver for class: " + datasource.getDriverClassName());
-                    }
-                    Connection newConnection;
-                    try {
-                        newConnection = DriverManager.getConnection(datasource.getUri(), datasource.getUsername(), datasource.getPassword());
-                    } catch (SQLException e) {
-                        throw new OXFException("Cannot get connection from JDBC DriverManager for datasource: " + datasource, e);
-                    }
-
                     // Set connection properties
                     try {
                         setConnectionProperties(newConnection, pipelineContext, datasource.toString());
@@ -114,11 +113,68 @@ public class DatabaseContext {
                     connection = newConnection;
                 }
             }
+            // Another thread obtained a connection in the meanwhile
+            if (connection != newConnection) {
+                try {
+                    newConnection.close();
+                } catch (SQLException e) {
+                    logger.debug("error returning JDBC connection to pool for datasource: " + datasource, e);
+                }
+            }
         }
 
         return connection;
     }
 
+    /**
+     * Get a DataSource given a JDBC JNDI name relative to java:comp/env.
+     *
+     * Resolved DataSource objects are cached, as the JNDI lookup is comparatively expensive and the DataSource objects
+     * are themselves responsible for pooling connections.
+     *
+     * @param jndiName  JNDI name, e.g. jdbc/db
+     * @return          DataSource object
+     */
+    public static DataSource getDataSource(String jndiName) {
+        DataSource dataSource = dataSources.get(jndiName);
+        if (dataSource == null) {
+            try {
+                javax.naming.Context initialContext = new InitialContext();
+                javax.naming.Context envContext = (javax.naming.Context) initialContext.lookup("java:comp/env");
+                dataSource = (DataSource) envContext.lookup(jndiName);
+            } catch (NamingException e) {
+                throw new OXFException(e);
+            }
+            if (dataSource == null) {
+                throw new OXFException("Cannot find DataSource object by looking-up: " + jndiName);
+            }
+            dataSources.put(jndiName, dataSource);
+        }
+        return dataSource;
+    }
+
+    /**
+     * Get a new connection from the DataSource with the given JNDI name.
+     *
+     * If the connection can't be obtained, the cached DataSource is discarded, so that the next call looks it up
+     * again, for example after the application server has redeployed it.
+     *
+     * @param jndiName  JNDI name, e.g. jdbc/db
+     * @return          Connection object, which must be closed by the user
+     */
+    public static Connection getConnection(String jndiName) throws SQLException {
+        final DataSource dataSource = getDataSource(jndiName);
+        try {
+            return dataSource.getConnection();
+        } catch (SQLException e) {
+            dataSources.remove(jndiName, dataSource);
+            throw e;
+        } catch (RuntimeException e) {
+            dataSources.remove(jndiName, dataSource);
+            throw e;
+        }
+    }
+
     private static void setConnectionProperties(final Connection connection, PipelineContext pipelineContext, final String datasourceName) throws SQLException {
         // Set connection properties
         connection.setAutoCommit(false);
@@ -0,0 +1,458 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor;
+
+import org.apache.commons.pool.BasePoolableObjectFactory;
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.apache.log4j.Logger;
+import org.orbeon.oxf.properties.Properties;
+import org.orbeon.oxf.properties.PropertySet;
+import org.orbeon.oxf.util.LoggerFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of JDBC connections for datasources configured inline, i.e. with a driver, URI, username and password instead
+ * of through JNDI.
+ *
+ * Connections handed out are proxies: closing them returns the underlying connection to the pool. Each pooled
+ * connection also keeps a cache of prepared statements, so that statements prepared again on a reused connection are
+ * not parsed again by the database.
+ */
+public class JDBCConnectionPool {
+
+    private static final Logger logger = LoggerFactory.createLogger(JDBCConnectionPool.class);
+
+    public static final String MAX_ACTIVE_PROPERTY = "oxf.sql.pool.max-active";
+    public static final String MAX_WAIT_PROPERTY = "oxf.sql.pool.max-wait";
+    public static final String VALIDATION_QUERY_PROPERTY = "oxf.sql.pool.validation-query";
+    public static final String IDLE_TIMEOUT_PROPERTY = "oxf.sql.pool.idle-timeout";
+    public static final String STATEMENT_CACHE_SIZE_PROPERTY = "oxf.sql.pool.statement-cache.size";
+    public static final String LEAK_THRESHOLD_PROPERTY = "oxf.sql.pool.leak-threshold";
+
+    private static final ConcurrentMap<String, JDBCConnectionPool> pools = new ConcurrentHashMap<String, JDBCConnectionPool>();
+
+    /**
+     * Return the pool for the given datasource, creating it if needed.
+     *
+     * @param datasource    datasource configuration
+     * @return              pool
+     */
+    public static JDBCConnectionPool getPool(Datasource datasource) {
+        // The password is part of the key so that a changed configuration doesn't use connections opened with old credentials
+        final String key = datasource.toString() + "|" + datasource.getPassword();
+        final JDBCConnectionPool existingPool = pools.get(key);
+        if (existingPool != null)
+            return existingPool;
+
+        final JDBCConnectionPool newPool = new JDBCConnectionPool(datasource, Properties.instance().getPropertySet());
+        final JDBCConnectionPool racingPool = pools.putIfAbsent(key, newPool);
+        if (racingPool != null) {
+            newPool.close();
+            return racingPool;
+        } else {
+            return newPool;
+        }
+    }
+
+    private final Datasource datasource;
+    private final String validationQuery;
+    private final int statementCacheSize;
+    private final long leakThreshold;
+    private final GenericObjectPool<PooledConnection> pool;
+
+    // Connections currently borrowed, for leak detection
+    private final Map<ConnectionHandler, Boolean> borrowed = new ConcurrentHashMap<ConnectionHandler, Boolean>();
+
+    // Statistics
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong totalWaitTime = new AtomicLong();
+    private final AtomicLong maxWaitTime = new AtomicLong();
+    private final AtomicLong statementCacheHits = new AtomicLong();
+    private final AtomicLong statementCacheMisses = new AtomicLong();
+
+    public JDBCConnectionPool(Datasource datasource, PropertySet propertySet) {
+        this.datasource = datasource;
+        this.validationQuery = propertySet.getString(VALIDATION_QUERY_PROPERTY, "").trim();
+        this.statementCacheSize = propertySet.getInteger(STATEMENT_CACHE_SIZE_PROPERTY, 20);
+        this.leakThreshold = propertySet.getInteger(LEAK_THRESHOLD_PROPERTY, 60000);
+
+        try {
+            Class.forName(datasource.getDriverClassName());
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException("Cannot load JDBC driver for class: " + datasource.getDriverClassName());
+        }
+
+        final long idleTimeout = propertySet.getInteger(IDLE_TIMEOUT_PROPERTY, 600000);
+
+        pool = new GenericObjectPool<PooledConnection>(new PooledConnectionFactory());
+        pool.setMaxActive(propertySet.getInteger(MAX_ACTIVE_PROPERTY, 8));
+        pool.setMaxIdle(pool.getMaxActive());
+        pool.setMaxWait(propertySet.getInteger(MAX_WAIT_PROPERTY, 30000));
+        pool.setWhenExhaustedAction(GenericObjectPool.WHEN_EXHAUSTED_BLOCK);
+        pool.setTestOnBorrow(true);
+        pool.setTestWhileIdle(true);
+        pool.setMinEvictableIdleTimeMillis(idleTimeout);
+        pool.setTimeBetweenEvictionRunsMillis(idleTimeout > 0 ? Math.max(idleTimeout / 4, 1000) : -1);
+    }
+
+    /**
+     * Get a connection from the pool, waiting for one to be returned if the maximum number of connections are in use.
+     *
+     * @return  connection, which must be closed to be returned to the pool
+     */
+    public Connection getConnection() throws SQLException {
+
+        if (leakThreshold > 0)
+            reportLeaks();
+
+        final long startTime = System.nanoTime();
+        final PooledConnection pooledConnection;
+        try {
+            pooledConnection = pool.borrowObject();
+        } catch (NoSuchElementException e) {
+            throw new SQLException("Timeout waiting for a connection to datasource: " + datasource);
+        } catch (SQLException e) {
+            throw e;
+        } catch (Exception e) {
+            final SQLException sqlException = new SQLException("Cannot get connection for datasource: " + datasource);
+            sqlException.initCause(e);
+            throw sqlException;
+        }
+
+        // Wait time metrics
+        final long waitTime = System.nanoTime() - startTime;
+        borrowCount.incrementAndGet();
+        totalWaitTime.addAndGet(waitTime);
+        for (long currentMax = maxWaitTime.get(); waitTime > currentMax && ! maxWaitTime.compareAndSet(currentMax, waitTime); currentMax = maxWaitTime.get());
+
+        final ConnectionHandler handler = new ConnectionHandler(pooledConnection);
+        borrowed.put(handler, Boolean.TRUE);
+        return handler.proxy;
+    }
+
+    public void close() {
+        try {
+            pool.close();
+        } catch (Exception e) {
+            logger.warn("error closing connection pool for datasource: " + datasource, e);
+        }
+    }
+
+    public int getActiveCount() {
+        return pool.getNumActive();
+    }
+
+    public int getIdleCount() {
+        return pool.getNumIdle();
+    }
+
+    public long getBorrowCount() {
+        return borrowCount.get();
+    }
+
+    // Average time spent waiting for a connection, in milliseconds
+    public double getAverageWaitTime() {
+        final long count = borrowCount.get();
+        return count > 0 ? (double) totalWaitTime.get() / count / 1000000 : 0;
+    }
+
+    // Maximum time spent waiting for a connection, in milliseconds
+    public double getMaxWaitTime() {
+        return (double) maxWaitTime.get() / 1000000;
+    }
+
+    public long getStatementCacheHits() {
+        return statementCacheHits.get();
+    }
+
+    public long getStatementCacheMisses() {
+        return statementCacheMisses.get();
+    }
+
+    public String toString() {
+        return "datasource: " + datasource + ", active: " + getActiveCount() + ", idle: " + getIdleCount()
+                + ", borrowed: " + getBorrowCount() + ", average wait: " + getAverageWaitTime() + " ms, max wait: " + getMaxWaitTime()
+                + " ms, statement cache hits: " + getStatementCacheHits() + ", misses: " + getStatementCacheMisses();
+    }
+
+    // Log connections which have been borrowed for longer than the threshold, once per connection
+    private void reportLeaks() {
+        final long now = System.currentTimeMillis();
+        for (final ConnectionHandler handler : borrowed.keySet()) {
+            if (! handler.leakReported && now - handler.borrowTime > leakThreshold) {
+                handler.leakReported = true;
+                logger.warn("JDBC connection borrowed for more than " + leakThreshold + " ms and not closed, datasource: " + datasource, handler.borrowLocation);
+            }
+        }
+    }
+
+    /**
+     * Physical connection, along with its prepared statements cache.
+     */
+    private class PooledConnection {
+
+        public final Connection connection;
+
+        // Cached statements, least recently used first
+        public final LinkedHashMap<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > statementCacheSize) {
+                    // A statement in use is closed when its user closes it
+                    if (statementsInUse.contains(eldest.getKey()))
+                        evictedStatementsInUse.add(eldest.getValue());
+                    else
+                        closeQuietly(eldest.getValue());
+                    return true;
+                } else {
+                    return false;
+                }
+            }
+        };
+
+        // Statements from the cache currently used
+        public final Set<String> statementsInUse = new HashSet<String>();
+
+        // Statements removed from the cache while in use
+        public final Set<PreparedStatement> evictedStatementsInUse = new HashSet<PreparedStatement>();
+
+        public PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        public void close() {
+            for (final PreparedStatement statement : statements.values())
+                closeQuietly(statement);
+            statements.clear();
+            closeEvictedStatements();
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                logger.debug("error closing JDBC connection", e);
+            }
+        }
+
+        public void closeEvictedStatements() {
+            for (final PreparedStatement statement : evictedStatementsInUse)
+                closeQuietly(statement);
+            evictedStatementsInUse.clear();
+        }
+    }
+
+    private class PooledConnectionFactory extends BasePoolableObjectFactory<PooledConnection> {
+
+        public PooledConnection makeObject() throws Exception {
+            return new PooledConnection(DriverManager.getConnection(datasource.getUri(), datasource.getUsername(), datasource.getPassword()));
+        }
+
+        public void destroyObject(PooledConnection pooledConnection) {
+            pooledConnection.close();
+        }
+
+        public boolean validateObject(PooledConnection pooledConnection) {
+            try {
+                if (pooledConnection.connection.isClosed())
+                    return false;
+
+                if (validationQuery.length() > 0) {
+                    final Statement statement = pooledConnection.connection.createStatement();
+                    try {
+                        statement.executeQuery(validationQuery).close();
+                    } finally {
+                        statement.close();
+                    }
+                }
+                return true;
+            } catch (SQLException e) {
+                logger.debug("discarding invalid JDBC connection for datasource: " + datasource, e);
+                return false;
+            }
+        }
+
+        public void passivateObject(PooledConnection pooledConnection) throws Exception {
+            // Don't leave a transaction open for the next user
+            final Connection connection = pooledConnection.connection;
+            if (! connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            pooledConnection.statementsInUse.clear();
+            pooledConnection.closeEvictedStatements();
+        }
+    }
+
+    /**
+     * Handler for the proxy returned to the user of a connection.
+     */
+    private class ConnectionHandler implements InvocationHandler {
+
+        public final Connection proxy;
+        public final long borrowTime = System.currentTimeMillis();
+        public final Throwable borrowLocation = leakThreshold > 0 ? new Throwable("connection borrowed here") : null;
+        public volatile boolean leakReported;
+
+        private PooledConnection pooledConnection;
+
+        public ConnectionHandler(PooledConnection pooledConnection) {
+            this.pooledConnection = pooledConnection;
+            this.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class[] { Connection.class }, this);
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            final String name = method.getName();
+            if (name.equals("close")) {
+                release();
+                return null;
+            } else if (name.equals("isClosed")) {
+                return pooledConnection == null;
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString")) {
+                return "pooled connection, " + datasource;
+            } else if (pooledConnection == null) {
+                throw new SQLException("Connection is closed");
+            } else if (name.equals("prepareStatement") && args.length == 1 && statementCacheSize > 0) {
+                return prepareStatement((String) args[0]);
+            } else {
+                try {
+                    return method.invoke(pooledConnection.connection, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        }
+
+        private void release() throws SQLException {
+            if (pooledConnection != null) {
+                final PooledConnection released = pooledConnection;
+                pooledConnection = null;
+                borrowed.remove(this);
+                try {
+                    pool.returnObject(released);
+                } catch (Exception e) {
+                    final SQLException sqlException = new SQLException("Cannot return connection to pool for datasource: " + datasource);
+                    sqlException.initCause(e);
+                    throw sqlException;
+                }
+            }
+        }
+
+        private PreparedStatement prepareStatement(final String sql) throws SQLException {
+            final PooledConnection currentConnection = pooledConnection;
+
+            // If the same statement is already in use on this connection, just create a new one
+            if (currentConnection.statementsInUse.contains(sql))
+                return currentConnection.connection.prepareStatement(sql);
+
+            PreparedStatement statement = currentConnection.statements.get(sql);
+            if (statement != null) {
+                statementCacheHits.incrementAndGet();
+            } else {
+                statementCacheMisses.incrementAndGet();
+                statement = currentConnection.connection.prepareStatement(sql);
+                currentConnection.statements.put(sql, statement);
+            }
+            currentConnection.statementsInUse.add(sql);
+
+            final PreparedStatement cachedStatement = statement;
+            return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class[] { PreparedStatement.class }, new InvocationHandler() {
+                private boolean closed;
+                // Whether a setting of the statement, like the fetch size or query timeout, was changed
+                private boolean modified;
+                // Result sets obtained from the statement
+                private final List<ResultSet> resultSets = new ArrayList<ResultSet>();
+
+                public Object invoke(Object statementProxy, Method method, Object[] args) throws Throwable {
+                    final String name = method.getName();
+                    if (name.equals("close")) {
+                        if (! closed) {
+                            closed = true;
+                            currentConnection.statementsInUse.remove(sql);
+                            recycle();
+                        }
+                        return null;
+                    } else if (name.equals("isClosed")) {
+                        return closed;
+                    } else if (name.equals("getConnection")) {
+                        return proxy;
+                    } else if (name.equals("equals")) {
+                        return statementProxy == args[0];
+                    } else if (name.equals("hashCode")) {
+                        return System.identityHashCode(statementProxy);
+                    } else if (closed) {
+                        throw new SQLException("Statement is closed");
+                    } else {
+                        if (method.getDeclaringClass() == Statement.class && name.startsWith("set"))
+                            modified = true;
+                        final Object result;
+                        try {
+                            result = method.invoke(cachedStatement, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                        if (result instanceof ResultSet)
+                            resultSets.add((ResultSet) result);
+                        return result;
+                    }
+                }
+
+                // Leave the statement as a new one for the next user of the connection, or close it if it is no
+                // longer cached or its settings were changed
+                private void recycle() throws SQLException {
+                    if (currentConnection.evictedStatementsInUse.remove(cachedStatement)) {
+                        cachedStatement.close();
+                    } else if (modified) {
+                        removeAndClose();
+                    } else {
+                        try {
+                            for (final ResultSet resultSet : resultSets)
+                                resultSet.close();
+                            cachedStatement.clearBatch();
+                            cachedStatement.clearParameters();
+                            cachedStatement.clearWarnings();
+                        } catch (SQLException e) {
+                            removeAndClose();
+                            throw e;
+                        }
+                    }
+                    resultSets.clear();
+                }
+
+                private void removeAndClose() throws SQLException {
+                    if (currentConnection.statements.get(sql) == cachedStatement)
+                        currentConnection.statements.remove(sql);
+                    cachedStatement.close();
+                }
+            });
+        }
+    }
+
+    private static void closeQuietly(Statement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            logger.debug("error closing JDBC statement", e);
+        }
+    }
+}
@@ -31,6 +31,7 @@ import org.xml.sax.SAXException;
 import org.xml.sax.helpers.AttributesImpl;
 
 import javax.xml.transform.stream.StreamResult;
+import java.io.Writer;
 
 /**
  * Base class for text converters.
@@ -46,6 +47,16 @@ public abstract class TextConverterBase extends ConverterBase {
      */
     protected abstract TransformerXMLReceiver createTransformer(Config config);
 
+    /**
+     * Create the receiver serializing the input to the given writer. By default, this uses the transformer returned by
+     * createTransformer(), but subclasses can return a more efficient serializer.
+     */
+    protected XMLReceiver createSerializer(Config config, Writer writer) {
+        final TransformerXMLReceiver transformer = createTransformer(config);
+        transformer.setResult(new StreamResult(writer));
+        return transformer;
+    }
+
     /**
      * Return the namespace URI of the schema validating the config input. Can be overridden by
      * subclasses.
@@ -82,9 +93,8 @@ public abstract class TextConverterBase extends ConverterBase {
                     xmlReceiver.startPrefixMapping(XMLConstants.XSD_PREFIX, XMLConstants.XSD_URI);
                     xmlReceiver.startElement("", ProcessorUtils.DEFAULT_TEXT_DOCUMENT_ELEMENT, ProcessorUtils.DEFAULT_TEXT_DOCUMENT_ELEMENT, attributes);
 
-                    // Create OutputStream that converts to Base64
-                    final TransformerXMLReceiver transformer = createTransformer(config);
-                    transformer.setResult(new StreamResult(new ContentHandlerWriter(xmlReceiver)));
+                    // Create serializer writing text to the output
+                    final XMLReceiver transformer = createSerializer(config, new ContentHandlerWriter(xmlReceiver));
 
                     // Write content
                     final boolean didEndDocument = readInput(pipelineContext, xmlReceiver, getInputByName(INPUT_DATA), transformer);
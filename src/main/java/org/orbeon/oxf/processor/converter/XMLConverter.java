@@ -16,9 +16,13 @@ package org.orbeon.oxf.processor.converter;
 import org.dom4j.QName;
 import org.orbeon.oxf.common.OXFException;
 import org.orbeon.oxf.pipeline.api.TransformerXMLReceiver;
+import org.orbeon.oxf.xml.StreamXMLSerializer;
 import org.orbeon.oxf.xml.TransformerUtils;
+import org.orbeon.oxf.xml.XMLReceiver;
 import org.orbeon.oxf.xml.dom4j.Dom4jUtils;
 
+import java.io.Writer;
+
 /**
  * Converts XML into text according to the XSLT XML output method.
  *
@@ -37,16 +41,33 @@ public class XMLConverter extends TextConverterBase {
         return DEFAULT_CONTENT_TYPE;
     }
 
+    @Override
+    protected XMLReceiver createSerializer(Config config, Writer writer) {
+
+        // Serialize directly unless the transformer is needed for the XHTML method or indentation
+        if (! StreamXMLSerializer.isSupported(getMethod(config), config.indent))
+            return super.createSerializer(config, writer);
+
+        checkDoctype(config);
+
+        return new StreamXMLSerializer(writer,
+                config.version != null ? config.version : DEFAULT_VERSION,
+                config.publicDoctype,
+                config.systemDoctype,
+                getEncoding(config, DEFAULT_ENCODING),
+                config.omitXMLDeclaration,
+                config.standalone);
+    }
+
     protected TransformerXMLReceiver createTransformer(Config config) {
 
         // Create an identity transformer and start the transformation
         final TransformerXMLReceiver identity = TransformerUtils.getIdentityTransformerHandler();
 
-        if(config.publicDoctype != null && config.systemDoctype == null)
-            throw new OXFException("System doctype is required if a public doctype is present");
+        checkDoctype(config);
 
         TransformerUtils.applyOutputProperties(identity.getTransformer(),
-                config.method != null ? config.method : Dom4jUtils.qNameToExplodedQName(getPropertySet().getQName(DEFAULT_METHOD_PROPERTY_NAME, DEFAULT_METHOD)),
+                getMethod(config),
                 config.version != null ? config.version : DEFAULT_VERSION,
                 config.publicDoctype != null ? config.publicDoctype : null,
                 config.systemDoctype != null ? config.systemDoctype : null,
@@ -58,4 +79,13 @@ public class XMLConverter extends TextConverterBase {
 
         return identity;
     }
+
+    private String getMethod(Config config) {
+        return config.method != null ? config.method : Dom4jUtils.qNameToExplodedQName(getPropertySet().getQName(DEFAULT_METHOD_PROPERTY_NAME, DEFAULT_METHOD));
+    }
+
+    private static void checkDoctype(Config config) {
+        if (config.publicDoctype != null && config.systemDoctype == null)
+            throw new OXFException("System doctype is required if a public doctype is present");
+    }
 }
@@ -202,6 +202,7 @@ public class PipelineReader extends ProcessorImpl {
                     forEach.setId(element.attributeValue("id"));
                     forEach.setRef(element.attributeValue("ref"));
                     forEach.setRoot(element.attributeValue("root"));
+                    forEach.setStreaming("true".equals(element.attributeValue("streaming")));
                     forEach.setInputSchemaHref(element.attributeValue("input-schema-href"));
                     forEach.setInputSchemaUri(element.attributeValue("input-schema-uri"));
                     forEach.setInputDebug(element.attributeValue("input-debug"));
@@ -23,6 +23,7 @@ public class ASTForEach extends ASTStatement {
     private String id;
     private String ref;
     private String root;
+    private boolean streaming;
     private String inputSchemaHref;
     private String inputSchemaUri;
     private String inputDebug;
@@ -71,6 +72,14 @@ public class ASTForEach extends ASTStatement {
         this.root = root;
     }
 
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
     public String getInputSchemaHref() {
         return inputSchemaHref;
     }
@@ -21,6 +21,7 @@ import org.orbeon.oxf.pipeline.api.PipelineContext;
 import org.orbeon.oxf.xml.XMLReceiver;
 import org.orbeon.oxf.processor.*;
 import org.orbeon.oxf.processor.generator.DOMGenerator;
+import org.orbeon.oxf.processor.generator.SAXStoreGenerator;
 import org.orbeon.oxf.processor.pipeline.PipelineProcessor;
 import org.orbeon.oxf.processor.pipeline.TeeProcessor;
 import org.orbeon.oxf.processor.pipeline.ast.*;
@@ -28,6 +29,7 @@ import org.orbeon.oxf.util.PooledXPathExpression;
 import org.orbeon.oxf.util.XPathCache;
 import org.orbeon.oxf.xml.EmbeddedDocumentXMLReceiver;
 import org.orbeon.oxf.xml.NamespaceMapping;
+import org.orbeon.oxf.xml.SAXStore;
 import org.orbeon.oxf.xml.dom4j.Dom4jUtils;
 import org.orbeon.saxon.dom4j.DocumentWrapper;
 import org.orbeon.saxon.om.DocumentInfo;
@@ -37,12 +39,22 @@ import org.xml.sax.helpers.AttributesImpl;
 
 import java.util.*;
 
+/**
+ * Runs the block of a p:for-each once for each element selected in $data.
+ *
+ * By default, $data is read into a tree first, so malformed or invalid input fails the p:for-each before any
+ * iteration runs. With streaming="true", when select is a simple path (see StreamingSelect), each iteration runs as
+ * soon as its element has been read instead. The tree is never built, but iterations before an error in $data have
+ * already run, along with any side effects of the block, so this is only meant for blocks without side effects or
+ * for input known to be well-formed.
+ */
 public class ConcreteForEachProcessor extends ProcessorImpl {
 
     private final Processor forEachBlockProcessor;
     private final ProcessorOutput iterationOutput;
     private final String select;
     private final NamespaceMapping namespaceContext;
+    private final StreamingSelect streamingSelect;
     private String rootLocalName;
     private String rootQName;
     private String rootNamespaceURI;
@@ -109,6 +121,11 @@ public class ConcreteForEachProcessor extends ProcessorImpl {
                 rootLocalName = rootQName.substring(columnPosition + 1);
             }
         }
+
+        // If requested and possible, iterate while reading $data instead of reading it into a DOM first. This can't be
+        // done if the block reads one of the outputs $data reads, as that output would be read while it is being read.
+        streamingSelect = forEachAST.isStreaming() && ! isReadByBlock(forEachAST.getHref(), refsWithNoId)
+                ? StreamingSelect.parse(select, namespaceContext) : null;
     }
 
     @Override
@@ -116,40 +133,12 @@ public class ConcreteForEachProcessor extends ProcessorImpl {
         final ProcessorOutput output = new ProcessorOutputImpl(ConcreteForEachProcessor.this, name) {
             public void readImpl(PipelineContext pipelineContext, XMLReceiver xmlReceiver) {
                 try {
-                    final State state = (State) getState(pipelineContext);
-
                     // Open document
                     xmlReceiver.startDocument();
                     xmlReceiver.startElement(rootNamespaceURI, rootLocalName, rootQName, new AttributesImpl());
 
                     // Read n times from iterationOutput
-                    PooledXPathExpression expression = null;
-                    int iterationCount = 0;
-                    try {
-                        expression = createExpression(pipelineContext);
-
-                        for (Iterator i = new ElementIterator(expression); i.hasNext(); iterationCount++) {
-                            final Element currentElement = (Element) i.next();
-
-                            // Create DOMGenerator
-                            final String systemId = Dom4jUtils.makeSystemId(currentElement);
-                            final DOMGenerator domGenerator = new DOMGenerator
-                                    (currentElement, "for each input", DOMGenerator.ZeroValidity, systemId);
-                            domGenerator.createOutput(OUTPUT_DATA);
-                            state.domGenerator = domGenerator;
-
-                            // Run iteration
-                            forEachBlockProcessor.reset(pipelineContext);
-                            iterationOutput.read(pipelineContext, new EmbeddedDocumentXMLReceiver(xmlReceiver));
-                        }
-                    } catch (XPathException e) {
-                        throw new OXFException(e);
-                    } finally {
-                        // Clear state to allow gc as the state might be referenced for a while
-                        if (state != null) state.domGenerator = null;
-                        // Return expression
-                        if (expression != null) expression.returnToPool();
-                    }
+                    final int iterationCount = iterate(pipelineContext, xmlReceiver);
 
                     // Notify input Tee processors that we are done
                     commitInputs(pipelineContext, iterationCount);
@@ -251,40 +240,101 @@ public class ConcreteForEachProcessor extends ProcessorImpl {
 
     @Override
     public void start(PipelineContext pipelineContext) {
-        final State state = (State) getState(pipelineContext);
-
         // Read n times from iterationOutput
-        PooledXPathExpression expression = null;
-        int iterationCount = 0;
+        final int iterationCount = iterate(pipelineContext, null);
+
+        // Notify input Tee processors that we are done
+        commitInputs(pipelineContext, iterationCount);
+    }
+
+    /**
+     * Run the block once for each element selected, and return the number of iterations.
+     *
+     * @param xmlReceiver   receiver for the output of the block, or null to start the block
+     */
+    private int iterate(final PipelineContext pipelineContext, final XMLReceiver xmlReceiver) {
+        final State state = (State) getState(pipelineContext);
         try {
-            expression = createExpression(pipelineContext);
+            if (streamingSelect != null) {
+                // Run each iteration as soon as its element has been read
+                final int[] iterationCount = { 0 };
+                // Reading $data changes the stack of parent processors, so the block runs with the stack as it is now
+                final Stack<ProcessorImpl> iterationParents = (Stack<ProcessorImpl>) pipelineContext.getAttribute(PARENT_PROCESSORS);
+                final Stack<ProcessorImpl> blockParents = iterationParents == null ? null : (Stack<ProcessorImpl>) iterationParents.clone();
+                readInputAsSAX(pipelineContext, AbstractForEachProcessor.FOR_EACH_DATA_INPUT, streamingSelect.createReceiver(new StreamingSelect.Listener() {
+                    public void selected(SAXStore document) {
+                        final SAXStoreGenerator saxStoreGenerator = new SAXStoreGenerator(document);
+                        saxStoreGenerator.createOutput(OUTPUT_DATA);
+                        state.currentGenerator = saxStoreGenerator;
+
+                        final Object readParents = pipelineContext.getAttribute(PARENT_PROCESSORS);
+                        pipelineContext.setAttribute(PARENT_PROCESSORS, blockParents);
+                        try {
+                            runIteration(pipelineContext, xmlReceiver);
+                        } finally {
+                            pipelineContext.setAttribute(PARENT_PROCESSORS, readParents);
+                        }
+                        iterationCount[0]++;
+                    }
+                }));
+                return iterationCount[0];
+            } else {
+                PooledXPathExpression expression = null;
+                int iterationCount = 0;
+                try {
+                    expression = createExpression(pipelineContext);
 
-            for (Iterator i = new ElementIterator(expression); i.hasNext(); iterationCount++) {
-                final Element currentElement = (Element) i.next();
+                    for (Iterator i = new ElementIterator(expression); i.hasNext(); iterationCount++) {
+                        final Element currentElement = (Element) i.next();
 
-                // Create DOMGenerator
-                final String systemId = Dom4jUtils.makeSystemId(currentElement);
-                final DOMGenerator domGenerator = new DOMGenerator
-                        (currentElement, "for each input", DOMGenerator.ZeroValidity, systemId);
-                domGenerator.createOutput(OUTPUT_DATA);
-                state.domGenerator = domGenerator;
+                        // Create DOMGenerator
+                        final String systemId = Dom4jUtils.makeSystemId(currentElement);
+                        final DOMGenerator domGenerator = new DOMGenerator
+                                (currentElement, "for each input", DOMGenerator.ZeroValidity, systemId);
+                        domGenerator.createOutput(OUTPUT_DATA);
+                        state.currentGenerator = domGenerator;
 
-                // Run iteration
-                forEachBlockProcessor.reset(pipelineContext);
-                forEachBlockProcessor.start(pipelineContext);
+                        runIteration(pipelineContext, xmlReceiver);
+                    }
+                } catch (XPathException e) {
+                    throw new OXFException(e);
+                } finally {
+                    // Return expression
+                    if (expression != null) expression.returnToPool();
+                }
+                return iterationCount;
             }
-
-        } catch (XPathException e) {
-            throw new OXFException(e);
         } finally {
             // Clear state to allow gc as the state might be referenced for a while
-            if (state != null) state.domGenerator = null;
-            // Return expression
-            if (expression != null) expression.returnToPool();
+            if (state != null) state.currentGenerator = null;
         }
+    }
 
-        // Notify input Tee processors that we are done
-        commitInputs(pipelineContext, iterationCount);
+    private void runIteration(PipelineContext pipelineContext, XMLReceiver xmlReceiver) {
+        forEachBlockProcessor.reset(pipelineContext);
+        if (xmlReceiver != null)
+            iterationOutput.read(pipelineContext, new EmbeddedDocumentXMLReceiver(xmlReceiver));
+        else
+            forEachBlockProcessor.start(pipelineContext);
+    }
+
+    /**
+     * Whether the given href reads one of the given ids, except for $current which refers to an iteration of the
+     * enclosing p:for-each in the href, and to an iteration of this p:for-each in the block.
+     */
+    private static boolean isReadByBlock(ASTHref href, String[] refsWithNoId) {
+        final Set<String> blockIds = new HashSet<String>(Arrays.asList(refsWithNoId));
+        blockIds.remove(AbstractForEachProcessor.FOR_EACH_CURRENT_INPUT);
+
+        final boolean[] result = { false };
+        href.walk(new ASTSimpleHandler() {
+            @Override
+            public void hrefId(ASTHrefId hrefId) {
+                if (blockIds.contains(hrefId.getId()))
+                    result[0] = true;
+            }
+        });
+        return result[0];
     }
 
     /**
@@ -337,7 +387,7 @@ public class ConcreteForEachProcessor extends ProcessorImpl {
     }
 
     /**
-     * Reads from the DOM generator stored in state.
+     * Reads from the generator stored in state.
      */
     private class IterationProcessorOutput extends ProcessorOutputImpl {
 
@@ -347,19 +397,19 @@ public class ConcreteForEachProcessor extends ProcessorImpl {
 
         protected void readImpl(PipelineContext pipelineContext, XMLReceiver xmlReceiver) {
             final State state = (State) getState(pipelineContext);
-            state.domGenerator.getOutputByName(OUTPUT_DATA).read(pipelineContext, xmlReceiver);
+            state.currentGenerator.getOutputByName(OUTPUT_DATA).read(pipelineContext, xmlReceiver);
         }
 
         @Override
         public OutputCacheKey getKeyImpl(PipelineContext pipelineContext) {
             final State state = (State) getState(pipelineContext);
-            return state.domGenerator.getOutputByName(OUTPUT_DATA).getKey(pipelineContext);
+            return state.currentGenerator.getOutputByName(OUTPUT_DATA).getKey(pipelineContext);
         }
 
         @Override
         protected Object getValidityImpl(PipelineContext pipelineContext) {
             final State state = (State) getState(pipelineContext);
-            return state.domGenerator.getOutputByName(OUTPUT_DATA).getValidity(pipelineContext);
+            return state.currentGenerator.getOutputByName(OUTPUT_DATA).getValidity(pipelineContext);
         }
     }
 
@@ -367,7 +417,7 @@ public class ConcreteForEachProcessor extends ProcessorImpl {
      * Runtime state information for p:for-each.
      */
     private static class State {
-        DOMGenerator domGenerator;
+        ProcessorImpl currentGenerator;
     }
 
     @Override
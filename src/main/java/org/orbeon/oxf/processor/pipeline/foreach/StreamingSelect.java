@@ -0,0 +1,251 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor.pipeline.foreach;
+
+import org.orbeon.oxf.xml.NamespaceMapping;
+import org.orbeon.oxf.xml.SAXStore;
+import org.orbeon.oxf.xml.XMLReceiver;
+import org.orbeon.oxf.xml.XMLReceiverAdapter;
+import org.xml.sax.Attributes;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.NamespaceSupport;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Select expression of p:for-each which can be evaluated on a stream of SAX events.
+ *
+ * Only simple downward paths made of child steps without predicates are supported, e.g. /company/department. Steps
+ * can use wildcards. The elements selected are provided one by one as SAXStore documents, without building a tree
+ * for the whole input.
+ */
+class StreamingSelect {
+
+    // Name test of a child step: *, prefix:*, name, or prefix:name
+    private static final Pattern STEP_PATTERN = Pattern.compile("(?:([A-Za-z_][\\w.\\-]*):)?(\\*|[A-Za-z_][\\w.\\-]*)");
+
+    // Namespace URI and local name of each step, null meaning any
+    private final String[] namespaceURIs;
+    private final String[] localNames;
+
+    private StreamingSelect(String[] namespaceURIs, String[] localNames) {
+        this.namespaceURIs = namespaceURIs;
+        this.localNames = localNames;
+    }
+
+    /**
+     * Return a StreamingSelect for the given expression, or null if the expression cannot be evaluated on a stream.
+     */
+    public static StreamingSelect parse(String select, NamespaceMapping namespaceMapping) {
+        final String path = select.trim();
+        if (! path.startsWith("/") || path.startsWith("//") || path.endsWith("/") || path.length() < 2)
+            return null;
+
+        final String[] steps = path.substring(1).split("/", -1);
+        final String[] namespaceURIs = new String[steps.length];
+        final String[] localNames = new String[steps.length];
+
+        for (int i = 0; i < steps.length; i++) {
+            final Matcher matcher = STEP_PATTERN.matcher(steps[i]);
+            if (! matcher.matches())
+                return null;
+
+            final String prefix = matcher.group(1);
+            final String localName = matcher.group(2);
+
+            if (prefix != null) {
+                namespaceURIs[i] = namespaceMapping.mapping.get(prefix);
+                // Let the XPath engine report an undeclared prefix
+                if (namespaceURIs[i] == null)
+                    return null;
+            } else if (localName != null && ! localName.equals("*")) {
+                // Unprefixed names are in no namespace in XPath
+                namespaceURIs[i] = "";
+            }
+
+            localNames[i] = (localName == null || localName.equals("*")) ? null : localName;
+        }
+
+        return new StreamingSelect(namespaceURIs, localNames);
+    }
+
+    /**
+     * Called for each element selected, in document order.
+     */
+    public interface Listener {
+        void selected(SAXStore document);
+    }
+
+    /**
+     * Create a receiver which calls the listener for each element selected in the document it receives.
+     */
+    public XMLReceiver createReceiver(final Listener listener) {
+        return new XMLReceiverAdapter() {
+
+            private final NamespaceSupport namespaceSupport = new NamespaceSupport();
+            private boolean hasPendingContext;
+
+            private Locator locator;
+
+            // Depth of the current element, and number of ancestor-or-self elements matching the first steps
+            private int level;
+            private int matchedLevel;
+
+            // Document for the element being selected
+            private SAXStore current;
+            private List<String> currentPrefixes;
+
+            @Override
+            public void setDocumentLocator(Locator locator) {
+                this.locator = locator;
+            }
+
+            @Override
+            public void startPrefixMapping(String prefix, String uri) throws SAXException {
+                if (current != null) {
+                    current.startPrefixMapping(prefix, uri);
+                } else {
+                    if (! hasPendingContext) {
+                        namespaceSupport.pushContext();
+                        hasPendingContext = true;
+                    }
+                    namespaceSupport.declarePrefix(prefix, uri);
+                }
+            }
+
+            @Override
+            public void endPrefixMapping(String prefix) throws SAXException {
+                if (current != null)
+                    current.endPrefixMapping(prefix);
+            }
+
+            @Override
+            public void startElement(String namespaceURI, String localName, String qName, Attributes attributes) throws SAXException {
+                if (current != null) {
+                    current.startElement(namespaceURI, localName, qName, attributes);
+                } else {
+                    if (! hasPendingContext)
+                        namespaceSupport.pushContext();
+                    hasPendingContext = false;
+
+                    if (matchedLevel == level && matches(level, namespaceURI, localName)) {
+                        matchedLevel++;
+                        if (matchedLevel == localNames.length)
+                            startSelected(namespaceURI, localName, qName, attributes);
+                    }
+                }
+                level++;
+            }
+
+            @Override
+            public void endElement(String namespaceURI, String localName, String qName) throws SAXException {
+                level--;
+                if (current != null && level >= localNames.length) {
+                    current.endElement(namespaceURI, localName, qName);
+                } else {
+                    if (current != null) {
+                        current.endElement(namespaceURI, localName, qName);
+                        endSelected();
+                    }
+                    // The element is not a match anymore
+                    if (matchedLevel > level)
+                        matchedLevel = level;
+                    namespaceSupport.popContext();
+                }
+            }
+
+            @Override
+            public void characters(char[] ch, int start, int length) throws SAXException {
+                if (current != null)
+                    current.characters(ch, start, length);
+            }
+
+            @Override
+            public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+                if (current != null)
+                    current.ignorableWhitespace(ch, start, length);
+            }
+
+            @Override
+            public void processingInstruction(String target, String data) throws SAXException {
+                if (current != null)
+                    current.processingInstruction(target, data);
+            }
+
+            @Override
+            public void comment(char[] ch, int start, int length) throws SAXException {
+                if (current != null)
+                    current.comment(ch, start, length);
+            }
+
+            @Override
+            public void startCDATA() throws SAXException {
+                if (current != null)
+                    current.startCDATA();
+            }
+
+            @Override
+            public void endCDATA() throws SAXException {
+                if (current != null)
+                    current.endCDATA();
+            }
+
+            private void startSelected(String namespaceURI, String localName, String qName, Attributes attributes) throws SAXException {
+                current = new SAXStore();
+                if (locator != null)
+                    current.setDocumentLocator(locator);
+                current.startDocument();
+
+                // Declare all the namespaces in scope on the root element of the new document
+                currentPrefixes = new ArrayList<String>();
+                final String defaultURI = namespaceSupport.getURI("");
+                if (defaultURI != null && defaultURI.length() > 0) {
+                    current.startPrefixMapping("", defaultURI);
+                    currentPrefixes.add("");
+                }
+                for (final Enumeration e = namespaceSupport.getPrefixes(); e.hasMoreElements();) {
+                    final String prefix = (String) e.nextElement();
+                    if (! prefix.equals("xml")) {
+                        current.startPrefixMapping(prefix, namespaceSupport.getURI(prefix));
+                        currentPrefixes.add(prefix);
+                    }
+                }
+
+                current.startElement(namespaceURI, localName, qName, attributes);
+            }
+
+            private void endSelected() throws SAXException {
+                for (final String prefix : currentPrefixes)
+                    current.endPrefixMapping(prefix);
+                current.endDocument();
+
+                final SAXStore selected = current;
+                current = null;
+                currentPrefixes = null;
+
+                listener.selected(selected);
+            }
+        };
+    }
+
+    private boolean matches(int step, String namespaceURI, String localName) {
+        return (namespaceURIs[step] == null || namespaceURIs[step].equals(namespaceURI))
+            && (localNames[step] == null || localNames[step].equals(localName));
+    }
+}
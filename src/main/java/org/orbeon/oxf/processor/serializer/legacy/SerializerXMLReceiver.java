@@ -19,9 +19,8 @@ import org.orbeon.oxf.processor.serializer.BinaryTextXMLReceiver;
 import org.orbeon.oxf.xml.NamespaceCleanupXMLReceiver;
 import org.xml.sax.SAXException;
 
+import java.io.Flushable;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.Writer;
 
 /**
  * A forwarding content handler that flushes the output when receiving a given processing instruction.
@@ -29,27 +28,22 @@ import java.io.Writer;
  * Also clean invalid XML 1.0 namespace declarations if needed.
  */
 public class SerializerXMLReceiver extends NamespaceCleanupXMLReceiver {
-    private Writer writer;
-    private OutputStream os;
+    private Flushable flushable;
 
     public SerializerXMLReceiver(XMLReceiver xmlReceiver, boolean serializeXML11) {
         super(xmlReceiver, serializeXML11);
     }
 
-    public SerializerXMLReceiver(XMLReceiver xmlReceiver, Writer writer, boolean serializeXML11) {
+    public SerializerXMLReceiver(XMLReceiver xmlReceiver, Flushable flushable, boolean serializeXML11) {
         this(xmlReceiver, serializeXML11);
-        this.writer = writer;
+        this.flushable = flushable;
     }
 
     public void processingInstruction(String target, String data) throws SAXException {
         if (BinaryTextXMLReceiver.PITargets().apply(target)) {
             try {
-                if ("flush".equals(data)) {
-                    if (writer != null)
-                        writer.flush();
-                    if (os != null)
-                        os.flush();
-                }
+                if ("flush".equals(data) && flushable != null)
+                    flushable.flush();
             } catch (IOException e) {
                 throw new OXFException(e);
             }
@@ -18,6 +18,7 @@ import org.orbeon.oxf.pipeline.api.PipelineContext;
 import org.orbeon.oxf.pipeline.api.TransformerXMLReceiver;
 import org.orbeon.oxf.processor.ProcessorImpl;
 import org.orbeon.oxf.processor.ProcessorInput;
+import org.orbeon.oxf.xml.StreamXMLSerializer;
 import org.orbeon.oxf.xml.TransformerUtils;
 
 import javax.xml.transform.stream.StreamResult;
@@ -35,24 +36,38 @@ public class XMLSerializer extends HttpTextSerializer {
 
     protected void readInput(PipelineContext context, ProcessorInput input, Config config, Writer writer) {
 
-        // Create an identity transformer and start the transformation
-        final TransformerXMLReceiver identity = TransformerUtils.getIdentityTransformerHandler();
-
         if(config.publicDoctype != null && config.systemDoctype == null)
             throw new OXFException("XML Serializer must have a system doctype if a public doctype is present");
 
-        TransformerUtils.applyOutputProperties(identity.getTransformer(),
-                config.method != null ? config.method : DEFAULT_METHOD,
-                config.version != null ? config.version : DEFAULT_VERSION,
-                config.publicDoctype != null ? config.publicDoctype : null,
-                config.systemDoctype != null ? config.systemDoctype : null,
-                getEncoding(config, null, DEFAULT_ENCODING),
-                config.omitXMLDeclaration,
-                config.standalone,
-                config.indent,
-                config.indentAmount);
-
-        identity.setResult(new StreamResult(writer));
-        ProcessorImpl.readInputAsSAX(context, input, new SerializerXMLReceiver(identity, writer, isSerializeXML11()));
+        final String method = config.method != null ? config.method : DEFAULT_METHOD;
+        if (StreamXMLSerializer.isSupported(method, config.indent)) {
+            // Serialize directly to the writer
+            final StreamXMLSerializer serializer = new StreamXMLSerializer(writer,
+                    config.version != null ? config.version : DEFAULT_VERSION,
+                    config.publicDoctype,
+                    config.systemDoctype,
+                    getEncoding(config, null, DEFAULT_ENCODING),
+                    config.omitXMLDeclaration,
+                    config.standalone);
+
+            ProcessorImpl.readInputAsSAX(context, input, new SerializerXMLReceiver(serializer, serializer, isSerializeXML11()));
+        } else {
+            // Create an identity transformer and start the transformation
+            final TransformerXMLReceiver identity = TransformerUtils.getIdentityTransformerHandler();
+
+            TransformerUtils.applyOutputProperties(identity.getTransformer(),
+                    method,
+                    config.version != null ? config.version : DEFAULT_VERSION,
+                    config.publicDoctype != null ? config.publicDoctype : null,
+                    config.systemDoctype != null ? config.systemDoctype : null,
+                    getEncoding(config, null, DEFAULT_ENCODING),
+                    config.omitXMLDeclaration,
+                    config.standalone,
+                    config.indent,
+                    config.indentAmount);
+
+            identity.setResult(new StreamResult(writer));
+            ProcessorImpl.readInputAsSAX(context, input, new SerializerXMLReceiver(identity, writer, isSerializeXML11()));
+        }
     }
 }
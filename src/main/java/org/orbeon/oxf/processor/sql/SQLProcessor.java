@@ -549,6 +549,13 @@ public class SQLProcessor extends ProcessorImpl {
             saxStore.replay(this);
         }
 
+        protected SAXStore getRepeatedBody() {
+            if (!repeating)
+                throw new IllegalStateException("getRepeatedBody() can only be called when repeating is true.");
+
+            return saxStore;
+        }
+
         public boolean isRepeating() {
             return repeating;
         }
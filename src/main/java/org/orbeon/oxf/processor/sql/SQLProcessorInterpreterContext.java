@@ -57,8 +57,19 @@ public class SQLProcessorInterpreterContext extends DatabaseContext {
     private List executionContextStack;
     private List currentNodes;
     private List currentFunctions = new ArrayList();
+
+    // Statement with batched parameter sets not yet executed, if any
+    private PreparedStatement pendingBatchStatement;
+    private String pendingBatchSQL;
+    private int pendingBatchCount;
+    // Whether the statement with the pending batch must be closed once the batch is executed
+    private boolean closePendingBatchStatement;
+
     public static final String SQL_PROCESSOR_CONTEXT = "sql-processor-context"; // used by SQLProcessor and related
 
+    public static final String BATCH_SIZE_PROPERTY = "batch-size";
+    public static final String FETCH_SIZE_PROPERTY = "fetch-size";
+
     public SQLProcessorInterpreterContext(PropertySet propertySet) {
         this.propertySet = propertySet;
     }
@@ -75,6 +86,8 @@ public class SQLProcessorInterpreterContext extends DatabaseContext {
         public boolean gotResults;
         public int rowPosition;
         public int updateCount;
+        public boolean batch;
+        public int batchSize;
 
         public int columnIndex;
         public String columnName;
@@ -128,7 +141,7 @@ public class SQLProcessorInterpreterContext extends DatabaseContext {
     public DatabaseDelegate getDelegate() {
         // Try to obtain delegate from context
         Context context = getContext(pipelineContext);
-        String delegateKey = (jndiName != null) ? jndiName : datasource.toString();
+        String delegateKey = getConnectionKey();
         DatabaseDelegate databaseDelegate = (DatabaseDelegate) context.delegates.get(delegateKey);
         if (databaseDelegate == null) {
             // Delegate needs to be created
@@ -241,6 +254,114 @@ public class SQLProcessorInterpreterContext extends DatabaseContext {
         return functionContext;
     }
 
+    /**
+     * Get a prepared statement for the given SQL.
+     *
+     * Statements are not cached here: connections obtained from the connection pool cache them. The only statement
+     * handed out again is the one with a pending batch once it has been released with closeStatement(), so that the
+     * next iteration of sql:for-each adds to the same batch.
+     *
+     * @param sql   final SQL text
+     * @return      prepared statement
+     */
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        if (pendingBatchStatement != null && closePendingBatchStatement && sql.equals(pendingBatchSQL)) {
+            closePendingBatchStatement = false;
+            return pendingBatchStatement;
+        }
+        return getConnection().prepareStatement(sql);
+    }
+
+    /**
+     * Close a statement. A statement with a pending batch is closed once its batch is executed.
+     *
+     * @param stmt  statement to close
+     */
+    public void closeStatement(PreparedStatement stmt) throws SQLException {
+        if (stmt == pendingBatchStatement) {
+            // Close the statement once its batch is executed
+            closePendingBatchStatement = true;
+        } else {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Add the current parameters of the given statement to the pending batch. If another statement has a pending
+     * batch, that batch is executed first. The batch is executed when it reaches the batch size, when another
+     * statement is executed, or at the end of the connection.
+     *
+     * @param stmt  statement with parameters set
+     */
+    public void addBatch(PreparedStatement stmt) throws SQLException {
+        if (pendingBatchStatement != null && pendingBatchStatement != stmt)
+            executeBatch();
+
+        stmt.addBatch();
+        pendingBatchStatement = stmt;
+        pendingBatchSQL = getStatementString();
+        pendingBatchCount++;
+
+        if (pendingBatchCount >= getBatchSize())
+            executeBatch();
+    }
+
+    /**
+     * Execute the pending batch, if any. This must be called before executing any other statement, so that updates
+     * are applied in document order.
+     */
+    public void executeBatch() throws SQLException {
+        if (pendingBatchStatement != null) {
+            final PreparedStatement stmt = pendingBatchStatement;
+            if (SQLProcessor.logger.isDebugEnabled())
+                SQLProcessor.logger.debug("Executing batch of " + pendingBatchCount + " updates");
+
+            final boolean closeStatement = closePendingBatchStatement;
+            pendingBatchStatement = null;
+            pendingBatchSQL = null;
+            pendingBatchCount = 0;
+            closePendingBatchStatement = false;
+
+            final int[] updateCounts;
+            try {
+                updateCounts = stmt.executeBatch();
+            } finally {
+                if (closeStatement)
+                    stmt.close();
+            }
+            int updateCount = 0;
+            for (int i = 0; i < updateCounts.length; i++)
+                if (updateCounts[i] > 0)
+                    updateCount += updateCounts[i];
+            if (executionContextStack != null && executionContextStack.size() > 0)
+                setUpdateCount(updateCount);
+        }
+    }
+
+    public void setBatch(boolean batch, int batchSize) {
+        final ExecutionContext executionContext = getExecutionContext(0);
+        executionContext.batch = batch;
+        executionContext.batchSize = batchSize;
+    }
+
+    public boolean isBatch() {
+        final ExecutionContext executionContext = getExecutionContext(0);
+        return executionContext.batch;
+    }
+
+    public int getBatchSize() {
+        final ExecutionContext executionContext = getExecutionContext(0);
+        return executionContext.batchSize > 0 ? executionContext.batchSize : propertySet.getInteger(BATCH_SIZE_PROPERTY, 100).intValue();
+    }
+
+    public int getFetchSize() {
+        return propertySet.getInteger(FETCH_SIZE_PROPERTY, 0).intValue();
+    }
+
+    private String getConnectionKey() {
+        return (jndiName != null) ? jndiName : datasource.toString();
+    }
+
     public void setResultSet(ResultSet resultSet) {
         final ExecutionContext executionContext = getExecutionContext(0);
         executionContext.resultSet = resultSet;
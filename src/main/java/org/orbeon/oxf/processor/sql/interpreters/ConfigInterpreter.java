@@ -13,11 +13,15 @@
  */
 package org.orbeon.oxf.processor.sql.interpreters;
 
+import org.orbeon.oxf.common.ValidationException;
 import org.orbeon.oxf.processor.sql.SQLProcessor;
 import org.orbeon.oxf.processor.sql.SQLProcessorInterpreterContext;
 import org.xml.sax.Attributes;
+import org.orbeon.oxf.xml.dom4j.LocationData;
 import org.xml.sax.SAXException;
 
+import java.sql.SQLException;
+
 /**
  *
  */
@@ -34,6 +38,12 @@ public class ConfigInterpreter extends SQLProcessor.InterpreterContentHandler {
     }
 
     public void end(String uri, String localname, String qName) throws SAXException {
+        // Execute remaining batched updates
+        try {
+            getInterpreterContext().executeBatch();
+        } catch (SQLException e) {
+            throw new ValidationException(e, new LocationData(getDocumentLocator()));
+        }
         getInterpreterContext().getOutput().endDocument();
     }
 }
\ No newline at end of file
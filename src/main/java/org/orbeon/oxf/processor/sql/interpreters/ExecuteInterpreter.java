@@ -40,6 +40,13 @@ public class ExecuteInterpreter extends SQLProcessor.InterpreterContentHandler {
         // Push context
         final SQLProcessorInterpreterContext interpreterContext = getInterpreterContext();
         interpreterContext.pushContext();
+
+        // Batch updates if requested, which also applies to nested sql:execute
+        final String batchString = attributes.getValue("batch");
+        if (batchString != null) {
+            final String batchSizeString = attributes.getValue("batch-size");
+            interpreterContext.setBatch("true".equals(batchString), (batchSizeString != null) ? Integer.parseInt(batchSizeString) : 0);
+        }
     }
 
     public void end(String uri, String localname, String qName) throws SAXException {
@@ -48,7 +55,7 @@ public class ExecuteInterpreter extends SQLProcessor.InterpreterContentHandler {
         final PreparedStatement stmt = interpreterContext.getStatement(0);
         if (stmt != null) { // the statement may not exist or already have been closed
             try {
-                stmt.close();
+                interpreterContext.closeStatement(stmt);
             } catch (SQLException e) {
                 throw new ValidationException(e, new LocationData(getDocumentLocator()));
             }
@@ -137,33 +137,7 @@ public class GetterInterpreter extends SQLProcessor.InterpreterContentHandler {
                     }
                 } else {
                     // xs:*
-                    Object o = getColumnValue(resultSet, getDocumentLocator(), columnIndex, xmlType);
-                    if (o != null) {
-                        if (o instanceof Clob) {
-                            Reader reader = ((Clob) o).getCharacterStream();
-                            try {
-                                XMLUtils.readerToCharacters(reader, interpreterContext.getOutput());
-                            } finally {
-                                reader.close();
-                            }
-                        } else if (o instanceof Blob) {
-                            InputStream is = ((Blob) o).getBinaryStream();
-                            try {
-                                XMLUtils.inputStreamToBase64Characters(is, interpreterContext.getOutput());
-                            } finally {
-                                is.close();
-                            }
-                        } else if (o instanceof InputStream) {
-                            InputStream is = (InputStream) o;
-                            try {
-                                XMLUtils.inputStreamToBase64Characters(is, interpreterContext.getOutput());
-                            } finally {
-                                is.close();
-                            }
-                        } else {
-                            XMLUtils.objectToCharacters(o, interpreterContext.getOutput());
-                        }
-                    }
+                    outputColumnValue(getColumnValue(resultSet, getDocumentLocator(), columnIndex, xmlType), interpreterContext.getOutput());
                 }
             } else if ("get-column-name".equals(localname)) {
                 final String columnName = attributes.getValue("column-name");
@@ -225,33 +199,7 @@ public class GetterInterpreter extends SQLProcessor.InterpreterContentHandler {
                 // Simple getter (deprecated)
                 final String columnName = (attributes.getValue("column-name") != null) ? attributes.getValue("column-name") : attributes.getValue("column");
                 final int columnIndex = resultSet.findColumn(columnName);
-                final Object o = getColumnValue(resultSet, getDocumentLocator(), columnIndex, getXMLTypeFromLegacyGetterName(localname));
-                if (o != null) {
-                    if (o instanceof Clob) {
-                        final Reader reader = ((Clob) o).getCharacterStream();
-                        try {
-                            XMLUtils.readerToCharacters(reader, interpreterContext.getOutput());
-                        } finally {
-                            reader.close();
-                        }
-                    } else if (o instanceof Blob) {
-                        final InputStream is = ((Blob) o).getBinaryStream();
-                        try {
-                            XMLUtils.inputStreamToBase64Characters(is, interpreterContext.getOutput());
-                        } finally {
-                            is.close();
-                        }
-                    } else if (o instanceof InputStream) {
-                        final InputStream is = (InputStream) o;
-                        try {
-                            XMLUtils.inputStreamToBase64Characters(is, interpreterContext.getOutput());
-                        } finally {
-                            is.close();
-                        }
-                    } else {
-                        XMLUtils.objectToCharacters(o, interpreterContext.getOutput());
-                    }
-                }
+                outputColumnValue(getColumnValue(resultSet, getDocumentLocator(), columnIndex, getXMLTypeFromLegacyGetterName(localname)), interpreterContext.getOutput());
             }
         } catch (Exception e) {
             throw new ValidationException(e, new LocationData(getDocumentLocator()));
@@ -287,83 +235,116 @@ public class GetterInterpreter extends SQLProcessor.InterpreterContentHandler {
                     metadata = resultSet.getMetaData();
 
                 NamespaceSupport namespaceSupport = interpreterContext.getNamespaceSupport();
-//                                        for (Enumeration e = namespaceSupport.getPrefixes(); e.hasMoreElements();) {
-//                                            String p = (String) e.nextElement();
-//                                            String u = namespaceSupport.getURI(p);
-//                                            System.out.println("Prefix: " + p + " -> " + u);
-//                                        }
-
-                // Get format once for all columns
 
                 // Get URI once for all columns
                 String outputElementURI = (getColumnsPrefix == null) ? "" : namespaceSupport.getURI(getColumnsPrefix);
                 if (outputElementURI == null)
                     throw new ValidationException("Invalid namespace prefix: " + getColumnsPrefix, new LocationData(getDocumentLocator()));
 
-                // Iterate through all columns
-                for (int i = 1; i <= metadata.getColumnCount(); i++) {
-                    // Get column name
-                    // NOTE: getColumnLabel() allows SQL "AS" to work
-                    String columnName = metadata.getColumnLabel(i);
-                    // Make sure it is not excluded
-                    if (getColumnsExcludes != null && getColumnsExcludes.get(columnName.toLowerCase()) != null)
-                        continue;
-                    // Process column
-                    int columnType = metadata.getColumnType(i);
-                    Clob clobValue = null;
-                    Blob blobValue = null;
-                    String stringValue = null;
-                    if (columnType == Types.CLOB) {
-                        clobValue = resultSet.getClob(i);
-                    } else if (columnType == Types.BLOB) {
-                        blobValue = resultSet.getBlob(i);
+                outputColumns(resultSet, metadata, getColumnsFormat, getColumnsPrefix, outputElementURI, getColumnsAllElements,
+                        getColumnsExcludes, interpreterContext.getOutput(), getDocumentLocator());
+            }
+        } catch (Exception e) {
+            throw new ValidationException(e, new LocationData(getDocumentLocator()));
+        }
+        interpreterContext.getNamespaceSupport().popContext();
+    }
+
+    /**
+     * Output the given value of a column as characters.
+     */
+    public static void outputColumnValue(Object o, ContentHandler output) throws Exception {
+        if (o != null) {
+            if (o instanceof Clob) {
+                final Reader reader = ((Clob) o).getCharacterStream();
+                try {
+                    XMLUtils.readerToCharacters(reader, output);
+                } finally {
+                    reader.close();
+                }
+            } else if (o instanceof Blob) {
+                final InputStream is = ((Blob) o).getBinaryStream();
+                try {
+                    XMLUtils.inputStreamToBase64Characters(is, output);
+                } finally {
+                    is.close();
+                }
+            } else if (o instanceof InputStream) {
+                final InputStream is = (InputStream) o;
+                try {
+                    XMLUtils.inputStreamToBase64Characters(is, output);
+                } finally {
+                    is.close();
+                }
+            } else {
+                XMLUtils.objectToCharacters(o, output);
+            }
+        }
+    }
+
+    /**
+     * Output the columns of the current row as elements, as done by sql:get-columns.
+     */
+    public static void outputColumns(ResultSet resultSet, ResultSetMetaData metadata, String format, String prefix, String outputElementURI,
+                                     boolean allElements, Map excludes, ContentHandler output, Locator locator) throws Exception {
+        // Iterate through all columns
+        for (int i = 1; i <= metadata.getColumnCount(); i++) {
+            // Get column name
+            // NOTE: getColumnLabel() allows SQL "AS" to work
+            String columnName = metadata.getColumnLabel(i);
+            // Make sure it is not excluded
+            if (excludes != null && excludes.get(columnName.toLowerCase()) != null)
+                continue;
+            // Process column
+            int columnType = metadata.getColumnType(i);
+            Clob clobValue = null;
+            Blob blobValue = null;
+            String stringValue = null;
+            if (columnType == Types.CLOB) {
+                clobValue = resultSet.getClob(i);
+            } else if (columnType == Types.BLOB) {
+                blobValue = resultSet.getBlob(i);
+            } else {
+                stringValue = getColumnStringValue(resultSet, i, columnType);
+            }
+            final boolean nonNullValue = stringValue != null || clobValue != null || blobValue != null;
+            if (nonNullValue || allElements) {
+                // Format element name
+                String elementName = columnName;
+                if ("xml".equals(format)) {
+                    elementName = elementName.toLowerCase();
+                    elementName = elementName.replace('_', '-');
+                } else if (format != null)
+                    throw new ValidationException("Invalid get-columns format: " + format, new LocationData(locator));
+                String elementQName = (outputElementURI.equals("")) ? elementName : prefix + ":" + elementName;
+                output.startElement(outputElementURI, elementName, elementQName, XMLUtils.EMPTY_ATTRIBUTES);
+                // Output value if non-null
+                if (nonNullValue) {
+                    if (clobValue == null && blobValue == null) {
+                        // Just output the String value as characters
+                        char[] localCharValue = stringValue.toCharArray();
+                        output.characters(localCharValue, 0, localCharValue.length);
+                    } else if (clobValue != null) {
+                        // Clob: convert the Reader into characters
+                        Reader reader = clobValue.getCharacterStream();
+                        try {
+                            XMLUtils.readerToCharacters(reader, output);
+                        } finally {
+                            reader.close();
+                        }
                     } else {
-                        stringValue = getColumnStringValue(resultSet, i, columnType);
-                    }
-                    final boolean nonNullValue = stringValue != null || clobValue != null || blobValue != null;
-                    if (nonNullValue || getColumnsAllElements) {
-                        // Format element name
-                        String elementName = columnName;
-                        if ("xml".equals(getColumnsFormat)) {
-                            elementName = elementName.toLowerCase();
-                            elementName = elementName.replace('_', '-');
-                        } else if (getColumnsFormat != null)
-                            throw new ValidationException("Invalid get-columns format: " + getColumnsFormat, new LocationData(getDocumentLocator()));
-                        String elementQName = (outputElementURI.equals("")) ? elementName : getColumnsPrefix + ":" + elementName;
-                        ContentHandler output = interpreterContext.getOutput();
-                        output.startElement(outputElementURI, elementName, elementQName, XMLUtils.EMPTY_ATTRIBUTES);
-                        // Output value if non-null
-                        if (nonNullValue) {
-                            if (clobValue == null && blobValue == null) {
-                                // Just output the String value as characters
-                                char[] localCharValue = stringValue.toCharArray();
-                                output.characters(localCharValue, 0, localCharValue.length);
-                            } else if (clobValue != null) {
-                                // Clob: convert the Reader into characters
-                                Reader reader = clobValue.getCharacterStream();
-                                try {
-                                    XMLUtils.readerToCharacters(reader, output);
-                                } finally {
-                                    reader.close();
-                                }
-                            } else {
-                                // Blob: convert the InputStream into characters in Base64
-                                InputStream is = blobValue.getBinaryStream();
-                                try {
-                                    XMLUtils.inputStreamToBase64Characters(is, output);
-                                } finally {
-                                    is.close();
-                                }
-                            }
+                        // Blob: convert the InputStream into characters in Base64
+                        InputStream is = blobValue.getBinaryStream();
+                        try {
+                            XMLUtils.inputStreamToBase64Characters(is, output);
+                        } finally {
+                            is.close();
                         }
-                        output.endElement(outputElementURI, elementName, elementQName);
                     }
                 }
+                output.endElement(outputElementURI, elementName, elementQName);
             }
-        } catch (Exception e) {
-            throw new ValidationException(e, new LocationData(getDocumentLocator()));
         }
-        interpreterContext.getNamespaceSupport().popContext();
     }
 
     // Mapping for legacy getters
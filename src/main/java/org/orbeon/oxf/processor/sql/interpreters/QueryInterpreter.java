@@ -60,6 +60,7 @@ public class QueryInterpreter extends SQLProcessor.InterpreterContentHandler {
     private boolean hasReplaceOrSeparator;
     private Iterator nodeIterator;
     private String debugString;
+    private int fetchSize;
 
     public QueryInterpreter(SQLProcessorInterpreterContext interpreterContext, int type) {
         super(interpreterContext, false);
@@ -156,6 +157,15 @@ public class QueryInterpreter extends SQLProcessor.InterpreterContentHandler {
         }
         // Get debug attribute
         debugString = attributes.getValue("debug");
+        // Get fetch size attribute
+        final String fetchSizeString = attributes.getValue("fetch-size");
+        if (fetchSizeString != null) {
+            if (type != QUERY)
+                throw new ValidationException("fetch-size attribute is valid only on query element", new LocationData(getDocumentLocator()));
+            fetchSize = Integer.parseInt(fetchSizeString);
+        } else {
+            fetchSize = getInterpreterContext().getFetchSize();
+        }
     }
 
     public void end(String uri, String localname, String qName) throws SAXException {
@@ -170,7 +180,7 @@ public class QueryInterpreter extends SQLProcessor.InterpreterContentHandler {
                 final String queryString = query.toString();
                 if (type != CALL) {
                     // TODO: see how we can support this: Statement.RETURN_GENERATED_KEYS (won't work with hsqldb)
-                    stmt = getInterpreterContext().getConnection().prepareStatement(queryString);
+                    stmt = getInterpreterContext().prepareStatement(queryString);
                 } else
                     stmt = getInterpreterContext().getConnection().prepareCall(queryString);
                 getInterpreterContext().setStatementString(queryString);
@@ -323,9 +333,9 @@ public class QueryInterpreter extends SQLProcessor.InterpreterContentHandler {
                         // We create a new PreparedStatement for each iteration
                         String replacedQueryString = replacedQuery.toString();
                         if (stmt != null) {
-                            stmt.close();
+                            getInterpreterContext().closeStatement(stmt);
                         }
-                        stmt = getInterpreterContext().getConnection().prepareStatement(replacedQueryString);
+                        stmt = getInterpreterContext().prepareStatement(replacedQueryString);
                         getInterpreterContext().setStatement(stmt);
                         getInterpreterContext().setStatementString(replacedQueryString);
                     }
@@ -595,16 +605,25 @@ public class QueryInterpreter extends SQLProcessor.InterpreterContentHandler {
                     if (nodeCount > 1)
                         throw new ValidationException("More than one iteration on sql:query or sql:call element", new LocationData(getDocumentLocator()));
                     // Execute
+                    getInterpreterContext().executeBatch();
+                    if (type == QUERY)
+                        stmt.setFetchSize(fetchSize);
                     if (SQLProcessor.logger.isDebugEnabled())
                         SQLProcessor.logger.debug("Executing query/call for statement: " + getInterpreterContext().getStatementString());
                     final boolean hasResultSet = stmt.execute();
                     ResultSetInterpreter.setResultSetInfo(getInterpreterContext(), stmt, hasResultSet);
                 } else if (type == UPDATE) {
-                    // We know there is only a possible update count
-                    final int updateCount = stmt.executeUpdate();
-                    getInterpreterContext().setUpdateCount(updateCount);//FIXME: should add?
-                    if (updateCount > 0)
-                    	ResultSetInterpreter.setGeneratedKeysResultSetInfo(getInterpreterContext(), stmt);
+                    if (getInterpreterContext().isBatch()) {
+                        // Defer execution, the update count is not available in this case
+                        getInterpreterContext().addBatch(stmt);
+                    } else {
+                        getInterpreterContext().executeBatch();
+                        // We know there is only a possible update count
+                        final int updateCount = stmt.executeUpdate();
+                        getInterpreterContext().setUpdateCount(updateCount);//FIXME: should add?
+                        if (updateCount > 0)
+                            ResultSetInterpreter.setGeneratedKeysResultSetInfo(getInterpreterContext(), stmt);
+                    }
                 }
             }
         } catch (Exception e) {
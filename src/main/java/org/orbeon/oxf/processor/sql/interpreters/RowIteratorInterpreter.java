@@ -70,6 +70,16 @@ public class RowIteratorInterpreter extends SQLProcessor.InterpreterContentHandl
                 }
             });
 
+            // In streaming mode, compile the row body once instead of interpreting it for each row
+            final RowTemplate template;
+            if (hasNext && "true".equals(attributes.getValue("streaming"))) {
+                template = RowTemplate.compile(getRepeatedBody(), interpreterContext, getDocumentLocator());
+                if (template == null && SQLProcessor.logger.isDebugEnabled())
+                    SQLProcessor.logger.debug("Row body cannot be compiled, interpreting rows instead");
+            } else {
+                template = null;
+            }
+
             interpreterContext.pushFunctions(functions);
             try {
                 // Iterate through the result set
@@ -91,8 +101,11 @@ public class RowIteratorInterpreter extends SQLProcessor.InterpreterContentHandl
                     if (SQLProcessor.logger.isDebugEnabled())
                         SQLProcessor.logger.debug("Execute row: rowNum = " + rowNum);
 
-                    // Interpret row
-                    repeatBody();
+                    // Output or interpret row
+                    if (template != null)
+                        template.output(resultSet, interpreterContext.getOutput());
+                    else
+                        repeatBody();
                     // Go to following row
                     hasNext = resultSet.next();
                     rowNum++;
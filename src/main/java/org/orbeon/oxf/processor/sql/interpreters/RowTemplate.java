@@ -0,0 +1,304 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor.sql.interpreters;
+
+import org.orbeon.oxf.common.ValidationException;
+import org.orbeon.oxf.processor.sql.SQLProcessor;
+import org.orbeon.oxf.processor.sql.SQLProcessorInterpreterContext;
+import org.orbeon.oxf.xml.SAXStore;
+import org.orbeon.oxf.xml.XMLConstants;
+import org.orbeon.oxf.xml.XMLReceiverAdapter;
+import org.orbeon.oxf.xml.dom4j.Dom4jUtils;
+import org.orbeon.oxf.xml.dom4j.LocationData;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiled form of the body of sql:row-iterator, used in streaming mode.
+ *
+ * The body is analyzed once against the result set metadata: literal content is kept as-is, and getters are resolved
+ * to a column index and type. Each row is then output by running through the resulting steps, without replaying and
+ * interpreting the SAX events of the body.
+ *
+ * Only bodies made of literal content and simple getters on the current result set can be compiled. Anything else
+ * (sql:group, sql:value-of, nested queries, getters with an ancestor, XML fragments, etc.) requires interpretation.
+ */
+public class RowTemplate {
+
+    private final Step[] steps;
+
+    private RowTemplate(List steps) {
+        this.steps = (Step[]) steps.toArray(new Step[steps.size()]);
+    }
+
+    /**
+     * Compile the given row body.
+     *
+     * @return  compiled template, or null if the body requires interpretation
+     */
+    public static RowTemplate compile(SAXStore body, SQLProcessorInterpreterContext interpreterContext, Locator locator) throws SAXException {
+        final Compiler compiler = new Compiler(interpreterContext, locator);
+        body.replay(compiler);
+        return compiler.compilable ? new RowTemplate(compiler.steps) : null;
+    }
+
+    /**
+     * Output the current row of the result set.
+     */
+    public void output(ResultSet resultSet, ContentHandler output) throws Exception {
+        for (int i = 0; i < steps.length; i++)
+            steps[i].output(resultSet, output);
+    }
+
+    private interface Step {
+        void output(ResultSet resultSet, ContentHandler output) throws Exception;
+    }
+
+    private static class Compiler extends XMLReceiverAdapter {
+
+        private final SQLProcessorInterpreterContext interpreterContext;
+        private final Locator locator;
+
+        private final List steps = new ArrayList();
+        private boolean compilable = true;
+
+        private ResultSet resultSet;
+        private ResultSetMetaData metadata;
+
+        // State of the current sql:get-columns
+        private boolean inGetColumns;
+        private int getColumnsDepth;
+        private String getColumnsFormat;
+        private String getColumnsPrefix;
+        private boolean getColumnsAllElements;
+        private Map getColumnsExcludes;
+        private StringBuilder getColumnsCurrentExclude;
+
+        // Depth within a getter that produces a single value
+        private int getterDepth;
+
+        // Whether a namespace context was pushed for the next element by its prefix mappings
+        private boolean contextPushed;
+
+        public Compiler(SQLProcessorInterpreterContext interpreterContext, Locator locator) {
+            this.interpreterContext = interpreterContext;
+            this.locator = locator;
+        }
+
+        public void startPrefixMapping(final String prefix, final String uri) throws SAXException {
+            // Same as when interpreting: prefixes are visible to getters, within the element that declares them
+            if (!contextPushed) {
+                interpreterContext.getNamespaceSupport().pushContext();
+                contextPushed = true;
+            }
+            interpreterContext.declarePrefix(prefix, uri);
+
+            if (!compilable)
+                return;
+            if (getterDepth == 0 && !inGetColumns) {
+                steps.add(new Step() {
+                    public void output(ResultSet resultSet, ContentHandler output) throws Exception {
+                        output.startPrefixMapping(prefix, uri);
+                    }
+                });
+            }
+        }
+
+        public void endPrefixMapping(final String prefix) throws SAXException {
+            if (!compilable)
+                return;
+            if (getterDepth == 0 && !inGetColumns) {
+                steps.add(new Step() {
+                    public void output(ResultSet resultSet, ContentHandler output) throws Exception {
+                        output.endPrefixMapping(prefix);
+                    }
+                });
+            }
+        }
+
+        public void startElement(final String uri, final String localname, final String qName, Attributes attributes) throws SAXException {
+            if (!contextPushed)
+                interpreterContext.getNamespaceSupport().pushContext();
+            contextPushed = false;
+
+            if (!compilable)
+                return;
+
+            if (getterDepth > 0) {
+                // Getters other than sql:get-columns don't take content
+                getterDepth++;
+                compilable = false;
+            } else if (inGetColumns) {
+                getColumnsDepth++;
+                if (getColumnsDepth == 1 && SQLProcessor.SQL_NAMESPACE_URI.equals(uri) && "exclude".equals(localname))
+                    getColumnsCurrentExclude = new StringBuilder();
+                else
+                    compilable = false;
+            } else if (SQLProcessor.SQL_NAMESPACE_URI.equals(uri)) {
+                try {
+                    compileGetter(localname, attributes);
+                } catch (Exception e) {
+                    throw new ValidationException(e, new LocationData(locator));
+                }
+            } else {
+                final Attributes savedAttributes = new AttributesImpl(attributes);
+                steps.add(new Step() {
+                    public void output(ResultSet resultSet, ContentHandler output) throws Exception {
+                        output.startElement(uri, localname, qName, savedAttributes);
+                    }
+                });
+            }
+        }
+
+        public void endElement(final String uri, final String localname, final String qName) throws SAXException {
+            // Undeclare the prefixes of the element, which SAX reports with endPrefixMapping right after
+            interpreterContext.getNamespaceSupport().popContext();
+
+            if (!compilable)
+                return;
+
+            if (getterDepth > 0) {
+                getterDepth--;
+            } else if (inGetColumns) {
+                if (getColumnsDepth == 0) {
+                    addGetColumns();
+                    inGetColumns = false;
+                } else {
+                    getColumnsDepth--;
+                    if (getColumnsCurrentExclude != null) {
+                        if (getColumnsExcludes == null)
+                            getColumnsExcludes = new HashMap();
+                        final String value = getColumnsCurrentExclude.toString().toLowerCase();
+                        getColumnsExcludes.put(value, value);
+                        getColumnsCurrentExclude = null;
+                    }
+                }
+            } else {
+                steps.add(new Step() {
+                    public void output(ResultSet resultSet, ContentHandler output) throws Exception {
+                        output.endElement(uri, localname, qName);
+                    }
+                });
+            }
+        }
+
+        public void characters(char[] chars, int start, int length) throws SAXException {
+            if (!compilable)
+                return;
+
+            if (getColumnsCurrentExclude != null) {
+                getColumnsCurrentExclude.append(chars, start, length);
+            } else if (getterDepth == 0 && !inGetColumns) {
+                final char[] savedChars = new char[length];
+                System.arraycopy(chars, start, savedChars, 0, length);
+                steps.add(new Step() {
+                    public void output(ResultSet resultSet, ContentHandler output) throws Exception {
+                        output.characters(savedChars, 0, savedChars.length);
+                    }
+                });
+            }
+        }
+
+        public void processingInstruction(String target, String data) throws SAXException {
+            compilable = false;
+        }
+
+        public void comment(char[] ch, int start, int length) throws SAXException {
+            compilable = false;
+        }
+
+        private void compileGetter(String localname, Attributes attributes) throws Exception {
+
+            // Only getters on the current result set
+            if (attributes.getValue("ancestor") != null) {
+                compilable = false;
+                return;
+            }
+
+            if (resultSet == null) {
+                resultSet = interpreterContext.getResultSet();
+                metadata = resultSet.getMetaData();
+            }
+
+            if ("get-columns".equals(localname)) {
+                inGetColumns = true;
+                getColumnsDepth = 0;
+                getColumnsFormat = attributes.getValue("format");
+                getColumnsPrefix = attributes.getValue("prefix");
+                getColumnsAllElements = "true".equals(attributes.getValue("all-elements"));
+                getColumnsExcludes = null;
+            } else if ("get-column".equals(localname) || "get-column-value".equals(localname)) {
+                final String columnNameAttribute = attributes.getValue("column-name");
+                final String columnName = (columnNameAttribute != null) ? columnNameAttribute : attributes.getValue("column");
+                if (columnName == null) {
+                    // Column from sql:column-iterator
+                    compilable = false;
+                    return;
+                }
+                final int columnIndex = resultSet.findColumn(columnName);
+                final String xmlType = GetterInterpreter.getXMLTypeFromAttributeStringHandleDefault(locator, interpreterContext.getPropertySet(),
+                        attributes.getValue("type"), interpreterContext.getPrefixesMap(), metadata.getColumnType(columnIndex));
+                if (Dom4jUtils.qNameToExplodedQName(XMLConstants.OPS_XMLFRAGMENT_QNAME).equals(xmlType)) {
+                    // XML fragments are parsed by GetterInterpreter
+                    compilable = false;
+                    return;
+                }
+                addGetColumn(columnIndex, xmlType);
+            } else if (GetterInterpreter.getXMLTypeFromLegacyGetterName(localname) != null) {
+                // Simple getter (deprecated)
+                final String columnName = (attributes.getValue("column-name") != null) ? attributes.getValue("column-name") : attributes.getValue("column");
+                addGetColumn(resultSet.findColumn(columnName), GetterInterpreter.getXMLTypeFromLegacyGetterName(localname));
+            } else {
+                // Any other instruction requires interpretation
+                compilable = false;
+            }
+        }
+
+        private void addGetColumn(final int columnIndex, final String xmlType) {
+            getterDepth = 1;
+            steps.add(new Step() {
+                public void output(ResultSet resultSet, ContentHandler output) throws Exception {
+                    GetterInterpreter.outputColumnValue(GetterInterpreter.getColumnValue(resultSet, locator, columnIndex, xmlType), output);
+                }
+            });
+        }
+
+        private void addGetColumns() {
+            final String outputElementURI = (getColumnsPrefix == null) ? "" : interpreterContext.getNamespaceSupport().getURI(getColumnsPrefix);
+            if (outputElementURI == null)
+                throw new ValidationException("Invalid namespace prefix: " + getColumnsPrefix, new LocationData(locator));
+
+            final ResultSetMetaData metadata = this.metadata;
+            final String format = getColumnsFormat;
+            final String prefix = getColumnsPrefix;
+            final boolean allElements = getColumnsAllElements;
+            final Map excludes = getColumnsExcludes;
+            steps.add(new Step() {
+                public void output(ResultSet resultSet, ContentHandler output) throws Exception {
+                    GetterInterpreter.outputColumns(resultSet, metadata, format, prefix, outputElementURI, allElements, excludes, output, locator);
+                }
+            });
+        }
+    }
+}
@@ -146,6 +146,19 @@ public class TransformerURIResolver implements URIResolver {
         return new SAXSource(xmlReader, new InputSource(systemId)); // set system id so that we can get it on the Source object from outside
     }
 
+    /**
+     * Return a key identifying how this resolver parses documents, so that parsed documents can be cached by callers.
+     *
+     * @return  key, or null if parsed documents must not be cached, for example because they are also sent to a
+     *          listener, or because the parser handles XInclude itself
+     */
+    public String getParsedDocumentKey() {
+        if (parserConfiguration.handleXInclude || pipelineContext != null && pipelineContext.getAttribute(XSLTTransformer.XSLT_STYLESHEET_URI_LISTENER) != null)
+            return null;
+        else
+            return parserConfiguration.getKey() + (mode != null ? mode : "");
+    }
+
     protected ProcessorImpl getProcessor() {
         return processor;
     }
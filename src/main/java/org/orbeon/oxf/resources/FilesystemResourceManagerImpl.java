@@ -83,6 +83,16 @@ public class FilesystemResourceManagerImpl extends ResourceManagerBase {
         }
     }
 
+    @Override
+    protected boolean supportsBackgroundValidityCheck() {
+        return true;
+    }
+
+    @Override
+    public boolean exists(String key) {
+        return getFile(key).canRead();
+    }
+
     /**
      * Returns the length of the file denoted by this abstract pathname.
      * @return The length, in bytes, of the file denoted by this abstract pathname, or 0L if the file does not exist
@@ -105,6 +115,7 @@ public class FilesystemResourceManagerImpl extends ResourceManagerBase {
      * @return an output stream
      */
     public OutputStream getOutputStream(String key) {
+        invalidateLastModified(key);
         try {
             File file = getFile(key);
             // Delete file if it exists
@@ -128,6 +139,7 @@ public class FilesystemResourceManagerImpl extends ResourceManagerBase {
      * @return  a writer
      */
     public Writer getWriter(String key) {
+        invalidateLastModified(key);
         try {
             File file = getFile(key);
 
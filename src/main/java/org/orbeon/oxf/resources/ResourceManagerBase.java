@@ -43,7 +43,13 @@ public abstract class ResourceManagerBase implements ResourceManager {
     private static final String MIN_RELOAD_INTERVAL_KEY = "oxf.resources.common.min-reload-interval";
     private static final long DEFAULT_MIN_RELOAD_INTERVAL = 2 * 1000;
 
-    private ExpirationMap lastModifiedMap;
+    // Possible values: on-access, background, never
+    private static final String RELOAD_MODE_KEY = "oxf.resources.common.reload-mode";
+
+    private static final String MAX_TRACKED_RESOURCES_KEY = "oxf.resources.common.max-tracked-resources";
+    private static final int DEFAULT_MAX_TRACKED_RESOURCES = 10000;
+
+    private final ResourceValidityTracker validityTracker;
 
     /**
      * Initialisation. Should be called only by sub-classes
@@ -58,7 +64,52 @@ public abstract class ResourceManagerBase implements ResourceManager {
                 throw new OXFException("Value for property '" + MIN_RELOAD_INTERVAL_KEY + "' must be a non-negative integer.");
             minReloadInterval = longValue;
         }
-        lastModifiedMap = new ExpirationMap(minReloadInterval);
+
+        // Reload mode, by default checking in the background when supported
+        final String reloadModeString = (String) props.get(RELOAD_MODE_KEY);
+        final ResourceValidityTracker.ReloadMode reloadMode;
+        if (reloadModeString == null)
+            reloadMode = supportsBackgroundValidityCheck() && minReloadInterval > 0
+                ? ResourceValidityTracker.ReloadMode.BACKGROUND
+                : ResourceValidityTracker.ReloadMode.ON_ACCESS;
+        else if (reloadModeString.equals("on-access"))
+            reloadMode = ResourceValidityTracker.ReloadMode.ON_ACCESS;
+        else if (reloadModeString.equals("background") && minReloadInterval > 0)
+            reloadMode = ResourceValidityTracker.ReloadMode.BACKGROUND;
+        else if (reloadModeString.equals("never"))
+            reloadMode = ResourceValidityTracker.ReloadMode.NEVER;
+        else
+            throw new OXFException("Value for property '" + RELOAD_MODE_KEY + "' must be one of on-access, background, or never, and background requires a positive '" + MIN_RELOAD_INTERVAL_KEY + "'.");
+
+        // Maximum number of resources whose validity is tracked
+        final String maxTrackedResourcesString = (String) props.get(MAX_TRACKED_RESOURCES_KEY);
+        final int maxTrackedResources = maxTrackedResourcesString != null ? Integer.parseInt(maxTrackedResourcesString) : DEFAULT_MAX_TRACKED_RESOURCES;
+        if (maxTrackedResources <= 0)
+            throw new OXFException("Value for property '" + MAX_TRACKED_RESOURCES_KEY + "' must be a positive integer.");
+
+        validityTracker = new ResourceValidityTracker(new ResourceValidityTracker.Checker() {
+            public long lastModified(String key) {
+                try {
+                    return lastModifiedImpl(key, false);
+                } catch (ResourceNotFoundException e) {
+                    return ResourceValidityTracker.NOT_FOUND;
+                }
+            }
+        }, reloadMode, minReloadInterval, maxTrackedResources);
+    }
+
+    /**
+     * Whether checking the validity of resources is cheap enough to be done for all resources in the background.
+     */
+    protected boolean supportsBackgroundValidityCheck() {
+        return false;
+    }
+
+    /**
+     * To be called by sub-classes when a resource is modified through the resource manager.
+     */
+    protected void invalidateLastModified(String key) {
+        validityTracker.invalidate(key);
     }
 
     public Node getContentAsDOM(String key) {
@@ -135,27 +186,14 @@ public abstract class ResourceManagerBase implements ResourceManager {
         return transformer;
     }
 
-    final synchronized public long lastModified(String key, boolean doNotThrowResourceNotFound) {
-        // Do only 1 call to currentTimeMillis()
-        final long currentTime = System.currentTimeMillis();
-        Object value = lastModifiedMap.get(currentTime, key);
-        if (value == null) {
-            // We don't have the information or or it has expired
-            try {
-                long lastModified = lastModifiedImpl(key, doNotThrowResourceNotFound);
-                lastModifiedMap.put(currentTime, key, lastModified);
-                return lastModified;
-            } catch (ResourceNotFoundException e) {
-                lastModifiedMap.put(currentTime, key, e);
-                throw e;
-            }
-        } else {
-            if (value instanceof ResourceNotFoundException) {
-                throw (ResourceNotFoundException) value;
-            } else {
-                return (Long) value;
-            }
-        }
+    final public long lastModified(String key, boolean doNotThrowResourceNotFound) {
+        final long lastModified = validityTracker.lastModified(key);
+        if (lastModified != ResourceValidityTracker.NOT_FOUND)
+            return lastModified;
+        else if (doNotThrowResourceNotFound)
+            return -1;
+        else
+            throw new ResourceNotFoundException(key);
     }
 
     public boolean exists(String key) {
@@ -0,0 +1,209 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.resources;
+
+import org.apache.log4j.Logger;
+import org.orbeon.oxf.util.LoggerFactory;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keep track of the last modification date of resources, so that checking it is a lock-free read most of the time.
+ *
+ * o ON_ACCESS: a date is checked again upon access if it is older than the reload interval.
+ * o BACKGROUND: all the dates are checked again every reload interval by a background thread, and accesses only
+ *   check resources not seen before.
+ * o NEVER: resources are considered immutable once checked, including resources which were not found.
+ *
+ * Resources which were not found are tracked as well, with a last modification date of NOT_FOUND.
+ *
+ * At most maxEntries resources are tracked: beyond that, the resources accessed least recently are forgotten, and are
+ * checked again upon access. Entries are only ever replaced by the entry they were checked from, so that a check which
+ * started before a resource was invalidated doesn't store the date it read.
+ */
+class ResourceValidityTracker {
+
+    enum ReloadMode { ON_ACCESS, BACKGROUND, NEVER }
+
+    static final long NOT_FOUND = Long.MIN_VALUE;
+
+    interface Checker {
+        /**
+         * Return the last modification date of the given resource, or NOT_FOUND.
+         */
+        long lastModified(String key);
+    }
+
+    private static Logger logger = LoggerFactory.createLogger(ResourceValidityTracker.class);
+
+    private static ScheduledExecutorService executor;
+
+    // Don't record accesses more precisely than this, so that most accesses don't write to the entry
+    private static final long ACCESS_TIME_PRECISION = 1000;
+
+    private final Checker checker;
+    private final ReloadMode reloadMode;
+    private final long reloadInterval;
+    private final int maxEntries;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    // Entries are compared by identity
+    private static class Entry {
+        public final long lastModified;
+        public final long checkTime;
+        public volatile long accessTime;
+
+        private Entry(long lastModified, long checkTime, long accessTime) {
+            this.lastModified = lastModified;
+            this.checkTime = checkTime;
+            this.accessTime = accessTime;
+        }
+
+        // Entry of an invalidated resource, which must be checked again
+        public static Entry invalid(long accessTime) {
+            return new Entry(NOT_FOUND, Long.MIN_VALUE, accessTime);
+        }
+
+        public boolean isValid() {
+            return checkTime != Long.MIN_VALUE;
+        }
+    }
+
+    public ResourceValidityTracker(Checker checker, ReloadMode reloadMode, long reloadInterval, int maxEntries) {
+        this.checker = checker;
+        this.reloadMode = reloadMode;
+        this.reloadInterval = reloadInterval;
+        this.maxEntries = Math.max(maxEntries, 1);
+
+        if (reloadMode == ReloadMode.BACKGROUND)
+            scheduleBackgroundCheck(this);
+    }
+
+    public long lastModified(String key) {
+        final long currentTime = System.currentTimeMillis();
+        final Entry entry = entries.get(key);
+        if (entry != null && entry.isValid() && (reloadMode != ReloadMode.ON_ACCESS || currentTime - entry.checkTime <= reloadInterval)) {
+            if (currentTime - entry.accessTime > ACCESS_TIME_PRECISION)
+                entry.accessTime = currentTime;
+            return entry.lastModified;
+        } else {
+            return check(key, entry, currentTime);
+        }
+    }
+
+    /**
+     * Forget about the given resource, for example because it is being written.
+     */
+    public void invalidate(String key) {
+        // Replace rather than remove the entry, so that checks in progress can't store the date they read
+        if (entries.put(key, Entry.invalid(System.currentTimeMillis())) == null)
+            evictIfNeeded();
+    }
+
+    // Check the resource, and store the result unless the entry has changed since it was read
+    private long check(String key, Entry expected, long accessTime) {
+        final long lastModified = checker.lastModified(key);
+        final Entry newEntry = new Entry(lastModified, System.currentTimeMillis(), accessTime);
+        if (expected == null) {
+            if (entries.putIfAbsent(key, newEntry) == null)
+                evictIfNeeded();
+        } else {
+            entries.replace(key, expected, newEntry);
+        }
+        return lastModified;
+    }
+
+    private void checkAll() {
+        for (final Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+            final String key = mapEntry.getKey();
+            final Entry entry = mapEntry.getValue();
+            try {
+                check(key, entry, entry.accessTime);
+            } catch (Throwable t) {
+                // Resource will be checked again upon access
+                entries.remove(key, entry);
+                logger.debug("error while checking resource " + key, t);
+            }
+        }
+    }
+
+    // Forget the resources accessed least recently, down to 90% of maxEntries so that this doesn't run on every check
+    private void evictIfNeeded() {
+        if (entries.size() > maxEntries && evicting.compareAndSet(false, true)) {
+            try {
+                final List<Map.Entry<String, Entry>> all = new ArrayList<Map.Entry<String, Entry>>(entries.entrySet());
+                Collections.sort(all, new Comparator<Map.Entry<String, Entry>>() {
+                    public int compare(Map.Entry<String, Entry> entry1, Map.Entry<String, Entry> entry2) {
+                        final long accessTime1 = entry1.getValue().accessTime;
+                        final long accessTime2 = entry2.getValue().accessTime;
+                        return accessTime1 < accessTime2 ? -1 : accessTime1 == accessTime2 ? 0 : 1;
+                    }
+                });
+                final int count = all.size() - maxEntries * 9 / 10;
+                for (int i = 0; i < count; i++)
+                    entries.remove(all.get(i).getKey(), all.get(i).getValue());
+            } finally {
+                evicting.set(false);
+            }
+        }
+    }
+
+    // For tests
+    int size() {
+        return entries.size();
+    }
+
+    // The task doesn't keep the tracker alive, so that discarded resource managers don't keep being checked
+    private static void scheduleBackgroundCheck(ResourceValidityTracker tracker) {
+        final WeakReference<ResourceValidityTracker> trackerReference = new WeakReference<ResourceValidityTracker>(tracker);
+        final Future[] future = new Future[1];
+
+        synchronized (future) {
+            future[0] = getExecutor().scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    final ResourceValidityTracker tracker = trackerReference.get();
+                    if (tracker != null) {
+                        tracker.checkAll();
+                    } else {
+                        synchronized (future) {
+                            future[0].cancel(false);
+                        }
+                    }
+                }
+            }, tracker.reloadInterval, tracker.reloadInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "resource validity check");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+}
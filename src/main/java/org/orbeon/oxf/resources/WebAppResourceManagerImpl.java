@@ -100,6 +100,20 @@ public class WebAppResourceManagerImpl extends ResourceManagerBase {
         }
     }
 
+    @Override
+    protected boolean supportsBackgroundValidityCheck() {
+        return true;
+    }
+
+    @Override
+    public boolean exists(String key) {
+        final String realPath = webAppContext.getRealPath(rootDirectory + key);
+        if (realPath != null)
+            return new File(realPath).canRead();
+        else
+            return webAppContext.getResource(rootDirectory + key) != null;
+    }
+
     /**
      * Indicates if the resource manager implementation supports write operations
      * @return true if write operations are allowed
@@ -114,6 +128,7 @@ public class WebAppResourceManagerImpl extends ResourceManagerBase {
      * @return an output stream
      */
     public OutputStream getOutputStream(String key) {
+        invalidateLastModified(key);
 
         final String realPath = getRealPath(key);
         if (realPath == null)
@@ -132,6 +147,7 @@ public class WebAppResourceManagerImpl extends ResourceManagerBase {
      * @return  a writer
      */
     public Writer getWriter(String key) {
+        invalidateLastModified(key);
         final String realPath = getRealPath(key);
         if (realPath == null)
             throw new OXFException("Write Operation not supported");
@@ -16,13 +16,10 @@
  */
 package org.orbeon.oxf.util;
 
-import java.lang.ref.Reference;
-import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.pool.BaseObjectPool;
 import org.apache.commons.pool.ObjectPool;
@@ -30,7 +27,12 @@ import org.apache.commons.pool.PoolUtils;
 import org.apache.commons.pool.PoolableObjectFactory;
 
 /*
- * This is an Orbeon-modified version of the Apache Commons Pool 1.6 class, without calls to notifyAll().
+ * This is an Orbeon-modified version of the Apache Commons Pool 1.6 class, without calls to notifyAll(), and without
+ * locking: idle instances are kept in a lock-free stack, and the number of active instances is an atomic counter.
+ *
+ * References cleared by the garbage collector are not removed from the stack eagerly, but skipped when borrowing.
+ * As each idle instance was returned after being borrowed, the stack doesn't grow beyond the maximum number of
+ * instances used at the same time.
  */
 
 /**
@@ -52,7 +54,6 @@ public class SoftReferenceObjectPool<T> extends BaseObjectPool<T> implements Obj
      * @param factory object factory to use.
      */
     public SoftReferenceObjectPool(PoolableObjectFactory<T> factory) {
-        _pool = new ArrayList<SoftReference<T>>();
         _factory = factory;
     }
 
@@ -78,12 +79,13 @@ public class SoftReferenceObjectPool<T> extends BaseObjectPool<T> implements Obj
      * @return a valid, activated object instance
      */
     @Override
-    public synchronized T borrowObject() throws Exception {
+    public T borrowObject() throws Exception {
         assertOpen();
         T obj = null;
         boolean newlyCreated = false;
         while(null == obj) {
-            if(_pool.isEmpty()) {
+            SoftReference<T> ref = pop();
+            if(null == ref) {
                 if(null == _factory) {
                     throw new NoSuchElementException();
                 } else {
@@ -91,9 +93,7 @@ public class SoftReferenceObjectPool<T> extends BaseObjectPool<T> implements Obj
                     obj = _factory.makeObject();
                 }
             } else {
-                SoftReference<T> ref = _pool.remove(_pool.size() - 1);
                 obj = ref.get();
-                ref.clear(); // prevent this ref from being enqueued with refQueue.
             }
             if (null != _factory && null != obj) {
                 try {
@@ -119,7 +119,7 @@ public class SoftReferenceObjectPool<T> extends BaseObjectPool<T> implements Obj
                 }
             }
         }
-        _numActive++;
+        _numActive.incrementAndGet();
         return obj;
     }
 
@@ -138,7 +138,7 @@ public class SoftReferenceObjectPool<T> extends BaseObjectPool<T> implements Obj
      * @param obj instance to return to the pool
      */
     @Override
-    public synchronized void returnObject(T obj) throws Exception {
+    public void returnObject(T obj) throws Exception {
         boolean success = !isClosed();
         if (_factory != null) {
             if(!_factory.validateObject(obj)) {
@@ -153,9 +153,9 @@ public class SoftReferenceObjectPool<T> extends BaseObjectPool<T> implements Obj
         }
 
         boolean shouldDestroy = !success;
-        _numActive--;
+        _numActive.decrementAndGet();
         if(success) {
-            _pool.add(new SoftReference<T>(obj, refQueue));
+            push(obj);
         }
 //        notifyAll(); // _numActive has changed
 
@@ -172,8 +172,8 @@ public class SoftReferenceObjectPool<T> extends BaseObjectPool<T> implements Obj
      * {@inheritDoc}
      */
     @Override
-    public synchronized void invalidateObject(T obj) throws Exception {
-        _numActive--;
+    public void invalidateObject(T obj) throws Exception {
+        _numActive.decrementAndGet();
         if (_factory != null) {
             _factory.destroyObject(obj);
         }
@@ -195,7 +195,7 @@ public class SoftReferenceObjectPool<T> extends BaseObjectPool<T> implements Obj
      * @throws Exception when the {@link #getFactory() factory} has a problem creating or passivating an object.
      */
     @Override
-    public synchronized void addObject() throws Exception {
+    public void addObject() throws Exception {
         assertOpen();
         if (_factory == null) {
             throw new IllegalStateException("Cannot add objects without a factory.");
@@ -211,7 +211,7 @@ public class SoftReferenceObjectPool<T> extends BaseObjectPool<T> implements Obj
 
         boolean shouldDestroy = !success;
         if(success) {
-            _pool.add(new SoftReference<T>(obj, refQueue));
+            push(obj);
 //            notifyAll(); // _numActive has changed
         }
 
@@ -230,9 +230,14 @@ public class SoftReferenceObjectPool<T> extends BaseObjectPool<T> implements Obj
      * @return estimated number of idle instances in the pool
      */
     @Override
-    public synchronized int getNumIdle() {
-        pruneClearedReferences();
-        return _pool.size();
+    public int getNumIdle() {
+        int count = 0;
+        for (Node<T> node = _head.get(); node != null; node = node.next) {
+            if (node.ref.get() != null) {
+                count++;
+            }
+        }
+        return count;
     }
 
     /**
@@ -241,20 +246,20 @@ public class SoftReferenceObjectPool<T> extends BaseObjectPool<T> implements Obj
      * @return the number of instances currently borrowed from this pool
      */
     @Override
-    public synchronized int getNumActive() {
-        return _numActive;
+    public int getNumActive() {
+        return _numActive.get();
     }
 
     /**
      * Clears any objects sitting idle in the pool.
      */
     @Override
-    public synchronized void clear() {
+    public void clear() {
+        Node<T> node = _head.getAndSet(null);
         if(null != _factory) {
-            Iterator<SoftReference<T>> iter = _pool.iterator();
-            while(iter.hasNext()) {
+            for (; node != null; node = node.next) {
                 try {
-                    T obj = iter.next().get();
+                    T obj = node.ref.get();
                     if(null != obj) {
                         _factory.destroyObject(obj);
                     }
@@ -263,8 +268,6 @@ public class SoftReferenceObjectPool<T> extends BaseObjectPool<T> implements Obj
                 }
             }
         }
-        _pool.clear();
-        pruneClearedReferences();
     }
 
     /**
@@ -284,18 +287,27 @@ public class SoftReferenceObjectPool<T> extends BaseObjectPool<T> implements Obj
     }
 
     /**
-     * If any idle objects were garbage collected, remove their
-     * {@link Reference} wrappers from the idle object pool.
+     * Add an idle instance to the top of the stack.
      */
-    private void pruneClearedReferences() {
-        Reference<? extends T> ref;
-        while ((ref = refQueue.poll()) != null) {
-            try {
-                _pool.remove(ref);
-            } catch (UnsupportedOperationException uoe) {
-                // ignored
+    private void push(T obj) {
+        final Node<T> node = new Node<T>(new SoftReference<T>(obj));
+        do {
+            node.next = _head.get();
+        } while (!_head.compareAndSet(node.next, node));
+    }
+
+    /**
+     * Remove the reference at the top of the stack, or return null if the stack is empty.
+     */
+    private SoftReference<T> pop() {
+        Node<T> head;
+        do {
+            head = _head.get();
+            if (head == null) {
+                return null;
             }
-        }
+        } while (!_head.compareAndSet(head, head.next));
+        return head.ref;
     }
 
     /**
@@ -304,23 +316,26 @@ public class SoftReferenceObjectPool<T> extends BaseObjectPool<T> implements Obj
      * @return the factory
      * @since 1.5.5
      */
-    public synchronized PoolableObjectFactory<T> getFactory() {
+    public PoolableObjectFactory<T> getFactory() {
         return _factory;
     }
 
-    /** My pool. */
-    private final List<SoftReference<T>> _pool;
+    /** Element of the stack of idle instances. Nodes are never reused, so compare-and-set is not subject to ABA. */
+    private static class Node<T> {
+        final SoftReference<T> ref;
+        Node<T> next; // published by the compare-and-set of _head
 
-    /** My {@link PoolableObjectFactory}. */
-    private PoolableObjectFactory<T> _factory = null;
+        Node(SoftReference<T> ref) {
+            this.ref = ref;
+        }
+    }
 
-    /**
-     * Queue of broken references that might be able to be removed from <code>_pool</code>.
-     * This is used to help {@link #getNumIdle()} be more accurate with minimial
-     * performance overhead.
-     */
-    private final ReferenceQueue<T> refQueue = new ReferenceQueue<T>();
+    /** Top of my stack of idle instances. */
+    private final AtomicReference<Node<T>> _head = new AtomicReference<Node<T>>();
+
+    /** My {@link PoolableObjectFactory}. */
+    private final PoolableObjectFactory<T> _factory;
 
     /** Number of active objects. */
-    private int _numActive = 0; //@GuardeBy("this")
+    private final AtomicInteger _numActive = new AtomicInteger();
 }
@@ -149,6 +149,9 @@ public class XFormsContainingDocument extends XBLContainer implements XFormsDocu
     private Set<String> controlsStructuralChanges;
     private RequestStats requestStats = RequestStatsImpl.apply();
 
+    // Instances declared lazily mutable, so that nodes can be checked without searching all the instances
+    private final Set<XFormsInstance> lazyMutableInstances = Collections.newSetFromMap(new WeakHashMap<XFormsInstance, Boolean>());
+
     // Page template for noscript mode if stored in dynamic state (otherwise stored in static state)
     private AnnotatedTemplate template;
 
@@ -598,6 +601,23 @@ public class XFormsContainingDocument extends XBLContainer implements XFormsDocu
         return requestStats;
     }
 
+    public void addLazyMutableInstance(XFormsInstance instance) {
+        lazyMutableInstances.add(instance);
+    }
+
+    public Set<XFormsInstance> getLazyMutableInstances() {
+        return lazyMutableInstances;
+    }
+
+    // Report the memory used by each instance along with the other request statistics
+    private void addInstanceStats() {
+        if (XFormsProperties.isRequestStats())
+            for (final XFormsModel model : getAllModelsJava())
+                for (final XFormsInstance instance : model.getInstances())
+                    if (instance != null)
+                        requestStats.addInstanceStat(instance);
+    }
+
     /**
      * Add a two-pass submission.
      *
@@ -965,6 +985,7 @@ public class XFormsContainingDocument extends XBLContainer implements XFormsDocu
 
     public void afterInitialResponse() {
 
+        addInstanceStats();
         getRequestStats().afterInitialResponse();
 
         this.uriResolver = null;        // URI resolver is of no use after initialization and it may keep dangerous references (PipelineContext)
@@ -1011,6 +1032,7 @@ public class XFormsContainingDocument extends XBLContainer implements XFormsDocu
      */
     public void afterUpdateResponse() {
 
+        addInstanceStats();
         getRequestStats().afterUpdateResponse();
 
         clearClientState();
@@ -265,8 +265,31 @@ public class XFormsContextStack {
         return bindingContext;
     }
 
+    /**
+     * Push the binding of an element known to static analysis.
+     *
+     * This uses the expression handles held by static analysis instead of looking up expressions in the XPath cache.
+     *
+     * @param staticElement     static analysis of the element containing node binding attributes
+     * @param sourceEffectiveId effective id of source control for id resolution of models and binds
+     * @param scope             XBL scope
+     */
+    public void pushBinding(ElementAnalysis staticElement, String sourceEffectiveId, Scope scope) {
+        final Element bindingElement = staticElement.element();
+        pushBinding(staticElement.refJava(), staticElement.contextJava(), null, staticElement.refHandle(), staticElement.contextHandle(),
+                bindingElement.attributeValue(XFormsConstants.MODEL_QNAME), staticElement.bindJava(), bindingElement,
+                staticElement.namespaceMapping(), sourceEffectiveId, scope, true);
+    }
+
     public void pushBinding(String ref, String context, String nodeset, String modelId, String bindId,
                             Element bindingElement, NamespaceMapping bindingElementNamespaceMapping, String sourceEffectiveId, Scope scope, boolean handleNonFatal) {
+        pushBinding(ref, context, nodeset, null, null, modelId, bindId, bindingElement, bindingElementNamespaceMapping, sourceEffectiveId, scope, handleNonFatal);
+    }
+
+    // If present, the handles are used to evaluate the ref/nodeset and context expressions
+    private void pushBinding(String ref, String context, String nodeset, XPathCache.XPathExpressionHandle refHandle, XPathCache.XPathExpressionHandle contextHandle,
+                             String modelId, String bindId, Element bindingElement, NamespaceMapping bindingElementNamespaceMapping,
+                             String sourceEffectiveId, Scope scope, boolean handleNonFatal) {
 
         assert scope != null;
 
@@ -370,7 +393,7 @@ public class XFormsContextStack {
                     if (context != null) {
                         // Push model and context
                         pushTemporaryContext(this.head, baseBindingContext, baseBindingContext.getSingleItem());// provide context information for the context() function
-                        pushBinding(null, null, context, modelId, null, null, bindingElementNamespaceMapping, sourceEffectiveId, scope, handleNonFatal);
+                        pushBinding(null, null, context, contextHandle, null, modelId, null, null, bindingElementNamespaceMapping, sourceEffectiveId, scope, handleNonFatal);
                         hasOverriddenContext = true;
                         final BindingContext newBindingContext = this.head;
                         contextItem = newBindingContext.getSingleItem();
@@ -470,9 +493,14 @@ public class XFormsContextStack {
 
                             List<Item> result;
                                 try {
-                                    result = XPathCache.evaluateKeepItems(evaluationContextBinding.getNodeset(), evaluationContextBinding.getPosition(),
-                                            ref != null ? ref : nodeset, bindingElementNamespaceMapping, evaluationContextBinding.getInScopeVariables(), XFormsContainingDocument.getFunctionLibrary(),
-                                            functionContext, null, locationData, containingDocument.getRequestStats().getReporter());
+                                    if (refHandle != null)
+                                        result = XPathCache.evaluateKeepItems(evaluationContextBinding.getNodeset(), evaluationContextBinding.getPosition(),
+                                                refHandle, evaluationContextBinding.getInScopeVariables(), XFormsContainingDocument.getFunctionLibrary(),
+                                                functionContext, null, locationData, containingDocument.getRequestStats().getReporter());
+                                    else
+                                        result = XPathCache.evaluateKeepItems(evaluationContextBinding.getNodeset(), evaluationContextBinding.getPosition(),
+                                                ref != null ? ref : nodeset, bindingElementNamespaceMapping, evaluationContextBinding.getInScopeVariables(), XFormsContainingDocument.getFunctionLibrary(),
+                                                functionContext, null, locationData, containingDocument.getRequestStats().getReporter());
                                 } catch (Exception e) {
                                     if (handleNonFatal) {
                                         XFormsError.handleNonFatalXPathError(container, e);
@@ -522,7 +550,7 @@ public class XFormsContextStack {
                     bind = null;
 
                     // Only the context has changed, and possibly the model
-                    pushBinding(null, null, context, modelId, null, null, bindingElementNamespaceMapping, sourceEffectiveId, scope, handleNonFatal);
+                    pushBinding(null, null, context, contextHandle, null, modelId, null, null, bindingElementNamespaceMapping, sourceEffectiveId, scope, handleNonFatal);
                     {
                         newNodeset = getCurrentNodeset();
                         newPosition = getCurrentPosition();
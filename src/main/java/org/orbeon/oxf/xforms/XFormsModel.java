@@ -302,7 +302,8 @@ public class XFormsModel extends XFormsModelBase implements XFormsEventObserver,
         // NOTE: We shouldn't even be called if the parent control is not relevant.
         if (container.isRelevant()) {
             for (final XFormsInstance currentInstance: instances) {
-                if (currentInstance.documentInfo().isSameNodeInfo(documentInfo))
+                // Nodes of the former document of a lazily mutable instance still belong to the instance
+                if (currentInstance.documentInfo().isSameNodeInfo(documentInfo) || currentInstance.isFormerDocument(documentInfo))
                     return currentInstance;
             }
         }
@@ -731,6 +732,17 @@ public class XFormsModel extends XFormsModelBase implements XFormsEventObserver,
 
         // Rebuild bind tree only if needed
         if (deferredActionContext.rebuild) {
+            for (final XFormsInstance instance : instances) {
+                if (instance != null) {
+                    // Binds and schema validation only apply to mutable documents
+                    if (instance.isLazyMutable() && (staticModel.bindsMayApplyTo(instance.getPrefixedId()) || hasSchema && instance.instance().isSchemaValidation()))
+                        instance.convertToMutable();
+
+                    // From now on, bindings only refer to the current documents of lazily mutable instances
+                    instance.forgetFormerDocument();
+                }
+            }
+
             // Re-evaluate top-level variables if needed
             resetAndEvaluateVariables();
 
@@ -931,6 +943,10 @@ public class XFormsModel extends XFormsModelBase implements XFormsEventObserver,
         // Set the flags
         deferredActionContext.markStructuralChange();
 
+        // Nodes of the former document of a lazily mutable instance can't be mapped anymore
+        if (instance != null)
+            instance.forgetFormerDocument();
+
         // Notify dependencies of the change
         containingDocument.getXPathDependencies().markStructuralChange(this, instance);
     }
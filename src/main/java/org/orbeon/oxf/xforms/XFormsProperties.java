@@ -66,6 +66,8 @@ public class XFormsProperties {
     public static final String EXPOSE_XPATH_TYPES_PROPERTY = "expose-xpath-types";
     private static final String AJAX_SHOW_LOADING_ICON_PROPERTY = "ajax.show-loading-icon";
     private static final String AJAX_UPDATE_FULL_THRESHOLD = "ajax.update.full.threshold";
+    private static final String AJAX_UPDATE_FULL_STREAMING = "ajax.update.full.streaming";
+    private static final String AJAX_UPDATE_FULL_STREAMING_MAX_CONTROLS = "ajax.update.full.streaming.max-controls";
     private static final String NO_UPDATES = "no-updates";
 
     private static final String TYPE_OUTPUT_FORMAT_PROPERTY_PREFIX = "format.output.";
@@ -223,6 +225,8 @@ public class XFormsProperties {
             new PropertyDefinition(FORWARD_SUBMISSION_HEADERS, DEFAULT_FORWARD_SUBMISSION_HEADERS, false),
             new PropertyDefinition(ASYNC_SUBMISSION_POLL_DELAY, 10 * 1000, false), // 10 seconds
             new PropertyDefinition(AJAX_UPDATE_FULL_THRESHOLD, 20, false),
+            new PropertyDefinition(AJAX_UPDATE_FULL_STREAMING, false, false),
+            new PropertyDefinition(AJAX_UPDATE_FULL_STREAMING_MAX_CONTROLS, 5, false),
             new PropertyDefinition(NO_UPDATES, false, false),
             new PropertyDefinition(XFORMS11_SWITCH_PROPERTY, false, false), // false for now, but default should change at some point
             new PropertyDefinition(XPATH_ANALYSIS_PROPERTY, false, false),
@@ -304,6 +308,17 @@ public class XFormsProperties {
 
     private static final String LOCATION_MODE_PROPERTY = XFORMS_PROPERTY_PREFIX + "location-mode";
 
+    private static final String XPATH_ANALYSIS_PARALLELISM_PROPERTY = XFORMS_PROPERTY_PREFIX + "xpath-analysis.parallelism";
+
+    private static final String ASYNC_SUBMISSION_THREADS_PROPERTY      = XFORMS_PROPERTY_PREFIX + "submission.asynchronous.threads";
+    private static final String ASYNC_SUBMISSION_QUEUE_SIZE_PROPERTY   = XFORMS_PROPERTY_PREFIX + "submission.asynchronous.queue-size";
+    private static final String ASYNC_SUBMISSION_PER_DOCUMENT_PROPERTY = XFORMS_PROPERTY_PREFIX + "submission.asynchronous.max-per-document";
+    private static final String ASYNC_SUBMISSION_REJECTION_PROPERTY    = XFORMS_PROPERTY_PREFIX + "submission.asynchronous.rejection";
+    private static final String ASYNC_SUBMISSION_TIMEOUT_PROPERTY      = XFORMS_PROPERTY_PREFIX + "submission.asynchronous.timeout";
+    private static final String ASYNC_SUBMISSION_NON_BLOCKING_PROPERTY = XFORMS_PROPERTY_PREFIX + "submission.asynchronous.non-blocking";
+    public static final String ASYNC_SUBMISSION_REJECTION_CALLER_RUNS_VALUE = "caller-runs";
+    public static final String ASYNC_SUBMISSION_REJECTION_ABORT_VALUE = "abort";
+
     // == Global properties ============================================================================================
     /**
      * Return a PropertyDefinition given a property name.
@@ -409,6 +424,34 @@ public class XFormsProperties {
         return Properties.instance().getPropertySet().getBoolean(DEBUG_REQUEST_STATS_PROPERTY, false);
     }
 
+    public static int getXPathAnalysisParallelism() {
+        return Properties.instance().getPropertySet().getInteger(XPATH_ANALYSIS_PARALLELISM_PROPERTY, 1);
+    }
+
+    public static int getAsyncSubmissionThreads() {
+        return Properties.instance().getPropertySet().getInteger(ASYNC_SUBMISSION_THREADS_PROPERTY, 16);
+    }
+
+    public static int getAsyncSubmissionQueueSize() {
+        return Properties.instance().getPropertySet().getInteger(ASYNC_SUBMISSION_QUEUE_SIZE_PROPERTY, 1000);
+    }
+
+    public static int getAsyncSubmissionMaxPerDocument() {
+        return Properties.instance().getPropertySet().getInteger(ASYNC_SUBMISSION_PER_DOCUMENT_PROPERTY, 4);
+    }
+
+    public static String getAsyncSubmissionRejection() {
+        return Properties.instance().getPropertySet().getString(ASYNC_SUBMISSION_REJECTION_PROPERTY, ASYNC_SUBMISSION_REJECTION_CALLER_RUNS_VALUE);
+    }
+
+    public static long getAsyncSubmissionTimeout() {
+        return Properties.instance().getPropertySet().getInteger(ASYNC_SUBMISSION_TIMEOUT_PROPERTY, 0);
+    }
+
+    public static boolean isAsyncSubmissionNonBlocking() {
+        return Properties.instance().getPropertySet().getBoolean(ASYNC_SUBMISSION_NON_BLOCKING_PROPERTY, false);
+    }
+
     public static int getAjaxTimeout() {
         return Properties.instance().getPropertySet().getInteger(XFORMS_PROPERTY_PREFIX + DELAY_BEFORE_AJAX_TIMEOUT_PROPERTY, ((Integer) getPropertyDefinition(DELAY_BEFORE_AJAX_TIMEOUT_PROPERTY).defaultValue).intValue());
     }
@@ -538,6 +581,14 @@ public class XFormsProperties {
         return getIntegerProperty(containingDocument, AJAX_UPDATE_FULL_THRESHOLD);
     }
 
+    public static boolean isAjaxFullUpdateStreaming(XFormsContainingDocument containingDocument) {
+        return getBooleanProperty(containingDocument, AJAX_UPDATE_FULL_STREAMING);
+    }
+
+    public static int getAjaxFullUpdateStreamingMaxControls(XFormsContainingDocument containingDocument) {
+        return getIntegerProperty(containingDocument, AJAX_UPDATE_FULL_STREAMING_MAX_CONTROLS);
+    }
+
     public static boolean isNoUpdates(XFormsContainingDocument containingDocument) {
         return getBooleanProperty(containingDocument, NO_UPDATES);
     }
@@ -276,6 +276,16 @@ public class XFormsUtils {
                                          final XFormsContextStack contextStack, final String sourceEffectiveId,
                                          final Element childElement, final boolean acceptHTML, final boolean defaultHTML,
                                          final boolean[] containsHTML) {
+        return getElementValue(container, contextStack, sourceEffectiveId, childElement, null, acceptHTML, defaultHTML, containsHTML);
+    }
+
+    /**
+     * Same as above, but evaluate the value attribute with the given handle from static analysis if not null.
+     */
+    public static String getElementValue(final XBLContainer container,
+                                         final XFormsContextStack contextStack, final String sourceEffectiveId,
+                                         final Element childElement, final XPathCache.XPathExpressionHandle valueHandle,
+                                         final boolean acceptHTML, final boolean defaultHTML, final boolean[] containsHTML) {
 
         // No HTML found by default
         if (containsHTML != null)
@@ -310,6 +320,15 @@ public class XFormsUtils {
                 if (currentNodeset != null && currentNodeset.size() > 0) {
                     String tempResult;
                     try {
+                        if (valueHandle != null)
+                            tempResult = XPathCache.evaluateAsString(
+                                currentNodeset, currentBindingContext.getPosition(),
+                                valueHandle,
+                                contextStack.getCurrentVariables(), XFormsContainingDocument.getFunctionLibrary(),
+                                contextStack.getFunctionContext(sourceEffectiveId), null,
+                                (LocationData) childElement.getData(),
+                                container.getContainingDocument().getRequestStats().getReporter());
+                        else
                             tempResult = XPathCache.evaluateAsString(
                                 currentNodeset, currentBindingContext.getPosition(),
                                 valueAttribute, container.getNamespaceMappings(childElement),
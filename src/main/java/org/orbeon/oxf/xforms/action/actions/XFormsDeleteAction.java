@@ -126,6 +126,10 @@ public class XFormsDeleteAction extends XFormsAction {
 
         final boolean isEmptyNodesetBinding = collectionToUpdate == null || collectionToUpdate.size() == 0;
 
+        // Find the nodes to delete before deleting anything, in case a lazily mutable instance must be converted
+        if (containingDocument != null && ! isEmptyNodesetBinding)
+            collectionToUpdate = XFormsInstance.findMutableNodesJava(containingDocument, collectionToUpdate);
+
         final List<DeleteInfo> deleteInfos;
         if (isEmptyNodesetBinding) {
             deleteInfos = Collections.emptyList();
@@ -179,6 +179,14 @@ public class XFormsInsertAction extends XFormsAction {
 
         final boolean isEmptyNodesetBinding = collectionToBeUpdated == null || collectionToBeUpdated.size() == 0;
 
+        // Find the nodes to mutate before mutating anything, in case a lazily mutable instance must be converted
+        if (containingDocument != null) {
+            if (! isEmptyNodesetBinding)
+                collectionToBeUpdated = XFormsInstance.findMutableNodesJava(containingDocument, collectionToBeUpdated);
+            if (insertContextNodeInfo != null)
+                insertContextNodeInfo = XFormsInstance.findMutableNode(containingDocument, insertContextNodeInfo);
+        }
+
         // "3. The origin node-set is determined."
         // "5. Each node in the origin node-set is cloned in the order it appears in the origin node-set."
         final List<Node> sourceNodes;
@@ -51,6 +51,14 @@ public class ControlsComparator {
     private XMLReceiverHelper tempCH;
 
     private final int fullUpdateThreshold;
+    private final boolean isFullUpdateStreaming;
+    private final int fullUpdateStreamingMaxControls;
+
+    // Statistics about the last diff
+    private int streamedSubtrees;
+    private int bufferedSubtrees;
+    private int fullUpdates;
+    private int bufferedAttributes;
 
     public ControlsComparator(XMLReceiverHelper ch, XFormsContainingDocument containingDocument,
                               Set<String> valueChangeControlIds, boolean isTestMode) {
@@ -61,6 +69,24 @@ public class ControlsComparator {
         this.isTestMode = isTestMode;
 
         this.fullUpdateThreshold = XFormsProperties.getAjaxFullUpdateThreshold(containingDocument);
+        this.isFullUpdateStreaming = XFormsProperties.isAjaxFullUpdateStreaming(containingDocument);
+        this.fullUpdateStreamingMaxControls = XFormsProperties.getAjaxFullUpdateStreamingMaxControls(containingDocument);
+    }
+
+    public int getStreamedSubtrees() {
+        return streamedSubtrees;
+    }
+
+    public int getBufferedSubtrees() {
+        return bufferedSubtrees;
+    }
+
+    public int getFullUpdates() {
+        return fullUpdates;
+    }
+
+    public int getBufferedAttributes() {
+        return bufferedAttributes;
     }
 
     public boolean diff(List<XFormsControl> state1, List<XFormsControl> state2) {
@@ -113,12 +139,20 @@ public class ControlsComparator {
                 tempCH = ch;
             } else {
                 // Handle xxf:update="full"
-                mark = getUpdateFullMark(control2);
+                final SAXStore.Mark updateFullMark = getUpdateFullMark(control2);
+                if (updateFullMark != null && isStreamedSubtree(control2)) {
+                    // Subtree too small to ever reach the threshold: stream incremental updates directly
+                    mark = null;
+                    streamedSubtrees++;
+                } else {
+                    mark = updateFullMark;
+                }
                 isFullUpdateLevel = mark != null;
                 if (isFullUpdateLevel) {
                     // Start buffering
                     tempCH = ch;
                     ch = new XMLReceiverHelper(new SAXStore());
+                    bufferedSubtrees++;
                 }
 
 
@@ -258,15 +292,19 @@ public class ControlsComparator {
                     // Incremental updates did trigger full updates
 
                     // Restore output and discard incremental updates
+                    if (ch != tempCH)
+                        bufferedAttributes += ((SAXStore) ch.getXmlReceiver()).getAttributesCount();
                     ch = tempCH;
                     tempCH = null;
 
                     // Process full update
+                    fullUpdates++;
                     processFullUpdate(mark, control1, control2);
                 } else {
                     // Incremental updates did not trigger full updates
 
                     // Write out incremental updates
+                    bufferedAttributes += ((SAXStore) ch.getXmlReceiver()).getAttributesCount();
                     try {
                         ((SAXStore) ch.getXmlReceiver()).replay(tempCH.getXmlReceiver());
                     } catch (SAXException e) {
@@ -306,6 +344,14 @@ public class ControlsComparator {
         }
     }
 
+    // In streaming mode, whether the subtree has so few controls that incremental updates are sent directly instead
+    // of being buffered to decide between a full and an incremental update. The threshold for full updates is in
+    // attributes, which can't be known before the diff, so this uses a separate limit in controls, checked against
+    // the upper bound given by the static analysis of the xxf:dynamic content.
+    private boolean isStreamedSubtree(XFormsControl control) {
+        return isFullUpdateStreaming && ((XXFormsDynamicControl) control).maxControls() <= fullUpdateStreamingMaxControls;
+    }
+
     private void processFullUpdate(SAXStore.Mark mark, XFormsControl control1, XFormsControl control2) {
         try {
 
@@ -328,13 +374,13 @@ public class ControlsComparator {
                 final boolean hostLanguageAVTs = XFormsProperties.isHostLanguageAVTs();
                 if (hostLanguageAVTs) {
                     controller.registerHandler(XXFormsAttributeHandler.class.getName(), XFormsConstants.XXFORMS_NAMESPACE_URI, "attribute", XHTMLBodyHandler.ANY_MATCHER);
-                    controller.registerHandler(XHTMLElementHandler.class.getName(), XMLConstants.XHTML_NAMESPACE_URI);
+                    controller.registerHandler(XHTMLElementHandler.FACTORY, XMLConstants.XHTML_NAMESPACE_URI);
                 }
 
                 // Swallow XForms elements that are unknown
-                controller.registerHandler(NullHandler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI);
-                controller.registerHandler(NullHandler.class.getName(), XFormsConstants.XXFORMS_NAMESPACE_URI);
-                controller.registerHandler(NullHandler.class.getName(), XFormsConstants.XBL_NAMESPACE_URI);
+                controller.registerHandler(NullHandler.FACTORY, XFormsConstants.XFORMS_NAMESPACE_URI);
+                controller.registerHandler(NullHandler.FACTORY, XFormsConstants.XXFORMS_NAMESPACE_URI);
+                controller.registerHandler(NullHandler.FACTORY, XFormsConstants.XBL_NAMESPACE_URI);
             }
 
             // Create the output SAX pipeline:
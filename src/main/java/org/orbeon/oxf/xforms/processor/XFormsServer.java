@@ -684,10 +684,19 @@ public class XFormsServer extends ProcessorImpl {
             state1 = null;
 
         indentedLogger.startHandleOperation("", "computing differences");
+        final long startTime = System.nanoTime();
+        final ControlsComparator comparator = new ControlsComparator(ch, containingDocument, valueChangeControlIds, isTestMode);
         {
-            new ControlsComparator(ch, containingDocument, valueChangeControlIds, isTestMode).diff(state1, state2);
+            comparator.diff(state1, state2);
         }
-        indentedLogger.endHandleOperation();
+        final long totalTimeMicroSeconds = (System.nanoTime() - startTime) / 1000;
+        containingDocument.getRequestStats().addDiffStat(comparator.getFullUpdates(), comparator.getBufferedAttributes(), totalTimeMicroSeconds);
+        indentedLogger.endHandleOperation(
+            "streamed subtrees", Integer.toString(comparator.getStreamedSubtrees()),
+            "buffered subtrees", Integer.toString(comparator.getBufferedSubtrees()),
+            "full updates", Integer.toString(comparator.getFullUpdates()),
+            "buffered attributes", Integer.toString(comparator.getBufferedAttributes())
+        );
     }
 
     private static void outputSubmissionInfo(XMLReceiverHelper ch, XFormsModelSubmission activeSubmission) {
@@ -116,19 +116,19 @@ public class XFormsToXHTML extends XFormsToSomething {
                 if (hostLanguageAVTs) {
                     controller.registerHandler(XXFormsAttributeHandler.class.getName(), XFormsConstants.XXFORMS_NAMESPACE_URI, "attribute");
                     if (isHTMLDocument) {
-                    	controller.registerHandler(XHTMLElementHandler.class.getName(), XMLConstants.XHTML_NAMESPACE_URI);
+                    	controller.registerHandler(XHTMLElementHandler.FACTORY, XMLConstants.XHTML_NAMESPACE_URI);
                     }
 
                     for(String additionalAvtElementNamespace: XFormsProperties.getAdditionalAvtElementNamespaces()) {
-                    	controller.registerHandler(ElementHandlerXML.class.getName(), additionalAvtElementNamespace);
+                    	controller.registerHandler(ElementHandlerXML.FACTORY, additionalAvtElementNamespace);
                     }
                 }
 
             	if (isHTMLDocument) {
 	                // Swallow XForms elements that are unknown
-	                controller.registerHandler(NullHandler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI);
-	                controller.registerHandler(NullHandler.class.getName(), XFormsConstants.XXFORMS_NAMESPACE_URI);
-	                controller.registerHandler(NullHandler.class.getName(), XFormsConstants.XBL_NAMESPACE_URI);
+	                controller.registerHandler(NullHandler.FACTORY, XFormsConstants.XFORMS_NAMESPACE_URI);
+	                controller.registerHandler(NullHandler.FACTORY, XFormsConstants.XXFORMS_NAMESPACE_URI);
+	                controller.registerHandler(NullHandler.FACTORY, XFormsConstants.XBL_NAMESPACE_URI);
             	}
             }
 
@@ -14,12 +14,20 @@
 package org.orbeon.oxf.xforms.processor.handlers;
 
 import org.orbeon.oxf.xml.ElementHandler;
+import org.orbeon.oxf.xml.ElementHandlerController;
 
 /**
  * Handler that simply swallows its content and does nothing.
  */
 public class NullHandler extends ElementHandler {
 
+    public static final ElementHandlerController.HandlerFactory FACTORY = new ElementHandlerController.HandlerFactory() {
+        @Override
+        public ElementHandler newHandler() {
+            return new NullHandler();
+        }
+    };
+
     public boolean isRepeating() {
         return false;
     }
@@ -27,4 +35,9 @@ public class NullHandler extends ElementHandler {
     public boolean isForwarding() {
         return false;
     }
+
+    @Override
+    public boolean isReusable() {
+        return true;
+    }
 }
@@ -13,6 +13,8 @@
  */
 package org.orbeon.oxf.xforms.processor.handlers.xhtml;
 
+import org.orbeon.oxf.xml.ElementHandler;
+import org.orbeon.oxf.xml.ElementHandlerController;
 import org.xml.sax.Attributes;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
@@ -26,10 +28,22 @@ public class XHTMLElementHandler extends XFormsBaseHandlerXHTML {
 	 */
 	private static final String[] REF_ID_ATTRIBUTE_NAMES = new String[] { "for" };
 
+    public static final ElementHandlerController.HandlerFactory FACTORY = new ElementHandlerController.HandlerFactory() {
+        @Override
+        public ElementHandler newHandler() {
+            return new XHTMLElementHandler();
+        }
+    };
+
 	public XHTMLElementHandler() {
         super(false, true);
     }
 
+    @Override
+    public boolean isReusable() {
+        return true;
+    }
+
     public void start(String uri, String localname, String qName, Attributes attributes) throws SAXException {
 
         // Start xhtml:* element
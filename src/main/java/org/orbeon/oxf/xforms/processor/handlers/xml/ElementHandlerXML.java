@@ -14,6 +14,8 @@
 package org.orbeon.oxf.xforms.processor.handlers.xml;
 
 import org.orbeon.oxf.xforms.XFormsProperties;
+import org.orbeon.oxf.xml.ElementHandler;
+import org.orbeon.oxf.xml.ElementHandlerController;
 import org.xml.sax.Attributes;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
@@ -23,6 +25,13 @@ import org.xml.sax.SAXException;
  */
 public class ElementHandlerXML extends XFormsBaseHandlerXML {
 	private String[] refIdAttributeNames;
+
+    public static final ElementHandlerController.HandlerFactory FACTORY = new ElementHandlerController.HandlerFactory() {
+        @Override
+        public ElementHandler newHandler() {
+            return new ElementHandlerXML();
+        }
+    };
 	
     public ElementHandlerXML() {
         super(false, true);
@@ -30,6 +39,11 @@ public class ElementHandlerXML extends XFormsBaseHandlerXML {
         this.refIdAttributeNames = XFormsProperties.getAdditionalRefIdAttributeNames();
     }
 
+    @Override
+    public boolean isReusable() {
+        return true;
+    }
+
     public void start(String uri, String localname, String qName, Attributes attributes) throws SAXException {
 
         // Start element
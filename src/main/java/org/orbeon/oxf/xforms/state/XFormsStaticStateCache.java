@@ -13,15 +13,32 @@
  */
 package org.orbeon.oxf.xforms.state;
 
+import org.apache.log4j.Logger;
 import org.orbeon.oxf.cache.*;
-import org.orbeon.oxf.util.PropertyContext;
+import org.orbeon.oxf.pipeline.api.PipelineContext;
+import org.orbeon.oxf.properties.Properties;
+import org.orbeon.oxf.properties.PropertySet;
+import org.orbeon.oxf.util.LoggerFactory;
 import org.orbeon.oxf.xforms.XFormsStaticState;
 
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.*;
+
 public class XFormsStaticStateCache {
 
+    private static final Logger logger = LoggerFactory.createLogger(XFormsStaticStateCache.class);
+
     private static final String XFORMS_DOCUMENT_CACHE_NAME = "xforms.cache.static-state";
     private static final int XFORMS_DOCUMENT_CACHE_DEFAULT_SIZE = 50;
 
+    private static final String DIRECTORY_PROPERTY = "oxf.xforms.cache.static-state.directory";
+    private static final String WARM_SIZE_PROPERTY = "oxf.xforms.cache.static-state.warm.size";
+    private static final String WARM_THREADS_PROPERTY = "oxf.xforms.cache.static-state.warm.threads";
+
+    // Maximum number of static states waiting to be written to disk
+    private static final int MAX_PENDING_WRITES = 100;
+
     private static final Long CONSTANT_VALIDITY = 0L;
     private static final String CONTAINING_DOCUMENT_KEY_TYPE = XFORMS_DOCUMENT_CACHE_NAME;
 
@@ -31,18 +48,46 @@ public class XFormsStaticStateCache {
         return instance;
     }
 
-    private final Cache cache = ObjectCache.instance(XFORMS_DOCUMENT_CACHE_NAME, XFORMS_DOCUMENT_CACHE_DEFAULT_SIZE);
+    private final Cache cache;
 
-    private XFormsStaticStateCache() {}
+    // Optional copy of the cache on disk, written by a single background thread
+    private final XFormsStaticStateDiskCache diskCache;
+    private final ExecutorService diskWriter;
+
+    private XFormsStaticStateCache() {
+        this(ObjectCache.instance(XFORMS_DOCUMENT_CACHE_NAME, XFORMS_DOCUMENT_CACHE_DEFAULT_SIZE), createDiskCache());
+    }
+
+    XFormsStaticStateCache(Cache cache, XFormsStaticStateDiskCache diskCache) {
+        this.cache = cache;
+        this.diskCache = diskCache;
+        // If too many writes are pending, drop the new ones: they are only an optimization
+        this.diskWriter = diskCache == null ? null :
+                new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(MAX_PENDING_WRITES),
+                    new DaemonThreadFactory("static state cache writer"), new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    private static XFormsStaticStateDiskCache createDiskCache() {
+        final String directory = Properties.instance().getPropertySet().getString(DIRECTORY_PROPERTY, "").trim();
+        return directory.length() > 0 ? new XFormsStaticStateDiskCache(new File(directory), XFormsStaticStateDiskCache.buildStamp()) : null;
+    }
 
     /**
      * Add a state to the cache using the state's digest as cache key.
      *
      * @param staticState       state to store
      */
-    public void storeDocument(XFormsStaticState staticState) {
+    public void storeDocument(final XFormsStaticState staticState) {
         final InternalCacheKey cacheKey = createCacheKey(staticState.digest());
         cache.add(cacheKey, CONSTANT_VALIDITY, staticState);
+
+        if (diskCache != null) {
+            diskWriter.execute(new Runnable() {
+                public void run() {
+                    diskCache.store(staticState);
+                }
+            });
+        }
     }
 
     /**
@@ -54,11 +99,82 @@ public class XFormsStaticStateCache {
      */
     public XFormsStaticState getDocument(String digest) {
         final InternalCacheKey cacheKey = createCacheKey(digest);
-        return (XFormsStaticState) cache.findValid(cacheKey, CONSTANT_VALIDITY);
+        final XFormsStaticState cachedState = (XFormsStaticState) cache.findValid(cacheKey, CONSTANT_VALIDITY);
+        if (cachedState != null || diskCache == null)
+            return cachedState;
+
+        // Try to restore the state from disk
+        final XFormsStaticState restoredState = diskCache.find(digest);
+        if (restoredState != null)
+            cache.add(cacheKey, CONSTANT_VALIDITY, restoredState);
+        return restoredState;
+    }
+
+    /**
+     * Restore the most recently used static states from disk in the background, if the cache is stored on disk. This
+     * is called upon startup.
+     */
+    public void warm() {
+        if (diskCache == null)
+            return;
+
+        final PropertySet propertySet = Properties.instance().getPropertySet();
+        warm(propertySet.getInteger(WARM_SIZE_PROPERTY, XFORMS_DOCUMENT_CACHE_DEFAULT_SIZE), propertySet.getInteger(WARM_THREADS_PROPERTY, 1));
+    }
+
+    /**
+     * Restore up to the given number of static states from disk with the given number of threads.
+     *
+     * @return  executor running the restores, or null if there is nothing to restore
+     */
+    ExecutorService warm(int size, int threads) {
+        final List<String> digests = diskCache.getRecentDigests(size);
+        if (digests.isEmpty())
+            return null;
+
+        logger.info("restoring " + digests.size() + " static states from disk");
+
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1), new DaemonThreadFactory("static state cache warmer"));
+
+        for (final String digest : digests) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    // Restore within a pipeline context, as when a request restores a static state
+                    final PipelineContext pipelineContext = new PipelineContext();
+                    boolean success = false;
+                    try {
+                        getDocument(digest);
+                        success = true;
+                    } catch (Throwable t) {
+                        logger.warn("unable to restore static state with digest " + digest, t);
+                    } finally {
+                        pipelineContext.destroy(success);
+                    }
+                }
+            });
+        }
+
+        // Threads terminate once all the digests are processed
+        executor.shutdown();
+        return executor;
     }
 
     private InternalCacheKey createCacheKey(String digest) {
         assert digest != null;
         return new InternalCacheKey(CONTAINING_DOCUMENT_KEY_TYPE, digest);
     }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String name;
+
+        private DaemonThreadFactory(String name) {
+            this.name = name;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
 }
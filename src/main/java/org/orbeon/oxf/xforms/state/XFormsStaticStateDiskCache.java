@@ -0,0 +1,234 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.state;
+
+import org.apache.log4j.Logger;
+import org.orbeon.oxf.common.Version;
+import org.orbeon.oxf.resources.ResourceManagerWrapper;
+import org.orbeon.oxf.resources.ResourceNotFoundException;
+import org.orbeon.oxf.util.LoggerFactory;
+import org.orbeon.oxf.util.SecureUtils;
+import org.orbeon.oxf.xforms.XFormsStaticState;
+import org.orbeon.oxf.xforms.XFormsStaticStateImpl;
+import org.orbeon.oxf.xforms.analysis.Metadata;
+
+import java.io.*;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Copy of the static state cache on disk, so that static states survive restarts.
+ *
+ * Each static state is stored in a file named after its digest. The file contains the encoded static state, which
+ * includes the annotated template when the static state needs it, along with a stamp of the build which produced it
+ * and the XBL binding includes it depends on. Entries produced by another build or depending on modified bindings are
+ * discarded.
+ *
+ * The last modification date of each file is updated when the entry is used, so that the most recently used static
+ * states can be restored first upon startup.
+ */
+public class XFormsStaticStateDiskCache {
+
+    private static final Logger logger = LoggerFactory.createLogger(XFormsStaticStateDiskCache.class);
+
+    private static final String FILE_SUFFIX = ".static-state";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final String ENCODING = "UTF-8";
+
+    private final File directory;
+    private final String versionStamp;
+
+    public XFormsStaticStateDiskCache(File directory, String versionStamp) {
+        this.directory = directory;
+        this.versionStamp = versionStamp;
+
+        if (! directory.isDirectory() && ! directory.mkdirs())
+            logger.warn("unable to create static state cache directory: " + directory.getAbsolutePath());
+    }
+
+    /**
+     * Return a stamp identifying the build of the code, as the encoding of static states can change between builds
+     * of the same version. The stamp is the version string followed by a digest of the jar file containing the code,
+     * or of the static state class file when the code is not in a jar file.
+     */
+    public static String buildStamp() {
+        final String versionString = Version.getVersionString();
+        try {
+            final MessageDigest messageDigest = SecureUtils.defaultMessageDigest();
+            final CodeSource codeSource = XFormsStaticStateImpl.class.getProtectionDomain().getCodeSource();
+            final File codeFile = (codeSource != null && "file".equals(codeSource.getLocation().getProtocol())) ? new File(codeSource.getLocation().toURI()) : null;
+            final URL codeURL = (codeFile != null && codeFile.isFile()) ? codeFile.toURI().toURL() : XFormsStaticStateImpl.class.getResource("XFormsStaticStateImpl.class");
+
+            final InputStream is = codeURL.openStream();
+            try {
+                final byte[] buffer = new byte[8192];
+                int count;
+                while ((count = is.read(buffer)) != -1)
+                    messageDigest.update(buffer, 0, count);
+            } finally {
+                is.close();
+            }
+            return versionString + " " + SecureUtils.byteArrayToHex(messageDigest.digest());
+        } catch (Exception e) {
+            logger.warn("unable to compute build digest, using the version only", e);
+            return versionString;
+        }
+    }
+
+    /**
+     * Store the given static state. Errors are logged and otherwise ignored, as the cache is only an optimization.
+     *
+     * @param staticState   static state to store
+     */
+    public void store(XFormsStaticState staticState) {
+        final File file = getFile(staticState.digest());
+        if (file.exists())
+            return;
+
+        final File tempFile = new File(directory, staticState.digest() + TEMP_FILE_SUFFIX + "." + Thread.currentThread().getId());
+        try {
+            final Set<String> bindingIncludes = staticState.topLevelPart().metadata().getBindingIncludesJava();
+            final byte[] encodedState = staticState.encodedState().getBytes(ENCODING);
+
+            final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                os.writeUTF(versionStamp);
+                os.writeLong(System.currentTimeMillis());
+                os.writeInt(bindingIncludes.size());
+                for (final String include : bindingIncludes)
+                    os.writeUTF(include);
+                os.writeInt(encodedState.length);
+                os.write(encodedState);
+            } finally {
+                os.close();
+            }
+
+            if (! tempFile.renameTo(file))
+                tempFile.delete();
+        } catch (Exception e) {
+            logger.warn("unable to store static state with digest " + staticState.digest(), e);
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Find and restore the static state with the given digest.
+     *
+     * @param digest    static state digest
+     * @return          restored static state, or null if not found or out of date
+     */
+    public XFormsStaticState find(String digest) {
+        final File file = getFile(digest);
+        if (! file.exists())
+            return null;
+
+        try {
+            final long storedTime;
+            final List<String> bindingIncludes = new ArrayList<String>();
+            final String encodedState;
+
+            final DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (! versionStamp.equals(is.readUTF())) {
+                    logger.debug("discarding static state produced by another version, digest: " + digest);
+                    file.delete();
+                    return null;
+                }
+
+                storedTime = is.readLong();
+                final int includesCount = is.readInt();
+                for (int i = 0; i < includesCount; i++)
+                    bindingIncludes.add(is.readUTF());
+
+                final byte[] encodedStateBytes = new byte[is.readInt()];
+                is.readFully(encodedStateBytes);
+                encodedState = new String(encodedStateBytes, ENCODING);
+            } finally {
+                is.close();
+            }
+
+            if (! checkBindingsIncludes(bindingIncludes, storedTime)) {
+                logger.debug("discarding static state with out of date bindings, digest: " + digest);
+                file.delete();
+                return null;
+            }
+
+            final XFormsStaticState staticState = XFormsStaticStateImpl.restore(scala.Option.apply(digest), encodedState);
+
+            // Restore the binding includes so that the in-memory cache can check them as usual
+            final Metadata metadata = staticState.topLevelPart().metadata();
+            metadata.getBindingIncludesJava().addAll(bindingIncludes);
+            metadata.updateBindingsLastModified(storedTime);
+
+            // Remember that this entry was recently used
+            file.setLastModified(System.currentTimeMillis());
+
+            return staticState;
+        } catch (Exception e) {
+            logger.warn("unable to restore static state with digest " + digest, e);
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Return the digests of the most recently used static states, most recent first.
+     *
+     * @param max   maximum number of digests to return
+     * @return      digests
+     */
+    public List<String> getRecentDigests(int max) {
+        final File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(FILE_SUFFIX);
+            }
+        });
+
+        if (files == null)
+            return Collections.emptyList();
+
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                final long l1 = f1.lastModified();
+                final long l2 = f2.lastModified();
+                return l1 > l2 ? -1 : l1 < l2 ? 1 : 0;
+            }
+        });
+
+        final List<String> result = new ArrayList<String>();
+        for (int i = 0; i < files.length && i < max; i++) {
+            final String name = files[i].getName();
+            result.add(name.substring(0, name.length() - FILE_SUFFIX.length()));
+        }
+        return result;
+    }
+
+    private File getFile(String digest) {
+        return new File(directory, digest + FILE_SUFFIX);
+    }
+
+    private static boolean checkBindingsIncludes(List<String> bindingIncludes, long storedTime) {
+        try {
+            for (final String include : bindingIncludes)
+                if (ResourceManagerWrapper.instance().lastModified(include, false) > storedTime)
+                    return false;
+            return true;
+        } catch (ResourceNotFoundException e) {
+            // If a resource cannot be found, consider that something has changed
+            return false;
+        }
+    }
+}
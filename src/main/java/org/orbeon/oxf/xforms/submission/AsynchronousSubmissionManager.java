@@ -24,14 +24,30 @@ import org.orbeon.oxf.xforms.XFormsContainingDocument;
 import org.orbeon.oxf.xforms.XFormsProperties;
 import org.orbeon.oxf.xforms.event.XFormsEvents;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Handle asynchronous submissions.
  *
  * The CompletionService is stored in the session, indexed by document UUID.
  *
+ * Submissions run on a global pool with a bounded number of threads and a bounded queue. When the queue is full,
+ * submissions either run in the requesting thread, which slows down the clients producing them, or fail, depending
+ * on the oxf.xforms.submission.asynchronous.rejection property. In addition, a document doesn't run more than
+ * oxf.xforms.submission.asynchronous.max-per-document submissions at the same time: the others wait in the document
+ * until a running submission completes.
+ *
+ * By default, the document waits for submissions as long as they run. With oxf.xforms.submission.asynchronous.timeout
+ * set to a positive number of milliseconds, submissions running for longer are cancelled.
+ *
  * See http://wiki.orbeon.com/forms/doc/developer-guide/asynchronous-submissions
  * See http://java.sun.com/j2se/1.5.0/docs/api/java/util/concurrent/ExecutorCompletionService.html
  */
@@ -40,7 +56,45 @@ public class AsynchronousSubmissionManager {
     private static final String ASYNC_SUBMISSIONS_SESSION_KEY_PREFIX = "oxf.xforms.state.async-submissions.";
 
     // Global thread pool
-    private static final ExecutorService threadPool = Executors.newCachedThreadPool();
+    private static final ThreadPoolExecutor threadPool =
+        createThreadPool(
+            XFormsProperties.getAsyncSubmissionThreads(),
+            XFormsProperties.getAsyncSubmissionQueueSize(),
+            ! XFormsProperties.ASYNC_SUBMISSION_REJECTION_ABORT_VALUE.equals(XFormsProperties.getAsyncSubmissionRejection()));
+
+    // Set while a thread which must never run a submission, such as an I/O thread, passes one to the pool
+    private static final ThreadLocal<Boolean> rejectInsteadOfRunning = new ThreadLocal<Boolean>();
+
+    // Pool with a bounded number of threads and a bounded queue, which runs rejected submissions in the requesting
+    // thread with callerRuns, or fails them otherwise
+    static ThreadPoolExecutor createThreadPool(int threads, int queueSize, boolean callerRuns) {
+        final RejectedExecutionHandler rejectionHandler = new RejectedExecutionHandler() {
+            private final RejectedExecutionHandler callerRunsPolicy = new ThreadPoolExecutor.CallerRunsPolicy();
+            private final RejectedExecutionHandler abortPolicy = new ThreadPoolExecutor.AbortPolicy();
+            public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                if (callerRuns && rejectInsteadOfRunning.get() == null)
+                    callerRunsPolicy.rejectedExecution(runnable, executor);
+                else
+                    abortPolicy.rejectedExecution(runnable, executor);
+            }
+        };
+
+        final ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicLong threadCount = new AtomicLong();
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "xforms asynchronous submission " + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+
+        return new ThreadPoolExecutor(Math.max(threads, 1), Math.max(threads, 1), 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(Math.max(queueSize, 1)), threadFactory, rejectionHandler);
+    }
+
+    private static int getQueueDepth() {
+        return threadPool.getQueue().size();
+    }
 
     private final XFormsContainingDocument containingDocument;
 
@@ -76,7 +130,7 @@ public class AsynchronousSubmissionManager {
         if (existingAsynchronousSubmissions != null) {
             return existingAsynchronousSubmissions;
         } else if (create) {
-            final AsynchronousSubmissions asynchronousSubmissions = new AsynchronousSubmissions();
+            final AsynchronousSubmissions asynchronousSubmissions = new AsynchronousSubmissions(threadPool, XFormsProperties.getAsyncSubmissionMaxPerDocument());
             sessionMap.put(sessionKey, asynchronousSubmissions);
             return asynchronousSubmissions;
         } else {
@@ -91,15 +145,50 @@ public class AsynchronousSubmissionManager {
         // NOTE: If we want to re-enable foreground async submissions, we must:
         // - do a better detection: !(xf-submit-done/xf-submit-error listener) && replace="none"
         // - OR provide an explicit hint on xf:submission
-        asynchronousSubmissions.submit(new Callable<SubmissionResult>() {
+        asynchronousSubmissions.submit(scopedCallable(newAsyncExternalContext(), callable));
+    }
 
-            // Submission should not need an ExternalContext, but if it does we must provide access to a safe one
-            final ExternalContext currentExternalContext = NetUtils.getExternalContext();
-            final ExternalContext newExternalContext = new AsyncExternalContext(
-                currentExternalContext.getWebAppContext(),
-                new AsyncRequest(currentExternalContext.getRequest()),
-                currentExternalContext.getResponse());
+    /**
+     * Add an asynchronous submission which doesn't need a thread until its response is available.
+     *
+     * The submission is pending right away. The caller completes it, typically from an I/O callback, with a callable
+     * which then runs on the pool like other asynchronous submissions. complete() returns immediately: the callable is
+     * never run by the calling thread, and if the pool is full, the submission completes with an error.
+     */
+    public PendingSubmission addPendingAsynchronousSubmission(final String submissionEffectiveId) {
+
+        final AsynchronousSubmissions asynchronousSubmissions = getAsynchronousSubmissions(true, getSessionKey(containingDocument));
+        final ExternalContext newExternalContext = newAsyncExternalContext();
 
+        asynchronousSubmissions.addPending();
+
+        return new PendingSubmission() {
+            public void complete(final Callable<SubmissionResult> callable) {
+                try {
+                    asynchronousSubmissions.submitPendingWithoutRunning(scopedCallable(newExternalContext, callable));
+                } catch (RejectedExecutionException e) {
+                    asynchronousSubmissions.completePending(
+                        new SubmissionResult(submissionEffectiveId, new OXFException("Too many asynchronous submissions", e), null));
+                }
+            }
+        };
+    }
+
+    public interface PendingSubmission {
+        void complete(Callable<SubmissionResult> callable);
+    }
+
+    // Submission should not need an ExternalContext, but if it does we must provide access to a safe one
+    private static ExternalContext newAsyncExternalContext() {
+        final ExternalContext currentExternalContext = NetUtils.getExternalContext();
+        return new AsyncExternalContext(
+            currentExternalContext.getWebAppContext(),
+            new AsyncRequest(currentExternalContext.getRequest()),
+            currentExternalContext.getResponse());
+    }
+
+    private static Callable<SubmissionResult> scopedCallable(final ExternalContext newExternalContext, final Callable<SubmissionResult> callable) {
+        return new Callable<SubmissionResult>() {
             public SubmissionResult call() throws Exception {
                 // Make sure an ExternalContext is scoped for the callable. We use the same external context as the caller,
                 // even though that can be a dangerous. Should we use AsyncExternalContext here?
@@ -116,7 +205,7 @@ public class AsynchronousSubmissionManager {
                     pipelineContext.destroy(success);
                 }
             }
-        });
+        };
     }
 
     public boolean hasPendingAsynchronousSubmissions() {
@@ -138,12 +227,28 @@ public class AsynchronousSubmissionManager {
 
             final IndentedLogger indentedLogger = containingDocument.getIndentedLogger(XFormsModelSubmission.LOGGING_CATEGORY);
             indentedLogger.startHandleOperation("", "processing all background asynchronous submissions");
+            final long timeout = XFormsProperties.getAsyncSubmissionTimeout();
             int processedCount = 0;
             try {
                 while (asynchronousSubmissions.getPendingCount() > 0) {
+                    // Handle next completed task, and with a timeout, don't wait longer for it
+                    final Future<SubmissionResult> future;
+                    try {
+                        future = timeout > 0 ? asynchronousSubmissions.poll(timeout) : asynchronousSubmissions.take();
+                    } catch (InterruptedException e) {
+                        throw new OXFException(e);
+                    }
+
+                    if (future == null) {
+                        final int cancelledCount = asynchronousSubmissions.cancelAll();
+                        throw new OXFException("Timeout after " + timeout + " ms while waiting for " + cancelledCount + " asynchronous submission(s)");
+                    }
+
+                    // Submission cancelled by processCompletedAsynchronousSubmissions() after a timeout
+                    if (future.isCancelled())
+                        continue;
+
                     try {
-                        // Handle next completed task
-                        final Future<SubmissionResult> future = asynchronousSubmissions.take();
                         final SubmissionResult result = future.get();
 
                         // Process response by dispatching an event to the submission
@@ -158,7 +263,8 @@ public class AsynchronousSubmissionManager {
                     processedCount++;
                 }
             } finally {
-                indentedLogger.endHandleOperation("processed", Integer.toString(processedCount));
+                indentedLogger.endHandleOperation("processed", Integer.toString(processedCount),
+                        "queue depth", Integer.toString(getQueueDepth()));
             }
         }
     }
@@ -177,10 +283,21 @@ public class AsynchronousSubmissionManager {
             final IndentedLogger indentedLogger = containingDocument.getIndentedLogger(XFormsModelSubmission.LOGGING_CATEGORY);
             indentedLogger.startHandleOperation("", "processing completed background asynchronous submissions");
 
+            // With a timeout, submissions which have been running for too long won't complete
+            final long timeout = XFormsProperties.getAsyncSubmissionTimeout();
+            final int timedOut = timeout > 0 ? asynchronousSubmissions.cancelExpired(timeout) : 0;
+            if (timedOut > 0) {
+                indentedLogger.logWarning("", "cancelled asynchronous submissions after timeout", "count", Integer.toString(timedOut));
+            }
+
             int processedCount = 0;
             try {
                 Future<SubmissionResult> future = asynchronousSubmissions.poll();
                 while (future != null) {
+                    if (future.isCancelled()) {
+                        future = asynchronousSubmissions.poll();
+                        continue;
+                    }
                     try {
                         // Handle next completed task
                         final SubmissionResult result = future.get();
@@ -199,36 +316,244 @@ public class AsynchronousSubmissionManager {
                 }
             } finally {
                 indentedLogger.endHandleOperation("processed", Integer.toString(processedCount),
-                        "pending", Integer.toString(asynchronousSubmissions.getPendingCount()));
+                        "pending", Integer.toString(asynchronousSubmissions.getPendingCount()),
+                        "queue depth", Integer.toString(getQueueDepth()));
             }
         }
     }
 
-    private static class AsynchronousSubmissions {
-        private final CompletionService<SubmissionResult> completionService = new ExecutorCompletionService<SubmissionResult>(threadPool);
+    /**
+     * Submissions of a document.
+     *
+     * Up to maxRunning submissions are passed to the global pool, and the others wait in this object. When a submission
+     * completes, the next waiting one is passed to the pool by the thread which ran the completed submission.
+     */
+    static class AsynchronousSubmissions {
+        private final BlockingQueue<Future<SubmissionResult>> completedQueue = new LinkedBlockingQueue<Future<SubmissionResult>>();
+        private final CompletionService<SubmissionResult> completionService;
+        private final int maxRunning;
+
+        // Submissions passed to the pool and not yet completed
+        private final Set<RunningSubmission> running = new LinkedHashSet<RunningSubmission>();
+        // Submissions waiting for a running one to complete
+        private final LinkedList<Callable<SubmissionResult>> waiting = new LinkedList<Callable<SubmissionResult>>();
+
         private int pendingCount = 0;
 
-        public Future<SubmissionResult> submit(Callable<SubmissionResult> task) {
-            final Future<SubmissionResult> future = completionService.submit(task);
+        public AsynchronousSubmissions(Executor pool, int maxRunning) {
+            this.completionService = new ExecutorCompletionService<SubmissionResult>(pool, completedQueue);
+            this.maxRunning = Math.max(maxRunning, 1);
+        }
+
+        public void submit(Callable<SubmissionResult> task) {
+            synchronized (this) {
+                pendingCount++;
+            }
+            try {
+                submitPending(task);
+            } catch (RejectedExecutionException e) {
+                throw rejected(e);
+            }
+        }
+
+        // A submission which is already counted as pending but doesn't have a task yet
+        public synchronized void addPending() {
             pendingCount++;
-            return future;
+        }
+
+        // Pass a submission already counted as pending to the pool, or keep it until a running one completes. If the
+        // pool rejects it, this throws RejectedExecutionException and the submission is still pending.
+        public void submitPending(Callable<SubmissionResult> task) {
+            final RunningSubmission submission;
+            synchronized (this) {
+                if (running.size() >= maxRunning) {
+                    waiting.add(task);
+                    return;
+                }
+                submission = addRunning();
+            }
+            start(task, submission);
+        }
+
+        // Like submitPending(), but if the pool is full, the submission is rejected even with the caller-runs policy
+        public void submitPendingWithoutRunning(Callable<SubmissionResult> task) {
+            rejectInsteadOfRunning.set(Boolean.TRUE);
+            try {
+                submitPending(task);
+            } finally {
+                rejectInsteadOfRunning.remove();
+            }
+        }
+
+        // Take a running slot for a submission about to be passed to the pool, while holding the lock
+        private RunningSubmission addRunning() {
+            final RunningSubmission submission = new RunningSubmission();
+            running.add(submission);
+            return submission;
+        }
+
+        private void start(final Callable<SubmissionResult> task, final RunningSubmission submission) {
+            // Submit without holding the lock, as with the caller-runs policy the submission runs in this thread
+            final Future<SubmissionResult> future;
+            try {
+                future = completionService.submit(new Callable<SubmissionResult>() {
+                    public SubmissionResult call() throws Exception {
+                        try {
+                            return task.call();
+                        } finally {
+                            completed(submission);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    running.remove(submission);
+                }
+                throw e;
+            }
+
+            final boolean cancelled;
+            synchronized (this) {
+                submission.future = future;
+                cancelled = submission.cancelled;
+            }
+            // Cancelled by cancelAll() before it was passed to the pool
+            if (cancelled)
+                future.cancel(true);
+        }
+
+        // Called by the thread which ran the submission
+        private void completed(RunningSubmission submission) {
+            Callable<SubmissionResult> next = null;
+            RunningSubmission nextSubmission = null;
+            synchronized (this) {
+                // Submissions cancelled after a timeout have already been removed
+                if (running.remove(submission)) {
+                    next = waiting.poll();
+                    if (next != null)
+                        nextSubmission = addRunning();
+                }
+            }
+            if (next != null) {
+                try {
+                    start(next, nextSubmission);
+                } catch (RejectedExecutionException e) {
+                    // This must not fail the submission which just completed
+                    rejected(e);
+                }
+            }
+        }
+
+        // A submission counted as pending was rejected by the pool and is no longer pending
+        private OXFException rejected(RejectedExecutionException e) {
+            synchronized (this) {
+                pendingCount--;
+            }
+            return new OXFException("Too many asynchronous submissions", e);
+        }
+
+        // Complete a submission already counted as pending with the given result, without running it on the pool
+        public void completePending(final SubmissionResult result) {
+            final FutureTask<SubmissionResult> future = new FutureTask<SubmissionResult>(new Callable<SubmissionResult>() {
+                public SubmissionResult call() {
+                    return result;
+                }
+            });
+            future.run();
+            completedQueue.add(future);
+        }
+
+        public int cancelExpired(long timeout) {
+            final long expiry = System.currentTimeMillis() - timeout;
+            final List<Callable<SubmissionResult>> next = new ArrayList<Callable<SubmissionResult>>();
+            final List<RunningSubmission> nextSubmissions = new ArrayList<RunningSubmission>();
+            int count = 0;
+            synchronized (this) {
+                for (final Iterator<RunningSubmission> i = running.iterator(); i.hasNext();) {
+                    final RunningSubmission submission = i.next();
+                    // Submissions still being passed to the pool don't have a future yet and can't be expired
+                    if (submission.future != null && submission.startTime < expiry && submission.future.cancel(true)) {
+                        i.remove();
+                        count++;
+                        if (! waiting.isEmpty())
+                            next.add(waiting.poll());
+                    }
+                }
+                for (int i = 0; i < next.size(); i++)
+                    nextSubmissions.add(addRunning());
+            }
+            // Start waiting submissions in place of the cancelled ones
+            OXFException rejection = null;
+            for (int i = 0; i < next.size(); i++) {
+                try {
+                    start(next.get(i), nextSubmissions.get(i));
+                } catch (RejectedExecutionException e) {
+                    rejection = rejected(e);
+                }
+            }
+            if (rejection != null)
+                throw rejection;
+            return count;
+        }
+
+        public synchronized int cancelAll() {
+            int count = 0;
+            for (final RunningSubmission submission : running) {
+                if (submission.future == null) {
+                    // Cancelled by start() once it is passed to the pool
+                    submission.cancelled = true;
+                    count++;
+                } else if (submission.future.cancel(true)) {
+                    count++;
+                }
+            }
+            running.clear();
+            // Cancelled submissions are still returned by poll(), but waiting ones never will be
+            count += waiting.size();
+            pendingCount -= waiting.size();
+            waiting.clear();
+            return count;
         }
 
         public Future<SubmissionResult> poll() {
             final Future<SubmissionResult> future = completionService.poll();
             if (future != null)
-                pendingCount--;
+                synchronized (this) {
+                    pendingCount--;
+                }
             return future;
         }
 
         public Future<SubmissionResult> take() throws InterruptedException {
             final Future<SubmissionResult> future = completionService.take();
-            pendingCount--;
+            synchronized (this) {
+                pendingCount--;
+            }
             return future;
         }
 
-        public int getPendingCount() {
+        public Future<SubmissionResult> poll(long timeout) throws InterruptedException {
+            final Future<SubmissionResult> future = completionService.poll(timeout, TimeUnit.MILLISECONDS);
+            if (future != null)
+                synchronized (this) {
+                    pendingCount--;
+                }
+            return future;
+        }
+
+        public synchronized int getPendingCount() {
             return pendingCount;
         }
     }
+
+    /**
+     * Submission passed to the pool. It is registered before it is passed to the pool, so it can complete at any time
+     * after that, and its future is set once the pool has accepted it.
+     */
+    private static class RunningSubmission {
+        private final long startTime = System.currentTimeMillis();
+        // Guarded by the AsynchronousSubmissions which runs the submission
+        private Future<SubmissionResult> future;
+        private boolean cancelled;
+    }
 }
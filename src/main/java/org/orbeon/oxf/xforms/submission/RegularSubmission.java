@@ -15,6 +15,7 @@ package org.orbeon.oxf.xforms.submission;
 
 import org.orbeon.oxf.resources.URLFactory;
 import org.orbeon.oxf.util.Connection;
+import org.orbeon.oxf.util.ConnectionCallback;
 import org.orbeon.oxf.util.ConnectionResult;
 import org.orbeon.oxf.util.IndentedLogger;
 import org.orbeon.oxf.xforms.XFormsProperties;
@@ -64,11 +65,63 @@ public class RegularSubmission extends BaseSubmission {
             Connection.jApply(p.actualHttpMethod, absoluteResolvedURL,
                 p2.credentials, sp.messageBody, headers, true, isLogBody(), detailsLogger);
 
-        // Pack external call into a Callable so it can be run:
-        // - now and synchronously
-        // - now and asynchronously
-        // - later as a "foreground" asynchronous submission
-        final Callable<SubmissionResult> callable = new Callable<SubmissionResult>() {
+        if (p2.isAsynchronous && XFormsProperties.isAsyncSubmissionNonBlocking() && connection.isAsyncSupported()) {
+            // Don't hold a thread while waiting for the response: a thread is only used to deserialize it
+            final AsynchronousSubmissionManager.PendingSubmission pendingSubmission =
+                containingDocument.getAsynchronousSubmissionManager(true).addPendingAsynchronousSubmission(submissionEffectiveId);
+
+            if (timingLogger.isDebugEnabled())
+                timingLogger.logDebug("", "starting non-blocking asynchronous submission", "id", submissionEffectiveId);
+
+            connection.connectAsync(XFormsProperties.getAsyncSubmissionTimeout(), new ConnectionCallback() {
+                public void completed(final ConnectionResult connectionResult) {
+                    pendingSubmission.complete(new Callable<SubmissionResult>() {
+                        public SubmissionResult call() {
+                            try {
+                                final Replacer replacer = submission.getReplacer(connectionResult, p);
+                                if (replacer != null)
+                                    replacer.deserialize(connectionResult, p, p2);
+
+                                return new SubmissionResult(submissionEffectiveId, replacer, connectionResult);
+                            } catch (Throwable throwable) {
+                                // Exceptions are handled further down
+                                return new SubmissionResult(submissionEffectiveId, throwable, connectionResult);
+                            }
+                        }
+                    });
+                }
+
+                public void failed(final Throwable throwable) {
+                    pendingSubmission.complete(new Callable<SubmissionResult>() {
+                        public SubmissionResult call() {
+                            return new SubmissionResult(submissionEffectiveId, throwable, null);
+                        }
+                    });
+                }
+
+                public void connect(Connection redirectedConnection) {
+                    // Redirected to a URL which requires a blocking connection
+                    pendingSubmission.complete(newCallable(p, p2, redirectedConnection, timingLogger, detailsLogger, submissionEffectiveId));
+                }
+            });
+
+            // Tell caller he doesn't need to do anything
+            return null;
+        }
+
+        // Submit the callable
+        // This returns null if the execution is deferred 
+        return submitCallable(p, p2, newCallable(p, p2, connection, timingLogger, detailsLogger, submissionEffectiveId));
+    }
+
+    // Pack external call into a Callable so it can be run:
+    // - now and synchronously
+    // - now and asynchronously
+    // - later as a "foreground" asynchronous submission
+    private Callable<SubmissionResult> newCallable(final XFormsModelSubmission.SubmissionParameters p, final XFormsModelSubmission.SecondPassParameters p2,
+                                                   final Connection connection, final IndentedLogger timingLogger, final IndentedLogger detailsLogger,
+                                                   final String submissionEffectiveId) {
+        return new Callable<SubmissionResult>() {
             public SubmissionResult call() throws Exception {
 
                 // Here we just want to run the submission and not touch the XFCD. Remember, we can't change XFCD
@@ -118,9 +171,5 @@ public class RegularSubmission extends BaseSubmission {
                 }
             }
         };
-
-        // Submit the callable
-        // This returns null if the execution is deferred 
-        return submitCallable(p, p2, callable);
     }
 }
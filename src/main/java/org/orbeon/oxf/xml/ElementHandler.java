@@ -74,6 +74,16 @@ public abstract class ElementHandler {
      */
     public abstract boolean isForwarding();
 
+    /**
+     * Whether this handler instance can be used again for another element once it has ended. Only handlers which
+     * don't keep state between elements may return true.
+     *
+     * @return true iif the handler can be reused
+     */
+    public boolean isReusable() {
+        return false;
+    }
+
     /**
      * Set a context object for this handler.
      *
@@ -14,6 +14,7 @@
 package org.orbeon.oxf.xml;
 
 import org.dom4j.Element;
+import org.orbeon.oxf.common.OXFException;
 import org.orbeon.oxf.common.OrbeonLocationException;
 import org.orbeon.oxf.xml.dom4j.LocationData;
 import org.xml.sax.Attributes;
@@ -21,7 +22,10 @@ import org.xml.sax.Locator;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.AttributesImpl;
 
+import java.lang.reflect.Constructor;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * This is the controller for the handlers system.
@@ -33,15 +37,19 @@ import java.util.*;
  * o calls handlers when needed
  * o handles repeated content
  *
- * TODO: Should use pools of handlers to reduce memory consumption?
+ * Handlers which declare themselves reusable are kept by the controller once they have ended and handed out again for
+ * subsequent elements.
  */
 public class ElementHandlerController implements ElementHandlerContext, XMLReceiver {
 
     private Object elementHandlerContext;
     private DeferredXMLReceiver output;
 
-    private final Map<String, List<HandlerMatcher>> handlerMatchers = new HashMap<String, List<HandlerMatcher>>();
-    private final Map<String, String> uriHandlers = new HashMap<String, String>();
+    // Dispatch table: URI -> handlers for that URI, so that no exploded QName has to be built per element
+    private final Map<String, UriDispatch> dispatch = new HashMap<String, UriDispatch>();
+
+    // Handler instances which have ended and which can be handed out again, per factory
+    private final Map<HandlerFactory, List<ElementHandler>> reusableHandlers = new HashMap<HandlerFactory, List<ElementHandler>>();
 
     private final Stack<HandlerInfo> handlerInfos = new Stack<HandlerInfo>();
     private HandlerInfo currentHandlerInfo;
@@ -53,8 +61,8 @@ public class ElementHandlerController implements ElementHandlerContext, XMLRecei
 
     private int level = 0;
 
-    // Class.forName is expensive, so we cache mappings
-    private static Map<String, Class<ElementHandler>> classNameToHandlerClass = new HashMap<String, Class<ElementHandler>>();
+    // Class.forName and constructor lookups are expensive, so we cache factories
+    private static final ConcurrentMap<String, HandlerFactory> classNameToHandlerFactory = new ConcurrentHashMap<String, HandlerFactory>();
 
     /**
      * Register a handler that matches on a URI only.
@@ -81,24 +89,55 @@ public class ElementHandlerController implements ElementHandlerContext, XMLRecei
      * Register a handler. The handler can match on a URI + localname + custom matcher, URI + localname, or on URI only
      * in that order.
      *
+     * The handler is created through its constructor, which is looked up only once per class. Handlers that run for
+     * most elements, such as catch-all handlers, should be registered with a HandlerFactory instead.
+     *
      * @param handlerClassName      class name for the handler
      * @param uri                   URI of the element that triggers the handler
      * @param localname             local name of the element that triggers the handler, or null if match on URI only
      * @param matcher               matcher on attributes, or null
      */
     public void registerHandler(String handlerClassName, String uri, String localname, Matcher matcher) {
+        registerHandler(getHandlerFactory(handlerClassName), uri, localname, matcher);
+    }
+
+    /**
+     * Register a handler factory that matches on a URI only.
+     *
+     * @param handlerFactory    factory for the handler
+     * @param uri               URI of the element that triggers the handler
+     */
+    public void registerHandler(HandlerFactory handlerFactory, String uri) {
+        registerHandler(handlerFactory, uri, null, null);
+    }
+
+    /**
+     * Register a handler factory. The handler can match on a URI + localname + custom matcher, URI + localname, or on
+     * URI only in that order.
+     *
+     * @param handlerFactory        factory for the handler
+     * @param uri                   URI of the element that triggers the handler
+     * @param localname             local name of the element that triggers the handler, or null if match on URI only
+     * @param matcher               matcher on attributes, or null
+     */
+    public void registerHandler(HandlerFactory handlerFactory, String uri, String localname, Matcher matcher) {
+        UriDispatch uriDispatch = dispatch.get(uri);
+        if (uriDispatch == null) {
+            uriDispatch = new UriDispatch();
+            dispatch.put(uri, uriDispatch);
+        }
+
         if (localname != null) {
             // Match on URI + localname and optionally custom matcher
-            final String key = XMLUtils.buildExplodedQName(uri, localname);
-            List<HandlerMatcher> handlerMatchers = this.handlerMatchers.get(key);
+            List<HandlerMatcher> handlerMatchers = uriDispatch.localnameMatchers.get(localname);
             if (handlerMatchers == null) {
                 handlerMatchers = new ArrayList<HandlerMatcher>();
-                this.handlerMatchers.put(key, handlerMatchers);
+                uriDispatch.localnameMatchers.put(localname, handlerMatchers);
             }
-            handlerMatchers.add(new HandlerMatcher(handlerClassName, matcher != null ? matcher : ALL_MATCHER));
+            handlerMatchers.add(new HandlerMatcher(handlerFactory, matcher != null ? matcher : ALL_MATCHER));
         } else {
             // Match on URI only
-            uriHandlers.put(uri, handlerClassName);
+            uriDispatch.uriHandlerFactory = handlerFactory;
         }
     }
 
@@ -149,9 +188,7 @@ public class ElementHandlerController implements ElementHandlerContext, XMLRecei
                 // Just ignore content
             } else {
                 // Look for a new handler
-                final String explodedQName = XMLUtils.buildExplodedQName(uri, localname);
-
-                final HandlerInfo handlerInfo = getHandler(uri, explodedQName, attributes);
+                final HandlerInfo handlerInfo = getHandler(uri, localname, attributes);
 
                 if (handlerInfo != null) {
                     // New handler found
@@ -201,6 +238,7 @@ public class ElementHandlerController implements ElementHandlerContext, XMLRecei
 
                 // Pop current handler
                 handlerInfos.pop();
+                releaseHandler(currentHandlerInfo);
                 currentHandlerInfo = ((handlerInfos.size() > 0) ? handlerInfos.peek() : null);
             } else if (isFillingUpSAXStore) {
                 // Fill-up SAXStore
@@ -513,69 +551,83 @@ public class ElementHandlerController implements ElementHandlerContext, XMLRecei
      * @return          handler if found
      */
     public ElementHandler getHandler(Element element) {
-        final HandlerInfo handlerInfo = 
-        getHandler(element.getNamespaceURI(),
-                XMLUtils.buildExplodedQName(element.getNamespaceURI(), element.getName()),
-                XMLUtils.getSAXAttributes(element));
-        
+        final HandlerInfo handlerInfo = getHandler(element.getNamespaceURI(), element.getName(), XMLUtils.getSAXAttributes(element));
         return (handlerInfo != null) ? handlerInfo.elementHandler : null;
     }
 
-    private HandlerInfo getHandler(String uri, String explodedQName, Attributes attributes) {
+    private HandlerInfo getHandler(String uri, String localname, Attributes attributes) {
+        final UriDispatch uriDispatch = dispatch.get(uri);
+        if (uriDispatch == null)
+            return null;
+
         // 1: Try full matchers
-        final List<HandlerMatcher> handlerMatchers = this.handlerMatchers.get(explodedQName);
+        final List<HandlerMatcher> handlerMatchers = uriDispatch.localnameMatchers.get(localname);
         if (handlerMatchers != null) {
             // Try matchers in order
-            for (HandlerMatcher handlerMatcher: handlerMatchers) {
+            for (final HandlerMatcher handlerMatcher: handlerMatchers) {
                 // Run matcher
                 final Object matched = handlerMatcher.matcher.match(attributes, elementHandlerContext);
-                if (matched != null) {
-                    final ElementHandler elementHandler = getHandlerByClassName(handlerMatcher.handlerClassName);
-                    return new HandlerInfo(level, explodedQName, elementHandler, attributes, matched, this.locator);
-                }
+                if (matched != null)
+                    return new HandlerInfo(level, handlerMatcher.handlerFactory, obtainHandler(handlerMatcher.handlerFactory), attributes, matched, this.locator);
             }
         }
 
         // 2: Try URI-based handler
-        final String uriHandlerClassName = uriHandlers.get(uri);
-        if (uriHandlerClassName != null) {
-            final ElementHandler elementHandler = getHandlerByClassName(uriHandlerClassName);
-            return new HandlerInfo(level, explodedQName, elementHandler, attributes, null, this.locator);
-        } else {
+        final HandlerFactory uriHandlerFactory = uriDispatch.uriHandlerFactory;
+        if (uriHandlerFactory != null)
+            return new HandlerInfo(level, uriHandlerFactory, obtainHandler(uriHandlerFactory), attributes, null, this.locator);
+        else
             return null;
-        }
     }
 
-    @SuppressWarnings("unchecked")
-    private ElementHandler getHandlerByClassName(String handlerClassName) {
-        Class<ElementHandler> handlerClass = classNameToHandlerClass.get(handlerClassName);
-        if (handlerClass == null) {
-            try {
-                handlerClass = (Class<ElementHandler>) Class.forName(handlerClassName);
-                classNameToHandlerClass.put(handlerClassName, handlerClass);
-            } catch (ClassNotFoundException e) {
-                throw OrbeonLocationException.wrapException(e, new LocationData(locator));
+    // Return an ended handler if one is available, otherwise create a new one
+    private ElementHandler obtainHandler(HandlerFactory handlerFactory) {
+        final List<ElementHandler> handlers = reusableHandlers.get(handlerFactory);
+        if (handlers != null && handlers.size() > 0)
+            return handlers.remove(handlers.size() - 1);
+        else
+            return handlerFactory.newHandler();
+    }
+
+    // Keep the handler around for a subsequent element once it has ended, if it supports it
+    private void releaseHandler(HandlerInfo handlerInfo) {
+        if (handlerInfo.elementHandler.isReusable()) {
+            List<ElementHandler> handlers = reusableHandlers.get(handlerInfo.handlerFactory);
+            if (handlers == null) {
+                handlers = new ArrayList<ElementHandler>();
+                reusableHandlers.put(handlerInfo.handlerFactory, handlers);
             }
+            handlers.add(handlerInfo.elementHandler);
         }
+    }
+
+    private HandlerFactory getHandlerFactory(String handlerClassName) {
+        final HandlerFactory existingFactory = classNameToHandlerFactory.get(handlerClassName);
+        if (existingFactory != null)
+            return existingFactory;
+
+        final HandlerFactory newFactory;
         try {
-            return handlerClass.newInstance();
+            newFactory = new ConstructorHandlerFactory(Class.forName(handlerClassName).asSubclass(ElementHandler.class).getConstructor());
         } catch (Exception e) {
             throw OrbeonLocationException.wrapException(e, new LocationData(locator));
         }
+        classNameToHandlerFactory.putIfAbsent(handlerClassName, newFactory);
+        return classNameToHandlerFactory.get(handlerClassName);
     }
 
     private static class HandlerInfo {
         public final int level;
-        public final String explodedQName;
+        public final HandlerFactory handlerFactory;
         public final ElementHandler elementHandler;
         public final Attributes attributes;
         public final Object matched;
 
         public final SAXStore saxStore;
         
-        public HandlerInfo(int level, String explodedQName, ElementHandler elementHandler, Attributes attributes, Object matched, Locator locator) {
+        public HandlerInfo(int level, HandlerFactory handlerFactory, ElementHandler elementHandler, Attributes attributes, Object matched, Locator locator) {
             this.level = level;
-            this.explodedQName = explodedQName;
+            this.handlerFactory = handlerFactory;
             this.elementHandler = elementHandler;
             this.attributes = elementHandler.isRepeating() ? new AttributesImpl(attributes) : null; // NOTE: could keep attributes if needed
             this.matched = matched;
@@ -600,12 +652,43 @@ public class ElementHandlerController implements ElementHandlerContext, XMLRecei
         }
     };
 
+    /**
+     * Create handler instances without going through Class.newInstance() for each element.
+     */
+    public static abstract class HandlerFactory {
+        public abstract ElementHandler newHandler();
+    }
+
+    // Factory for handlers registered by class name. These are the handlers for specific XForms controls, which are
+    // created once per control, so they are not worth a factory of their own.
+    private static class ConstructorHandlerFactory extends HandlerFactory {
+        private final Constructor<? extends ElementHandler> constructor;
+
+        private ConstructorHandlerFactory(Constructor<? extends ElementHandler> constructor) {
+            this.constructor = constructor;
+        }
+
+        @Override
+        public ElementHandler newHandler() {
+            try {
+                return constructor.newInstance();
+            } catch (Exception e) {
+                throw new OXFException(e);
+            }
+        }
+    }
+
+    private static class UriDispatch {
+        public final Map<String, List<HandlerMatcher>> localnameMatchers = new HashMap<String, List<HandlerMatcher>>();
+        public HandlerFactory uriHandlerFactory;
+    }
+
     private static class HandlerMatcher {
-        public String handlerClassName;
-        public Matcher matcher;
+        public final HandlerFactory handlerFactory;
+        public final Matcher matcher;
 
-        private HandlerMatcher(String handlerClassName, Matcher matcher) {
-            this.handlerClassName = handlerClassName;
+        private HandlerMatcher(HandlerFactory handlerFactory, Matcher matcher) {
+            this.handlerFactory = handlerFactory;
             this.matcher = matcher;
         }
     }
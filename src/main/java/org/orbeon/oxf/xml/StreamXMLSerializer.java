@@ -0,0 +1,488 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xml;
+
+import org.orbeon.oxf.common.OXFException;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Serializer writing SAX events directly to a Writer or OutputStream, following the XML output method.
+ *
+ * This is a lightweight replacement for an identity transformer writing to a StreamResult. It supports the usual
+ * output properties (version, doctype, encoding, XML declaration, standalone), but not indentation, the XHTML output
+ * method, or the more advanced serialization parameters such as character maps or CDATA section elements. Use
+ * isSupported() to check whether output properties can be handled, and use an identity transformer otherwise.
+ *
+ * o Output is buffered: it reaches the underlying Writer or OutputStream upon endDocument() or flush().
+ * o Namespace declarations come from startPrefixMapping(), and xmlns attributes are ignored.
+ * o Characters which cannot be represented in the output encoding are written as character references.
+ */
+public class StreamXMLSerializer extends XMLReceiverAdapter implements Flushable {
+
+    public static final String DEFAULT_ENCODING = "utf-8";
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    // Characters below 0xa0 which can be written as is in text and attribute values
+    private static final boolean[] TEXT_AS_IS = new boolean[0xa0];
+    private static final boolean[] ATTRIBUTE_AS_IS = new boolean[0xa0];
+    static {
+        for (char c = 0x20; c < 0x7f; c++) {
+            TEXT_AS_IS[c] = c != '&' && c != '<' && c != '>';
+            ATTRIBUTE_AS_IS[c] = TEXT_AS_IS[c] && c != '"';
+        }
+        TEXT_AS_IS['\t'] = true;
+        TEXT_AS_IS['\n'] = true;
+    }
+
+    private final Writer writer;
+
+    private final String version;
+    private final String publicDoctype;
+    private final String systemDoctype;
+    private final String encoding;
+    private final boolean omitXMLDeclaration;
+    private final Boolean standalone;
+
+    // Highest character written as is, and encoder to check characters above it, if any
+    private final int maxChar;
+    private final CharsetEncoder encoder;
+
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+    private char[] scratch = new char[128];
+
+    private boolean declarationDone;
+    private boolean prologDone;
+    private boolean inDTD;
+    private int level;
+    private boolean startTagOpen;
+
+    // In-scope namespace declarations as prefix/URI pairs, and number of pairs at the start of each level
+    private final List<String> namespaces = new ArrayList<String>();
+    private final List<String> pendingNamespaces = new ArrayList<String>();
+    private int[] namespaceCounts = new int[16];
+
+    /**
+     * Serialize with UTF-8 encoding.
+     */
+    public StreamXMLSerializer(Writer writer, boolean omitXMLDeclaration) {
+        this(writer, null, null, null, DEFAULT_ENCODING, omitXMLDeclaration, null);
+    }
+
+    /**
+     * Serialize to a byte stream with the given encoding.
+     */
+    public StreamXMLSerializer(OutputStream os, String version, String publicDoctype, String systemDoctype,
+                               String encoding, boolean omitXMLDeclaration, Boolean standalone) {
+        this(new OutputStreamWriter(os, getCharset(encoding)), version, publicDoctype, systemDoctype,
+                encoding, omitXMLDeclaration, standalone);
+    }
+
+    /**
+     * Serialize to a character stream. The encoding is used for the XML declaration and to determine which characters
+     * must be written as character references.
+     *
+     * @param writer                writer to write to
+     * @param version               XML version, null for "1.0"
+     * @param publicDoctype         public doctype, or null
+     * @param systemDoctype         system doctype, or null
+     * @param encoding              character encoding, null for UTF-8
+     * @param omitXMLDeclaration    whether XML declaration must be omitted
+     * @param standalone            whether a standalone declaration must be set and to what value
+     */
+    public StreamXMLSerializer(Writer writer, String version, String publicDoctype, String systemDoctype,
+                               String encoding, boolean omitXMLDeclaration, Boolean standalone) {
+
+        this.writer = writer;
+        this.version = isEmpty(version) ? "1.0" : version;
+        this.publicDoctype = isEmpty(publicDoctype) ? null : publicDoctype;
+        this.systemDoctype = isEmpty(systemDoctype) ? null : systemDoctype;
+        this.encoding = isEmpty(encoding) ? DEFAULT_ENCODING : encoding;
+        this.omitXMLDeclaration = omitXMLDeclaration;
+        this.standalone = standalone;
+
+        final String charsetName = getCharset(this.encoding).name();
+        if (charsetName.startsWith("UTF-")) {
+            maxChar = Character.MAX_CODE_POINT;
+            encoder = null;
+        } else if (charsetName.equals("ISO-8859-1")) {
+            maxChar = 0xff;
+            encoder = null;
+        } else if (charsetName.equals("US-ASCII")) {
+            maxChar = 0x7f;
+            encoder = null;
+        } else {
+            maxChar = 0x7f;
+            encoder = getCharset(this.encoding).newEncoder();
+        }
+    }
+
+    /**
+     * Whether output with the given method and indentation is supported by this serializer.
+     */
+    public static boolean isSupported(String method, boolean indent) {
+        return (isEmpty(method) || "xml".equals(method)) && ! indent;
+    }
+
+    private static boolean isEmpty(String s) {
+        return s == null || s.length() == 0;
+    }
+
+    private static Charset getCharset(String encoding) {
+        try {
+            return Charset.forName(isEmpty(encoding) ? DEFAULT_ENCODING : encoding);
+        } catch (IllegalArgumentException e) {
+            throw new OXFException("Unsupported encoding: " + encoding);
+        }
+    }
+
+    /**
+     * Write buffered output to the underlying stream, and flush it.
+     */
+    public void flush() throws IOException {
+        flushBuffer();
+        writer.flush();
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        try {
+            closeStartTag();
+            flush();
+        } catch (IOException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    @Override
+    public void startPrefixMapping(String prefix, String uri) throws SAXException {
+        if (! "xml".equals(prefix)) {
+            pendingNamespaces.add(prefix);
+            pendingNamespaces.add(uri);
+        }
+    }
+
+    @Override
+    public void startElement(String uri, String localname, String qName, Attributes attributes) throws SAXException {
+        try {
+            closeStartTag();
+            final String elementQName = isEmpty(qName) ? qualifiedName(uri, localname) : qName;
+            if (! prologDone)
+                writeProlog(elementQName);
+
+            // Namespace declarations
+            if (namespaceCounts.length == level) {
+                final int[] newNamespaceCounts = new int[level * 2];
+                System.arraycopy(namespaceCounts, 0, newNamespaceCounts, 0, level);
+                namespaceCounts = newNamespaceCounts;
+            }
+            namespaceCounts[level] = namespaces.size();
+
+            write('<');
+            write(elementQName);
+
+            for (int i = 0; i < pendingNamespaces.size(); i += 2) {
+                final String prefix = pendingNamespaces.get(i);
+                final String namespaceURI = pendingNamespaces.get(i + 1);
+                namespaces.add(prefix);
+                namespaces.add(namespaceURI);
+                if (prefix.length() == 0) {
+                    write(" xmlns=\"");
+                } else {
+                    write(" xmlns:");
+                    write(prefix);
+                    write("=\"");
+                }
+                writeEscaped(namespaceURI, true);
+                write('"');
+            }
+            pendingNamespaces.clear();
+
+            // Attributes
+            final int attributesCount = attributes.getLength();
+            for (int i = 0; i < attributesCount; i++) {
+                final String attributeQName = isEmpty(attributes.getQName(i))
+                        ? qualifiedName(attributes.getURI(i), attributes.getLocalName(i)) : attributes.getQName(i);
+                if (attributeQName.equals("xmlns") || attributeQName.startsWith("xmlns:"))
+                    continue;
+                write(' ');
+                write(attributeQName);
+                write("=\"");
+                writeEscaped(attributes.getValue(i), true);
+                write('"');
+            }
+
+            startTagOpen = true;
+            level++;
+        } catch (IOException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localname, String qName) throws SAXException {
+        try {
+            final String elementQName = isEmpty(qName) ? qualifiedName(uri, localname) : qName;
+            if (startTagOpen) {
+                startTagOpen = false;
+                write("/>");
+            } else {
+                write("</");
+                write(elementQName);
+                write('>');
+            }
+
+            level--;
+
+            // Namespace declarations of this element go out of scope
+            final int namespaceCount = namespaceCounts[level];
+            while (namespaces.size() > namespaceCount)
+                namespaces.remove(namespaces.size() - 1);
+        } catch (IOException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    @Override
+    public void characters(char[] chars, int start, int length) throws SAXException {
+        if (length == 0)
+            return;
+        try {
+            closeStartTag();
+            writeEscaped(chars, start, length, false);
+        } catch (IOException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] chars, int start, int length) throws SAXException {
+        characters(chars, start, length);
+    }
+
+    @Override
+    public void processingInstruction(String target, String data) throws SAXException {
+        try {
+            closeStartTag();
+            if (! prologDone && level == 0)
+                writeDeclaration();
+            write("<?");
+            write(target);
+            if (! isEmpty(data)) {
+                write(' ');
+                write(data);
+            }
+            write("?>");
+        } catch (IOException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    @Override
+    public void comment(char[] chars, int start, int length) throws SAXException {
+        if (inDTD)
+            return;
+        try {
+            closeStartTag();
+            if (! prologDone && level == 0)
+                writeDeclaration();
+            write("<!--");
+            write(chars, start, length);
+            write("-->");
+        } catch (IOException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    @Override
+    public void startDTD(String name, String publicId, String systemId) throws SAXException {
+        inDTD = true;
+    }
+
+    @Override
+    public void endDTD() throws SAXException {
+        inDTD = false;
+    }
+
+    private void writeDeclaration() throws IOException {
+        if (! declarationDone) {
+            declarationDone = true;
+            if (! omitXMLDeclaration) {
+                write("<?xml version=\"");
+                write(version);
+                write("\" encoding=\"");
+                write(encoding);
+                write('"');
+                if (standalone != null)
+                    write(standalone ? " standalone=\"yes\"" : " standalone=\"no\"");
+                write("?>");
+            }
+        }
+    }
+
+    private void writeProlog(String rootQName) throws IOException {
+        writeDeclaration();
+        if (systemDoctype != null) {
+            // Same layout as the identity transformer
+            write("\n<!DOCTYPE ");
+            write(rootQName);
+            if (publicDoctype != null) {
+                write("\n  PUBLIC \"");
+                write(publicDoctype);
+                write("\" \"");
+            } else {
+                write("\n  SYSTEM \"");
+            }
+            write(systemDoctype);
+            write("\">\n");
+        }
+        prologDone = true;
+    }
+
+    private void closeStartTag() throws IOException {
+        if (startTagOpen) {
+            write('>');
+            startTagOpen = false;
+        }
+    }
+
+    // Find the URI bound to the given prefix
+    private String getURI(String prefix) {
+        for (int i = namespaces.size() - 2; i >= 0; i -= 2)
+            if (namespaces.get(i).equals(prefix))
+                return namespaces.get(i + 1);
+        return prefix.length() == 0 ? "" : null;
+    }
+
+    // Find a qualified name when the producer didn't provide one
+    private String qualifiedName(String uri, String localname) {
+        if (isEmpty(uri))
+            return localname;
+        for (int i = pendingNamespaces.size() - 2; i >= 0; i -= 2)
+            if (pendingNamespaces.get(i + 1).equals(uri))
+                return pendingNamespaces.get(i).length() == 0 ? localname : pendingNamespaces.get(i) + ':' + localname;
+        for (int i = namespaces.size() - 2; i >= 0; i -= 2)
+            if (namespaces.get(i + 1).equals(uri) && uri.equals(getURI(namespaces.get(i))))
+                return namespaces.get(i).length() == 0 ? localname : namespaces.get(i) + ':' + localname;
+        throw new OXFException("No prefix declared for namespace URI: " + uri);
+    }
+
+    private void writeEscaped(String s, boolean attribute) throws IOException {
+        final int length = s.length();
+        if (scratch.length < length)
+            scratch = new char[Math.max(length, scratch.length * 2)];
+        s.getChars(0, length, scratch, 0);
+        writeEscaped(scratch, 0, length, attribute);
+    }
+
+    private void writeEscaped(char[] chars, int start, int length, boolean attribute) throws IOException {
+        final boolean[] asIs = attribute ? ATTRIBUTE_AS_IS : TEXT_AS_IS;
+        final int end = start + length;
+        int runStart = start;
+        for (int i = start; i < end; i++) {
+            final char c = chars[i];
+            if (c < asIs.length ? asIs[c] : c <= maxChar && encoder == null)
+                continue;
+            // Write characters so far as is, then the current character
+            write(chars, runStart, i - runStart);
+            i = writeEscapedCharacter(chars, i, end, attribute);
+            runStart = i + 1;
+        }
+        write(chars, runStart, end - runStart);
+    }
+
+    // Write the character at the given index and return the index of the last character written
+    private int writeEscapedCharacter(char[] chars, int index, int end, boolean attribute) throws IOException {
+        final char c = chars[index];
+        switch (c) {
+            case '&':  write("&amp;"); break;
+            case '<':  write("&lt;"); break;
+            case '>':  write("&gt;"); break;
+            case '\r': write("&#xD;"); break;
+            case '"':  if (attribute) write("&#34;"); else write(c); break;
+            case '\n': if (attribute) write("&#xA;");  else write(c); break;
+            case '\t': if (attribute) write("&#x9;");  else write(c); break;
+            default:
+                if (c < 0xa0) {
+                    // Control characters
+                    writeCharacterReference(c);
+                } else if (Character.isHighSurrogate(c) && index + 1 < end && Character.isLowSurrogate(chars[index + 1])) {
+                    final char low = chars[++index];
+                    if (encoder != null && encoder.canEncode(new String(new char[] { c, low }))) {
+                        write(c);
+                        write(low);
+                    } else {
+                        writeCharacterReference(Character.toCodePoint(c, low));
+                    }
+                } else if (c <= maxChar || (encoder != null && encoder.canEncode(c))) {
+                    write(c);
+                } else {
+                    writeCharacterReference(c);
+                }
+        }
+        return index;
+    }
+
+    private void writeCharacterReference(int codePoint) throws IOException {
+        write("&#");
+        write(Integer.toString(codePoint));
+        write(';');
+    }
+
+    private void write(char c) throws IOException {
+        if (position == buffer.length)
+            flushBuffer();
+        buffer[position++] = c;
+    }
+
+    private void write(String s) throws IOException {
+        final int length = s.length();
+        if (length > buffer.length - position) {
+            flushBuffer();
+            if (length > buffer.length) {
+                writer.write(s);
+                return;
+            }
+        }
+        s.getChars(0, length, buffer, position);
+        position += length;
+    }
+
+    private void write(char[] chars, int start, int length) throws IOException {
+        if (length > buffer.length - position) {
+            flushBuffer();
+            if (length > buffer.length) {
+                writer.write(chars, start, length);
+                return;
+            }
+        }
+        System.arraycopy(chars, start, buffer, position, length);
+        position += length;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (position > 0) {
+            writer.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+}
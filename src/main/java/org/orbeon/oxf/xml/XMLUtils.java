@@ -56,6 +56,10 @@ import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CoderResult;
 import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class XMLUtils {
 
@@ -70,7 +74,11 @@ public class XMLUtils {
     private static final DocumentBuilderFactory documentBuilderFactory;
     private static Map<Thread, DocumentBuilder> documentBuilders = null;
 
-    private static Map<String, SAXParserFactory> parserFactories = new HashMap<String, SAXParserFactory>();
+    private static final ConcurrentMap<String, SAXParserFactory> parserFactories = new ConcurrentHashMap<String, SAXParserFactory>();
+    private static final ConcurrentMap<String, XMLReaderPool> xmlReaderPools = new ConcurrentHashMap<String, XMLReaderPool>();
+
+    // Maximum number of idle XMLReader instances kept for each parser configuration
+    private static final int MAX_IDLE_XML_READERS = 32;
 
     public static final String XML_CONTENT_TYPE1 = "text/xml";
     public static final String XML_CONTENT_TYPE2 = "application/xml";
@@ -160,7 +168,7 @@ public class XMLUtils {
      * @param parserConfiguration  parser configuration
      * @return                     the SAXParserFactory
      */
-    public static synchronized SAXParserFactory getSAXParserFactory(XMLUtils.ParserConfiguration parserConfiguration) {
+    public static SAXParserFactory getSAXParserFactory(XMLUtils.ParserConfiguration parserConfiguration) {
 
         final String key = parserConfiguration.getKey();
 
@@ -168,9 +176,10 @@ public class XMLUtils {
         if (existingFactory != null)
             return existingFactory;
 
+        // Two threads might create a factory at the same time, but only one is kept
         final SAXParserFactory newFactory = createSAXParserFactory(parserConfiguration);
-        parserFactories.put(key, newFactory);
-        return newFactory;
+        final SAXParserFactory otherFactory = parserFactories.putIfAbsent(key, newFactory);
+        return (otherFactory != null) ? otherFactory : newFactory;
     }
 
     /**
@@ -179,7 +188,7 @@ public class XMLUtils {
      * @param parserConfiguration  parser configuration
      * @return                     the SAXParser
      */
-    public static synchronized SAXParser newSAXParser(XMLUtils.ParserConfiguration parserConfiguration) {
+    public static SAXParser newSAXParser(XMLUtils.ParserConfiguration parserConfiguration) {
         try {
             return getSAXParserFactory(parserConfiguration).newSAXParser();
         } catch (Exception e) {
@@ -187,6 +196,73 @@ public class XMLUtils {
         }
     }
 
+    private static XMLReaderPool getXMLReaderPool(XMLUtils.ParserConfiguration parserConfiguration) {
+        final String key = parserConfiguration.getKey();
+
+        final XMLReaderPool existingPool = xmlReaderPools.get(key);
+        if (existingPool != null)
+            return existingPool;
+
+        final XMLReaderPool newPool = new XMLReaderPool(parserConfiguration);
+        final XMLReaderPool otherPool = xmlReaderPools.putIfAbsent(key, newPool);
+        return (otherPool != null) ? otherPool : newPool;
+    }
+
+    /**
+     * Pool of XMLReader instances for a given parser configuration.
+     *
+     * Creating a Xerces parser costs more than parsing a small document, so parsers are reused. A reader is used by a
+     * single parse at a time, including nested parses, which get their own reader. Handlers are reset when the reader
+     * is returned, and Xerces resets its own state at the start of each parse. Validation and XInclude features are
+     * fixed by the configuration and never changed on pooled readers. Readers whose parse failed are not returned.
+     */
+    private static class XMLReaderPool {
+
+        private final XMLUtils.ParserConfiguration parserConfiguration;
+        private final Queue<XMLReader> idleReaders = new ConcurrentLinkedQueue<XMLReader>();
+        private final AtomicInteger idleCount = new AtomicInteger();
+
+        public XMLReaderPool(XMLUtils.ParserConfiguration parserConfiguration) {
+            this.parserConfiguration = parserConfiguration;
+        }
+
+        public XMLReader borrow() {
+            final XMLReader idleReader = idleReaders.poll();
+            if (idleReader != null) {
+                idleCount.decrementAndGet();
+                return idleReader;
+            }
+
+            try {
+                final XMLReader xmlReader = newSAXParser(parserConfiguration).getXMLReader();
+                xmlReader.setEntityResolver(ENTITY_RESOLVER);
+                xmlReader.setErrorHandler(ERROR_HANDLER);
+                return xmlReader;
+            } catch (SAXException e) {
+                throw new OXFException(e);
+            }
+        }
+
+        public void release(XMLReader xmlReader) {
+            // Don't keep references to the handlers of the last parse
+            try {
+                xmlReader.setContentHandler(NULL_CONTENT_HANDLER);
+                xmlReader.setDTDHandler(null);
+                xmlReader.setProperty(XMLConstants.SAX_LEXICAL_HANDLER, null);
+                xmlReader.setEntityResolver(ENTITY_RESOLVER);
+                xmlReader.setErrorHandler(ERROR_HANDLER);
+            } catch (SAXException e) {
+                // Just drop the reader
+                return;
+            }
+
+            if (idleCount.incrementAndGet() <= MAX_IDLE_XML_READERS)
+                idleReaders.offer(xmlReader);
+            else
+                idleCount.decrementAndGet();
+        }
+    }
+
     public static XMLReader newXMLReader(XMLUtils.ParserConfiguration parserConfiguration) {
         final SAXParser saxParser = XMLUtils.newSAXParser(parserConfiguration);
         try {
@@ -425,20 +501,23 @@ public class XMLUtils {
             resolver = null;
         }
 
+        final XMLReaderPool xmlReaderPool = getXMLReaderPool(parserConfiguration);
+        final XMLReader xmlReader = xmlReaderPool.borrow();
+        boolean success = false;
         try {
-            final XMLReader xmlReader = newSAXParser(parserConfiguration).getXMLReader();
             xmlReader.setContentHandler(xmlReceiver);
             if (handleLexical)
                 xmlReader.setProperty(XMLConstants.SAX_LEXICAL_HANDLER, xmlReceiver);
 
-            xmlReader.setEntityResolver(ENTITY_RESOLVER);
-            xmlReader.setErrorHandler(ERROR_HANDLER);
             xmlReader.parse(inputSource);
+            success = true;
         } catch (SAXParseException e) {
             throw new ValidationException(e.getMessage(), new LocationData(e));
         } catch (Exception e) {
             throw new OXFException(e);
         } finally {
+            if (success)
+                xmlReaderPool.release(xmlReader);
             if (resolver != null)
                 resolver.destroy();
         }
@@ -456,10 +535,10 @@ public class XMLUtils {
         if (xmlString.trim().length() == 0)
             return false;
 
+        final XMLReaderPool xmlReaderPool = getXMLReaderPool(XMLUtils.ParserConfiguration.PLAIN);
+        final XMLReader xmlReader = xmlReaderPool.borrow();
         try {
-            final XMLReader xmlReader = newSAXParser(XMLUtils.ParserConfiguration.PLAIN).getXMLReader();
             xmlReader.setContentHandler(NULL_CONTENT_HANDLER);
-            xmlReader.setEntityResolver(ENTITY_RESOLVER);
             xmlReader.setErrorHandler(new org.xml.sax.ErrorHandler() {
                 public void error(SAXParseException exception) throws SAXException {
                     throw exception;
@@ -473,6 +552,7 @@ public class XMLUtils {
                 }
             });
             xmlReader.parse(new InputSource(new StringReader(xmlString)));
+            xmlReaderPool.release(xmlReader);
             return true;
         } catch (Exception e) {
             // Ideally we would like the parser to not throw as this is time-consuming, but not sure how to achieve that
@@ -854,13 +934,15 @@ public class XMLUtils {
 
     public static void parseDocumentFragment(Reader reader, XMLReceiver xmlReceiver) throws SAXException {
         try {
-            final XMLReader xmlReader = newSAXParser(XMLUtils.ParserConfiguration.PLAIN).getXMLReader();
+            final XMLReaderPool xmlReaderPool = getXMLReaderPool(XMLUtils.ParserConfiguration.PLAIN);
+            final XMLReader xmlReader = xmlReaderPool.borrow();
             xmlReader.setContentHandler(new XMLFragmentReceiver(xmlReceiver));
             final ArrayList<Reader> readers = new ArrayList<Reader>(3);
             readers.add(new StringReader("<root>"));
             readers.add(reader);
             readers.add(new StringReader("</root>"));
             xmlReader.parse(new InputSource(new SequenceReader(readers.iterator())));
+            xmlReaderPool.release(xmlReader);
         } catch (IOException e) {
             throw new OXFException(e);
         }
@@ -869,9 +951,11 @@ public class XMLUtils {
     public static void parseDocumentFragment(String fragment, XMLReceiver xmlReceiver) throws SAXException {
         if (fragment.contains("<") || fragment.contains("&")) {
             try {
-                final XMLReader xmlReader = newSAXParser(XMLUtils.ParserConfiguration.PLAIN).getXMLReader();
+                final XMLReaderPool xmlReaderPool = getXMLReaderPool(XMLUtils.ParserConfiguration.PLAIN);
+                final XMLReader xmlReader = xmlReaderPool.borrow();
                 xmlReader.setContentHandler(new XMLFragmentReceiver(xmlReceiver));
                 xmlReader.parse(new InputSource(new StringReader("<root>" + fragment + "</root>")));
+                xmlReaderPool.release(xmlReader);
             } catch (IOException e) {
                 throw new OXFException(e);
             }
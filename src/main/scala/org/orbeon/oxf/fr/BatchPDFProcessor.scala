@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.fr
+
+import java.io.{FileOutputStream, File}
+import java.util.concurrent.{ExecutionException, Callable, Executors}
+import javax.xml.transform.stream.StreamResult
+import org.apache.commons.io.FileUtils
+import org.orbeon.exception.OrbeonFormatter
+import org.orbeon.oxf.common.OXFException
+import org.orbeon.oxf.externalcontext.URLRewriter
+import org.orbeon.oxf.pipeline.api.PipelineContext
+import org.orbeon.oxf.processor.{ProcessorOutput, ProcessorImpl}
+import org.orbeon.oxf.properties.Properties
+import org.orbeon.oxf.resources.URLFactory
+import org.orbeon.oxf.util.ScalaUtils._
+import org.orbeon.oxf.util._
+import org.orbeon.oxf.xml.{SAXStore, TransformerUtils, XMLReceiverHelper, XMLReceiver}
+import org.orbeon.scaxon.XML._
+
+/**
+ * Render many stored documents of a form to PDF.
+ *
+ * - mapped to `fr:batch-pdf` in `processors.xml`
+ * - mapped to `/fr/service/[app]/[form]/pdf-batch` in `fr/page-flow.xml`
+ *
+ * The input lists the documents to render:
+ *
+ *     <documents>
+ *         <document>2a1b0c…</document>
+ *     </documents>
+ *
+ * Each document is rendered by the regular `/fr/[app]/[form]/pdf/[document]` page, on a pool of
+ * `oxf.fr.pdf.batch.threads` threads, so the form definition and PDF template are compiled once and then taken from
+ * cache for all the documents. PDF files are written to a temporary directory which is removed at the end of the
+ * request, or, if `oxf.fr.pdf.batch.directory` is set, to `[directory]/[app]/[form]/`.
+ *
+ * The output reports the file written for each document, or the reason it failed, as well as the throughput. The
+ * same report is written to `report.xml` in the directory.
+ */
+class BatchPDFProcessor extends ProcessorImpl with Logging {
+
+    import BatchPDFProcessor._
+
+    private implicit val Logger = new IndentedLogger(LoggerFactory.createLogger(classOf[BatchPDFProcessor]), "")
+
+    private val BatchPathRegex  = """/fr/service/([^/^.]+)/([^/^.]+)/pdf-batch""".r
+    private val DocumentIdRegex = """[0-9A-Za-z\-]+""".r
+
+    override def createOutput(name: String): ProcessorOutput = {
+        addOutput(name, new ProcessorOutputImpl(this, name) {
+            def readImpl(pipelineContext: PipelineContext, xmlReceiver: XMLReceiver): Unit = {
+                val request = NetUtils.getExternalContext.getRequest
+                val BatchPathRegex(app, form) = request.getRequestPath
+
+                val documentIds = {
+                    val documentsDocument = readInputAsTinyTree(pipelineContext, getInputByName(ProcessorImpl.INPUT_DATA),
+                        XPathCache.getGlobalConfiguration)
+                    documentsDocument \ "documents" \ "document" map (_.getStringValue.trim) filter (_.nonEmpty)
+                }
+
+                val propertySet = Properties.instance.getPropertySet
+                val threads     = propertySet.getInteger(ThreadsProperty, DefaultThreads).intValue max 1
+
+                // Where PDF files go
+                val configuredDirectory = nonEmptyOrNone(propertySet.getString(DirectoryProperty, ""))
+                val directory =
+                    configuredDirectory match {
+                        case Some(path) ⇒
+                            new File(new File(new File(path), app), form)
+                        case None ⇒
+                            val temporaryDirectory = File.createTempFile("orbeon-pdf-batch", "")
+                            temporaryDirectory.delete()
+                            pipelineContext.addContextListener(new PipelineContext.ContextListener {
+                                def contextDestroyed(success: Boolean) = FileUtils.deleteQuietly(temporaryDirectory)
+                            })
+                            temporaryDirectory
+                    }
+                directory.mkdirs()
+                if (! directory.isDirectory)
+                    throw new OXFException("Cannot create PDF batch directory: " + directory.getAbsolutePath)
+
+                // Connections are created here, as they need the current request to forward headers and load the
+                // HTTP state, but they are only opened by the workers
+                val headers = Connection.buildConnectionHeaders(None, Map(), Option(Connection.getForwardHeaders))
+                def createConnection(documentId: String) = {
+                    val path      = "/fr/" + app + "/" + form + "/pdf/" + documentId
+                    val urlString = URLRewriterUtils.rewriteServiceURL(request, path, URLRewriter.REWRITE_MODE_ABSOLUTE)
+                    Connection("GET", URLFactory.createURL(urlString), credentials = None, messageBody = None,
+                        headers = headers, loadState = true, logBody = false)
+                }
+
+                def render(documentId: String, connection: Connection): Result = {
+                    val connectionResult = connection.connect(saveState = false)
+                    try {
+                        if (connectionResult.statusCode != 200)
+                            throw new OXFException("Got invalid return code while rendering PDF: " + connectionResult.statusCode)
+
+                        val file = new File(directory, documentId + ".pdf")
+                        useAndClose(new FileOutputStream(file)) { os ⇒
+                            NetUtils.copyStream(connectionResult.getResponseInputStream, os)
+                        }
+                        Success(documentId, file)
+                    } finally
+                        connectionResult.close()
+                }
+
+                val startTime = System.currentTimeMillis
+                val executor  = Executors.newFixedThreadPool(threads)
+
+                val results =
+                    try {
+                        val futures =
+                            for (documentId ← documentIds)
+                            yield documentId match {
+                                case DocumentIdRegex() ⇒
+                                    val connection = createConnection(documentId)
+                                    documentId → Some(executor.submit(new Callable[Result] {
+                                        def call() = render(documentId, connection)
+                                    }))
+                                case _ ⇒
+                                    documentId → None
+                            }
+
+                        for ((documentId, future) ← futures)
+                        yield future match {
+                            case Some(future) ⇒
+                                try future.get
+                                catch {
+                                    case e: ExecutionException ⇒
+                                        warn("could not render PDF", Seq(
+                                            "app"       → app,
+                                            "form"      → form,
+                                            "document"  → documentId,
+                                            "throwable" → OrbeonFormatter.format(e.getCause)))
+                                        Failure(documentId, Option(e.getCause.getMessage) getOrElse e.getCause.getClass.getName)
+                                }
+                            case None ⇒
+                                Failure(documentId, "invalid document id")
+                        }
+                    } finally
+                        executor.shutdownNow()
+
+                val elapsed   = System.currentTimeMillis - startTime
+                val succeeded = results count (_.isInstanceOf[Success])
+                val perSecond = if (elapsed > 0) succeeded * 1000.0 / elapsed else 0.0
+
+                info("rendered PDF batch", Seq(
+                    "app"                  → app,
+                    "form"                 → form,
+                    "documents"            → results.size.toString,
+                    "failed"               → (results.size - succeeded).toString,
+                    "elapsed ms"           → elapsed.toString,
+                    "documents per second" → "%.2f".format(perSecond)))
+
+                // Report, written next to the PDF files and to the output
+                val report = new SAXStore
+                val helper = new XMLReceiverHelper(report)
+                helper.startDocument()
+                helper.startElement("batch", Array(
+                    "app",                  app,
+                    "form",                 form,
+                    "documents",            results.size.toString,
+                    "succeeded",            succeeded.toString,
+                    "failed",               (results.size - succeeded).toString,
+                    "threads",              threads.toString,
+                    "elapsed-ms",           elapsed.toString,
+                    "documents-per-second", "%.2f".format(perSecond),
+                    "directory",            configuredDirectory map (_ ⇒ directory.getAbsolutePath) orNull,
+                    "report",               new File(directory, ReportFileName).toURI.toString
+                ))
+                results foreach {
+                    case Success(documentId, file) ⇒
+                        helper.element("document", Array("id", documentId, "status", "success", "file", file.toURI.toString, "size", file.length.toString))
+                    case Failure(documentId, message) ⇒
+                        helper.element("document", Array("id", documentId, "status", "failure", "message", message))
+                }
+                helper.endElement()
+                helper.endDocument()
+
+                val reportFile = new File(directory, ReportFileName)
+                useAndClose(new FileOutputStream(reportFile)) { os ⇒
+                    val identity = TransformerUtils.getIdentityTransformerHandler
+                    identity.setResult(new StreamResult(os))
+                    report.replay(identity)
+                }
+
+                report.replay(xmlReceiver)
+            }
+        })
+    }
+}
+
+object BatchPDFProcessor {
+
+    val ThreadsProperty   = "oxf.fr.pdf.batch.threads"
+    val DirectoryProperty = "oxf.fr.pdf.batch.directory"
+    val DefaultThreads    = 4
+    val ReportFileName    = "report.xml"
+
+    sealed trait Result
+    case class Success(documentId: String, file: File) extends Result
+    case class Failure(documentId: String, message: String) extends Result
+}
@@ -24,9 +24,8 @@ import collection.JavaConversions._
 import org.orbeon.oxf.resources.handler.HTTPURLConnection
 import org.orbeon.oxf.processor.generator.RequestGenerator
 import org.orbeon.oxf.properties.Properties
-import org.orbeon.oxf.xml.TransformerUtils
+import org.orbeon.oxf.xml.{StreamXMLSerializer, TransformerUtils}
 import org.orbeon.scaxon.XML._
-import javax.xml.transform.stream.StreamResult
 import org.orbeon.oxf.xforms.action.XFormsAPI
 import org.orbeon.oxf.externalcontext.URLRewriter
 import collection.JavaConverters._
@@ -173,6 +172,8 @@ class FormRunnerPersistenceProxy extends ProcessorImpl {
         // See https://github.com/orbeon/orbeon-forms/issues/1316
         val documentElement = elementInfo("forms")
         XFormsAPI.insert(into = documentElement, origin = formElements)
-        TransformerUtils.getXMLIdentityTransformer.transform(documentElement, new StreamResult(response.getOutputStream))
+        val serializer = new StreamXMLSerializer(response.getOutputStream, null, null, null, StreamXMLSerializer.DEFAULT_ENCODING, false, null)
+        TransformerUtils.writeTinyTree(documentElement, serializer)
+        serializer.flush()
     }
 }
\ No newline at end of file
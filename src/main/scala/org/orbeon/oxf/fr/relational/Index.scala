@@ -14,22 +14,264 @@
 package org.orbeon.oxf.fr.relational
 
 import collection.JavaConverters._
+import java.sql.{ResultSet, PreparedStatement, Timestamp, Connection}
 import java.util.{List ⇒ JList}
+import javax.xml.transform.stream.StreamSource
+import org.orbeon.oxf.cache.{InternalCacheKey, ObjectCache}
+import org.orbeon.oxf.fr.FormRunner._
+import org.orbeon.oxf.util.ScalaUtils._
+import org.orbeon.oxf.util.XPathCache
+import org.orbeon.oxf.xforms.XFormsConstants
+import org.orbeon.oxf.xml.{TransformerUtils, XMLConstants, NamespaceMapping}
 import org.orbeon.saxon.om.{NodeInfo, DocumentInfo}
-import java.sql.Connection
+import org.orbeon.scaxon.XML
 import org.orbeon.scaxon.XML._
-import org.orbeon.oxf.fr.FormRunner._
 
 object Index {
 
-    def updateIndex(connection: Connection, appName: String, formName: String, documentId: String, formDoc: DocumentInfo, dataDoc: DocumentInfo): Unit = {
+    private val XPathPredicateRegex = """\[[^\]]*\]""".r
+
+    // Prefixes used in Form Builder; prefixes in other documents, for now, are not supported
+    val FbNamespaceMapping = new NamespaceMapping(Map(
+        "xh" → XMLConstants.XHTML_NAMESPACE_URI,
+        "xf" → XFormsConstants.XFORMS_NAMESPACE_URI
+    ).asJava)
+
+    // Indexed controls are kept per form definition, as they are needed each time data is saved
+    private val IndexedControlsCacheName        = "cache.fr-indexed-controls"
+    private val IndexedControlsCacheDefaultSize = 200
+
+    // Row of the current data for a document
+    case class DataRow(dataId: Int, documentId: String, created: Timestamp, lastModified: Timestamp, username: String, app: String, form: String)
 
-        // Remove any existing data we might have in the index about this document
-        val cleanStatement = connection.prepareStatement("""delete from orbeon_i_control_text where document_id = ?""")
-        cleanStatement.setString(1, documentId)
-        cleanStatement.execute()
+    /**
+     * Update the index for a document whose data was just saved, in the same transaction as the data.
+     *
+     * The index rows of the previous data are moved to the new data, and only the values which changed are then
+     * deleted, updated, or inserted, so saving a document where few indexed values changed is cheap.
+     */
+    def updateIndex(connection: Connection, provider: String, row: DataRow, indexedControls: Seq[IndexedControl], dataRootElement: ⇒ NodeInfo): Unit = {
+
+        // Point the index of the document to the new data
+        val previousDataId =
+            useAndClose(connection.prepareStatement(
+                """select data_id
+                  |  from orbeon_i_current
+                  | where app = ? and form = ? and document_id = ?
+                """.stripMargin)) { ps ⇒
+                ps.setString(1, row.app)
+                ps.setString(2, row.form)
+                ps.setString(3, row.documentId)
+                val resultSet = ps.executeQuery()
+                resultSet.next() option resultSet.getInt(1)
+            }
+
+        previousDataId match {
+            case Some(dataId) ⇒
+                useAndClose(connection.prepareStatement(
+                    """update orbeon_i_current
+                      |   set data_id = ?, last_modified = ?, username = ?
+                      | where data_id = ?
+                    """.stripMargin)) { updateCurrent ⇒
+                    updateCurrent.setInt      (1, row.dataId)
+                    updateCurrent.setTimestamp(2, row.lastModified)
+                    updateCurrent.setString   (3, row.username)
+                    updateCurrent.setInt      (4, dataId)
+                    updateCurrent.executeUpdate()
+                }
+
+                useAndClose(connection.prepareStatement(
+                    """update orbeon_i_control_text
+                      |   set data_id = ?
+                      | where data_id = ?
+                    """.stripMargin)) { updateValues ⇒
+                    updateValues.setInt(1, row.dataId)
+                    updateValues.setInt(2, dataId)
+                    updateValues.executeUpdate()
+                }
+            case None ⇒
+                insertCurrent(connection, row)
+        }
 
-        findIndexedControls(formDoc)
+        // Values currently in the index, by control name and position
+        val existingValues =
+            useAndClose(connection.prepareStatement(
+                """select control, pos, val
+                  |  from orbeon_i_control_text
+                  | where data_id = ?
+                """.stripMargin)) { ps ⇒
+                ps.setInt(1, row.dataId)
+                val resultSet = ps.executeQuery()
+                val values = collection.mutable.Map[(String, Int), String]()
+                while (resultSet.next())
+                    values += (resultSet.getString("control"), resultSet.getInt("pos")) → resultSet.getString("val")
+                values.toMap
+            }
+
+        val newValues =
+            if (indexedControls.isEmpty) Map[(String, Int), String]()
+            else controlValues(provider, indexedControls, dataRootElement).toMap
+
+        // Only touch the values which changed
+        val deleted  = existingValues.keySet -- newValues.keySet
+        val inserted = newValues filterKeys (key ⇒ ! existingValues.contains(key))
+        val updated  = newValues filter { case (key, value) ⇒ existingValues.get(key) exists (_ != value) }
+
+        if (deleted.nonEmpty)
+            useAndClose(connection.prepareStatement("delete from orbeon_i_control_text where data_id = ? and control = ? and pos = ?")) { ps ⇒
+                for ((control, position) ← deleted) {
+                    ps.setInt   (1, row.dataId)
+                    ps.setString(2, control)
+                    ps.setInt   (3, position)
+                    ps.addBatch()
+                }
+                ps.executeBatch()
+            }
+
+        if (updated.nonEmpty)
+            useAndClose(connection.prepareStatement("update orbeon_i_control_text set val = ?, username = ? where data_id = ? and control = ? and pos = ?")) { ps ⇒
+                for (((control, position), value) ← updated) {
+                    ps.setString(1, value)
+                    ps.setString(2, row.username)
+                    ps.setInt   (3, row.dataId)
+                    ps.setString(4, control)
+                    ps.setInt   (5, position)
+                    ps.addBatch()
+                }
+                ps.executeBatch()
+            }
+
+        if (inserted.nonEmpty)
+            useAndClose(prepareInsertValue(connection)) { ps ⇒
+                for (((control, position), value) ← inserted)
+                    addInsertValue(ps, row, control, position, value)
+                ps.executeBatch()
+            }
+    }
+
+    def insertCurrent(connection: Connection, row: DataRow): Unit =
+        useAndClose(connection.prepareStatement(
+            """insert into orbeon_i_current
+              |           (data_id, document_id, created, last_modified, username, app, form)
+              |    values (?, ?, ?, ?, ?, ?, ?)
+            """.stripMargin)) { insert ⇒
+            insert.setInt      (1, row.dataId)
+            insert.setString   (2, row.documentId)
+            insert.setTimestamp(3, row.created)
+            insert.setTimestamp(4, row.lastModified)
+            insert.setString   (5, row.username)
+            insert.setString   (6, row.app)
+            insert.setString   (7, row.form)
+            insert.execute()
+        }
+
+    def prepareInsertValue(connection: Connection): PreparedStatement =
+        connection.prepareStatement(
+            """insert into orbeon_i_control_text
+              |           (data_id, username, app, form, control, pos, val)
+              |    values (?, ?, ?, ?, ?, ?, ?)
+            """.stripMargin)
+
+    def addInsertValue(ps: PreparedStatement, row: DataRow, control: String, position: Int, value: String): Unit = {
+        ps.setInt   (1, row.dataId)
+        ps.setString(2, row.username)
+        ps.setString(3, row.app)
+        ps.setString(4, row.form)
+        ps.setString(5, control)
+        ps.setInt   (6, position)
+        ps.setString(7, value)
+        ps.addBatch()
+    }
+
+    // Values of the indexed controls in the data, by control name and position (starting at 1)
+    def controlValues(provider: String, indexedControls: Seq[IndexedControl], dataRootElement: NodeInfo): Seq[((String, Int), String)] =
+        for {
+            control ← indexedControls
+
+            // Remove predicates from XPath expression; applies to:
+            // - the [1] added by `Index.findIndexedControls` for the summary page;
+            //   those will go away when the search will return multiple values per control
+            // - in the FB form, the predicate for the language
+            xpath = XPathPredicateRegex.replaceAllIn(control.xpath, "")
+
+            (value, position) ← XML.eval(dataRootElement, xpath, FbNamespaceMapping).asInstanceOf[Seq[NodeInfo]].zipWithIndex
+        } yield
+            (control.name, position + 1) → truncateValue(provider, value.getStringValue)
+
+    /**
+     * Indexed controls for a published form definition, read from the `orbeon_form_definition` table.
+     *
+     * The controls are cached, and only computed again when the form definition changes.
+     */
+    def cachedIndexedControls(connection: Connection, app: String, form: String, formVersion: Int): Seq[IndexedControl] = {
+
+        val WhereLatest =
+            """  from orbeon_form_definition
+              | where app = ? and form = ? and form_version = ?
+              |   and last_modified_time =
+              |       (
+              |           select max(last_modified_time)
+              |             from orbeon_form_definition
+              |            where app = ? and form = ? and form_version = ?
+              |       )
+              |   and deleted = 'N'
+            """.stripMargin
+
+        // Read the first row, if any, before the statement is closed
+        def query[T](columns: String)(read: ResultSet ⇒ T): Option[T] =
+            useAndClose(connection.prepareStatement("select " + columns + "\n" + WhereLatest)) { ps ⇒
+                val position = Iterator.from(1)
+                for (_ ← 1 to 2) {
+                    ps.setString(position.next(), app)
+                    ps.setString(position.next(), form)
+                    ps.setInt   (position.next(), formVersion)
+                }
+                val resultSet = ps.executeQuery()
+                resultSet.next() option read(resultSet)
+            }
+
+        query("last_modified_time")(_.getTimestamp(1).getTime) match {
+            case Some(lastModified) ⇒
+                val cache        = ObjectCache.instance(IndexedControlsCacheName, IndexedControlsCacheDefaultSize)
+                val cacheKey     = new InternalCacheKey("Indexed controls", app + '/' + form + '/' + formVersion)
+
+                Option(cache.findValid(cacheKey, lastModified).asInstanceOf[Seq[IndexedControl]]) getOrElse {
+                    val indexedControls =
+                        query("xml") { xmlResultSet ⇒
+                            val source  = new StreamSource(xmlResultSet.getClob(1).getCharacterStream)
+                            val formDoc = TransformerUtils.readTinyTree(XPathCache.getGlobalConfiguration, source, false)
+                            findIndexedControls(formDoc)
+                        } getOrElse Seq()
+                    cache.add(cacheKey, lastModified, indexedControls)
+                    indexedControls
+                }
+            case None ⇒
+                Seq()
+        }
+    }
+
+    /**
+     * If control values are "really long", we might not be able fully index them. Here we truncate values stored
+     * in the index table so it doesn't exceed the limit imposed by the type used to store the value in
+     * `orbeon_i_control_text` for the relevant database.
+     *
+     * - For MySQL, `text` can [store][MySQL text] up to pow(2, 16-1) bytes. Since UTF-8 encoding can take up to 4 bytes
+     *   per character, we conservatively divide this by 4 to get the max number of characters. In MySQL 5.6, with the
+     *   UTF-8 uses a [3-byte encoding][MySQL utf], but the documentation says it might use 4 in the future.
+     *
+     *   [MySQL text]: http://dev.mysql.com/doc/refman/5.6/en/storage-requirements.html#idp59499472
+     *   [MySQL utf]: http://dev.mysql.com/doc/refman/5.6/en/charset-unicode-utf8mb3.html
+     */
+    def truncateValue(provider: String, value: String): String = {
+        // Limit, if any, based on the provider
+        val limit: Option[Int] = provider match {
+            case "mysql" ⇒ Option(math.floor((math.pow(2, 16) - 1) / 4).toInt)
+            case _       ⇒ None
+        }
+        limit match {
+            case Some(l) if l < value.length ⇒ value.substring(0, l)
+            case _                           ⇒ value
+        }
     }
 
     // For Summary page
@@ -17,154 +17,283 @@ import org.orbeon.oxf.pipeline.api.{PipelineContext}
 import org.orbeon.oxf.processor.{ProcessorOutput, ProcessorImpl}
 import org.orbeon.oxf.util.{XPathCache, NetUtils}
 import org.orbeon.oxf.util.DateUtils.DateTime
+import org.orbeon.oxf.util.ScalaUtils._
 import org.orbeon.oxf.fr.relational.RelationalUtils._
+import org.orbeon.oxf.properties.Properties
 import org.orbeon.scaxon.XML._
-import java.sql.Timestamp
-import org.orbeon.scaxon.XML
-import scala.collection.mutable.ListBuffer
-import org.orbeon.oxf.xml.XMLReceiver
+import java.sql.{ResultSet, Connection, Timestamp}
+import scala.collection.mutable
+import org.orbeon.oxf.xml.{XMLReceiverHelper, XMLReceiver}
+import org.orbeon.oxf.webapp.HttpStatusCodeException
+import scala.util.Try
 
 /**
  * Implementation of the persistence API for relational databases.
+ *
+ * Search requests can contain, in addition to the queries:
+ *
+ * - `page-size`: number of documents returned, 10 by default
+ * - `page-number`: page to return, used if `page-after` is missing
+ * - `page-after`: `page-key` of the last document of the previous page; this is preferred over `page-number`, as
+ *   the database seeks directly to the next page instead of skipping all the documents on the previous pages
+ * - `search-total`: unless `false`, the number of documents matching the criteria is returned in `search-total`, up
+ *   to `oxf.fr.persistence.relational.search.total-limit` after which `search-total-estimated` is set to `true`
+ *
+ * Invalid values for `page-size`, `page-number`, or `page-after` are answered with a 400.
  */
 class PersistenceAPIProcessor extends ProcessorImpl {
 
-    private val SearchPathRegex= """/fr/service/([^/^.]+)/search/([^/^.]+)/([^/^.]+)""".r
+    import PersistenceAPIProcessor._
 
-    case class DocumentMetadata(dataId: Int, documentId: String, created: Timestamp, lastModified: Timestamp)
+    private val SearchPathRegex= """/fr/service/([^/^.]+)/search/([^/^.]+)/([^/^.]+)""".r
 
     override def createOutput(name: String): ProcessorOutput = {
         addOutput(name, new ProcessorOutputImpl(this, name) {
             def readImpl(pipelineContext: PipelineContext, xmlReceiver: XMLReceiver): Unit = {
                 val SearchPathRegex(_, app, form) = NetUtils.getExternalContext.getRequest.getRequestPath
-                withConnection { connection ⇒
 
-                    // <query> elements from request
-                    val requestQueries = {
-                        val searchRequest = readInputAsTinyTree(pipelineContext, getInputByName(ProcessorImpl.INPUT_DATA),
-                            XPathCache.getGlobalConfiguration)
-                        searchRequest \ "search" \ "query"
-                    }
-
-                    /**
-                     * Get the documents that match the search criteria, for the page we're are, returning the metadata for
-                     * those document. This typically returns a short list, since it is just for one page
-                     */
-                    val documentsMetadata: Seq[DocumentMetadata] = {
-
-                        val nonEmptyQueries = requestQueries filter (_.getStringValue != "")
-                        val getDocumentsQuery = {
-                            val selectStart =   """  select data_id, document_id, created, last_modified from orbeon_i_current
-                                                  |   where app  = ?
-                                                  |	    and form = ?
-                                                """.stripMargin
-                            val controlMatch =  """	 and data_id in
-                                                  |		 (
-                                                  |		  select distinct data_id from orbeon_i_control_text
-                                                  |		   where app     = ?
-                                                  |			 and form    = ?
-                                                  |			 and control = ?
-                                                  |			 and match(val) against (?)
-                                                  |		 )
-                                                """.stripMargin
-                            val selectEnd =     """order by last_modified desc, data_id
-                                                  |   limit 10;
-                                                """.stripMargin
-                            selectStart + (controlMatch * nonEmptyQueries.length) + selectEnd
-                        }
-
-                        val getDocumentsStatement = {
-                            val statement = connection.prepareStatement(getDocumentsQuery)
-                            statement.setString(1, app)
-                            statement.setString(2, form)
-                            for ((query, index) ← nonEmptyQueries.zipWithIndex) {
-                                statement.setString(index * 4 + 3, app)
-                                statement.setString(index * 4 + 4, form)
-                                statement.setString(index * 4 + 5, query.attValue("name"))
-                                statement.setString(index * 4 + 6, query.getStringValue)
-                            }
-                            statement
-                        }
-
-                        val documentsResultSet = getDocumentsStatement.executeQuery()
-                        val documents = ListBuffer[DocumentMetadata]()
-                        while (documentsResultSet.next())
-                            documents += DocumentMetadata(
-                                dataId       = documentsResultSet.getInt      ("data_id"),
-                                documentId   = documentsResultSet.getString   ("document_id"),
-                                created      = documentsResultSet.getTimestamp("created"),
-                                lastModified = documentsResultSet.getTimestamp("last_modified")
-                            )
-                        documents
-                    }
-
-                    /**
-                     * For the rows returned, retrieve the columns values
-                     */
-                    case class Value(dataId: Int, control: String, pos: Int, value: String)
-                    val controls = {
-                        val summaryQueries = requestQueries filter (_.attValue("summary-field") == "true")
-                        summaryQueries map (_.attValue("name"))
-                    }
-                    val values = {
-
-                        // Build query
-                        val dataIdsPlaceholders = ("?" * documentsMetadata.length)  mkString ", "
-                        val controlsPlaceholders = ("?" * controls.length) mkString ","
-                        val getValues = connection.prepareStatement(
-                            s"""  select data_id, control, pos, val
-                               |    from orbeon_i_control_text
-                               |   where data_id in ($dataIdsPlaceholders)
-                               |     and control in ($controlsPlaceholders)
-                               |order by data_id, control, pos;
-                               |""".stripMargin)
-
-                        // Populate placeholders
-                        for ((documentMetadata, index) ← documentsMetadata.zipWithIndex)
-                            getValues.setInt(index + 1, documentMetadata.dataId)
-                        for ((control, index) ← controls.zipWithIndex)
-                            getValues.setString(documentsMetadata.length + index + 1, control)
-
-                        // Build tuples from result-set
-                        val resultSet = getValues.executeQuery()
-                        var values = ListBuffer[Value]()
-                        while (resultSet.next())
-                            values += Value(
-                                resultSet.getInt   ("data_id"),
-                                resultSet.getString("control"),
-                                resultSet.getInt   ("pos"),
-                                resultSet.getString("val")
-                            )
-                        values groupBy (_.dataId) mapValues (_.groupBy(_.control))
-                    }
-
-                    /**
-                     * Build XML returned by service
-                     * - if there are multiple values for a given control, we return all of them, coma-separated,
-                     *   and remove empty values to avoid uninformative ", , ," results; TODO: this bit of business is
-                     *   better left of to the front-end, but requires changing the format of the returned data
-                     */
-                    val documentsXML =
-                        <documents>{
-                            for (metadata ← documentsMetadata) yield
-                            <document created       ={DateTime.print(metadata.created.getTime) }
-                                      last-modified ={DateTime.print(metadata.lastModified.getTime)}
-                                      name          ={metadata.documentId.toString}>
-                                <details>{
-                                    val thisRowValues = values(metadata.dataId)
-                                    for (control ← controls) yield
-                                    <detail>{
-                                        val thisControlValues = thisRowValues(control) sortBy (_.pos)
-                                        thisControlValues map (_.value) filter (_ != "") mkString ", "
-                                    } </detail>
-                                }</details>
-                            </document>
-                        }</documents>
-
-                    XML.elemToSAX(documentsXML, xmlReceiver)
+                val searchRequest = {
+                    val searchDocument = readInputAsTinyTree(pipelineContext, getInputByName(ProcessorImpl.INPUT_DATA),
+                        XPathCache.getGlobalConfiguration)
+                    searchDocument \ "search"
+                }
+
+                def requestValue(name: String) =
+                    (searchRequest \ name map (_.getStringValue)).headOption flatMap nonEmptyOrNone
+
+                // Values sent by the client which don't parse are the client's error
+                def parsedRequestValue[T](name: String)(parse: String ⇒ Option[T]) =
+                    requestValue(name) map (parse(_) getOrElse (throw new HttpStatusCodeException(400)))
+
+                // <query> elements from request
+                val requestQueries = searchRequest \ "query"
+
+                val search = Search(
+                    app           = app,
+                    form          = form,
+                    criteria      = requestQueries filter (_.getStringValue != "") map (q ⇒ q.attValue("name") → q.getStringValue),
+                    controls      = requestQueries filter (_.attValue("summary-field") == "true") map (_.attValue("name")),
+                    pageSize      = parsedRequestValue("page-size")(parsePositiveInt)   getOrElse DefaultPageSize,
+                    pageNumber    = parsedRequestValue("page-number")(parsePositiveInt) getOrElse 1,
+                    pageAfter     = parsedRequestValue("page-after")(PageKey.parse),
+                    countTotal    = ! (requestValue("search-total") exists (_ == "false"))
+                )
+
+                withConnection { connection ⇒
+                    val searchTotal = search.countTotal option countDocuments(connection, search)
+                    streamDocuments(connection, search, searchTotal, xmlReceiver)
                 }
             }
         })
     }
+}
+
+object PersistenceAPIProcessor {
+
+    val DefaultPageSize = 10
+    val TotalLimitProperty = "oxf.fr.persistence.relational.search.total-limit"
+    val DefaultTotalLimit = 1000
+
+    case class Search(app: String, form: String, criteria: Seq[(String, String)], controls: Seq[String],
+                      pageSize: Int, pageNumber: Int, pageAfter: Option[PageKey], countTotal: Boolean)
+
+    case class DocumentMetadata(dataId: Int, documentId: String, created: Timestamp, lastModified: Timestamp)
+
+    // Position of a document in the search results, which are ordered by `(last_modified desc, data_id)`
+    case class PageKey(lastModified: Timestamp, dataId: Int) {
+        override def toString = lastModified.toString + '|' + dataId
+    }
+
+    object PageKey {
+        def parse(key: String): Option[PageKey] = key.split('|') match {
+            case Array(lastModified, dataId) ⇒ Try(PageKey(Timestamp.valueOf(lastModified), dataId.toInt)).toOption
+            case _                           ⇒ None
+        }
+    }
+
+    def parsePositiveInt(value: String): Option[Int] =
+        Try(value.toInt).toOption filter (_ > 0)
+
+    /**
+     * From and where clauses selecting the documents that match all the criteria. Each criterion is a derived table
+     * listing the matching documents, and joining those tables intersects the matches, instead of evaluating one
+     * correlated subquery per criterion for every document.
+     */
+    private def matchingDocuments(search: Search): (String, Seq[Any]) = {
+        val criteriaJoins =
+            for (index ← search.criteria.indices)
+            yield s"""|  join (select distinct data_id from orbeon_i_control_text
+                      |         where app     = ?
+                      |           and form    = ?
+                      |           and control = ?
+                      |           and match(val) against (?)) t$index
+                      |    on t$index.data_id = c.data_id
+                      |""".stripMargin
+
+        val sql =   s"""|  from orbeon_i_current c
+                        |${criteriaJoins.mkString}
+                        | where c.app  = ?
+                        |   and c.form = ?
+                        |""".stripMargin
+
+        val params = (search.criteria flatMap { case (control, value) ⇒ Seq(search.app, search.form, control, value) }) ++ Seq(search.app, search.form)
+
+        (sql, params)
+    }
+
+    /**
+     * Number of documents matching the criteria, up to the configured limit, so counting doesn't end up scanning all
+     * the documents of large forms. Returns the count and whether it reached the limit.
+     */
+    def countDocuments(connection: Connection, search: Search): (Int, Boolean) = {
+        val totalLimit = Properties.instance.getPropertySet.getInteger(TotalLimitProperty, DefaultTotalLimit).intValue
+        val (matchSql, matchParams) = matchingDocuments(search)
+        val countSql = s"select count(*) from (select c.data_id $matchSql limit ?) matching"
+
+        useAndClose(prepareStatement(connection, countSql, matchParams :+ totalLimit)) { statement ⇒
+            val resultSet = statement.executeQuery()
+            resultSet.next()
+            val count = resultSet.getInt(1)
+            (count, count >= totalLimit)
+        }
+    }
+
+    /**
+     * Query selecting the documents of the requested page, in the order of the search results.
+     */
+    private[relational] def pageDocuments(search: Search): (String, Seq[Any]) = {
+
+        val (matchSql, matchParams) = matchingDocuments(search)
+
+        // Seek directly after the last document of the previous page if we know it, and otherwise skip previous pages
+        val (seekSql, seekParams) = search.pageAfter match {
+            case Some(PageKey(lastModified, dataId)) ⇒
+                ("   and (c.last_modified < ? or (c.last_modified = ? and c.data_id > ?))\n", Seq(lastModified, lastModified, dataId))
+            case None ⇒
+                ("", Nil)
+        }
+        val offset = if (search.pageAfter.isDefined) 0 else (search.pageNumber - 1) * search.pageSize
+
+        val sql =
+            s"""|             select c.data_id, c.document_id, c.created, c.last_modified
+                |$matchSql$seekSql
+                |           order by c.last_modified desc, c.data_id
+                |              limit ? offset ?
+                |""".stripMargin
+
+        (sql, matchParams ++ seekParams ++ Seq(search.pageSize, offset))
+    }
+
+    /**
+     * Retrieve the documents for the requested page along with their summary values with a single query, and output
+     * them as they are read from the result set. Only the values of the current document are kept in memory.
+     */
+    def streamDocuments(connection: Connection, search: Search, searchTotal: Option[(Int, Boolean)], xmlReceiver: XMLReceiver): Unit = {
+
+        val (pageSql, pageParams) = pageDocuments(search)
+
+        val controlsCondition =
+            if (search.controls.isEmpty) "1 = 0"
+            else search.controls map (_ ⇒ "?") mkString ("v.control in (", ", ", ")")
+
+        val sql =
+            s"""|  select p.data_id, p.document_id, p.created, p.last_modified, v.control, v.val
+                |    from (
+                |$pageSql
+                |         ) p
+                |         left join orbeon_i_control_text v
+                |           on v.data_id = p.data_id
+                |          and $controlsCondition
+                |order by p.last_modified desc, p.data_id, v.control, v.pos
+                |""".stripMargin
+
+        useAndClose(prepareStatement(connection, sql, pageParams ++ search.controls)) { statement ⇒
+
+            // By default the MySQL driver reads the whole result set in memory, unless asked to stream rows
+            statement.setFetchSize(if (connection.getMetaData.getDatabaseProductName == "MySQL") Integer.MIN_VALUE else search.pageSize)
+
+            val resultSet = statement.executeQuery()
+            val rows =
+                Iterator.continually(resultSet.next()) takeWhile identity map { _ ⇒
+                    val value = Option(resultSet.getString("control")) map (_ → (Option(resultSet.getString("val")) getOrElse ""))
+                    (readDocumentMetadata(resultSet), value)
+                }
 
+            outputDocuments(search, searchTotal, rows, xmlReceiver)
+        }
+    }
+
+    /**
+     * Output the documents from rows made of the metadata of a document and one of its values, if any. Rows for a given
+     * document are consecutive, so each document is output when we reach the next one.
+     */
+    private[relational] def outputDocuments(search: Search, searchTotal: Option[(Int, Boolean)],
+                                            rows: Iterator[(DocumentMetadata, Option[(String, String)])], xmlReceiver: XMLReceiver): Unit = {
+
+        val helper = new XMLReceiverHelper(xmlReceiver)
+
+        helper.startDocument()
+        helper.startElement("documents", Array(
+            "page-size",   search.pageSize.toString,
+            "page-number", search.pageNumber.toString
+        ) ++ (searchTotal.toList flatMap { case (total, estimated) ⇒
+            Seq("search-total", total.toString) ++ (if (estimated) Seq("search-total-estimated", "true") else Nil)
+        }))
+
+        /**
+         * If there are multiple values for a given control, we return all of them, coma-separated, and remove
+         * empty values to avoid uninformative ", , ," results; TODO: this bit of business is better left of to the
+         * front-end, but requires changing the format of the returned data
+         */
+        def outputDocument(metadata: DocumentMetadata, values: collection.Map[String, Seq[String]]): Unit = {
+            helper.startElement("document", Array(
+                "created",       DateTime.print(metadata.created.getTime),
+                "last-modified", DateTime.print(metadata.lastModified.getTime),
+                "name",          metadata.documentId,
+                "page-key",      PageKey(metadata.lastModified, metadata.dataId).toString
+            ))
+            helper.startElement("details")
+            for (control ← search.controls)
+                helper.element("detail", values.getOrElse(control, Nil) filter (_ != "") mkString ", ")
+            helper.endElement()
+            helper.endElement()
+        }
+
+        var currentDocument: Option[DocumentMetadata] = None
+        val currentValues = mutable.LinkedHashMap[String, mutable.ListBuffer[String]]()
+
+        for ((metadata, value) ← rows) {
+            if (currentDocument forall (_.dataId != metadata.dataId)) {
+                currentDocument foreach (outputDocument(_, currentValues))
+                currentValues.clear()
+                currentDocument = Some(metadata)
+            }
+            value foreach { case (control, v) ⇒
+                currentValues.getOrElseUpdate(control, mutable.ListBuffer()) += v
+            }
+        }
+        currentDocument foreach (outputDocument(_, currentValues))
+
+        helper.endElement()
+        helper.endDocument()
+    }
+
+    private def readDocumentMetadata(resultSet: ResultSet) =
+        DocumentMetadata(
+            dataId       = resultSet.getInt      ("data_id"),
+            documentId   = resultSet.getString   ("document_id"),
+            created      = resultSet.getTimestamp("created"),
+            lastModified = resultSet.getTimestamp("last_modified")
+        )
+
+    private[relational] def prepareStatement(connection: Connection, sql: String, params: Seq[Any]) = {
+        val statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)
+        for ((param, index) ← params.zipWithIndex)
+            param match {
+                case value: String    ⇒ statement.setString   (index + 1, value)
+                case value: Int       ⇒ statement.setInt      (index + 1, value)
+                case value: Timestamp ⇒ statement.setTimestamp(index + 1, value)
+            }
+        statement
+    }
 }
@@ -16,8 +16,7 @@ package org.orbeon.oxf.fr.relational
 import java.sql.{ResultSet, Connection, PreparedStatement}
 import org.orbeon.oxf.properties.Properties
 import org.orbeon.oxf.externalcontext.ExternalContextOps._
-import javax.naming.{Context, InitialContext}
-import javax.sql.DataSource
+import org.orbeon.oxf.processor.DatabaseContext
 import org.orbeon.oxf.util.ScalaUtils._
 import org.orbeon.oxf.util.NetUtils
 
@@ -25,12 +24,8 @@ object RelationalUtils {
 
     def withConnection[T](block: Connection ⇒ T): T = {
         // Get connection to the database
-        val dataSource = {
-            val datasource = NetUtils.getExternalContext.getRequest.getFirstHeader("orbeon-datasource").get
-            val jndiContext = new InitialContext().lookup("java:comp/env/jdbc").asInstanceOf[Context]
-            jndiContext.lookup(datasource).asInstanceOf[DataSource]
-        }
-        useAndClose(dataSource.getConnection)(block)
+        val datasource = NetUtils.getExternalContext.getRequest.getFirstHeader("orbeon-datasource").get
+        useAndClose(DatabaseContext.getConnection("jdbc/" + datasource))(block)
     }
 
     /**
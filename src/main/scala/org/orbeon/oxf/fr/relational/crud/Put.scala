@@ -13,19 +13,19 @@
  */
 package org.orbeon.oxf.fr.relational.crud
 
-import java.io.ByteArrayOutputStream
+import java.io.{StringReader, ByteArrayOutputStream}
 import java.sql
 import java.sql.{Timestamp, Connection}
-import javax.xml.transform.OutputKeys
-import javax.xml.transform.sax.SAXSource
-import javax.xml.transform.stream.StreamResult
+import javax.xml.transform.stream.StreamSource
+import org.orbeon.oxf.common.OXFException
 import org.orbeon.oxf.fr.relational._
 import org.orbeon.oxf.pipeline.api.PipelineContext
 import org.orbeon.oxf.processor.generator.RequestGenerator
 import org.orbeon.oxf.util.ScalaUtils._
-import org.orbeon.oxf.util.{StringBuilderWriter, NetUtils}
-import org.orbeon.oxf.xml.{XMLUtils, TransformerUtils}
-import org.xml.sax.InputSource
+import org.orbeon.oxf.util.{XPathCache, StringBuilderWriter, NetUtils}
+import org.orbeon.oxf.xml.{StreamXMLSerializer, XMLUtils, TransformerUtils}
+import org.orbeon.scaxon.XML._
+import scala.util.control.NonFatal
 
 trait Put extends RequestResponse with Common {
 
@@ -74,7 +74,8 @@ trait Put extends RequestResponse with Common {
         }
     }
 
-    def store(connection: Connection, req: Request, existingRow: Option[Row]): Unit = {
+    // Store the document, and return the stored XML, if any
+    def store(connection: Connection, req: Request, existingRow: Option[Row]): Option[String] = {
 
         val table = tableName(req)
         val ps = connection.prepareStatement(
@@ -115,14 +116,13 @@ trait Put extends RequestResponse with Common {
         }
 
         def requestXML(): String = {
-            val transformer = TransformerUtils.getXMLIdentityTransformer
-            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes")
             val writer = new StringBuilderWriter()
-            val source = new SAXSource(XMLUtils.newXMLReader(XMLUtils.ParserConfiguration.PLAIN), new InputSource(requestInputStream))
-            transformer.transform(source, new StreamResult(writer))
+            XMLUtils.inputStreamToSAX(requestInputStream, null, new StreamXMLSerializer(writer, true), XMLUtils.ParserConfiguration.PLAIN, true)
             writer.toString
         }
 
+        val xml = ! req.forAttachment option requestXML()
+
                                  ps.setTimestamp(position.next(), existingRow.map(_.created).getOrElse(now))
                                  ps.setTimestamp(position.next(), now)
                                  ps.setString(position.next(), requestUsername.getOrElse(null))
@@ -133,13 +133,60 @@ trait Put extends RequestResponse with Common {
         if (req.forData)         ps.setString(position.next(), if (req.dataPart.get.isDraft) "Y" else "N")
         if (req.forAttachment)   ps.setString(position.next(), req.filename.get)
         if (req.forAttachment)   ps.setBytes (position.next(), requestBytes())
-        if (! req.forAttachment) ps.setString(position.next(), requestXML())
+        if (! req.forAttachment) ps.setString(position.next(), xml.get)
         if (req.forData)         ps.setString(position.next(), existingRow.map(_.username .get).getOrElse(requestUsername .getOrElse(null)))
         if (req.forData)         ps.setString(position.next(), existingRow.map(_.groupname.get).getOrElse(requestGroupname.getOrElse(null)))
 
         ps.executeUpdate()
+        xml
     }
 
+    // Update the index for the data just stored
+    private def updateIndex(connection: Connection, req: Request, xml: String): Unit = {
+
+        val formVersion     = requestedFormVersion(connection, req)
+        val indexedControls = Index.cachedIndexedControls(connection, req.app, req.form, formVersion)
+
+        val row =
+            useAndClose(connection.prepareStatement(
+                """select id, created, last_modified_time, username
+                  |  from orbeon_form_data
+                  | where app = ? and form = ? and form_version = ? and document_id = ? and draft = 'N'
+                  | order by last_modified_time desc
+                """.stripMargin)) { ps ⇒
+                ps.setString(1, req.app)
+                ps.setString(2, req.form)
+                ps.setInt   (3, formVersion)
+                ps.setString(4, req.dataPart.get.documentId)
+                val resultSet = ps.executeQuery()
+                if (! resultSet.next())
+                    throw new OXFException(s"Can't find the data just stored for ${req.app}/${req.form}/${req.dataPart.get.documentId} to index it")
+                Index.DataRow(
+                    dataId       = resultSet.getInt      ("id"),
+                    documentId   = req.dataPart.get.documentId,
+                    created      = resultSet.getTimestamp("created"),
+                    lastModified = resultSet.getTimestamp("last_modified_time"),
+                    username     = resultSet.getString   ("username"),
+                    app          = req.app,
+                    form         = req.form
+                )
+            }
+
+        // Only parse the data if there are controls to index
+        def dataRootElement = {
+            val source   = new StreamSource(new StringReader(xml))
+            val document = TransformerUtils.readTinyTree(XPathCache.getGlobalConfiguration, source, false)
+            document \\ * head
+        }
+
+        Index.updateIndex(connection, req.provider, row, indexedControls, dataRootElement)
+    }
+
+    // Whether to update the index when data is saved, which requires the index tables and the `id` column of
+    // `orbeon_form_data`, which are not part of the 4.4 DDL
+    private def indexOnSave =
+        headerValue("orbeon-index-on-save") exists (_ == "true")
+
     def put(): Unit = {
         RelationalUtils.withConnection { connection ⇒
             val req = request
@@ -147,8 +194,20 @@ trait Put extends RequestResponse with Common {
                 // When storing data, a form version must be provided
                 httpResponse.setStatus(400)
             } else {
-                val existing = existingRow(connection, req)
-                store(connection, req, existing)
+                // Store data and update the index in the same transaction, so the index is always up to date
+                connection.setAutoCommit(false)
+                try {
+                    val existing = existingRow(connection, req)
+                    val xml      = store(connection, req, existing)
+                    if (req.forData && ! req.forAttachment && ! req.dataPart.get.isDraft && indexOnSave)
+                        updateIndex(connection, req, xml.get)
+                    connection.commit()
+                } catch {
+                    case NonFatal(t) ⇒
+                        connection.rollback()
+                        throw t
+                } finally
+                    connection.setAutoCommit(true)
                 httpResponse.setStatus(201)
             }
         }
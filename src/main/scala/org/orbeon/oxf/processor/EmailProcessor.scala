@@ -14,6 +14,7 @@
 package org.orbeon.oxf.processor
 
 import EmailProcessor._
+import EmailQueue.SMTPSettings
 import collection.JavaConverters._
 import java.io._
 import java.util.{Properties ⇒ JProperties}
@@ -45,6 +46,8 @@ import org.xml.sax._
  *
  * For some useful JavaMail information: http://java.sun.com/products/javamail/FAQ.html
  *
+ * With the async option, messages are not sent within the request but queued in the EmailQueue.
+ *
  * TODO:
  *
  * o revise support of text/html
@@ -76,21 +79,21 @@ class EmailProcessor extends ProcessorImpl {
 
         properties.setProperty("mail.smtp.host", host)
 
-        // Create session
-        val session = {
-
-            // Get credentials if any
-            val (usernameOption, passwordOption) = {
-                Option(messageElement.element("credentials")) match {
-                    case Some(credentials) ⇒
-                        val usernameElement = credentials.element(Username)
-                        val passwordElement = credentials.element(Password)
+        // Get credentials if any
+        val (usernameOption, passwordOption) = {
+            Option(messageElement.element("credentials")) match {
+                case Some(credentials) ⇒
+                    val usernameElement = credentials.element(Username)
+                    val passwordElement = credentials.element(Password)
 
-                        (optionalValueTrim(usernameElement), optionalValueTrim(passwordElement))
-                    case None ⇒
-                        (nonEmptyOrNone(propertySet.getString(Username)), nonEmptyOrNone(propertySet.getString(Password)))
-                }
+                    (optionalValueTrim(usernameElement), optionalValueTrim(passwordElement))
+                case None ⇒
+                    (nonEmptyOrNone(propertySet.getString(Username)), nonEmptyOrNone(propertySet.getString(Password)))
             }
+        }
+
+        // Create session
+        val session = {
 
             def ensureCredentials(encryption: String) =
                 if (usernameOption.isEmpty)
@@ -213,10 +216,14 @@ class EmailProcessor extends ProcessorImpl {
         else
             throw new OXFException("Main text or body element not found")
 
-        // Send message
-        useAndClose(session.getTransport("smtp")) { transport ⇒
-            Transport.send(message)
-        }
+        // Send message, or queue it to be sent asynchronously
+        val async = optionalValueTrim(messageElement.element(Async)) map (_ == "true") getOrElse propertySet.getBoolean(Async, false)
+        if (async)
+            EmailQueue.instance(NetUtils.getExternalContext.getWebAppContext, getName).enqueue(SMTPSettings(properties.asScala.toMap, usernameOption, passwordOption), message)
+        else
+            useAndClose(session.getTransport("smtp")) { transport ⇒
+                Transport.send(message)
+            }
     }
 
     private def handleBody(pipelineContext: PipelineContext, dataInputSystemId: String, parentPart: Part, bodyElement: Element) {
@@ -354,6 +361,7 @@ object EmailProcessor {
     val Username     = "username"
     val Password     = "password"
     val Encryption   = "encryption"
+    val Async        = "async"
 
     val TestTo       = "test-to"
     val TestSMTPHost = "test-smtp-host"
@@ -0,0 +1,449 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor
+
+import EmailQueue._
+import collection.JavaConverters._
+import java.io.{FileInputStream, FileOutputStream, File}
+import java.util.concurrent._
+import java.util.concurrent.atomic.AtomicLong
+import java.util.{UUID, Properties ⇒ JProperties}
+import javax.mail._
+import javax.mail.internet.MimeMessage
+import org.dom4j.QName
+import org.orbeon.oxf.properties.Properties
+import org.orbeon.oxf.util.LoggerFactory
+import org.orbeon.oxf.util.ScalaUtils._
+import org.orbeon.oxf.webapp.{WebAppListener, WebAppContext}
+import scala.util.control.NonFatal
+
+/**
+ * Outbound queue for emails sent asynchronously by the email processor.
+ *
+ * - Messages are written to the queue directory as soon as they are queued, so they are not lost if the server stops
+ *   before they are sent. Messages still in the directory are queued again when the queue starts.
+ * - Messages are sent by a pool of threads. SMTP connections are kept open and reused, and a thread sends as many
+ *   queued messages as possible with the same SMTP settings on a connection, up to `messagesPerConnection`. Ready
+ *   messages are kept in one queue per SMTP settings, so finding the next message for a connection is immediate.
+ * - A message which can't be sent is retried after `retryDelay`, which doubles after each attempt. After `maxAttempts`
+ *   attempts, the message is moved to the `failed` subdirectory.
+ * - SMTP credentials are not stored in the queue directory. Only a reference to them is, and they are resolved when
+ *   the message is sent: credentials from the configuration are read again with `configuredCredentials`, and
+ *   credentials given with a message are kept in memory. A message whose credentials are no longer available, such
+ *   as a message with its own credentials recovered after a restart, is moved to the `failed` subdirectory.
+ */
+class EmailQueue(
+        directory: File,
+        threads: Int,
+        messagesPerConnection: Int,
+        maxAttempts: Int,
+        retryDelay: Long,
+        idleTimeout: Long,
+        configuredCredentials: () ⇒ (Option[String], Option[String]) = () ⇒ (None, None)) {
+
+    private val failedDirectory = new File(directory, "failed")
+    directory.mkdirs()
+    failedDirectory.mkdirs()
+
+    // Messages ready to be sent, by SMTP settings, and the settings of each message made ready, in order
+    // NOTE: A message sent along with an earlier message leaves its key in `readyKeys`, which is then skipped.
+    private val ready     = new ConcurrentHashMap[ReadyKey, ConcurrentLinkedQueue[Entry]]
+    private val readyKeys = new LinkedBlockingQueue[ReadyKey]
+
+    // Open SMTP connections not currently in use, and sessions by SMTP settings
+    private val idleTransports = new ConcurrentHashMap[SMTPSettings, ConcurrentLinkedQueue[PooledTransport]]
+    private val sessions       = new ConcurrentHashMap[SMTPSettings, Session]
+
+    // Credentials given with queued messages, by message id
+    private val messageCredentials = new ConcurrentHashMap[String, (String, Option[String])]
+
+    // Statistics
+    private val queuedCount   = new AtomicLong
+    private val sentCount     = new AtomicLong
+    private val retriedCount  = new AtomicLong
+    private val failedCount   = new AtomicLong
+    private val connectCount  = new AtomicLong
+    private val totalLatency  = new AtomicLong
+    private val maxLatency    = new AtomicLong
+
+    private val senders   = Executors.newFixedThreadPool(threads max 1, daemonThreadFactory("email queue sender"))
+    private val scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("email queue scheduler"))
+
+    for (_ ← 1 to (threads max 1))
+        senders.execute(new Runnable {
+            def run() = sendLoop()
+        })
+
+    // Close connections which haven't been used for a while
+    scheduler.scheduleWithFixedDelay(new Runnable {
+        def run() = closeIdleTransports(System.currentTimeMillis - idleTimeout)
+    }, idleTimeout, idleTimeout, TimeUnit.MILLISECONDS)
+
+    recover()
+
+    // Add a message to the queue
+    def enqueue(settings: SMTPSettings, message: MimeMessage): Unit = {
+        val id = UUID.randomUUID.toString
+        val credentials = settings.username map { username ⇒
+            if ((settings.username, settings.password) == configuredCredentials())
+                ConfiguredCredentials
+            else {
+                messageCredentials.put(id, (username, settings.password))
+                MessageCredentials
+            }
+        }
+        val entry = Entry(id, settings.properties, credentials, 0, System.currentTimeMillis)
+
+        message.saveChanges()
+        useAndClose(new FileOutputStream(messageFile(entry.id)))(message.writeTo(_))
+        saveEntry(entry)
+
+        queuedCount.incrementAndGet()
+        makeReady(entry)
+    }
+
+    def statistics = Seq(
+        "queued"           → queuedCount.get.toString,
+        "sent"             → sentCount.get.toString,
+        "retried"          → retriedCount.get.toString,
+        "failed"           → failedCount.get.toString,
+        "pending"          → (ready.values.asScala map (_.size)).sum.toString,
+        "connections"      → connectCount.get.toString,
+        "average latency"  → (if (sentCount.get > 0) totalLatency.get / sentCount.get else 0L).toString,
+        "max latency"      → maxLatency.get.toString
+    )
+
+    def getQueuedCount  = queuedCount.get
+    def getSentCount    = sentCount.get
+    def getRetriedCount = retriedCount.get
+    def getFailedCount  = failedCount.get
+    def getConnectCount = connectCount.get
+
+    // Stop sending and close connections, leaving unsent messages in the queue directory
+    def shutdown(): Unit = {
+        senders.shutdownNow()
+        scheduler.shutdownNow()
+        closeIdleTransports(Long.MaxValue)
+    }
+
+    private def sendLoop(): Unit =
+        try {
+            while (! Thread.currentThread.isInterrupted) {
+                val key = readyKeys.take()
+                for (first ← nextWithKey(key))
+                    try {
+                        settings(first) match {
+                            case Some(settings) ⇒
+                                sendWithSettings(key, first, settings)
+                            case None ⇒
+                                moveToFailed(first, "could not send email because its SMTP credentials are no longer available", null)
+                        }
+                    } catch {
+                        // The message stays in the queue directory and is queued again when the queue starts
+                        case NonFatal(t) ⇒ Logger.error("error while sending queued email", t)
+                    }
+            }
+        } catch {
+            case _: InterruptedException ⇒ // shutting down
+        }
+
+    private def sendWithSettings(key: ReadyKey, first: Entry, settings: SMTPSettings): Unit = {
+        val transport = try borrowTransport(settings) catch {
+            case NonFatal(t) ⇒
+                failed(first, t)
+                null
+        }
+
+        if (transport ne null) {
+            // Send all the messages we can with this connection
+            var entry = first
+            var count = transport.sent
+            var broken = false
+            while ((entry ne null) && ! broken) {
+                try {
+                    send(transport.transport, settings, entry)
+                } catch {
+                    case NonFatal(t) ⇒
+                        failed(entry, t)
+                        broken = ! transport.transport.isConnected
+                }
+                count += 1
+                // Only take the next message if this connection can send it, so it stays queued otherwise
+                entry = if (! broken && count < messagesPerConnection) nextWithKey(key).orNull else null
+            }
+
+            releaseTransport(settings, transport.copy(sent = count), reuse = ! broken && count < messagesPerConnection)
+        }
+    }
+
+    private def send(transport: Transport, settings: SMTPSettings, entry: Entry): Unit = {
+        val message = useAndClose(new FileInputStream(messageFile(entry.id)))(new MimeMessage(session(settings), _))
+        transport.sendMessage(message, message.getAllRecipients)
+
+        messageFile(entry.id).delete()
+        entryFile(entry.id).delete()
+        messageCredentials.remove(entry.id)
+
+        val latency = System.currentTimeMillis - entry.queued
+        sentCount.incrementAndGet()
+        totalLatency.addAndGet(latency)
+        updateMax(maxLatency, latency)
+    }
+
+    private def failed(entry: Entry, t: Throwable): Unit = {
+        val attempts = entry.attempts + 1
+        if (attempts < maxAttempts) {
+            val delay = retryDelay * (1L << (attempts - 1).min(20))
+            Logger.warn("could not send email, retrying in " + delay + " ms (attempt " + attempts + " of " + maxAttempts + ")", t)
+
+            val retry = entry.copy(attempts = attempts)
+            saveEntry(retry)
+            retriedCount.incrementAndGet()
+            scheduler.schedule(new Runnable {
+                def run() = makeReady(retry)
+            }, delay, TimeUnit.MILLISECONDS)
+        } else
+            moveToFailed(entry, "could not send email after " + attempts + " attempts", t)
+    }
+
+    private def moveToFailed(entry: Entry, message: String, t: Throwable): Unit = {
+        Logger.error(message + ", moving it to " + failedDirectory, t)
+
+        messageFile(entry.id).renameTo(new File(failedDirectory, messageFile(entry.id).getName))
+        entryFile(entry.id).renameTo(new File(failedDirectory, entryFile(entry.id).getName))
+        messageCredentials.remove(entry.id)
+        failedCount.incrementAndGet()
+    }
+
+    // SMTP settings to send the message with, including its credentials, or None if they are no longer available
+    private def settings(entry: Entry): Option[SMTPSettings] =
+        entry.credentials match {
+            case None ⇒
+                Some(SMTPSettings(entry.properties, None, None))
+            case Some(ConfiguredCredentials) ⇒
+                configuredCredentials() match {
+                    case (username @ Some(_), password) ⇒ Some(SMTPSettings(entry.properties, username, password))
+                    case _                              ⇒ None
+                }
+            case Some(_) ⇒
+                Option(messageCredentials.get(entry.id)) map
+                    { case (username, password) ⇒ SMTPSettings(entry.properties, Some(username), password) }
+        }
+
+    // Messages with the same key are sent with the same SMTP settings
+    private def readyKey(entry: Entry) =
+        ReadyKey(entry.properties, entry.credentials, entry.credentials filter (_ == MessageCredentials) flatMap (_ ⇒ Option(messageCredentials.get(entry.id))))
+
+    private def makeReady(entry: Entry): Unit = {
+        val key = readyKey(entry)
+        val queue = Option(ready.get(key)) getOrElse {
+            val newQueue = new ConcurrentLinkedQueue[Entry]
+            Option(ready.putIfAbsent(key, newQueue)) getOrElse newQueue
+        }
+        queue.offer(entry)
+        readyKeys.put(key)
+    }
+
+    // Take the next ready message with the given key, if any
+    private def nextWithKey(key: ReadyKey): Option[Entry] =
+        Option(ready.get(key)) flatMap (queue ⇒ Option(queue.poll()))
+
+    private def session(settings: SMTPSettings) =
+        Option(sessions.get(settings)) getOrElse {
+            val newSession = settings.createSession
+            Option(sessions.putIfAbsent(settings, newSession)) getOrElse newSession
+        }
+
+    private def borrowTransport(settings: SMTPSettings): PooledTransport = {
+        val idle = Option(idleTransports.get(settings))
+
+        def pollConnected: Option[PooledTransport] =
+            idle flatMap (queue ⇒ Option(queue.poll())) match {
+                case Some(pooled) if pooled.transport.isConnected ⇒ Some(pooled)
+                case Some(pooled) ⇒ closeQuietly(pooled.transport); pollConnected
+                case None ⇒ None
+            }
+
+        pollConnected getOrElse {
+            val transport = session(settings).getTransport("smtp")
+            transport.connect()
+            connectCount.incrementAndGet()
+            PooledTransport(transport, 0, System.currentTimeMillis)
+        }
+    }
+
+    private def releaseTransport(settings: SMTPSettings, pooled: PooledTransport, reuse: Boolean): Unit =
+        if (reuse && pooled.transport.isConnected) {
+            val queue = Option(idleTransports.get(settings)) getOrElse {
+                val newQueue = new ConcurrentLinkedQueue[PooledTransport]
+                Option(idleTransports.putIfAbsent(settings, newQueue)) getOrElse newQueue
+            }
+            queue.offer(pooled.copy(lastUsed = System.currentTimeMillis))
+        } else
+            closeQuietly(pooled.transport)
+
+    private def closeIdleTransports(usedBefore: Long): Unit =
+        for (queue ← idleTransports.values.asScala; idle ← queue.asScala)
+            if (idle.lastUsed < usedBefore && queue.remove(idle))
+                closeQuietly(idle.transport)
+
+    private def closeQuietly(transport: Transport) =
+        try transport.close()
+        catch { case NonFatal(_) ⇒ }
+
+    private def messageFile(id: String) = new File(directory, id + ".eml")
+    private def entryFile(id: String)   = new File(directory, id + ".properties")
+
+    // Write the entry to a temporary file first, so the entry file is complete when it exists
+    private def saveEntry(entry: Entry): Unit = {
+        val temporaryFile = new File(directory, entry.id + ".tmp")
+        useAndClose(new FileOutputStream(temporaryFile))(entry.toProperties.store(_, null))
+        entryFile(entry.id).delete()
+        temporaryFile.renameTo(entryFile(entry.id))
+    }
+
+    // Queue messages left in the directory
+    private def recover(): Unit =
+        for (file ← Option(directory.listFiles).toList.flatten if file.getName.endsWith(".properties")) {
+            val id = file.getName.substring(0, file.getName.length - ".properties".length)
+            if (messageFile(id).exists) {
+                val properties = new JProperties
+                useAndClose(new FileInputStream(file))(properties.load(_))
+                makeReady(Entry.fromProperties(id, properties))
+                queuedCount.incrementAndGet()
+            } else
+                file.delete()
+        }
+}
+
+object EmailQueue {
+
+    val Logger = LoggerFactory.createLogger(classOf[EmailQueue])
+
+    // Processor properties
+    val QueueDirectory        = "queue-directory"
+    val QueueThreads          = "queue-threads"
+    val MessagesPerConnection = "messages-per-connection"
+    val MaxAttempts           = "max-attempts"
+    val RetryDelay            = "retry-delay"
+    val IdleTimeout           = "connection-idle-timeout"
+
+    // References to the credentials of a message stored in the queue directory
+    private val ConfiguredCredentials = "configured"
+    private val MessageCredentials    = "message"
+
+    private val QueueAttribute = "oxf.email.queue"
+
+    // Queue shared by the email processors of the web app, created with the processor properties the first time it is
+    // used, and shut down when the web app is destroyed
+    def instance(webAppContext: WebAppContext, processorName: QName): EmailQueue = webAppContext.synchronized {
+        webAppContext.attributes.get(QueueAttribute) map (_.asInstanceOf[EmailQueue]) getOrElse {
+            def propertySet = Properties.instance.getPropertySet(processorName)
+
+            // Read the configured credentials when a message is sent, so they are never stored with the message
+            def configuredCredentials() =
+                (nonEmptyOrNone(propertySet.getString(EmailProcessor.Username)), nonEmptyOrNone(propertySet.getString(EmailProcessor.Password)))
+
+            // Default to the temporary directory of the web app, so web apps don't share queued messages
+            def temporaryDirectory =
+                webAppContext.attributes.get("javax.servlet.context.tempdir") collect
+                { case directory: File ⇒ directory } getOrElse
+                new File(System.getProperty("java.io.tmpdir"))
+
+            val directory =
+                nonEmptyOrNone(propertySet.getString(QueueDirectory, "")) map
+                (new File(_)) getOrElse
+                new File(temporaryDirectory, "orbeon-email-queue")
+
+            val newQueue = new EmailQueue(
+                directory,
+                propertySet.getInteger(QueueThreads, 2).intValue,
+                propertySet.getInteger(MessagesPerConnection, 50).intValue,
+                propertySet.getInteger(MaxAttempts, 5).intValue,
+                propertySet.getInteger(RetryDelay, 60000).longValue,
+                propertySet.getInteger(IdleTimeout, 60000).longValue,
+                configuredCredentials)
+
+            webAppContext.attributes += QueueAttribute → newQueue
+            webAppContext.addListener(new WebAppListener {
+                def webAppDestroyed() = newQueue.shutdown()
+            })
+            newQueue
+        }
+    }
+
+    // SMTP session properties and credentials, which identify the SMTP connections messages can be sent with
+    case class SMTPSettings(properties: Map[String, String], username: Option[String], password: Option[String]) {
+        def createSession = {
+            val jProperties = new JProperties
+            for ((name, value) ← properties)
+                jProperties.setProperty(name, value)
+
+            username match {
+                case Some(username) ⇒
+                    Session.getInstance(jProperties, new Authenticator {
+                        override def getPasswordAuthentication =
+                            new PasswordAuthentication(username, password getOrElse "")
+                    })
+                case None ⇒
+                    Session.getInstance(jProperties)
+            }
+        }
+    }
+
+    // SMTP session properties and reference to the credentials of ready messages
+    private case class ReadyKey(properties: Map[String, String], credentials: Option[String], messageCredentials: Option[(String, Option[String])])
+
+    // SMTP connection, with the number of messages sent with it so far
+    private case class PooledTransport(transport: Transport, sent: Int, lastUsed: Long)
+
+    // Queued message, with a reference to its credentials if any
+    private case class Entry(id: String, properties: Map[String, String], credentials: Option[String], attempts: Int, queued: Long) {
+        def toProperties = {
+            val jProperties = new JProperties
+            for ((name, value) ← properties)
+                jProperties.setProperty("smtp." + name, value)
+            credentials foreach (jProperties.setProperty("credentials", _))
+            jProperties.setProperty("attempts", attempts.toString)
+            jProperties.setProperty("queued", queued.toString)
+            jProperties
+        }
+    }
+
+    private object Entry {
+        def fromProperties(id: String, properties: JProperties) = {
+            val all = properties.asScala.toMap
+            Entry(
+                id,
+                all collect { case (name, value) if name.startsWith("smtp.") ⇒ name.substring("smtp.".length) → value },
+                all.get("credentials"),
+                all.get("attempts") map (_.toInt) getOrElse 0,
+                all.get("queued") map (_.toLong) getOrElse System.currentTimeMillis)
+        }
+    }
+
+    private def updateMax(max: AtomicLong, value: Long): Unit = {
+        var current = max.get
+        while (value > current && ! max.compareAndSet(current, value))
+            current = max.get
+    }
+
+    private def daemonThreadFactory(name: String) = new ThreadFactory {
+        def newThread(runnable: Runnable) = {
+            val thread = new Thread(runnable, name)
+            thread.setDaemon(true)
+            thread
+        }
+    }
+}
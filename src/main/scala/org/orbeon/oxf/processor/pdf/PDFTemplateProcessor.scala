@@ -17,9 +17,11 @@ import com.lowagie.text.Image
 import com.lowagie.text.Rectangle
 import com.lowagie.text.pdf._
 import org.dom4j.Element
+import org.orbeon.oxf.cache.{InternalCacheKey, ObjectCache}
 import org.orbeon.oxf.common.OXFException
 import org.orbeon.oxf.pipeline.api.{FunctionLibrary, PipelineContext}
 import org.orbeon.oxf.processor.ProcessorImpl
+import org.orbeon.oxf.processor.CacheableInputReader
 import org.orbeon.oxf.processor.ProcessorInput
 import org.orbeon.oxf.processor.ProcessorInputOutputInfo
 import org.orbeon.oxf.processor.serializer.{HttpSerializerBase, BinaryTextXMLReceiver}
@@ -38,6 +40,7 @@ import org.orbeon.saxon.value.Int64Value
 import java.io.ByteArrayOutputStream
 import java.io.OutputStream
 import java.util.{List ⇒ JList}
+import java.util.concurrent.ConcurrentHashMap
 import PDFTemplateProcessor._
 import scala.collection.JavaConverters._
 import ScalaUtils._
@@ -66,14 +69,22 @@ class PDFTemplateProcessor extends HttpBinarySerializer with Logging {// TODO: H
         // Create PDF reader
         val templateReader = {
             val templateHref = templateRoot.attributeValue("href")
-            Option(ProcessorImpl.getProcessorInputSchemeInputName(templateHref)) match {
-                case Some(inputName) ⇒
-                    val os = new ByteArrayOutputStream
-                    readInputAsSAX(pipelineContext, inputName, new BinaryTextXMLReceiver(os))
-                    new PdfReader(os.toByteArray)
-                case None ⇒
-                    new PdfReader(URLFactory.createURL(templateHref))
-            }
+            val parsedTemplate =
+                Option(ProcessorImpl.getProcessorInputSchemeInputName(templateHref)) match {
+                    case Some(inputName) ⇒
+                        readCacheInputAsObject(pipelineContext, getInputByName(inputName), new CacheableInputReader[PdfReader] {
+                            def read(pipelineContext: PipelineContext, input: ProcessorInput) = {
+                                val os = new ByteArrayOutputStream
+                                ProcessorImpl.readInputAsSAX(pipelineContext, input, new BinaryTextXMLReceiver(os))
+                                new PdfReader(os.toByteArray)
+                            }
+                        })
+                    case None ⇒
+                        readTemplateFromURL(templateHref)
+                }
+
+            // The parsed template is shared, so stamp a copy of it
+            parsedTemplate.synchronized(new PdfReader(parsedTemplate))
         }
 
         useAndClose(new PdfStamper(templateReader, outputStream)) { stamper ⇒
@@ -463,9 +474,40 @@ object PDFTemplateProcessor {
         }
     }
 
-    // Create a font
-    def createFont(fontFamilyOrPath: String, embed: Boolean) =
-        BaseFont.createFont(fontFamilyOrPath, findFontEncoding(fontFamilyOrPath), embed)
+    private val TemplateCacheName        = "cache.pdf-template"
+    private val TemplateCacheDefaultSize = 50
+
+    // Parse a template from a URL, or get it from cache if it hasn't changed
+    // NOTE: Only cache when we can cheaply check the last modification date, i.e. for "oxf:" and "file:" URLs.
+    def readTemplateFromURL(templateHref: String) = {
+        val url          = URLFactory.createURL(templateHref)
+        val urlString    = url.toExternalForm
+        val lastModified = NetUtils.getLastModifiedIfFast(urlString)
+
+        if (lastModified > 0) {
+            val cache    = ObjectCache.instance(TemplateCacheName, TemplateCacheDefaultSize)
+            val cacheKey = new InternalCacheKey("PDF Template", urlString)
+
+            Option(cache.findValid(cacheKey, lastModified).asInstanceOf[PdfReader]) getOrElse {
+                val reader = new PdfReader(url)
+                cache.add(cacheKey, lastModified, reader)
+                reader
+            }
+        } else
+            new PdfReader(url)
+    }
+
+    // Fonts by family or path and embedding (the encoding only depends on the family)
+    private val fontCache = new ConcurrentHashMap[(String, Boolean), BaseFont]
+
+    // Create a font, or get it from cache
+    def createFont(fontFamilyOrPath: String, embed: Boolean) = {
+        val key = (fontFamilyOrPath, embed)
+        Option(fontCache.get(key)) getOrElse {
+            val font = BaseFont.createFont(fontFamilyOrPath, findFontEncoding(fontFamilyOrPath), embed)
+            Option(fontCache.putIfAbsent(key, font)) getOrElse font
+        }
+    }
 
     // PDF built-in fonts
     val BuiltinFonts = Set(
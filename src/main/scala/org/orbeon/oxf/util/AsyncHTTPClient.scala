@@ -0,0 +1,309 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.util
+
+import ScalaUtils._
+import java.io._
+import java.net.{SocketTimeoutException, InetSocketAddress, URL}
+import java.nio.ByteBuffer
+import java.nio.channels.{SelectionKey, Selector, SocketChannel}
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+import org.apache.commons.io.IOUtils
+import org.apache.http.impl.io.{IdentityInputStream, ContentLengthInputStream, ChunkedInputStream, AbstractSessionInputBuffer}
+import org.apache.http.params.BasicHttpParams
+import org.orbeon.oxf.common.OXFException
+import org.orbeon.oxf.properties.Properties
+import org.orbeon.oxf.resources.handler.HTTPURLConnection
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+import scala.util.control.NonFatal
+import scala.util.{Success, Failure, Try}
+
+/**
+ * Minimal non-blocking HTTP/1.1 client.
+ *
+ * All the exchanges run on a single I/O thread, so waiting for a response doesn't hold a thread. Requests are sent
+ * with `Connection: close`, the response is read until the server closes the connection, and the callback is then
+ * called on the I/O thread. Callbacks must therefore not block.
+ *
+ * Up to `MaxBufferedResponseSize` bytes of a response are buffered. If the response is larger, the callback is called
+ * as soon as that size is reached, and the rest of the body is read with blocking reads from the response body stream.
+ *
+ * Only plain `http:` without a proxy is supported: other requests must go through HTTPURLConnection.
+ */
+object AsyncHTTPClient {
+
+    private val Logger = LoggerFactory.createLogger(AsyncHTTPClient.getClass)
+
+    private val ReadBufferSize          = 16 * 1024
+    private val SelectTimeout           = 100L
+    val MaxBufferedResponseSize         = 1024 * 1024
+
+    // The body must be closed once read
+    case class Response(statusCode: Int, headers: Map[String, List[String]], body: InputStream) {
+        def header(name: String) =
+            headers collectFirst { case (headerName, value :: _) if headerName.equalsIgnoreCase(name) ⇒ value }
+    }
+
+    // Whether the given URL can be handled
+    def isSupported(url: URL) =
+        url.getProtocol == "http" && (Properties.instance.getPropertySet.getString(HTTPURLConnection.PROXY_HOST_PROPERTY) eq null)
+
+    // Number of exchanges in progress
+    def getActiveCount = activeCount.get
+
+    /**
+     * Start an HTTP exchange. This returns immediately, and the callback is called on the I/O thread when the response
+     * has been received, or when the exchange fails or times out. A timeout of 0 or less means no timeout.
+     */
+    def execute(
+            method: String,
+            url: URL,
+            headers: Seq[(String, String)],
+            body: Option[Array[Byte]],
+            timeout: Long)(
+            callback: Try[Response] ⇒ Unit): Unit = {
+
+        if (! isSupported(url))
+            throw new OXFException("URL not supported by the asynchronous HTTP client: " + url)
+
+        val port    = if (url.getPort == -1) url.getDefaultPort else url.getPort
+        val address = new InetSocketAddress(url.getHost, port)
+
+        reactor.add(new Exchange(address, ByteBuffer.wrap(requestBytes(method, url, port, headers, body)), if (timeout > 0) System.currentTimeMillis + timeout else NoDeadline, callback))
+    }
+
+    private val NoDeadline  = Long.MaxValue
+    private val activeCount = new AtomicInteger
+    private lazy val reactor = new Reactor
+
+    private def requestBytes(method: String, url: URL, port: Int, headers: Seq[(String, String)], body: Option[Array[Byte]]) = {
+
+        val path      = Option(url.getFile) filter (_.nonEmpty) getOrElse "/"
+        val hostValue = if (port == url.getDefaultPort) url.getHost else url.getHost + ':' + port
+
+        // Headers we set ourselves
+        val ReservedHeaders = Set("host", "connection", "content-length", "transfer-encoding")
+
+        val head = new StringBuilder
+        head.append(method).append(' ').append(path).append(" HTTP/1.1\r\n")
+        head.append("Host: ").append(hostValue).append("\r\n")
+        head.append("Connection: close\r\n")
+        body foreach (b ⇒ head.append("Content-Length: ").append(b.length).append("\r\n"))
+        for ((name, value) ← headers if ! ReservedHeaders(name.toLowerCase))
+            head.append(name).append(": ").append(value).append("\r\n")
+        head.append("\r\n")
+
+        val os = new ByteArrayOutputStream
+        os.write(head.toString.getBytes("ISO-8859-1"))
+        body foreach (os.write(_))
+        os.toByteArray
+    }
+
+    private class Exchange(val address: InetSocketAddress, val request: ByteBuffer, val deadline: Long, callback: Try[Response] ⇒ Unit) {
+
+        val channel  = SocketChannel.open()
+        val received = new ByteArrayOutputStream
+
+        private var done = false
+
+        // The channel is left open if the body is still to be read from it
+        def complete(result: Try[Response], closeChannel: Boolean = true): Unit =
+            if (! done) {
+                done = true
+                activeCount.decrementAndGet()
+                if (closeChannel)
+                    closeQuietly(channel)
+                try callback(result)
+                catch { case NonFatal(t) ⇒ Logger.error("error in asynchronous HTTP callback", t) }
+            }
+    }
+
+    // Thread running all the exchanges
+    private class Reactor extends Runnable {
+
+        private val selector  = Selector.open()
+        private val added     = new ConcurrentLinkedQueue[Exchange]
+        private val exchanges = mutable.Set[Exchange]()
+        private val buffer    = ByteBuffer.allocate(ReadBufferSize)
+
+        private val thread = new Thread(this, "asynchronous HTTP client")
+        thread.setDaemon(true)
+        thread.start()
+
+        def add(exchange: Exchange): Unit = {
+            activeCount.incrementAndGet()
+            added.add(exchange)
+            selector.wakeup()
+        }
+
+        def run(): Unit =
+            while (true) {
+                try {
+                    selector.select(SelectTimeout)
+                    registerAdded()
+
+                    val selectedKeys = selector.selectedKeys
+                    for (key ← selectedKeys.asScala.toList) {
+                        selectedKeys.remove(key)
+                        handle(key)
+                    }
+
+                    expire()
+                } catch {
+                    case NonFatal(t) ⇒ Logger.error("error in asynchronous HTTP client", t)
+                }
+            }
+
+        private def registerAdded(): Unit =
+            Iterator.continually(added.poll()) takeWhile (_ ne null) foreach { exchange ⇒
+                exchanges += exchange
+                try {
+                    exchange.channel.configureBlocking(false)
+                    val interest = if (exchange.channel.connect(exchange.address)) SelectionKey.OP_WRITE else SelectionKey.OP_CONNECT
+                    exchange.channel.register(selector, interest, exchange)
+                } catch {
+                    case NonFatal(t) ⇒ finish(exchange, Failure(t))
+                }
+            }
+
+        private def handle(key: SelectionKey): Unit = {
+            val exchange = key.attachment.asInstanceOf[Exchange]
+            try {
+                if (key.isConnectable) {
+                    if (exchange.channel.finishConnect())
+                        key.interestOps(SelectionKey.OP_WRITE)
+                } else if (key.isWritable) {
+                    exchange.channel.write(exchange.request)
+                    if (! exchange.request.hasRemaining)
+                        key.interestOps(SelectionKey.OP_READ)
+                } else if (key.isReadable) {
+                    buffer.clear()
+                    val read = exchange.channel.read(buffer)
+                    if (read == -1)
+                        finish(exchange, Try(parseResponse(exchange.received.toByteArray)))
+                    else {
+                        exchange.received.write(buffer.array, 0, read)
+                        if (exchange.received.size > MaxBufferedResponseSize)
+                            stream(key, exchange)
+                    }
+                }
+            } catch {
+                case NonFatal(t) ⇒ finish(exchange, Failure(t))
+            }
+        }
+
+        private def expire(): Unit = {
+            val now = System.currentTimeMillis
+            for (exchange ← exchanges.toList if exchange.deadline < now)
+                finish(exchange, Failure(new SocketTimeoutException("Timeout while connecting to " + exchange.address)))
+        }
+
+        private def finish(exchange: Exchange, result: Try[Response]): Unit = {
+            exchanges -= exchange
+            exchange.complete(result)
+        }
+
+        // Stop buffering a large response, and let the callback read the rest of the body with blocking reads
+        private def stream(key: SelectionKey, exchange: Exchange): Unit = {
+            val bytes = exchange.received.toByteArray
+            val (statusCode, headers, bodyStart) = parseHead(bytes)
+
+            // The channel must be deregistered before it can be switched to blocking mode
+            key.cancel()
+            selector.selectNow()
+
+            val channel = exchange.channel
+            channel.configureBlocking(true)
+            channel.socket.setSoTimeout(if (exchange.deadline == NoDeadline) 0 else (exchange.deadline - System.currentTimeMillis).toInt max 1)
+
+            val remaining = new SequenceInputStream(new ByteArrayInputStream(bytes, bodyStart, bytes.length - bodyStart), channel.socket.getInputStream)
+            val body = new FilterInputStream(bodyStream(headers, remaining)) {
+                override def close() = closeQuietly(channel)
+            }
+
+            exchanges -= exchange
+            exchange.complete(Success(Response(statusCode, headers, body)), closeChannel = false)
+        }
+    }
+
+    private def closeQuietly(closeable: Closeable) =
+        try closeable.close()
+        catch { case NonFatal(_) ⇒ }
+
+    // Parse a complete response
+    def parseResponse(bytes: Array[Byte]): Response = {
+        val (statusCode, headers, bodyStart) = parseHead(bytes)
+        val body = useAndClose(bodyStream(headers, new ByteArrayInputStream(bytes, bodyStart, bytes.length - bodyStart)))(IOUtils.toByteArray)
+        Response(statusCode, headers, new ByteArrayInputStream(body))
+    }
+
+    // Parse the response head, and return the status code, the headers and the position of the body
+    private def parseHead(bytes: Array[Byte]): (Int, Map[String, List[String]], Int) = {
+
+        def indexOfHeadEnd(from: Int) =
+            (from to bytes.length - 4) find (i ⇒ bytes(i) == '\r' && bytes(i + 1) == '\n' && bytes(i + 2) == '\r' && bytes(i + 3) == '\n') getOrElse
+                (throw new OXFException("Incomplete HTTP response"))
+
+        // Skip interim 1xx responses
+        def parseHeadFrom(from: Int): (Int, Map[String, List[String]], Int) = {
+            val headEnd = indexOfHeadEnd(from)
+            val lines   = new String(bytes, from, headEnd - from, "ISO-8859-1").split("\r\n").toList
+
+            val statusCode =
+                lines.head.split(' ').toList match {
+                    case _ :: code :: _ ⇒ code.toInt
+                    case _              ⇒ throw new OXFException("Invalid HTTP status line: " + lines.head)
+                }
+
+            if (statusCode / 100 == 1)
+                parseHeadFrom(headEnd + 4)
+            else {
+                val headers =
+                    for {
+                        line  ← lines.tail
+                        colon = line.indexOf(':')
+                        if colon > 0
+                    } yield
+                        line.substring(0, colon).trim → line.substring(colon + 1).trim
+
+                val grouped = headers groupBy (_._1) map { case (name, values) ⇒ name → (values map (_._2)) }
+                (statusCode, grouped, headEnd + 4)
+            }
+        }
+
+        parseHeadFrom(0)
+    }
+
+    // Decode the body following the response head, as framed by the response headers
+    private def bodyStream(headers: Map[String, List[String]], in: InputStream): InputStream = {
+
+        def header(name: String) =
+            headers collectFirst { case (headerName, value :: _) if headerName.equalsIgnoreCase(name) ⇒ value }
+
+        val buffer = new AbstractSessionInputBuffer {
+            init(in, ReadBufferSize, new BasicHttpParams)
+            def isDataAvailable(timeout: Int) = hasBufferedData
+        }
+
+        if (header("transfer-encoding") exists (_.equalsIgnoreCase("chunked")))
+            new ChunkedInputStream(buffer)
+        else
+            header("content-length") match {
+                case Some(length) ⇒ new ContentLengthInputStream(buffer, length.toLong)
+                case None         ⇒ new IdentityInputStream(buffer)
+            }
+    }
+}
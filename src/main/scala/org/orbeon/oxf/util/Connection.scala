@@ -17,9 +17,13 @@ import ScalaUtils._
 import Headers._
 import collection.JavaConverters._
 import java.net.{URI, URLConnection, URL}
-import java.util.{Map ⇒ JMap}
+import java.util.{Date, Map ⇒ JMap}
 import javax.servlet.http.{Cookie, HttpServletRequest}
 import org.apache.http.client.CookieStore
+import org.apache.http.cookie.CookieOrigin
+import org.apache.http.impl.client.BasicCookieStore
+import org.apache.http.impl.cookie.BrowserCompatSpec
+import org.apache.http.message.BasicHeader
 import org.apache.log4j.Level
 import org.orbeon.oxf.common.{ValidationException, OXFException}
 import org.orbeon.oxf.pipeline.api.ExternalContext
@@ -30,6 +34,7 @@ import org.orbeon.oxf.xml.dom4j.LocationData
 import org.apache.commons.lang3.StringUtils
 import Connection._
 import scala.util.control.NonFatal
+import scala.util.{Try, Failure, Success}
 
 /**
  * Connection to a URL.
@@ -191,6 +196,144 @@ class Connection(
             case NonFatal(t) ⇒ throw new ValidationException(t, new LocationData(connectionURL.toExternalForm, -1, -1))
         }
     }
+
+    // Whether connectAsync() can be used for this connection
+    def isAsyncSupported =
+        credentials.isEmpty && AsyncHTTPClient.isSupported(connectionURL)
+
+    /**
+     * Open the connection without holding a thread while waiting for the response.
+     *
+     * The callback is called on the I/O thread once the response has been received, so it must not block. As with
+     * connect():
+     *
+     * - the HTTP state is sent with the request and updated with the cookies set by the response, but not saved
+     * - redirects are followed as HttpClient does, and if a redirect leads to a URL connectAsync() doesn't support, the
+     *   callback is given a connection to that URL, to open with connect()
+     * - a large response body is not buffered in full, but is read with blocking reads from the response stream
+     */
+    def connectAsync(timeout: Long, callback: ConnectionCallback): Unit =
+        connectAsync(timeout, callback, MaxRedirects)
+
+    private def connectAsync(timeout: Long, callback: ConnectionCallback, redirectsLeft: Int): Unit = {
+
+        // Like HTTPURLConnection, start a new state if there is none
+        if (cookieStoreOption.isEmpty)
+            cookieStoreOption = Some(new BasicCookieStore)
+
+        val capitalizedHeaders =
+            for {
+                (name, values) ← headers.toList
+                if values ne null
+                value ← values
+                if value ne null
+            } yield
+                capitalizeCommonOrSplitHeader(name) → value
+
+        // Cookies from the HTTP state, as HTTPURLConnection would send them
+        val cookieHeaders = {
+            val now     = new Date
+            val cookies = cookieStoreOption.toList flatMap (_.getCookies.asScala) filter (c ⇒ ! c.isExpired(now) && cookieSpec.`match`(c, cookieOrigin))
+            if (cookies.nonEmpty) cookieSpec.formatCookies(cookies.asJava).asScala.toList map (h ⇒ h.getName → h.getValue) else Nil
+        }
+
+        requestBody foreach { messageBody ⇒
+            if (logBody) {
+                val contentType = headers.get("content-type") flatMap (_.lift(0)) getOrElse "application/octet-stream"
+                logRequestBody(logger, contentType, messageBody)
+            }
+        }
+
+        debug("opening asynchronous connection", Seq("method" → httpMethod, "URL" → connectionURL.toExternalForm) ++ capitalizedHeaders)
+
+        def fail(t: Throwable) =
+            callback.failed(new ValidationException(t, new LocationData(connectionURL.toExternalForm, -1, -1)))
+
+        AsyncHTTPClient.execute(httpMethod, connectionURL, capitalizedHeaders ++ cookieHeaders, requestBody, timeout) {
+            case Success(response) ⇒
+                // The callback runs on the I/O thread, which must not log with the caller's logger, as IndentedLogger
+                // is not thread-safe
+                val ioLogger = new IndentedLogger(logger, new IndentedLogger.Indentation, logger.isDebugEnabled)
+                Try {
+                    saveResponseCookies(response)
+                    redirectConnection(response)(ioLogger)
+                } match {
+                    case Success(Some(redirected)) ⇒
+                        response.body.close()
+                        if (redirectsLeft == 0)
+                            fail(new OXFException("Maximum redirects (" + MaxRedirects + ") exceeded"))
+                        else if (redirected.isAsyncSupported)
+                            redirected.connectAsync(timeout, callback, redirectsLeft - 1)
+                        else
+                            callback.connect(redirected)
+                    case Success(None) ⇒
+                        val connectionResult = new ConnectionResult(connectionURL.toExternalForm)
+                        connectionResult.statusCode = response.statusCode
+                        connectionResult.responseHeaders = (response.headers map { case (name, values) ⇒ name → values.asJava }).asJava
+                        connectionResult.setResponseContentType(response.header("content-type").orNull, "application/xml")
+                        connectionResult.setResponseInputStream(response.body)
+                        callback.completed(connectionResult)
+                    case Failure(t) ⇒
+                        response.body.close()
+                        fail(t)
+                }
+            case Failure(t) ⇒
+                fail(t)
+        }
+    }
+
+    private lazy val cookieSpec = new BrowserCompatSpec
+
+    private def cookieOrigin = {
+        val port = if (connectionURL.getPort == -1) connectionURL.getDefaultPort else connectionURL.getPort
+        new CookieOrigin(connectionURL.getHost, port, Option(connectionURL.getPath) filter (_.nonEmpty) getOrElse "/", false)
+    }
+
+    // Add the cookies set by the response to the HTTP state, as HttpClient does
+    private def saveResponseCookies(response: AsyncHTTPClient.Response): Unit =
+        for {
+            cookieStore    ← cookieStoreOption
+            (name, values) ← response.headers
+            if name.equalsIgnoreCase("set-cookie")
+            value          ← values
+            cookie         ← Try(cookieSpec.parse(new BasicHeader(name, value), cookieOrigin).asScala).getOrElse(Nil)
+            if Try(cookieSpec.validate(cookie, cookieOrigin)).isSuccess
+        } cookieStore.addCookie(cookie)
+
+    // Connection for the redirect the response asks for, if HttpClient would follow it
+    private def redirectConnection(response: AsyncHTTPClient.Response)(implicit logger: IndentedLogger): Option[Connection] = {
+
+        // Like HttpClient's DefaultRedirectStrategy: only GET and HEAD are redirected, except with 303 See Other
+        val redirectMethod =
+            response.statusCode match {
+                case 301 | 302 | 307 if Set("GET", "HEAD")(httpMethod) ⇒ Some(httpMethod)
+                case 303 ⇒ Some(if (httpMethod == "HEAD") "HEAD" else "GET")
+                case _   ⇒ None
+            }
+
+        for {
+            method   ← redirectMethod
+            location ← response.header("location")
+        } yield {
+            val url = new URL(connectionURL, location)
+            debug("following redirect", Seq("status code" → response.statusCode.toString, "method" → method, "URL" → url.toExternalForm))
+
+            val headersWithoutBody = if (method == httpMethod) headers else headers - "content-type"
+            val redirected = new Connection(method, url, credentials, None, headersWithoutBody, logBody)
+            redirected.cookieStoreOption = cookieStoreOption
+            redirected
+        }
+    }
+}
+
+/**
+ * Callback for Connection.connectAsync().
+ */
+trait ConnectionCallback {
+    def completed(connectionResult: ConnectionResult): Unit
+    def failed(throwable: Throwable): Unit
+    // The response must be obtained by calling connect() on the given connection, on a thread which may block
+    def connect(connection: Connection): Unit
 }
 
 trait ConnectionState {
@@ -264,6 +407,9 @@ object Connection extends Logging {
 
     val EmptyHeaders = Map.empty[String, Array[String]]
 
+    // Same limit as HttpClient
+    private val MaxRedirects = 100
+
     private val HttpForwardCookiesProperty = "oxf.http.forward-cookies"
     private val HttpForwardHeadersProperty = "oxf.http.forward-headers"
 
@@ -36,8 +36,8 @@ object XPathCache {
 
     import XPath._
 
-    private val XPathCacheName = "cache.xpath"
-    private val XPathCacheDefaultSize = 200
+    val XPathCacheName = "cache.xpath"
+    val XPathCacheDefaultSize = 200
     
     private val Logger = LoggerFactory.createLogger(getClass)
     
@@ -48,6 +48,27 @@ object XPathCache {
         functionContext: FunctionContext,
         baseURI: String,
         locationData: LocationData)
+
+    /**
+     * Handle on an expression known statically, typically held by static analysis.
+     *
+     * The handle remembers the pool of compiled expressions it resolved to, so that evaluating the expression again
+     * doesn't require building a cache key and looking up the cache, as long as the configuration, function library
+     * and in-scope variable names are the same as for the previous evaluation, which is the common case.
+     */
+    class XPathExpressionHandle(val xpathString: String, val namespaceMapping: NamespaceMapping, val isAVT: Boolean) {
+
+        @volatile private[XPathCache] var resolved: ResolvedPool = null
+
+        // Handle on the expression returning the string value of the first item of this expression
+        lazy val stringValueHandle = new XPathExpressionHandle("string((" + xpathString + ")[1])", namespaceMapping, isAVT = false)
+    }
+
+    private class ResolvedPool(
+        val configuration: Configuration,
+        val functionLibrary: FunctionLibrary,
+        val variableNames: List[String],
+        val pool: ObjectPool[PooledXPathExpression])
     
     // FIXME: Directly use GlobalConfiguration
     def getGlobalConfiguration = GlobalConfiguration
@@ -134,6 +155,28 @@ object XPathCache {
         }
     }
 
+    // Same as above but with an expression handle
+    def evaluateKeepItems(
+            contextItems: JList[Item],
+            contextPosition: Int,
+            handle: XPathExpressionHandle,
+            variableToValueMap: JMap[String, ValueRepresentation],
+            functionLibrary: FunctionLibrary,
+            functionContext: FunctionContext,
+            baseURI: String,
+            locationData: LocationData,
+            reporter: Reporter): JList[Item] = {
+
+        val xpathExpression =
+            getXPathExpression(
+                getGlobalConfiguration, contextItems, contextPosition, handle,
+                variableToValueMap, functionLibrary, baseURI, locationData)
+
+        withEvaluation(handle.xpathString, xpathExpression, locationData, reporter) {
+            xpathExpression.evaluateKeepItems(functionContext)
+        }
+    }
+
     // Evaluate an XPath expression on the document and keep Item objects in the result
     // 1 external usage
     def evaluateSingleKeepItems(
@@ -315,6 +358,28 @@ object XPathCache {
         }
     }
 
+    // Same as above but with an expression handle
+    def evaluateAsString(
+            contextItems: JList[Item],
+            contextPosition: Int,
+            handle: XPathExpressionHandle,
+            variableToValueMap: JMap[String, ValueRepresentation],
+            functionLibrary: FunctionLibrary,
+            functionContext: FunctionContext,
+            baseURI: String,
+            locationData: LocationData,
+            reporter: Reporter): String = {
+
+        val xpathExpression =
+            getXPathExpression(
+                getGlobalConfiguration, contextItems, contextPosition, handle.stringValueHandle,
+                variableToValueMap, functionLibrary, baseURI, locationData)
+
+        withEvaluation(handle.xpathString, xpathExpression, locationData, reporter) {
+            Option(xpathExpression.evaluateSingleKeepNodeInfoOrNull(functionContext)) map (_.toString) orNull
+        }
+    }
+
     // No call from XForms
     def getXPathExpression(
         configuration: Configuration, contextItem: Item, xpathString: String,
@@ -355,66 +420,140 @@ object XPathCache {
             functionLibrary: FunctionLibrary,
             baseURI: String,
             isAVT: Boolean,
-            locationData: LocationData): PooledXPathExpression = {
+            locationData: LocationData): PooledXPathExpression =
         try {
-            // Find pool from cache
-            val validity = 0L
-            val cache = ObjectCache.instance(XPathCacheName, XPathCacheDefaultSize)
-            val cacheKeyString = new StringBuilder(xpathString)
-
-            if (functionLibrary ne null) {// This is ok
-                cacheKeyString.append('|')
-                cacheKeyString.append(functionLibrary.hashCode.toString)
-            }
-            // NOTE: Mike Kay confirms on 2007-07-04 that compilation depends on the namespace context, so we need
-            // to use it as part of the cache key.
-            if (namespaceMapping ne null) {
-                // NOTE: Hash is mandatory in NamespaceMapping
-                cacheKeyString.append('|')
-                cacheKeyString.append(namespaceMapping.hash)
-            }
+            val pool =
+                findOrCreatePool(
+                    configuration, xpathString, namespaceMapping, variableNames(variableToValueMap),
+                    functionLibrary, baseURI, isAVT, locationData)
+
+            borrowExpression(pool, contextItems, contextPosition, variableToValueMap)
+        } catch {
+            case NonFatal(t) ⇒ throw handleXPathException(t, xpathString, "preparing XPath expression", locationData)
+        }
 
-            // NOTE: Make sure to copy the values in the key set, as the set returned by the map keeps a pointer to the
-            // Map! This can cause the XPath cache to keep a reference to variable values, which in turn can keep a
-            // reference all the way to e.g. an XFormsContainingDocument.
-            val variableNames = Option(variableToValueMap) map (_.keySet.asScala.toList) getOrElse List()
-
-            if (variableNames.size > 0) {
-                // There are some variables in scope. They must be part of the key
-                // TODO: Put this in static state as this can be determined statically once and for all
-                for (variableName ← variableNames) {
-                    cacheKeyString.append('|')
-                    cacheKeyString.append(variableName)
+    private def getXPathExpression(
+            configuration: Configuration,
+            contextItems: JList[Item],
+            contextPosition: Int,
+            handle: XPathExpressionHandle,
+            variableToValueMap: JMap[String, ValueRepresentation],
+            functionLibrary: FunctionLibrary,
+            baseURI: String,
+            locationData: LocationData): PooledXPathExpression =
+        try {
+            val resolved = handle.resolved
+
+            val pool =
+                if ((resolved ne null) &&
+                        (resolved.configuration eq configuration) &&
+                        (resolved.functionLibrary eq functionLibrary) &&
+                        sameVariableNames(resolved.variableNames, variableToValueMap))
+                    resolved.pool
+                else {
+                    val names = variableNames(variableToValueMap)
+                    val pool =
+                        findOrCreatePool(
+                            configuration, handle.xpathString, handle.namespaceMapping, names,
+                            functionLibrary, baseURI, handle.isAVT, locationData)
+
+                    handle.resolved = new ResolvedPool(configuration, functionLibrary, names, pool)
+                    pool
                 }
+
+            borrowExpression(pool, contextItems, contextPosition, variableToValueMap)
+        } catch {
+            case NonFatal(t) ⇒ throw handleXPathException(t, handle.xpathString, "preparing XPath expression", locationData)
+        }
+
+    // NOTE: Make sure to copy the values in the key set, as the set returned by the map keeps a pointer to the
+    // Map! This can cause the XPath cache to keep a reference to variable values, which in turn can keep a
+    // reference all the way to e.g. an XFormsContainingDocument.
+    private def variableNames(variableToValueMap: JMap[String, ValueRepresentation]) =
+        Option(variableToValueMap) map (_.keySet.asScala.toList) getOrElse List()
+
+    // Whether the map has the given variable names, in the same order, without creating a list of names
+    private def sameVariableNames(names: List[String], variableToValueMap: JMap[String, ValueRepresentation]) =
+        if (variableToValueMap eq null)
+            names.isEmpty
+        else if (variableToValueMap.size != names.size)
+            false
+        else {
+            val keys = variableToValueMap.keySet.iterator
+            var remaining = names
+            var same = true
+            while (same && keys.hasNext) {
+                same = keys.next() == remaining.head
+                remaining = remaining.tail
             }
+            same
+        }
 
-            // Add this to the key as evaluating "name" as XPath or as AVT is very different!
-            cacheKeyString.append('|')
-            cacheKeyString.append(isAVT.toString)
+    private def findOrCreatePool(
+            configuration: Configuration,
+            xpathString: String,
+            namespaceMapping: NamespaceMapping,
+            variableNames: List[String],
+            functionLibrary: FunctionLibrary,
+            baseURI: String,
+            isAVT: Boolean,
+            locationData: LocationData): ObjectPool[PooledXPathExpression] = {
 
-            // TODO: Add baseURI to cache key (currently, baseURI is pretty much unused)
+        // Find pool from cache
+        val validity = 0L
+        val cache = ObjectCache.instance(XPathCacheName, XPathCacheDefaultSize)
+        val cacheKeyString = new StringBuilder(xpathString)
 
-            val pooledXPathExpression = {
-                val cacheKey = new InternalCacheKey("XPath Expression2", cacheKeyString.toString)
-                var pool = cache.findValid(cacheKey, validity).asInstanceOf[ObjectPool[PooledXPathExpression]]
-                if (pool eq null) {
-                    pool = createXPathPool(configuration, xpathString, namespaceMapping, variableNames, functionLibrary, baseURI, isAVT, locationData)
-                    cache.add(cacheKey, validity, pool)
-                }
-                // Get object from pool
-                pool.borrowObject
-            }
+        if (functionLibrary ne null) {// This is ok
+            cacheKeyString.append('|')
+            cacheKeyString.append(functionLibrary.hashCode.toString)
+        }
+        // NOTE: Mike Kay confirms on 2007-07-04 that compilation depends on the namespace context, so we need
+        // to use it as part of the cache key.
+        if (namespaceMapping ne null) {
+            // NOTE: Hash is mandatory in NamespaceMapping
+            cacheKeyString.append('|')
+            cacheKeyString.append(namespaceMapping.hash)
+        }
 
-            // Set context items and position
-            pooledXPathExpression.setContextItems(contextItems, contextPosition)
+        // There are some variables in scope. They must be part of the key
+        // NOTE: Expressions known statically use an XPathExpressionHandle, which avoids building the key.
+        for (variableName ← variableNames) {
+            cacheKeyString.append('|')
+            cacheKeyString.append(variableName)
+        }
 
-            // Set variables
-            pooledXPathExpression.setVariables(variableToValueMap)
+        // Add this to the key as evaluating "name" as XPath or as AVT is very different!
+        cacheKeyString.append('|')
+        cacheKeyString.append(isAVT.toString)
 
-            pooledXPathExpression
-        } catch {
-            case NonFatal(t) ⇒ throw handleXPathException(t, xpathString, "preparing XPath expression", locationData)
+        // TODO: Add baseURI to cache key (currently, baseURI is pretty much unused)
+
+        val cacheKey = new InternalCacheKey("XPath Expression2", cacheKeyString.toString)
+        var pool = cache.findValid(cacheKey, validity).asInstanceOf[ObjectPool[PooledXPathExpression]]
+        if (pool eq null) {
+            pool = createXPathPool(configuration, xpathString, namespaceMapping, variableNames, functionLibrary, baseURI, isAVT, locationData)
+            cache.add(cacheKey, validity, pool)
         }
+        pool
+    }
+
+    private def borrowExpression(
+            pool: ObjectPool[PooledXPathExpression],
+            contextItems: JList[Item],
+            contextPosition: Int,
+            variableToValueMap: JMap[String, ValueRepresentation]) = {
+
+        // Get object from pool
+        val pooledXPathExpression = pool.borrowObject
+
+        // Set context items and position
+        pooledXPathExpression.setContextItems(contextItems, contextPosition)
+
+        // Set variables
+        pooledXPathExpression.setVariables(variableToValueMap)
+
+        pooledXPathExpression
     }
 
     private def createXPathPool(
@@ -19,6 +19,7 @@ import org.apache.commons.lang3.StringUtils
 import org.orbeon.oxf.common.{OXFException, Version}
 import org.orbeon.oxf.properties.Properties
 import org.orbeon.oxf.pipeline.InitUtils
+import org.orbeon.oxf.xforms.state.XFormsStaticStateCache
 import collection.JavaConverters._
 
 // Orbeon web app initialization
@@ -35,6 +36,7 @@ object Orbeon {
     // - version check
     // - logger (based on properties)
     // - processor registry
+    // - static state cache restored from disk
     def initialize(context: WebAppContext) = {
         // Check whether logging initialization is disabled
         val initializeLogging = context.initParameters.get(LoggingProperty) != Some("false")
@@ -77,5 +79,8 @@ object Orbeon {
 
         // 5. Register processor definitions with the default XML Processor Registry
         InitUtils.processorDefinitions
+
+        // 6. Start restoring static states stored on disk, if enabled
+        XFormsStaticStateCache.instance.warm()
     }
 }
@@ -28,7 +28,8 @@ import javax.xml.transform.stream.StreamResult
 import collection.JavaConverters._
 import org.orbeon.oxf.common.OXFException
 import org.orbeon.oxf.xforms.XFormsServerSharedInstancesCache.Loader
-import org.orbeon.saxon.om.{NodeInfo, VirtualNode, DocumentInfo}
+import org.orbeon.saxon.om.{Item, NodeInfo, VirtualNode, DocumentInfo}
+import java.util.{List ⇒ JList}
 import org.orbeon.oxf.util._
 import org.orbeon.oxf.xforms.state.InstanceState
 
@@ -90,12 +91,17 @@ class XFormsInstance(
         var valid: Boolean)                                     // whether the instance was valid as of the last revalidation
     extends ListenersTrait
     with XFormsInstanceIndex
+    with XFormsInstanceLazyMutation
     with XFormsEventObserver
     with Logging {
 
     require(! (_readonly && _documentInfo.isInstanceOf[VirtualNode]))
 
     requireNewIndex()
+    shareIfCached()
+
+    if (instance.lazyMutable)
+        containingDocument.addLazyMutableInstance(this)
 
     def containingDocument = parent.containingDocument
 
@@ -113,15 +119,26 @@ class XFormsInstance(
 
     // Update the instance upon submission with instance replacement
     def update(instanceCaching: Option[InstanceCaching], documentInfo: DocumentInfo, readonly: Boolean): Unit = {
+        if (isSharedContent)
+            XFormsServerSharedInstancesCache.unshare(this)
+
         _instanceCaching = instanceCaching
         _documentInfo = documentInfo
         _readonly = readonly
 
         requireNewIndex()
+        shareIfCached()
 
         markModified()
     }
 
+    // Whether the document comes from the shared instances cache without a copy
+    def isSharedContent = _readonly && _instanceCaching.isDefined
+
+    private def shareIfCached() =
+        if (isSharedContent)
+            XFormsServerSharedInstancesCache.share(this)
+
     def exposeXPathTypes = instance.exposeXPathTypes
     def isSchemaValidation = instance.isSchemaValidation && ! _readonly
 
@@ -474,6 +491,128 @@ trait XFormsInstanceIndex {
             addId(id, element)
 }
 
+// For lazily mutable instances, keep the content as a compact readonly tree until the first mutation, and only then
+// convert it to a mutable dom4j document. This saves memory for large instances which are mostly read, such as
+// service responses. With xxf:cache="true", the readonly tree is shared with other documents until then.
+//
+// Implementation notes:
+//
+// - mutation entry points (setvalue, insert, delete, controls) obtain the node to mutate with mutableNode()
+// - the whole document is converted at once and replaced, so bindings are updated with the following rebuild and
+//   refresh, as with a submission with replace="instance"
+// - binds and schema validation require a mutable document, so the model converts instances they may apply to
+//   upon rebuild
+// - nodes obtained before the conversion, e.g. by an action with @iterate, are mapped by position to nodes of the
+//   converted document until the structure of the instance changes or the model is rebuilt
+trait XFormsInstanceLazyMutation {
+
+    self: XFormsInstance ⇒
+
+    import org.orbeon.saxon.om.Axis
+    import org.w3c.dom.Node.{ATTRIBUTE_NODE, DOCUMENT_NODE, ELEMENT_NODE, TEXT_NODE, COMMENT_NODE, PROCESSING_INSTRUCTION_NODE}
+
+    private var formerDocumentInfo: DocumentInfo = _
+
+    // Whether the content is a readonly tree to convert upon first mutation
+    def isLazyMutable = readonly && instance.lazyMutable
+
+    // Whether the given document was the content of the instance before it was converted
+    def isFormerDocument(documentInfo: DocumentInfo) =
+        (formerDocumentInfo ne null) && formerDocumentInfo.isSameNodeInfo(documentInfo)
+
+    // Stop mapping nodes of the former document to the current document
+    def forgetFormerDocument() =
+        formerDocumentInfo = null
+
+    // Return the node to mutate in place of the given node of this instance, converting the content if needed
+    def mutableNode(node: NodeInfo): NodeInfo =
+        if (node.isInstanceOf[VirtualNode])
+            node
+        else {
+            val documentRoot = node.getDocumentRoot
+            if (isLazyMutable && documentInfo.isSameNodeInfo(documentRoot))
+                convertToMutable()
+
+            if (isFormerDocument(documentRoot))
+                correspondingNode(node) getOrElse node
+            else
+                node
+        }
+
+    // Convert the content to a mutable document
+    def convertToMutable(): Unit = {
+
+        implicit val logger = containingDocument.getIndentedLogger(XFormsModel.LOGGING_CATEGORY)
+        debug("converting lazily mutable instance", Seq("instance effective id" → getEffectiveId))
+
+        val readonlyDocumentInfo = documentInfo
+
+        // The content won't match cached content anymore once mutated
+        replace(
+            XFormsInstance.wrapDocumentInfo(readonlyDocumentInfo, readonly = false, exposeXPathTypes),
+            dispatch = false,
+            instanceCaching = None,
+            isReadonly = false)
+
+        formerDocumentInfo = readonlyDocumentInfo
+    }
+
+    // Find the node of the current document at the same position as the given node of the former document
+    // NOTE: Positions only count siblings of the same kind, so that setting the value of an element doesn't change
+    // the position of its sibling elements.
+    private def correspondingNode(node: NodeInfo): Option[NodeInfo] = {
+        val nodeKind = node.getNodeKind
+        if (nodeKind == DOCUMENT_NODE)
+            Some(documentInfo)
+        else if (nodeKind == ATTRIBUTE_NODE)
+            correspondingNode(node.getParent) flatMap (attributeLike(_, node))
+        else if (nodeKind == ELEMENT_NODE || nodeKind == TEXT_NODE || nodeKind == COMMENT_NODE || nodeKind == PROCESSING_INSTRUCTION_NODE)
+            correspondingNode(node.getParent) flatMap (childAt(_, nodeKind, positionAmongSiblings(node)))
+        else
+            None
+    }
+
+    private def positionAmongSiblings(node: NodeInfo) = {
+        val iterator = node.iterateAxis(Axis.PRECEDING_SIBLING)
+        var position = 0
+        var next = iterator.next()
+        while (next ne null) {
+            if (next.asInstanceOf[NodeInfo].getNodeKind == node.getNodeKind)
+                position += 1
+            next = iterator.next()
+        }
+        position
+    }
+
+    private def childAt(parent: NodeInfo, nodeKind: Int, position: Int): Option[NodeInfo] = {
+        val iterator = parent.iterateAxis(Axis.CHILD)
+        var remaining = position
+        var next = iterator.next()
+        while (next ne null) {
+            val child = next.asInstanceOf[NodeInfo]
+            if (child.getNodeKind == nodeKind) {
+                if (remaining == 0)
+                    return Some(child)
+                remaining -= 1
+            }
+            next = iterator.next()
+        }
+        None
+    }
+
+    private def attributeLike(element: NodeInfo, attribute: NodeInfo): Option[NodeInfo] = {
+        val iterator = element.iterateAxis(Axis.ATTRIBUTE)
+        var next = iterator.next()
+        while (next ne null) {
+            val candidate = next.asInstanceOf[NodeInfo]
+            if (candidate.getLocalPart == attribute.getLocalPart && candidate.getURI == attribute.getURI)
+                return Some(candidate)
+            next = iterator.next()
+        }
+        None
+    }
+}
+
 object XFormsInstance extends Logging {
 
     import Instance._
@@ -489,6 +628,38 @@ object XFormsInstance extends Logging {
             false,
             true)
 
+    // Return the node to mutate in place of the given node, converting a lazily mutable instance if needed
+    def findMutableNode(containingDocument: XFormsContainingDocument, nodeInfo: NodeInfo): NodeInfo =
+        nodeInfo match {
+            case virtualNode: VirtualNode ⇒ virtualNode
+            case _ ⇒ Option(containingDocument.getInstanceForNode(nodeInfo)) map (_.mutableNode(nodeInfo)) getOrElse nodeInfo
+        }
+
+    // Whether the node can be written to although it is not mutable yet
+    // NOTE: This is called for controls bound to readonly nodes upon each refresh, so only the instances declared
+    // lazily mutable are checked, rather than searching all the instances.
+    def isLazyMutableNode(containingDocument: XFormsContainingDocument, nodeInfo: NodeInfo) =
+        ! nodeInfo.isInstanceOf[VirtualNode] && {
+            val instances = containingDocument.getLazyMutableInstances
+            ! instances.isEmpty && {
+                val documentRoot = nodeInfo.getDocumentRoot
+                instances.asScala exists { instance ⇒
+                    instance.isLazyMutable &&
+                    instance.documentInfo.isSameNodeInfo(documentRoot) &&
+                    instance.container.isRelevant &&
+                    (instance.parent.getInstance(instance.getId) eq instance) // not replaced in its model
+                }
+            }
+        }
+
+    // Same as findMutableNode for a sequence of items
+    // All the nodes are found before any of them is mutated, as mutations can change the position of nodes
+    def findMutableNodesJava(containingDocument: XFormsContainingDocument, items: JList[Item]): JList[Item] =
+        (items.asScala map {
+            case nodeInfo: NodeInfo ⇒ findMutableNode(containingDocument, nodeInfo): Item
+            case item               ⇒ item
+        }).asJava
+
     def createDocumentInfo(documentOrDocumentInfo: AnyRef, exposeXPathTypes: Boolean) = documentOrDocumentInfo match {
         case dom4jDocument: Document    ⇒ wrapDocument(dom4jDocument, exposeXPathTypes)
         case documentInfo: DocumentInfo ⇒ documentInfo
@@ -13,12 +13,18 @@
  */
 package org.orbeon.oxf.xforms
 
-import analysis.model.Instance
+import analysis.model.InstanceMetadata
+import org.orbeon.exception.OrbeonFormatter
 import org.orbeon.oxf.cache.InternalCacheKey
 import org.orbeon.oxf.cache.ObjectCache
+import org.orbeon.oxf.properties.Properties
 import org.orbeon.oxf.util.IndentedLogger
 import org.orbeon.saxon.om.{VirtualNode, DocumentInfo}
 import XFormsInstance._
+import java.util.WeakHashMap
+import java.util.concurrent._
+import java.util.concurrent.atomic.AtomicLong
+import scala.util.control.NonFatal
 
 /**
  * Cache for shared and immutable XForms instances.
@@ -30,62 +36,238 @@ object XFormsServerSharedInstancesCache {
     private val ConstantValidity = 0L
     private val SharedInstanceKeyType = XFormsSharedInstancesCacheName
 
+    // Fraction of the time to live after which instances are loaded again
+    private val RefreshAfter = 0.9
+    // Maximum time to wait for a load by another request before loading the instance again
+    private val MaxLoadWaitProperty = "oxf.xforms.cache.shared-instances.max-load-wait"
+    private val MaxLoadWaitDefault = 30 * 1000
+
     // Equivalent to load: (String, Boolean) ⇒ DocumentInfo
     trait Loader {
         def load(instanceSourceURI: String, handleXInclude: Boolean): DocumentInfo
     }
 
     private case class InstanceContent(documentInfo: DocumentInfo) { require(! documentInfo.isInstanceOf[VirtualNode]) }
-    private case class CacheEntry(instanceContent: InstanceContent, timeToLive: Long, timestamp: Long = System.currentTimeMillis)
+    private case class CacheEntry(instanceContent: InstanceContent, timeToLive: Long, timestamp: Long = System.currentTimeMillis) {
+        private def age = System.currentTimeMillis - timestamp
+        def isExpired    = timeToLive >= 0 && age > timeToLive
+        def needsRefresh = timeToLive >= 0 && age > timeToLive * RefreshAfter
+    }
+
+    // Instances which refer to each shared document, i.e. the number of XForms documents sharing it
+    // Both are weakly referenced, so that documents and instances which are not used anymore are not counted.
+    private val sharingInstances = new WeakHashMap[DocumentInfo, WeakHashMap[XFormsInstance, java.lang.Boolean]]
+
+    // Record that the instance refers to its shared document, until unshare() is called
+    def share(instance: XFormsInstance): Unit = sharingInstances.synchronized {
+        val instances =
+            Option(sharingInstances.get(instance.documentInfo)) getOrElse {
+                val newInstances = new WeakHashMap[XFormsInstance, java.lang.Boolean]
+                sharingInstances.put(instance.documentInfo, newInstances)
+                newInstances
+            }
+        instances.put(instance, java.lang.Boolean.TRUE)
+    }
+
+    def unshare(instance: XFormsInstance): Unit = sharingInstances.synchronized {
+        Option(sharingInstances.get(instance.documentInfo)) foreach (_.remove(instance))
+    }
+
+    // Number of instances which share the given document
+    def sharingCount(documentInfo: DocumentInfo) = sharingInstances.synchronized {
+        Option(sharingInstances.get(documentInfo)) map (_.size) getOrElse 0
+    }
+
+    // Loads in progress by cache key, so that concurrent requests for the same instance wait for a single load
+    private class Load(val thread: Thread, task: Callable[DocumentInfo]) extends FutureTask[DocumentInfo](task)
+    private val loads = new ConcurrentHashMap[InternalCacheKey, Load]
+
+    // Statistics
+    private val hitCount       = new AtomicLong
+    private val staleHitCount  = new AtomicLong
+    private val missCount      = new AtomicLong
+    private val loadCount      = new AtomicLong
+    private val waitCount      = new AtomicLong
+    private val failedCount    = new AtomicLong
+    private val totalLoadTime  = new AtomicLong
+    private val maxLoadTime    = new AtomicLong
+
+    def statistics = Seq(
+        "hits"              → hitCount.get.toString,
+        "stale hits"        → staleHitCount.get.toString,
+        "misses"            → missCount.get.toString,
+        "loads"             → loadCount.get.toString,
+        "coalesced loads"   → waitCount.get.toString,
+        "failed loads"      → failedCount.get.toString,
+        "average load time" → (if (loadCount.get > 0) totalLoadTime.get / loadCount.get else 0L).toString,
+        "max load time"     → maxLoadTime.get.toString
+    )
 
     // Try to find instance content in the cache but do not attempt to load it if not found
     def findContentOrNull(
             indentedLogger: IndentedLogger,
-            instance: Instance,
+            instance: InstanceMetadata,
             instanceCaching: InstanceCaching,
-            readonly: Boolean) =
-        find(instanceCaching)(indentedLogger) map (wrapDocumentInfo(_, readonly, instance.exposeXPathTypes)) orNull
+            readonly: Boolean) = {
+
+        implicit val logger = indentedLogger
+
+        val cacheKey = createCacheKey(instanceCaching)
+
+        find(instanceCaching) match {
+            case Some(cacheEntry) if ! cacheEntry.isExpired ⇒
+                foundContent(instanceCaching, cacheEntry, stale = false)
+                wrapDocumentInfo(cacheEntry.instanceContent.documentInfo, readonly, instance.exposeXPathTypes)
+            case Some(cacheEntry) if loads.containsKey(cacheKey) ⇒
+                // Serve the expired content while it is being loaded again
+                foundContent(instanceCaching, cacheEntry, stale = true)
+                wrapDocumentInfo(cacheEntry.instanceContent.documentInfo, readonly, instance.exposeXPathTypes)
+            case Some(cacheEntry) ⇒
+                debug("expiring cached instance", instanceCaching.debugPairs)
+                cache.remove(cacheKey)
+                missCount.incrementAndGet()
+                null
+            case None ⇒
+                missCount.incrementAndGet()
+                null
+        }
+    }
 
     // Try to find instance content in the cache or load it
+    //
+    // - Only one load takes place at a time for a given instance. Concurrent requests for the same instance wait for
+    //   the result of that load, including its failure, instead of loading the instance again.
+    // - A request waits for a load by another request up to oxf.xforms.cache.shared-instances.max-load-wait, after
+    //   which it loads the instance itself. The other waiting requests then wait for that load.
+    // - Toward the end of its time to live, and after it, the content is loaded again by the first request which
+    //   sees it. Concurrent requests are served the existing content in the meanwhile. The load is not done in the
+    //   background, as the loader depends on the requesting document, e.g. to run a submission.
     def findContentOrLoad(
             indentedLogger: IndentedLogger,
-            instance: Instance,
+            instance: InstanceMetadata,
             instanceCaching: InstanceCaching,
             readonly: Boolean,
             loader: Loader) = {
 
         implicit val logger = indentedLogger
 
-        // Add an entry to the cache
-        def add(instanceContent: InstanceContent, timeToLive: Long) = {
+        val cacheKey = createCacheKey(instanceCaching)
+
+        val documentInfo =
+            find(instanceCaching) match {
+                case Some(cacheEntry) if ! cacheEntry.needsRefresh ⇒
+                    foundContent(instanceCaching, cacheEntry, stale = false)
+                    cacheEntry.instanceContent.documentInfo
+                case Some(cacheEntry) ⇒
+                    def existingContent() = {
+                        foundContent(instanceCaching, cacheEntry, stale = true)
+                        cacheEntry.instanceContent.documentInfo
+                    }
+                    // Load new content unless another request is already doing it, in which case serve existing content
+                    try tryLoad(instanceCaching, cacheKey, loader) getOrElse existingContent()
+                    catch {
+                        case NonFatal(t) if ! cacheEntry.isExpired ⇒
+                            warn("failed to load instance again, using cached instance", instanceCaching.debugPairs :+ ("throwable" → OrbeonFormatter.format(t)))
+                            existingContent()
+                    }
+                case None ⇒
+                    missCount.incrementAndGet()
+                    tryLoad(instanceCaching, cacheKey, loader) getOrElse waitForLoad(instanceCaching, cacheKey, loader)
+            }
 
-            debug("adding instance", instanceCaching.debugPairs)
+        wrapDocumentInfo(documentInfo, readonly, instance.exposeXPathTypes)
+    }
+
+    // Load the content if no other load is in progress for the same key, and return None otherwise
+    private def tryLoad(instanceCaching: InstanceCaching, cacheKey: InternalCacheKey, loader: Loader)(implicit logger: IndentedLogger): Option[DocumentInfo] = {
 
-            val cache = ObjectCache.instance(XFormsSharedInstancesCacheName, XFormsSharedInstancesCacheDefaultSize)
-            val cacheKey = createCacheKey(instanceCaching)
+        val load = newLoad(instanceCaching, cacheKey, loader)
 
-            cache.add(cacheKey, ConstantValidity, CacheEntry(instanceContent, timeToLive))
+        if (loads.putIfAbsent(cacheKey, load) eq null)
+            Some(runLoad(cacheKey, load))
+        else
+            None
+    }
+
+    private def newLoad(instanceCaching: InstanceCaching, cacheKey: InternalCacheKey, loader: Loader)(implicit logger: IndentedLogger) =
+        new Load(Thread.currentThread, new Callable[DocumentInfo] {
+            def call() = loadAndCache(instanceCaching, cacheKey, loader)
+        })
+
+    // Run a load registered for the key, and unregister it when done
+    private def runLoad(cacheKey: InternalCacheKey, load: Load): DocumentInfo =
+        try {
+            load.run()
+            result(load.get)
+        } finally
+            loads.remove(cacheKey, load)
+
+    // Wait for the load in progress for the same key, if any, and return its result
+    private def waitForLoad(instanceCaching: InstanceCaching, cacheKey: InternalCacheKey, loader: Loader)(implicit logger: IndentedLogger): DocumentInfo =
+        Option(loads.get(cacheKey)) match {
+            case Some(load) if load.thread eq Thread.currentThread ⇒
+                // The loader requires the instance it is loading, e.g. via an XForms page using the same instance: in
+                // this case, waiting would never end
+                loadAndCache(instanceCaching, cacheKey, loader)
+            case Some(load) ⇒
+                waitCount.incrementAndGet()
+                debug("waiting for instance being loaded", instanceCaching.debugPairs)
+                try result(load.get(maxLoadWait, TimeUnit.MILLISECONDS))
+                catch {
+                    case e: TimeoutException ⇒
+                        // Loads can depend on each other across threads, e.g. an instance loaded from an XForms page
+                        // which itself loads the same instance, so don't wait forever. Only the first waiter to time
+                        // out loads the instance again, and the other waiters wait for that load.
+                        val takeOver = newLoad(instanceCaching, cacheKey, loader)
+                        if (loads.replace(cacheKey, load, takeOver)) {
+                            warn("instance load taking too long, loading instance again", instanceCaching.debugPairs)
+                            runLoad(cacheKey, takeOver)
+                        } else
+                            waitForLoad(instanceCaching, cacheKey, loader)
+                }
+            case None ⇒
+                // The load completed in the meanwhile
+                find(instanceCaching) map (_.instanceContent.documentInfo) getOrElse
+                    (tryLoad(instanceCaching, cacheKey, loader) getOrElse waitForLoad(instanceCaching, cacheKey, loader))
         }
 
-        // Load and cache new instance content
-        def loadAndCache() = {
-            // Note that this method is not synchronized. Scenario: if the method is synchronized, the resource URI may
-            // reach an XForms page which itself needs to load a shared resource. The result would be a deadlock.
-            // Without synchronization, what can happen is that two concurrent requests load the same URI at the same
-            // time. In the worst case scenario, the results will be different, and the two requesting XForms instances
-            // will be different. The instance that is retrieved first will be stored in the cache for a very short
-            // amount of time, and the one retrieved last will win and be stored in the cache for a longer time.
-            debug("loading instance into cache", instanceCaching.debugPairs)
-
-            val instanceContent = loader.load(instanceCaching.sourceURI, instanceCaching.handleXInclude)
-            // NOTE: load() must always returns a TinyTree because we don't want to put in cache a mutable document
-            assert(! instanceContent.isInstanceOf[VirtualNode], "load() must return a TinyTree")
-
-            add(InstanceContent(instanceContent), instanceCaching.timeToLive)
-            Some(instanceContent)
+    private def maxLoadWait =
+        Properties.instance.getPropertySet.getInteger(MaxLoadWaitProperty, MaxLoadWaitDefault).longValue
+
+    private def result(load: ⇒ DocumentInfo): DocumentInfo =
+        try load
+        catch {
+            case e: ExecutionException ⇒ throw e.getCause
         }
 
-        find(instanceCaching) orElse loadAndCache map (wrapDocumentInfo(_, readonly, instance.exposeXPathTypes)) get
+    // Load and cache new instance content
+    private def loadAndCache(instanceCaching: InstanceCaching, cacheKey: InternalCacheKey, loader: Loader)(implicit logger: IndentedLogger): DocumentInfo = {
+        // Note that this method is not synchronized. Scenario: if the method is synchronized, the resource URI may
+        // reach an XForms page which itself needs to load a shared resource. The result would be a deadlock. So
+        // loads are coalesced per key only, and a load doesn't wait for itself or for too long for another one.
+        debug("loading instance into cache", instanceCaching.debugPairs)
+
+        val startTime = System.currentTimeMillis
+        val instanceContent =
+            try loader.load(instanceCaching.sourceURI, instanceCaching.handleXInclude)
+            catch {
+                case NonFatal(t) ⇒
+                    failedCount.incrementAndGet()
+                    throw t
+            }
+
+        val loadTime = System.currentTimeMillis - startTime
+        loadCount.incrementAndGet()
+        totalLoadTime.addAndGet(loadTime)
+        updateMax(maxLoadTime, loadTime)
+
+        // NOTE: load() must always returns a TinyTree because we don't want to put in cache a mutable document
+        assert(! instanceContent.isInstanceOf[VirtualNode], "load() must return a TinyTree")
+
+        debug("adding instance", instanceCaching.debugPairs :+ ("load time" → loadTime.toString))
+        cache.add(cacheKey, ConstantValidity, CacheEntry(InstanceContent(instanceContent), instanceCaching.timeToLive))
+
+        instanceContent
     }
 
     // Remove the given entry from the cache if present
@@ -93,44 +275,34 @@ object XFormsServerSharedInstancesCache {
         implicit val logger = indentedLogger
         debug("removing instance", Seq("URI" → instanceSourceURI, "request hash" → requestBodyHash))
 
-        val cache = ObjectCache.instance(XFormsSharedInstancesCacheName, XFormsSharedInstancesCacheDefaultSize)
         val cacheKey = createCacheKey(instanceSourceURI, handleXInclude, Option(requestBodyHash))
         cache.remove(cacheKey)
     }
 
     // Empty the cache
     def removeAll(indentedLogger: IndentedLogger): Unit = {
-        val cache = ObjectCache.instance(XFormsSharedInstancesCacheName, XFormsSharedInstancesCacheDefaultSize)
         val count = cache.removeAll()
 
         implicit val logger = indentedLogger
         debug("removed all instances", Seq("count" → count.toString))
     }
 
-    // Find instance content in cache
-    private def find(instanceCaching: InstanceCaching)(implicit logger: IndentedLogger) = {
+    private def cache = ObjectCache.instance(XFormsSharedInstancesCacheName, XFormsSharedInstancesCacheDefaultSize)
 
-        val cache = ObjectCache.instance(XFormsSharedInstancesCacheName, XFormsSharedInstancesCacheDefaultSize)
-        val cacheKey = createCacheKey(instanceCaching)
+    // Find instance content in cache, whether it has expired or not
+    private def find(instanceCaching: InstanceCaching) =
+        Option(cache.findValid(createCacheKey(instanceCaching), ConstantValidity).asInstanceOf[CacheEntry])
 
-        def isExpired(cacheEntry: CacheEntry) =
-            cacheEntry.timeToLive >= 0 && ((cacheEntry.timestamp + cacheEntry.timeToLive) < System.currentTimeMillis)
+    private def foundContent(instanceCaching: InstanceCaching, cacheEntry: CacheEntry, stale: Boolean)(implicit logger: IndentedLogger) = {
+        (if (stale) staleHitCount else hitCount).incrementAndGet()
+        debug(if (stale) "found stale cached instance" else "found cached instance",
+            instanceCaching.debugPairs :+ ("sharing instances" → sharingCount(cacheEntry.instanceContent.documentInfo).toString))
+    }
 
-        Option(cache.findValid(cacheKey, ConstantValidity).asInstanceOf[CacheEntry]) match {
-            case Some(cacheEntry) if isExpired(cacheEntry) ⇒
-                // Remove expired entry
-                debug("expiring cached instance", instanceCaching.debugPairs)
-                cache.remove(cacheKey)
-                None
-            case Some(cacheEntry) ⇒
-                // Instance was found
-                debug("found cached instance", instanceCaching.debugPairs)
-                Some(cacheEntry.instanceContent.documentInfo)
-            case _ ⇒
-                // Not found
-                debug("cached instance not found", instanceCaching.debugPairs)
-                None
-        }
+    private def updateMax(max: AtomicLong, value: Long): Unit = {
+        var current = max.get
+        while (value > current && ! max.compareAndSet(current, value))
+            current = max.get
     }
 
     // Make key also depend on handleXInclude and on request body hash if present
@@ -13,7 +13,7 @@
  */
 package org.orbeon.oxf.xforms.action.actions
 
-import org.orbeon.oxf.xforms.XFormsConstants
+import org.orbeon.oxf.xforms.{XFormsInstance, XFormsConstants}
 import org.orbeon.oxf.common.OXFException
 import org.orbeon.saxon.om.NodeInfo
 import org.orbeon.oxf.xforms.model.DataModel
@@ -50,7 +50,8 @@ class XFormsSetvalueAction extends XFormsAction {
 
         // Set the value on target node if possible
         contextStack.getCurrentSingleItem match {
-            case nodeInfo: NodeInfo ⇒
+            case boundNodeInfo: NodeInfo ⇒
+                val nodeInfo = XFormsInstance.findMutableNode(containingDocument, boundNodeInfo)
                 // NOTE: XForms 1.1 seems to require dispatching xforms-binding-exception in case the target node cannot be
                 // written to. But because of the way we now handle errors in actions, we throw an exception instead and
                 // action processing is interrupted.
@@ -23,6 +23,7 @@ import org.orbeon.oxf.xml.XMLConstants.XML_LANG_QNAME
 import org.orbeon.oxf.xml.dom4j.{Dom4jUtils, LocationData, ExtendedLocationData}
 import org.orbeon.oxf.xforms.xbl.Scope
 import org.orbeon.oxf.util.ScalaUtils.stringOptionToSet
+import org.orbeon.oxf.util.XPathCache.XPathExpressionHandle
 import org.orbeon.oxf.xforms.event.XFormsEvent.{Bubbling, Target, Capture, Phase}
 import org.orbeon.oxf.xforms.event.EventHandler
 import collection.mutable
@@ -136,6 +137,11 @@ abstract class ElementAnalysis(
     def refJava = ref.orNull
     def bindJava = bind.orNull
 
+    // Handles on the expressions above, so that evaluating them at runtime doesn't go through the XPath cache lookup
+    lazy val contextHandle = context map (new XPathExpressionHandle(_, namespaceMapping, isAVT = false)) orNull
+    lazy val refHandle     = ref     map (new XPathExpressionHandle(_, namespaceMapping, isAVT = false)) orNull
+    lazy val valueHandle   = value   map (new XPathExpressionHandle(_, namespaceMapping, isAVT = false)) orNull
+
     // Other
     def hasBinding = ref.isDefined || bind.isDefined
     val bindingXPathEvaluations = (if (context.isDefined) 1 else 0) + (if (ref.isDefined) 1 else 0)// 0, 1, or 2: number of XPath evaluations used to resolve the binding if no optimization is taking place
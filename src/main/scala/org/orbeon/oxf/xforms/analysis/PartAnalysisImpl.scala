@@ -60,7 +60,7 @@ class PartAnalysisImpl(
     partAnalysis ⇒
 
     def locationData = staticState.locationData
-    def getIndentedLogger = staticState.getIndentedLogger
+    def getIndentedLogger = PartModelAnalysis.taskLogger getOrElse staticState.getIndentedLogger
 
     private def iterator(start: Option[PartAnalysis]): Iterator[PartAnalysis] = new Iterator[PartAnalysis] {
 
@@ -243,7 +243,7 @@ class PartAnalysisImpl(
                 analyzeControlsXPath()
             }
 
-            debugResults(Seq("controls" → controlAnalysisMap.size.toString))
+            debugResults(Seq("controls" → controlAnalysisMap.size.toString) ++ PathMapXPathAnalysis.cacheStatistics)
         }
 
         // Log if needed
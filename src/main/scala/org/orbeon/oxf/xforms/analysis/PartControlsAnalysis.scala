@@ -132,6 +132,11 @@ trait PartControlsAnalysis extends TransientState {
     def hasControlAppearance(controlName: String, appearance: QName) =
         controlAppearances.get(controlName) exists (_(appearance))
 
+    // Upper bound of the number of concrete controls for this part, or Int.MaxValue if repeats or nested xxf:dynamic
+    // can create any number of them
+    def maxConcreteControls =
+        if (hasControlByName("repeat") || hasControlByName("dynamic")) Int.MaxValue else controlAnalysisMap.size
+
     // Repeats
     def repeats = controlTypes.get("repeat") map (_.values map (_.asInstanceOf[RepeatControl])) getOrElse Seq.empty
 
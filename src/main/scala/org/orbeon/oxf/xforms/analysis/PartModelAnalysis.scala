@@ -18,6 +18,11 @@ import model.Model
 import collection.mutable.{LinkedHashMap, Buffer}
 import org.orbeon.oxf.xforms.event.EventHandlerImpl
 import org.orbeon.oxf.xforms.xbl.Scope
+import org.orbeon.oxf.xforms.XFormsProperties
+import org.orbeon.oxf.util.IndentedLogger
+import org.orbeon.oxf.util.ScalaUtils._
+import collection.parallel.ForkJoinTaskSupport
+import scala.concurrent.forkjoin.ForkJoinPool
 
 // Part analysis: models and instances information
 trait PartModelAnalysis extends TransientState {
@@ -77,12 +82,24 @@ trait PartModelAnalysis extends TransientState {
             modelByInstancePrefixedId -= instance.prefixedId
     }
 
-    protected def analyzeModelsXPath() =
-        for {
-            (scope, models) ← modelsByScope
-            model ← models
-        } yield
-            model.analyzeXPath()
+    // Models only depend on the root control's analysis and on their own content, so they can be analyzed in parallel.
+    // Each model keeps its own results, so the resulting analysis doesn't depend on the order of execution. As
+    // IndentedLogger is not thread-safe, each model analyzed in parallel logs with its own logger.
+    protected def analyzeModelsXPath() = {
+        val models = modelsByScope.values.flatten.toList
+        PartModelAnalysis.taskSupport match {
+            case Some(taskSupport) if models.size > 1 ⇒
+                val logger = getIndentedLogger
+                val parallelModels = models.par
+                parallelModels.tasksupport = taskSupport
+                parallelModels foreach { model ⇒
+                    val modelLogger = new IndentedLogger(logger, new IndentedLogger.Indentation, logger.isDebugEnabled)
+                    PartModelAnalysis.withTaskLogger(modelLogger)(model.analyzeXPath())
+                }
+            case _ ⇒
+                models foreach (_.analyzeXPath())
+        }
+    }
 
     override def freeTransientState() = {
         super.freeTransientState()
@@ -90,4 +107,24 @@ trait PartModelAnalysis extends TransientState {
         for (model ← modelsByPrefixedId.values)
             model.freeTransientState()
     }
-}
\ No newline at end of file
+}
+
+object PartModelAnalysis {
+    // Pool shared by all parts, only created if parallel analysis is enabled
+    lazy val taskSupport = {
+        val parallelism = XFormsProperties.getXPathAnalysisParallelism
+        parallelism > 1 option new ForkJoinTaskSupport(new ForkJoinPool(parallelism))
+    }
+
+    // Logger of the model analysis running in the current thread, if any
+    private val taskLoggers = new ThreadLocal[IndentedLogger]
+
+    def taskLogger = Option(taskLoggers.get)
+
+    def withTaskLogger[T](logger: IndentedLogger)(body: ⇒ T): T = {
+        val previous = taskLoggers.get
+        taskLoggers.set(logger)
+        try body
+        finally taskLoggers.set(previous)
+    }
+}
@@ -34,6 +34,9 @@ import org.orbeon.oxf.xforms._
 import xbl.Scope
 import org.orbeon.oxf.util.XPath.CompiledExpression
 import scala.util.control.NonFatal
+import org.orbeon.oxf.cache.{InternalCacheKey, ObjectCache}
+import org.orbeon.saxon.sxpath.XPathExpression
+import java.util.concurrent.atomic.AtomicLong
 
 class PathMapXPathAnalysis(val xpathString: String,
                            var pathmap: Option[PathMap], // this is used when used as variables and context and can be freed afterwards
@@ -113,6 +116,18 @@ class PathMapXPathAnalysis(val xpathString: String,
 
 object PathMapXPathAnalysis {
 
+    // Expressions compiled for analysis are shared across static states, as the same expressions tend to appear in many
+    // forms and XBL components. A compiled expression only depends on the expression string, the namespace mapping and
+    // whether it is an AVT, as the function library is global. Compiled expressions are not modified by the analysis.
+    private val CompiledExpressionsCacheName = "xforms.cache.xpath-analysis"
+    private val CompiledExpressionsCacheDefaultSize = 1000
+    private val ConstantValidity = 0L
+
+    private lazy val compiledExpressionsCache = ObjectCache.instance(CompiledExpressionsCacheName, CompiledExpressionsCacheDefaultSize)
+    private val compileTimeSaved = new AtomicLong
+
+    private case class CachedExpression(expression: XPathExpression, compileTime: Long)
+
     /**
      * Create a new XPathAnalysis based on an initial XPath expression.
      */
@@ -121,10 +136,36 @@ object PathMapXPathAnalysis {
               pathMapContext: AnyRef, scope: Scope, defaultInstancePrefixedId: Option[String],
               locationData: LocationData, element: Element, avt: Boolean)(implicit logger: IndentedLogger): XPathAnalysis = {
 
-        val compiledExpression = XPath.compileExpression(xpathString, namespaceMapping, locationData, XFormsContainingDocument.getFunctionLibrary, avt)
+        val compiledExpression = compileExpressionUseCache(xpathString, namespaceMapping, locationData, avt)
         apply(partAnalysis, compiledExpression, baseAnalysis, inScopeVariables, pathMapContext, scope, defaultInstancePrefixedId, element)
     }
 
+    private def compileExpressionUseCache(xpathString: String, namespaceMapping: NamespaceMapping, locationData: LocationData, avt: Boolean)(implicit logger: IndentedLogger) = {
+        val cacheKey = new InternalCacheKey(CompiledExpressionsCacheName, (if (avt) "avt|" else "|") + namespaceMapping.hash + '|' + xpathString)
+        compiledExpressionsCache.findValid(cacheKey, ConstantValidity) match {
+            case CachedExpression(expression, compileTime) ⇒
+                compileTimeSaved.addAndGet(compileTime)
+                CompiledExpression(expression, xpathString, locationData)
+            case _ ⇒
+                val startTime = System.nanoTime
+                val compiledExpression = XPath.compileExpression(xpathString, namespaceMapping, locationData, XFormsContainingDocument.getFunctionLibrary, avt)
+                compiledExpressionsCache.add(cacheKey, ConstantValidity, CachedExpression(compiledExpression.expression, System.nanoTime - startTime))
+                compiledExpression
+        }
+    }
+
+    // Statistics about the shared compiled expressions, for logging
+    def cacheStatistics = {
+        val statistics = compiledExpressionsCache.getStatistics
+        val hits = statistics.getHitCount
+        val total = hits + statistics.getMissCount
+        Seq(
+            "xpath cache size"          → statistics.getCurrentSize.toString,
+            "xpath cache hit ratio"     → (if (total > 0) (hits * 100 / total) + "%" else "n/a"),
+            "xpath compile time saved"  → (compileTimeSaved.get / 1000000 + " ms")
+        )
+    }
+
     /**
      * Create a new XPathAnalysis based on an initial XPath expression.
      */
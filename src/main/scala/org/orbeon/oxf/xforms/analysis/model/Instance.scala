@@ -96,12 +96,24 @@ trait InstanceMetadata {
     import Instance._
     import ElementAnalysis._
 
-    val readonly = element.attributeValue(XXFORMS_READONLY_ATTRIBUTE_QNAME) == "true"
+    private val explicitReadonly = element.attributeValue(XXFORMS_READONLY_ATTRIBUTE_QNAME) == "true"
+
     val cache = Version.instance.isPEFeatureEnabled(element.attributeValue(XXFORMS_CACHE_QNAME) == "true", "cached XForms instance")
     val timeToLive = Instance.timeToLiveOrDefault(element)
     val handleXInclude = false
 
-    val exposeXPathTypes = Option(element.attributeValue(XXFORMS_EXPOSE_XPATH_TYPES_QNAME)) map (_ == "true") getOrElse ! readonly && partExposeXPathTypes
+    // A lazily mutable instance is loaded as a compact readonly tree, which is converted to a mutable document upon
+    // first mutation. This is the default for cached mutable instances, so that documents share the cached tree
+    // until they modify it. The id index requires a mutable document.
+    val lazyMutable =
+        ! explicitReadonly &&
+        ! attSet(element, XXFORMS_INDEX_QNAME)("id") &&
+        (Option(element.attributeValue(XXFORMS_LAZY_MUTABLE_QNAME)) map (_ == "true") getOrElse cache)
+
+    // Whether the instance content is initially readonly
+    val readonly = explicitReadonly || lazyMutable
+
+    val exposeXPathTypes = Option(element.attributeValue(XXFORMS_EXPOSE_XPATH_TYPES_QNAME)) map (_ == "true") getOrElse ! explicitReadonly && partExposeXPathTypes
 
     val (indexIds, indexClasses) = {
         val tokens = attSet(element, XXFORMS_INDEX_QNAME)
@@ -134,7 +146,7 @@ trait InstanceMetadata {
     def inlineContent: DocumentInfo
 
     // Extract the inline content into a new document (mutable or not)
-    protected def extractInlineContent = extractDocument(root.get, excludeResultPrefixes, readonly, exposeXPathTypes, removeInstanceData = false)
+    protected def extractInlineContent = extractDocument(root.get, excludeResultPrefixes, readonly, exposeXPathTypes && ! lazyMutable, removeInstanceData = false)
 
     // Don't allow more than one child element
     if (Dom4j.elements(element).size > 1)
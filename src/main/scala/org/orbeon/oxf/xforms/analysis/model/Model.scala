@@ -283,6 +283,10 @@ trait ModelBinds {
 
     def figuredAllBindRefAnalysis = bindTree().figuredAllBindRefAnalysis
 
+    // Whether binds may apply to the instance with the given prefixed id
+    def bindsMayApplyTo(instancePrefixedId: String) =
+        hasBinds && (! figuredAllBindRefAnalysis || bindInstances(instancePrefixedId))
+
     def analyzeBindsXPath() = bindTree().analyzeBindsXPath()
     def bindsToXML(helper: XMLReceiverHelper) = bindTree().bindsToXML(helper)
     def freeBindsTransientState() = bindTree().freeBindsTransientState()
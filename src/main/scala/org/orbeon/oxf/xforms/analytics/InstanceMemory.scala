@@ -0,0 +1,78 @@
+/**
+ *  Copyright (C) 2013 Orbeon, Inc.
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the
+ *  GNU Lesser General Public License as published by the Free Software Foundation; either version
+ *  2.1 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *  See the GNU Lesser General Public License for more details.
+ *
+ *  The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.analytics
+
+import org.orbeon.saxon.om.{VirtualNode, Axis, NodeInfo, DocumentInfo}
+import org.w3c.dom.Node.{ATTRIBUTE_NODE, ELEMENT_NODE}
+
+// Approximate memory used by the content of an instance
+case class InstanceMemory(mutable: Boolean, nodes: Int, characters: Long, bytes: Long) {
+    override def toString =
+        "storage: " + (if (mutable) "dom4j" else "tiny tree") + ", nodes: " + nodes + ", characters: " + characters + ", estimated bytes: " + bytes
+}
+
+object InstanceMemory {
+
+    // Rough sizes on a 64-bit JVM, only meant to compare instances and storage modes with each other
+    // - TinyTree stores nodes in parallel arrays, and text in a single character buffer
+    // - dom4j creates one object per node, plus content and attribute lists for elements, and one string per value
+    private val TinyTreeNodeBytes      = 20
+    private val TinyTreeAttributeBytes = 16
+    private val Dom4jElementBytes      = 120
+    private val Dom4jNodeBytes         = 32
+    private val StringBytes            = 40
+
+    def apply(documentInfo: DocumentInfo): InstanceMemory = {
+
+        val mutable = documentInfo.isInstanceOf[VirtualNode]
+
+        var nodes = 0
+        var characters = 0L
+        var bytes = 0L
+
+        def add(node: NodeInfo): Unit = {
+            val nodeKind = node.getNodeKind
+            val length = if (nodeKind == ELEMENT_NODE) 0 else node.getStringValueCS.length
+
+            nodes += 1
+            characters += length
+            bytes += 2 * length + (
+                if (mutable)
+                    (if (nodeKind == ELEMENT_NODE) Dom4jElementBytes else Dom4jNodeBytes + StringBytes)
+                else if (nodeKind == ATTRIBUTE_NODE)
+                    TinyTreeAttributeBytes + StringBytes
+                else
+                    TinyTreeNodeBytes
+            )
+        }
+
+        val iterator = documentInfo.iterateAxis(Axis.DESCENDANT)
+        var next = iterator.next()
+        while (next ne null) {
+            val node = next.asInstanceOf[NodeInfo]
+            add(node)
+            if (node.getNodeKind == ELEMENT_NODE) {
+                val attributes = node.iterateAxis(Axis.ATTRIBUTE)
+                var attribute = attributes.next()
+                while (attribute ne null) {
+                    add(attribute.asInstanceOf[NodeInfo])
+                    attribute = attributes.next()
+                }
+            }
+            next = iterator.next()
+        }
+
+        InstanceMemory(mutable, nodes, characters, bytes)
+    }
+}
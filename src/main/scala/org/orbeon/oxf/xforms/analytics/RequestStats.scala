@@ -14,14 +14,16 @@
 package org.orbeon.oxf.xforms.analytics
 
 import collection.mutable
-import org.orbeon.oxf.xforms.XFormsProperties
+import org.orbeon.oxf.xforms.{XFormsServerSharedInstancesCache, XFormsInstance, XFormsProperties}
 
 // Gather request statistics
-// For now, only support XPath statistics
+// For now, only support XPath, Ajax diff and instance memory statistics
 trait RequestStats {
     def afterInitialResponse()
     def afterUpdateResponse()
     def addXPathStat(expr: String, time: Long)
+    def addDiffStat(fullUpdates: Int, bufferedAttributes: Int, time: Long)
+    def addInstanceStat(instance: XFormsInstance)
     def withXPath[T](expr: ⇒ String)(body: ⇒ T): T
 
     // For Java callers
@@ -49,9 +51,39 @@ class RequestStatsImpl extends RequestStats {
 
     private val xpathStats = mutable.Map[String, XPathStats]()
 
+    private var diffCount = 0
+    private var diffFullUpdates = 0
+    private var diffBufferedAttributes = 0
+    private var diffTotalTime = 0L
+
+    def addDiffStat(fullUpdates: Int, bufferedAttributes: Int, time: Long) = {
+        diffCount += 1
+        diffFullUpdates += fullUpdates
+        diffBufferedAttributes += bufferedAttributes
+        diffTotalTime += time
+    }
+
     def addXPathStat(expr: String, time: Long) =
         xpathStats.getOrElseUpdate(expr, new XPathStats(expr)).addStat(time)
 
+    private case class InstanceStats(id: String, lazyMutable: Boolean, sharingCount: Int, memory: InstanceMemory) {
+        override def toString =
+            "id: " + id +
+            (if (lazyMutable) " (lazily mutable)" else "") +
+            (if (sharingCount > 0) " (shared by " + sharingCount + " instances)" else "") +
+            ", " + memory
+    }
+
+    private var instanceStats = List[InstanceStats]()
+
+    def addInstanceStat(instance: XFormsInstance) =
+        instanceStats ::=
+            InstanceStats(
+                instance.getEffectiveId,
+                instance.isLazyMutable,
+                if (instance.isSharedContent) XFormsServerSharedInstancesCache.sharingCount(instance.documentInfo) else 0,
+                InstanceMemory(instance.documentInfo))
+
     private def topXPath(n: Int, f: XPathStats ⇒ Long) =
         xpathStats.values.toSeq sortBy f takeRight n reverse
 
@@ -70,6 +102,19 @@ class RequestStatsImpl extends RequestStats {
         println(" top XPath by total time: ")
         for ((topXPath, i) ← topXPath(10, _.totalTime).zipWithIndex)
             println("  " + (i + 1) + ": " + topXPath.toString)
+        if (diffCount > 0) {
+            println(" diffs: " + diffCount)
+            println(" total time in diffs (µs): " + diffTotalTime)
+            println(" full updates: " + diffFullUpdates)
+            println(" buffered attributes: " + diffBufferedAttributes)
+        }
+        if (instanceStats.nonEmpty) {
+            println(" instances: " + instanceStats.size)
+            println(" total estimated bytes in unshared instances: " + (instanceStats filter (_.sharingCount == 0) map (_.memory.bytes) sum))
+            for (instanceStat ← instanceStats.reverse)
+                println("  " + instanceStat)
+            println(" shared instances cache: " + (XFormsServerSharedInstancesCache.statistics map { case (name, value) ⇒ name + ": " + value } mkString ", "))
+        }
     }
 
     def withXPath[T](expr: ⇒ String)(body: ⇒ T): T = {
@@ -89,6 +134,8 @@ object NOPRequestStats extends RequestStats {
     def afterInitialResponse() = ()
     def afterUpdateResponse() = ()
     def addXPathStat(expr: String, time: Long) = ()
+    def addDiffStat(fullUpdates: Int, bufferedAttributes: Int, time: Long) = ()
+    def addInstanceStat(instance: XFormsInstance) = ()
     def withXPath[T](expr: ⇒ String)(body: ⇒ T) = body
 }
 
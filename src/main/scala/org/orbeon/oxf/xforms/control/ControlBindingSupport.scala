@@ -70,7 +70,7 @@ trait ControlBindingSupport {
     protected def computeBinding(parentContext: BindingContext) = {
         val contextStack = container.getContextStack
         contextStack.setBinding(parentContext)
-        contextStack.pushBinding(element, effectiveId, staticControl.scope)
+        contextStack.pushBinding(staticControl, effectiveId, staticControl.scope)
         contextStack.getCurrentBindingContext
     }
 
@@ -121,8 +121,8 @@ abstract class MutableLHHAProperty(control: XFormsControl, lhhaType: XFormsConst
             if (lhhaAnalysis.isLocal) {
                 // LHHA is direct child of control, evaluate within context
                 contextStack.setBinding(control.bindingContext)
-                contextStack.pushBinding(lhhaElement, control.effectiveId, lhhaAnalysis.scope)
-                val result = Option(XFormsUtils.getElementValue(control.container, contextStack, control.effectiveId, lhhaElement, supportsHTML, lhhaAnalysis.defaultToHTML, tempContainsHTML))
+                contextStack.pushBinding(lhhaAnalysis, control.effectiveId, lhhaAnalysis.scope)
+                val result = Option(XFormsUtils.getElementValue(control.container, contextStack, control.effectiveId, lhhaElement, lhhaAnalysis.valueHandle, supportsHTML, lhhaAnalysis.defaultToHTML, tempContainsHTML))
                 contextStack.popBinding()
                 result
             } else {
@@ -151,8 +151,8 @@ abstract class MutableLHHAProperty(control: XFormsControl, lhhaType: XFormsConst
 
                 if (contextEffectiveId != null) {
                     // Push binding relative to context established above and evaluate
-                    contextStack.pushBinding(lhhaElement, contextEffectiveId, lhhaAnalysis.scope)
-                    val result = Option(XFormsUtils.getElementValue(control.container, contextStack, control.effectiveId, lhhaElement, supportsHTML, lhhaAnalysis.defaultToHTML, tempContainsHTML))
+                    contextStack.pushBinding(lhhaAnalysis, contextEffectiveId, lhhaAnalysis.scope)
+                    val result = Option(XFormsUtils.getElementValue(control.container, contextStack, control.effectiveId, lhhaElement, lhhaAnalysis.valueHandle, supportsHTML, lhhaAnalysis.defaultToHTML, tempContainsHTML))
                     contextStack.popBinding()
                     result
                 } else
@@ -115,7 +115,7 @@ abstract class XFormsSingleNodeControl(container: XBLContainer, parent: XFormsCo
         getBoundItem match {
             case nodeInfo: NodeInfo ⇒
                 // Control is bound to a node - get model item properties
-                this._readonly  = InstanceData.getInheritedReadonly(nodeInfo)
+                this._readonly  = InstanceData.getInheritedReadonly(nodeInfo) && ! XFormsInstance.isLazyMutableNode(containingDocument, nodeInfo)
                 this._required  = InstanceData.getRequired(nodeInfo)
                 this._valid     = InstanceData.getValid(nodeInfo)
                 this._valueType = InstanceData.getType(nodeInfo)
@@ -235,7 +235,7 @@ class XFormsRepeatControl(container: XBLContainer, parent: XFormsControl, elemen
     override protected def computeBinding(parentContext: BindingContext) = {
         val contextStack = container.getContextStack
         contextStack.setBinding(parentContext)
-        contextStack.pushBinding(element, effectiveId, staticControl.scope)
+        contextStack.pushBinding(staticControl, effectiveId, staticControl.scope)
 
         // Keep only the relevant items
         import XFormsSingleNodeControl.isRelevantItem
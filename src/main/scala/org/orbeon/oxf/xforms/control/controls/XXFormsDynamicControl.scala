@@ -63,6 +63,15 @@ class XXFormsDynamicControl(container: XBLContainer, parent: XFormsControl, elem
     private var _nested: Option[Nested] = None
     def nested = _nested
 
+    // Upper bound of the number of controls in this subtree, from the static analysis of the nested part
+    def maxControls =
+        _nested match {
+            case Some(Nested(_, partAnalysis, _, _)) ⇒
+                val nestedControls = partAnalysis.maxConcreteControls
+                if (nestedControls == Int.MaxValue) nestedControls else nestedControls + 1
+            case None ⇒ 1
+        }
+
     private var previousChangeCount = -1
     private var changeCount = 0
     private val xblChanges = Buffer[(String, Element)]()
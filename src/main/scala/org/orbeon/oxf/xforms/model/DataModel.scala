@@ -161,10 +161,12 @@ object DataModel {
         assert(containingDocument ne null)
         assert(logger ne null)
 
+        val mutableNodeInfo = XFormsInstance.findMutableNode(containingDocument, nodeInfo)
+
         setValueIfChanged(
-            nodeInfo,
+            mutableNodeInfo,
             valueToSet,
-            logAndNotifyValueChange(containingDocument, source, nodeInfo, _, valueToSet, isCalculate),
+            logAndNotifyValueChange(containingDocument, source, mutableNodeInfo, _, valueToSet, isCalculate),
             reason ⇒ Dispatch.dispatchEvent(new XXFormsBindingErrorEvent(eventTarget, locationData, reason))
         )
     }
@@ -17,7 +17,7 @@ import org.orbeon.oxf.xforms.event.events.XFormsSubmitErrorEvent
 import org.orbeon.saxon.om.NodeInfo
 import org.orbeon.oxf.xforms.model.DataModel
 import org.orbeon.oxf.xforms.action.XFormsActions
-import org.orbeon.oxf.xforms.XFormsContainingDocument
+import org.orbeon.oxf.xforms.{XFormsInstance, XFormsContainingDocument}
 import org.orbeon.oxf.util.{ConnectionResult, XPathCache}
 import org.orbeon.oxf.xforms.model.DataModel._
 
@@ -62,7 +62,7 @@ class TextReplacer(submission: XFormsModelSubmission, containingDocument: XForms
                 new XFormsSubmitErrorEvent(submission, XFormsSubmitErrorEvent.TARGET_ERROR, connectionResult))
 
         // Find target location
-        val destinationNodeInfo =
+        val targetNodeInfo =
             if (submission.getTargetref ne null) {
                 // Evaluate destination node
                 XPathCache.evaluateSingle(p.xpathContext, p.refNodeInfo, submission.getTargetref, containingDocument.getRequestStats.addXPathStat) match {
@@ -74,6 +74,9 @@ class TextReplacer(submission: XFormsModelSubmission, containingDocument: XForms
                 submission.findReplaceInstanceNoTargetref(p.refInstance).rootElement
             }
 
+        // Convert the instance first if it is lazily mutable
+        val destinationNodeInfo = XFormsInstance.findMutableNode(containingDocument, targetNodeInfo)
+
         def handleSetValueSuccess(oldValue: String) =
             DataModel.logAndNotifyValueChange(containingDocument,
                 "submission", destinationNodeInfo, oldValue, responseBody, isCalculate = false)(containingDocument.getIndentedLogger(XFormsActions.LOGGING_CATEGORY))
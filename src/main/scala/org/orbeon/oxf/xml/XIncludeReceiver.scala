@@ -20,7 +20,9 @@ import org.orbeon.oxf.common.ValidationException
 import org.orbeon.oxf.pipeline.api.{FunctionLibrary, PipelineContext}
 import org.orbeon.oxf.processor.transformer.TransformerURIResolver
 import org.orbeon.oxf.processor.transformer.XPathProcessor
-import org.orbeon.oxf.util.{LoggerFactory, XPathCache}
+import org.orbeon.oxf.cache.{InternalCacheKey, ObjectCache}
+import org.orbeon.oxf.properties.Properties
+import org.orbeon.oxf.util.{NetUtils, LoggerFactory, XPathCache}
 import org.orbeon.oxf.xml.XMLUtils.addOrReplaceAttribute
 import org.orbeon.oxf.xml.dom4j.LocationData
 import org.orbeon.saxon.om.ValueRepresentation
@@ -175,13 +177,16 @@ class XIncludeReceiver(
                         throw new ValidationException("Invalid 'xpointer' attribute value: " + xpointer, new LocationData(outputLocator))
                     case None ⇒
                         // No xpointer attribute specified, just stream the child document
-                        val xmlReader = source.getXMLReader
-                        val xmlReceiver = createChildReceiver
+                        def parse(xmlReceiver: XMLReceiver) = {
+                            val xmlReader = source.getXMLReader
 
-                        xmlReader.setContentHandler(xmlReceiver)
-                        xmlReader.setProperty(SAX_LEXICAL_HANDLER, xmlReceiver)
+                            xmlReader.setContentHandler(xmlReceiver)
+                            xmlReader.setProperty(SAX_LEXICAL_HANDLER, xmlReceiver)
 
-                        xmlReader.parse(new InputSource(systemId)) // Yeah, the SAX API doesn't make much sense
+                            xmlReader.parse(new InputSource(systemId)) // Yeah, the SAX API doesn't make much sense
+                        }
+
+                        readIncludedDocument(systemId, uriResolver.getParsedDocumentKey, createChildReceiver)(parse)
                 }
             } catch {
                 case NonFatal(t) ⇒
@@ -261,4 +266,39 @@ class XIncludeReceiver(
 object XIncludeReceiver {
     val Logger = LoggerFactory.createLogger(classOf[XIncludeReceiver])
     val XPointerPattern = """xpath\((.*)\)""".r
+
+    val IncludedDocumentsCacheName        = "cache.xinclude"
+    val IncludedDocumentsCacheDefaultSize = 200
+
+    def includedDocumentCacheKey(parsedDocumentKey: String, systemId: String) =
+        new InternalCacheKey("XInclude document", parsedDocumentKey + systemId)
+
+    // Parse an included document into the receiver, or replay it from cache if it hasn't changed
+    // NOTE: The document is cached before XInclude processing, so that nested inclusions are checked separately. Only
+    // cache when we can cheaply check the last modification date, i.e. for "oxf:" and "file:" URLs. Properties include
+    // other documents, and as the size of the cache is a property, don't cache while they are being read.
+    def readIncludedDocument(systemId: String, parsedDocumentKey: String, xmlReceiver: XMLReceiver)(parse: XMLReceiver ⇒ Unit): Unit = {
+        val lastModified =
+            if ((systemId ne null) && (parsedDocumentKey ne null) && (Properties.instance.getPropertySet ne null))
+                NetUtils.getLastModifiedIfFast(systemId)
+            else
+                0L
+
+        if (lastModified > 0) {
+            val cache    = ObjectCache.instance(IncludedDocumentsCacheName, IncludedDocumentsCacheDefaultSize)
+            val cacheKey = includedDocumentCacheKey(parsedDocumentKey, systemId)
+
+            Option(cache.findValid(cacheKey, lastModified).asInstanceOf[SAXStore]) match {
+                case Some(saxStore) ⇒
+                    saxStore.replay(xmlReceiver)
+                case None ⇒
+                    val saxStore = new SAXStore(xmlReceiver)
+                    parse(saxStore)
+                    // Make sure SAXStore loses its reference on its output so that we don't clutter the cache
+                    saxStore.setXMLReceiver(null)
+                    cache.add(cacheKey, lastModified, saxStore)
+            }
+        } else
+            parse(xmlReceiver)
+    }
 }
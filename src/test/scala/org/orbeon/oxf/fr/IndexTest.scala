@@ -1,11 +1,14 @@
 package org.orbeon.oxf.fr
 
+import java.sql.{DriverManager, Timestamp}
 import org.scalatest.junit.AssertionsForJUnit
 import org.junit.Test
 import org.orbeon.scaxon.XML._
 import org.orbeon.oxf.fr.relational.Index
 import org.orbeon.oxf.fr.relational.Index.IndexedControl
 import org.orbeon.oxf.test.DocumentTestBase
+import org.orbeon.oxf.util.ScalaUtils._
+import scala.xml.Elem
 
 class IndexTest extends DocumentTestBase with AssertionsForJUnit {
 
@@ -115,4 +118,62 @@ class IndexTest extends DocumentTestBase with AssertionsForJUnit {
         assert(indexedControls(3) === IndexedControl("date",       true,  true,  "section-1[1]/date[1]",                "xf:date"  , "input", false))
         assert(indexedControls(4) === IndexedControl("in-repeat",  true,  true,  "section-1[1]/repeat[1]/in-repeat[1]", "xs:string", "input", false))
     }
+
+    @Test def updateIndexOnSave(): Unit = {
+
+        Class.forName("org.hsqldb.jdbcDriver")
+        useAndClose(DriverManager.getConnection("jdbc:hsqldb:mem:index-on-save", "sa", "")) { connection ⇒
+
+            def execute(sql: String) = useAndClose(connection.createStatement())(_.execute(sql))
+
+            execute("create table orbeon_i_current (data_id int, document_id varchar(255), created timestamp, last_modified timestamp, username varchar(255), app varchar(255), form varchar(255))")
+            execute("create table orbeon_i_control_text (data_id int, username varchar(255), app varchar(255), form varchar(255), control varchar(255), pos int, val varchar(4000))")
+
+            def query(sql: String) =
+                useAndClose(connection.createStatement()) { statement ⇒
+                    val resultSet = statement.executeQuery(sql)
+                    val columns   = resultSet.getMetaData.getColumnCount
+                    val rows      = collection.mutable.ListBuffer[Seq[String]]()
+                    while (resultSet.next())
+                        rows += (1 to columns) map (resultSet.getString(_))
+                    rows.toList
+                }
+
+            val indexedControls = Seq(
+                IndexedControl("name", true, true, "section-1[1]/name[1]", "xs:string", "input", false),
+                IndexedControl("city", true, true, "section-1[1]/city[1]", "xs:string", "input", false),
+                IndexedControl("item", true, true, "section-1[1]/item[1]", "xs:string", "input", false)
+            )
+
+            def save(dataId: Int, data: Elem) = {
+                val now = new Timestamp(System.currentTimeMillis)
+                val row = Index.DataRow(dataId, "doc", now, now, "user", "app", "form")
+                Index.updateIndex(connection, "hsqldb", row, indexedControls, elemToDocumentInfo(data) \ * head)
+            }
+
+            def indexedValues =
+                query("select data_id, control, pos, val from orbeon_i_control_text order by control, pos")
+
+            save(1,
+                <form><section-1><name>Diderot</name><city>Paris</city><item>a</item><item>b</item></section-1></form>)
+
+            assert(query("select data_id, document_id from orbeon_i_current") === List(List("1", "doc")))
+            assert(indexedValues === List(
+                List("1", "city", "1", "Paris"),
+                List("1", "item", "1", "a"),
+                List("1", "item", "2", "b"),
+                List("1", "name", "1", "Diderot")))
+
+            // The index moves to the new data, with deleted, changed and new values
+            save(2,
+                <form><section-1><name>Diderot</name><item>c</item><item>b</item><item>d</item></section-1></form>)
+
+            assert(query("select data_id, document_id from orbeon_i_current") === List(List("2", "doc")))
+            assert(indexedValues === List(
+                List("2", "item", "1", "c"),
+                List("2", "item", "2", "b"),
+                List("2", "item", "3", "d"),
+                List("2", "name", "1", "Diderot")))
+        }
+    }
 }
@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.fr.relational
+
+import java.sql.{DriverManager, Timestamp}
+import org.dom4j.Element
+import org.junit.Test
+import org.orbeon.oxf.fr.relational.PersistenceAPIProcessor._
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.util.ScalaUtils._
+import org.orbeon.oxf.xml.dom4j.LocationSAXContentHandler
+import org.scalatest.junit.AssertionsForJUnit
+import scala.collection.JavaConverters._
+import scala.collection.mutable.ListBuffer
+
+// NOTE: HSQLDB 1.8 doesn't support the joins of the full search queries, so only the page query runs against it
+class PersistenceAPIProcessorTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+    private val search = Search("app", "form", Nil, Seq("name"), pageSize = 2, pageNumber = 1, pageAfter = None, countTotal = true)
+
+    @Test def parseRequestValues(): Unit = {
+
+        val key = PageKey(Timestamp.valueOf("2013-10-01 12:34:56.789"), 42)
+        assert(PageKey.parse(key.toString) === Some(key))
+
+        for (invalid ← Seq("", "42", "2013-10-01 12:34:56|", "2013-10-01 12:34:56|x", "yesterday|42", "2013-10-01 12:34:56|1|2"))
+            assert(PageKey.parse(invalid) === None, invalid)
+
+        assert(parsePositiveInt("10") === Some(10))
+        for (invalid ← Seq("0", "-1", "ten", "1.5", "99999999999"))
+            assert(parsePositiveInt(invalid) === None, invalid)
+    }
+
+    @Test def pages(): Unit = {
+
+        Class.forName("org.hsqldb.jdbcDriver")
+        useAndClose(DriverManager.getConnection("jdbc:hsqldb:mem:persistence-api-pages", "sa", "")) { connection ⇒
+
+            def execute(sql: String) = useAndClose(connection.createStatement())(_.execute(sql))
+
+            execute("create table orbeon_i_current (data_id int, document_id varchar(255), created timestamp, last_modified timestamp, username varchar(255), app varchar(255), form varchar(255))")
+
+            // Documents 1 and 2 share the same last modified time, so the data id orders them
+            for ((dataId, lastModified) ← Seq(1 → "03", 2 → "03", 3 → "02", 4 → "04", 5 → "01"))
+                execute(s"insert into orbeon_i_current values ($dataId, 'doc$dataId', '2013-10-$lastModified 00:00:00', '2013-10-$lastModified 00:00:00', null, 'app', 'form')")
+
+            // Document of another form
+            execute("insert into orbeon_i_current values (6, 'doc6', '2013-10-05 00:00:00', '2013-10-05 00:00:00', null, 'app', 'other')")
+
+            // Page keys of the documents of a page
+            def page(search: Search) = {
+                val (sql, params) = pageDocuments(search)
+                useAndClose(prepareStatement(connection, sql, params)) { statement ⇒
+                    val resultSet = statement.executeQuery()
+                    val keys = ListBuffer[PageKey]()
+                    while (resultSet.next())
+                        keys += PageKey(resultSet.getTimestamp("last_modified"), resultSet.getInt("data_id"))
+                    keys.toList
+                }
+            }
+
+            val firstPage  = page(search)
+            val secondPage = page(search.copy(pageNumber = 2))
+
+            assert((firstPage  map (_.dataId)) === List(4, 1))
+            assert((secondPage map (_.dataId)) === List(2, 3))
+
+            // Seeking after the last document of a page returns the same documents as the next page number
+            assert(page(search.copy(pageAfter = Some(firstPage.last)))  === secondPage)
+            assert(page(search.copy(pageAfter = Some(secondPage.last))) === page(search.copy(pageNumber = 3)))
+            assert((page(search.copy(pageNumber = 3)) map (_.dataId)) === List(5))
+
+            // Through the page key returned to the client
+            assert(page(search.copy(pageAfter = PageKey.parse(firstPage.last.toString))) === secondPage)
+        }
+    }
+
+    @Test def outputDocuments(): Unit = {
+
+        def metadata(dataId: Int) = {
+            val time = Timestamp.valueOf(s"2013-10-0$dataId 00:00:00")
+            DocumentMetadata(dataId, "doc" + dataId, time, time)
+        }
+
+        // Values which aren't summary values are joined out by the query, so rows only have the values of `name`
+        val rows = Seq(
+            metadata(1) → Some("name" → "first"),
+            metadata(1) → Some("name" → ""),
+            metadata(1) → Some("name" → "second"),
+            metadata(2) → None,
+            metadata(3) → Some("name" → "third")
+        )
+
+        // Check rows are consumed as documents are output
+        var remaining = rows.length
+        val consumed  = ListBuffer[Int]()
+        val receiver = new LocationSAXContentHandler {
+            override def startElement(uri: String, localname: String, qName: String, attributes: org.xml.sax.Attributes): Unit = {
+                if (localname == "document")
+                    consumed += rows.length - remaining
+                super.startElement(uri, localname, qName, attributes)
+            }
+        }
+        val iterator = rows.iterator map { row ⇒ remaining -= 1; row }
+
+        PersistenceAPIProcessor.outputDocuments(search, Some((3, true)), iterator, receiver)
+
+        val root = receiver.getDocument.getRootElement
+        assert(root.attributeValue("page-size")              === "2")
+        assert(root.attributeValue("search-total")           === "3")
+        assert(root.attributeValue("search-total-estimated") === "true")
+
+        val documents = root.elements("document").asScala map (_.asInstanceOf[Element])
+        assert((documents map (_.attributeValue("name")))                          === Seq("doc1", "doc2", "doc3"))
+        assert((documents map (_.element("details").element("detail").getText))    === Seq("first, second", "", "third"))
+        assert((documents map (_.attributeValue("page-key")))                      === (Seq(1, 2, 3) map (metadata(_)) map (m ⇒ PageKey(m.lastModified, m.dataId).toString)))
+
+        // Each document is output once the first row of the next document is read
+        assert(consumed === Seq(4, 5, 5))
+    }
+}
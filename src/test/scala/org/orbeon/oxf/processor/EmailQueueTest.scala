@@ -0,0 +1,264 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor
+
+import java.io._
+import java.net.{Socket, ServerSocket}
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger}
+import javax.mail.Message.RecipientType
+import javax.mail.internet.{InternetAddress, MimeMessage}
+import org.apache.commons.io.FileUtils
+import org.junit.Test
+import org.orbeon.oxf.processor.EmailQueue.SMTPSettings
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.util.ScalaUtils._
+import org.scalatest.junit.AssertionsForJUnit
+import scala.util.control.NonFatal
+
+class EmailQueueTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+    // Minimal SMTP server accepting all messages, or dropping the connection on the first message
+    private class SMTPServer(listenPort: Int = 0, dropFirstMessage: Boolean = false) {
+
+        val serverSocket = new ServerSocket(listenPort)
+        val connections  = new AtomicInteger
+        val messages     = new AtomicInteger
+
+        private val dropped = new AtomicBoolean
+
+        private val thread = new Thread {
+            override def run() =
+                try while (true) {
+                    val socket = serverSocket.accept()
+                    connections.incrementAndGet()
+                    new Thread {
+                        override def run() = try serve(socket) catch { case NonFatal(_) ⇒ }
+                    }.start()
+                } catch { case NonFatal(_) ⇒ }
+        }
+        thread.setDaemon(true)
+        thread.start()
+
+        def port = serverSocket.getLocalPort
+        def close() = serverSocket.close()
+
+        private def serve(socket: Socket): Unit = useAndClose(socket) { _ ⇒
+            val in  = new BufferedReader(new InputStreamReader(socket.getInputStream, "US-ASCII"))
+            val out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream, "US-ASCII"), true)
+            def reply(line: String) = { out.print(line + "\r\n"); out.flush() }
+
+            // Give the queue time to have several messages ready when the first one is sent
+            if (dropFirstMessage)
+                Thread.sleep(200)
+
+            reply("220 localhost")
+            var line = in.readLine()
+            while (line ne null) {
+                line.takeWhile(_ != ' ').toUpperCase match {
+                    case "DATA" if dropFirstMessage && dropped.compareAndSet(false, true) ⇒
+                        return
+                    case "DATA" ⇒
+                        reply("354 go ahead")
+                        while (in.readLine() != ".") {}
+                        messages.incrementAndGet()
+                        reply("250 ok")
+                    case "QUIT" ⇒
+                        reply("221 bye")
+                        return
+                    case _ ⇒
+                        reply("250 ok")
+                }
+                line = in.readLine()
+            }
+        }
+    }
+
+    private def settings(port: Int, username: Option[String] = None, password: Option[String] = None) =
+        SMTPSettings(Map("mail.smtp.host" → "localhost", "mail.smtp.port" → port.toString), username, password)
+
+    // Port nobody listens on
+    private def unusedPort = useAndClose(new ServerSocket(0))(_.getLocalPort)
+
+    private def message(settings: SMTPSettings, i: Int) = {
+        val message = new MimeMessage(settings.createSession)
+        message.setFrom(new InternetAddress("joe@example.org"))
+        message.addRecipient(RecipientType.TO, new InternetAddress("joe@example.org"))
+        message.setSubject("Message " + i)
+        message.setText("Hello")
+        message
+    }
+
+    private def withDirectory[T](body: File ⇒ T): T = {
+        val directory = File.createTempFile("orbeon-email-queue", "")
+        directory.delete()
+        try body(directory)
+        finally FileUtils.deleteQuietly(directory)
+    }
+
+    private def waitFor(condition: ⇒ Boolean): Unit = {
+        val end = System.currentTimeMillis + 10000
+        while (! condition && System.currentTimeMillis < end)
+            Thread.sleep(20)
+    }
+
+    @Test def reuseConnection(): Unit = withDirectory { directory ⇒
+        val server = new SMTPServer
+        val queue  = new EmailQueue(directory, 1, 50, 3, 1000, 60000)
+        try {
+            val smtp = settings(server.port)
+            for (i ← 1 to 10)
+                queue.enqueue(smtp, message(smtp, i))
+
+            waitFor(queue.getSentCount == 10)
+
+            assert(10 === queue.getSentCount)
+            assert(10 === server.messages.get)
+            assert(0  === queue.getFailedCount)
+
+            // Sending happens in the background, so messages can be sent over one or more connections
+            assert(queue.getConnectCount < 10)
+            assert(server.connections.get === queue.getConnectCount)
+
+            // Sent messages are removed from the queue directory
+            assert(directory.listFiles.forall(_.isDirectory))
+        } finally {
+            queue.shutdown()
+            server.close()
+        }
+    }
+
+    @Test def groupMessagesBySettings(): Unit = withDirectory { directory ⇒
+        val servers = List(new SMTPServer, new SMTPServer)
+        val queue   = new EmailQueue(directory, 1, 50, 3, 1000, 60000)
+        try {
+            // Messages for both servers are interleaved in the queue
+            for (i ← 1 to 10; server ← servers) {
+                val smtp = settings(server.port)
+                queue.enqueue(smtp, message(smtp, i))
+            }
+
+            waitFor(queue.getSentCount == 20)
+
+            assert(20 === queue.getSentCount)
+            for (server ← servers) {
+                assert(10 === server.messages.get)
+                assert(server.connections.get < 10)
+            }
+        } finally {
+            queue.shutdown()
+            servers foreach (_.close())
+        }
+    }
+
+    @Test def senderSurvivesErrors(): Unit = withDirectory { directory ⇒
+        val server     = new SMTPServer
+        val configured = (Some("configured-user"), Some("configured-secret"))
+        val failed     = new AtomicBoolean
+
+        // Reading the configuration fails the first time a message is sent
+        def configuredCredentials() =
+            if (Thread.currentThread.getName == "email queue sender" && failed.compareAndSet(false, true))
+                throw new IllegalStateException("configuration not available")
+            else
+                configured
+
+        val queue = new EmailQueue(directory, 1, 50, 3, 1000, 60000, configuredCredentials)
+        try {
+            val smtp = settings(server.port, configured._1, configured._2)
+            for (i ← 1 to 2)
+                queue.enqueue(smtp, message(smtp, i))
+
+            waitFor(queue.getSentCount == 1)
+
+            // The single sender thread goes on with the next message, and the first one stays in the queue directory
+            assert(failed.get)
+            assert(1 === queue.getSentCount)
+            assert(2 === (directory.listFiles count (_.isFile)))
+        } finally {
+            queue.shutdown()
+            server.close()
+        }
+    }
+
+    @Test def moveToFailedAfterRetries(): Unit = withDirectory { directory ⇒
+        val queue = new EmailQueue(directory, 1, 50, 2, 10, 60000)
+        try {
+            val smtp = settings(unusedPort)
+            queue.enqueue(smtp, message(smtp, 1))
+
+            waitFor(queue.getFailedCount == 1)
+
+            assert(1 === queue.getFailedCount)
+            assert(1 === queue.getRetriedCount)
+            assert(0 === queue.getSentCount)
+            assert(2 === new File(directory, "failed").listFiles.length)
+        } finally
+            queue.shutdown()
+    }
+
+    @Test def keepMessagesQueuedWhenConnectionBreaks(): Unit = withDirectory { directory ⇒
+        val server = new SMTPServer(dropFirstMessage = true)
+        val queue  = new EmailQueue(directory, 1, 50, 3, 10, 60000)
+        try {
+            val smtp = settings(server.port)
+            for (i ← 1 to 3)
+                queue.enqueue(smtp, message(smtp, i))
+
+            waitFor(queue.getSentCount == 3)
+
+            // The message sent when the connection broke is retried, and the others are sent with a new connection
+            assert(3 === queue.getSentCount)
+            assert(1 === queue.getRetriedCount)
+            assert(3 === server.messages.get)
+        } finally {
+            queue.shutdown()
+            server.close()
+        }
+    }
+
+    @Test def credentialsNotStored(): Unit = withDirectory { directory ⇒
+        val port       = unusedPort
+        val configured = (Some("configured-user"), Some("configured-secret"))
+
+        val queue = new EmailQueue(directory, 1, 50, 5, 60000, 60000, () ⇒ configured)
+        try {
+            val fromConfiguration = settings(port, configured._1, configured._2)
+            val fromMessage       = settings(port, Some("message-user"), Some("message-secret"))
+            queue.enqueue(fromConfiguration, message(fromConfiguration, 1))
+            queue.enqueue(fromMessage, message(fromMessage, 2))
+
+            waitFor(queue.getRetriedCount == 2)
+        } finally
+            queue.shutdown()
+
+        // Only a reference to the credentials is stored with the messages
+        val entries = directory.listFiles.toList filter (_.getName.endsWith(".properties")) map (FileUtils.readFileToString(_, "iso-8859-1"))
+        assert(2 === entries.size)
+        assert(entries forall (entry ⇒ ! entry.contains("user") && ! entry.contains("secret")))
+
+        // After a restart, the configured credentials are resolved again, but the message's own credentials are gone
+        val server = new SMTPServer(port)
+        val recoveredQueue = new EmailQueue(directory, 1, 50, 5, 60000, 60000, () ⇒ configured)
+        try {
+            waitFor(recoveredQueue.getSentCount + recoveredQueue.getFailedCount == 2)
+
+            assert(1 === recoveredQueue.getSentCount)
+            assert(1 === recoveredQueue.getFailedCount)
+            assert(1 === server.messages.get)
+        } finally {
+            recoveredQueue.shutdown()
+            server.close()
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor
+
+import java.sql.SQLException
+import org.junit.Test
+import org.orbeon.oxf.properties.Properties
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.util.ScalaUtils._
+import org.scalatest.junit.AssertionsForJUnit
+
+class JDBCConnectionPoolTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+    private def newPool(name: String) =
+        new JDBCConnectionPool(new Datasource("org.hsqldb.jdbcDriver", "jdbc:hsqldb:mem:" + name, "sa", ""), Properties.instance.getPropertySet)
+
+    @Test def reuseConnections(): Unit = {
+        val pool = newPool("reuse")
+
+        useAndClose(pool.getConnection)(_.createStatement.execute("create table t (a int)"))
+
+        for (i ← 1 to 5)
+            useAndClose(pool.getConnection) { connection ⇒
+                connection.setAutoCommit(false)
+                useAndClose(connection.prepareStatement("insert into t values (?)")) { statement ⇒
+                    statement.setInt(1, i)
+                    statement.executeUpdate()
+                }
+                connection.commit()
+            }
+
+        // A single physical connection was used, and the statement was only prepared once
+        assert(1 === pool.getIdleCount)
+        assert(0 === pool.getActiveCount)
+        assert(6 === pool.getBorrowCount)
+        assert(1 === pool.getStatementCacheMisses)
+        assert(4 === pool.getStatementCacheHits)
+
+        useAndClose(pool.getConnection) { connection ⇒
+            val resultSet = connection.createStatement.executeQuery("select count(*) from t")
+            resultSet.next()
+            assert(5 === resultSet.getInt(1))
+        }
+
+        pool.close()
+    }
+
+    @Test def uncommittedWorkIsRolledBack(): Unit = {
+        val pool = newPool("rollback")
+
+        useAndClose(pool.getConnection)(_.createStatement.execute("create table t (a int)"))
+
+        useAndClose(pool.getConnection) { connection ⇒
+            connection.setAutoCommit(false)
+            connection.createStatement.execute("insert into t values (1)")
+        }
+
+        useAndClose(pool.getConnection) { connection ⇒
+            assert(connection.getAutoCommit)
+            val resultSet = connection.createStatement.executeQuery("select count(*) from t")
+            resultSet.next()
+            assert(0 === resultSet.getInt(1))
+        }
+
+        pool.close()
+    }
+
+    @Test def evictedStatementInUse(): Unit = {
+        val pool = newPool("evicted")
+
+        useAndClose(pool.getConnection) { connection ⇒
+            connection.createStatement.execute("create table t (a int)")
+
+            val statement = connection.prepareStatement("insert into t values (?)")
+
+            // Evict the statement in use from the cache
+            for (i ← 1 to 20)
+                useAndClose(connection.prepareStatement("insert into t values (" + i + ")"))(_.executeUpdate())
+
+            // The statement can still be used, and closing it closes it as it is no longer cached
+            statement.setInt(1, 0)
+            assert(1 === statement.executeUpdate())
+            statement.close()
+
+            val missesBefore = pool.getStatementCacheMisses
+            useAndClose(connection.prepareStatement("insert into t values (?)")) { statement ⇒
+                statement.setInt(1, 0)
+                assert(1 === statement.executeUpdate())
+            }
+            assert(missesBefore + 1 === pool.getStatementCacheMisses)
+        }
+
+        pool.close()
+    }
+
+    @Test def cachedStatementIsReset(): Unit = {
+        val pool = newPool("reset")
+
+        useAndClose(pool.getConnection) { connection ⇒
+            connection.createStatement.execute("create table t (a int)")
+            connection.createStatement.execute("insert into t values (1)")
+            connection.createStatement.execute("insert into t values (2)")
+        }
+
+        // A pending batch and an open result set don't carry over to the next user of the statement
+        useAndClose(pool.getConnection) { connection ⇒
+            val statement = connection.prepareStatement("insert into t values (?)")
+            statement.setInt(1, 3)
+            statement.addBatch()
+            statement.close()
+
+            val query = connection.prepareStatement("select a from t")
+            val resultSet = query.executeQuery()
+            assert(resultSet.next())
+            query.close()
+            // The second row can't be read once the result set is closed
+            assert(! resultSet.next())
+        }
+
+        useAndClose(pool.getConnection) { connection ⇒
+            useAndClose(connection.prepareStatement("insert into t values (?)")) { statement ⇒
+                statement.setInt(1, 4)
+                statement.addBatch()
+                assert(1 === statement.executeBatch().length)
+            }
+        }
+        assert(1 === pool.getStatementCacheHits)
+
+        pool.close()
+    }
+
+    @Test def modifiedStatementIsNotCached(): Unit = {
+        val pool = newPool("modified")
+
+        useAndClose(pool.getConnection) { connection ⇒
+            connection.createStatement.execute("create table t (a int)")
+            for (i ← 1 to 3)
+                connection.createStatement.execute("insert into t values (" + i + ")")
+        }
+
+        useAndClose(pool.getConnection) { connection ⇒
+            useAndClose(connection.prepareStatement("select a from t")) { statement ⇒
+                statement.setMaxRows(1)
+                useAndClose(statement.executeQuery()) { resultSet ⇒
+                    assert(resultSet.next())
+                    assert(! resultSet.next())
+                }
+            }
+        }
+
+        // The statement is prepared again, without the maximum number of rows
+        useAndClose(pool.getConnection) { connection ⇒
+            useAndClose(connection.prepareStatement("select a from t")) { statement ⇒
+                useAndClose(statement.executeQuery()) { resultSet ⇒
+                    var count = 0
+                    while (resultSet.next())
+                        count += 1
+                    assert(3 === count)
+                }
+            }
+        }
+        assert(2 === pool.getStatementCacheMisses)
+        assert(0 === pool.getStatementCacheHits)
+
+        pool.close()
+    }
+
+    @Test def closedConnection(): Unit = {
+        val pool = newPool("closed")
+
+        val connection = pool.getConnection
+        connection.close()
+        assert(connection.isClosed)
+        intercept[SQLException](connection.createStatement)
+
+        // Closing twice doesn't return the connection twice
+        connection.close()
+        assert(1 === pool.getIdleCount)
+
+        pool.close()
+    }
+}
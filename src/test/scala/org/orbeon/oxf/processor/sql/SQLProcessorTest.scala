@@ -0,0 +1,179 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor.sql
+
+import java.lang.reflect.{InvocationTargetException, Method, InvocationHandler, Proxy}
+import java.sql.{PreparedStatement, Connection, DriverManager, Driver}
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import org.dom4j.Document
+import org.junit.Test
+import org.orbeon.oxf.processor.DOMSerializer
+import org.orbeon.oxf.processor.generator.DOMGenerator
+import org.orbeon.oxf.processor.sql.interpreters.RowTemplate
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.util.PipelineUtils
+import org.orbeon.oxf.xml.Dom4j.elemToDocument
+import org.orbeon.oxf.xml.SAXStore
+import org.xml.sax.helpers.{AttributesImpl, NamespaceSupport}
+import org.scalatest.junit.AssertionsForJUnit
+import scala.collection.JavaConverters._
+
+class SQLProcessorTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+    import SQLProcessorTest._
+
+    @Test def batchedUpdatesInForEach(): Unit = {
+
+        val config: Document =
+            <sql:config xmlns:sql="http://orbeon.org/oxf/xml/sql" xmlns:xs="http://www.w3.org/2001/XMLSchema">
+                <result>
+                    <sql:connection>
+                        <sql:execute>
+                            <sql:update>create table employee (id int, name varchar(50))</sql:update>
+                        </sql:execute>
+                        <sql:for-each select="/*/employee">
+                            <sql:execute batch="true" batch-size="3">
+                                <sql:update>
+                                    insert into employee (id, name)
+                                        values (<sql:param type="xs:int" select="@id"/>, <sql:param type="xs:string" select="@name"/>)
+                                </sql:update>
+                            </sql:execute>
+                        </sql:for-each>
+                        <sql:execute>
+                            <sql:query>select count(*) as c from employee</sql:query>
+                            <sql:result-set>
+                                <sql:row-iterator>
+                                    <count><sql:get-column-value column-name="c"/></count>
+                                </sql:row-iterator>
+                            </sql:result-set>
+                        </sql:execute>
+                    </sql:connection>
+                </result>
+            </sql:config>
+
+        val data: Document =
+            <employees>{
+                for (i ← 1 to 7) yield <employee id={i.toString} name={"name" + i}/>
+            }</employees>
+
+        val result = runSQLProcessor(config, data, "batch")
+
+        // All rows are inserted, in batches of 3, 3 and 1
+        assert("7" === result.getRootElement.element("count").getText)
+        assert(3 === calls("executeBatch"))
+    }
+
+    @Test def rowTemplateScopesPrefixes(): Unit = {
+
+        val namespaceSupport = new NamespaceSupport
+        namespaceSupport.declarePrefix("t", "http://www.w3.org/2001/XMLSchema")
+
+        val interpreterContext = new SQLProcessorInterpreterContext(null)
+        interpreterContext.setNamespaceSupport(namespaceSupport)
+
+        // Row body redefining the prefix `t` on an element
+        val body = new SAXStore
+        body.startPrefixMapping("t", "urn:other")
+        body.startElement("", "other", "other", new AttributesImpl)
+        body.endElement("", "other", "other")
+        body.endPrefixMapping("t")
+
+        assert(RowTemplate.compile(body, interpreterContext, null) ne null)
+
+        // Compiling the body doesn't change the prefixes in scope after it
+        assert("http://www.w3.org/2001/XMLSchema" === namespaceSupport.getURI("t"))
+    }
+
+    private def runSQLProcessor(config: Document, data: Document, database: String) = {
+
+        val datasource: Document =
+            <datasource>
+                <driver-class-name>org.hsqldb.jdbcDriver</driver-class-name>
+                <uri>{CountingURLPrefix + "hsqldb:mem:" + database}</uri>
+                <username>sa</username>
+                <password/>
+            </datasource>
+
+        val sqlProcessor = new SQLProcessor
+        for ((name, document) ← Seq("config" → config, "data" → data, "datasource" → datasource))
+            PipelineUtils.connect(PipelineUtils.createDOMGenerator(document, name, DOMGenerator.ZeroValidity, null), "data", sqlProcessor, name)
+
+        val domSerializer = new DOMSerializer
+        PipelineUtils.connect(sqlProcessor, "data", domSerializer, "data")
+
+        val pipelineContext = createPipelineContextWithExternalContext()
+        try domSerializer.runGetDocument(pipelineContext)
+        finally pipelineContext.destroy(true)
+    }
+}
+
+private object SQLProcessorTest {
+
+    // Driver for URLs starting with this prefix, which counts the statement executions going to the database
+    val CountingURLPrefix = "jdbc:counting:"
+
+    private val executions = new ConcurrentHashMap[String, AtomicInteger]
+
+    def calls(method: String) = Option(executions.get(method)) map (_.get) getOrElse 0
+
+    private def proxy[T](interface: Class[T], target: AnyRef)(intercept: PartialFunction[(Method, Array[AnyRef]), AnyRef]): T =
+        interface.cast(Proxy.newProxyInstance(getClass.getClassLoader, Array(interface), new InvocationHandler {
+            def invoke(proxy: AnyRef, method: Method, args: Array[AnyRef]) =
+                method.getName match {
+                    case "equals"   ⇒ Boolean.box(proxy eq args(0))
+                    case "hashCode" ⇒ Int.box(System.identityHashCode(proxy))
+                    case "toString" ⇒ "counting " + interface.getName
+                    case _ if intercept.isDefinedAt((method, args)) ⇒ intercept((method, args))
+                    case _ ⇒ forward(method, target, args)
+                }
+        }))
+
+    private def forward(method: Method, target: AnyRef, args: Array[AnyRef]) =
+        try method.invoke(target, Option(args).toSeq.flatten: _*)
+        catch { case e: InvocationTargetException ⇒ throw e.getCause }
+
+    private def countingStatement(statement: PreparedStatement): PreparedStatement =
+        proxy(classOf[PreparedStatement], statement) {
+            case (method, args) if method.getName startsWith "execute" ⇒
+                executions.putIfAbsent(method.getName, new AtomicInteger)
+                executions.get(method.getName).incrementAndGet()
+                forward(method, statement, args)
+        }
+
+    private def countingConnection(connection: Connection): Connection =
+        proxy(classOf[Connection], connection) {
+            case (method, args) if method.getName == "prepareStatement" && args.length == 1 ⇒
+                countingStatement(connection.prepareStatement(args(0).asInstanceOf[String]))
+        }
+
+    private val driver =
+        proxy(classOf[Driver], null) {
+            case (method, args) if method.getName == "acceptsURL" ⇒
+                Boolean.box(args(0).asInstanceOf[String] startsWith CountingURLPrefix)
+            case (method, args) if method.getName == "connect" ⇒
+                val url = args(0).asInstanceOf[String]
+                if (url startsWith CountingURLPrefix)
+                    countingConnection(DriverManager.getConnection("jdbc:" + url.substring(CountingURLPrefix.length), args(1).asInstanceOf[java.util.Properties]))
+                else
+                    null
+            case (method, _) if method.getName == "getMajorVersion" || method.getName == "getMinorVersion" ⇒
+                Int.box(1)
+            case (method, _) if method.getName == "jdbcCompliant" ⇒
+                Boolean.box(false)
+        }
+
+    if (! (DriverManager.getDrivers.asScala exists (_ eq driver)))
+        DriverManager.registerDriver(driver)
+}
@@ -15,9 +15,13 @@ package org.orbeon.oxf.processor.xinclude
 
 import javax.xml.namespace.QName
 import org.junit.Test
+import org.orbeon.oxf.cache.ObjectCache
+import org.orbeon.oxf.processor.transformer.TransformerURIResolver
 import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.util.NetUtils
+import org.orbeon.oxf.xml.XMLUtils.ParserConfiguration.PLAIN
 import org.orbeon.oxf.xml.XMLUtils.ParserConfiguration.XINCLUDE_ONLY
-import org.orbeon.oxf.xml.{XMLReceiverAdapter, XMLUtils}
+import org.orbeon.oxf.xml.{XIncludeReceiver, XMLReceiverAdapter, XMLUtils}
 import org.orbeon.scaxon.SAXEvents._
 import org.scalatest.junit.AssertionsForJUnit
 import org.xml.sax.Attributes
@@ -150,6 +154,31 @@ class XIncludeTest extends ResourceManagerTestBase with AssertionsForJUnit {
         assert(expected === collector.events)
     }
 
+    @Test def includedDocumentsCache() {
+
+        def read() = {
+            val collector = new Collector
+            XMLUtils.urlToSAX("oxf:/org/orbeon/oxf/processor/xinclude/include41.xml", collector, XINCLUDE_ONLY, true)
+            collector.events
+        }
+
+        // NOTE: Cache statistics are kept per pipeline context, and parsing uses its own context, so check the cache
+        def cached(href: String) = {
+            val systemId = "oxf:/org/orbeon/oxf/processor/xinclude/" + href
+            val cacheKey = XIncludeReceiver.includedDocumentCacheKey(new TransformerURIResolver(PLAIN).getParsedDocumentKey, systemId)
+            val cache    = ObjectCache.instance(XIncludeReceiver.IncludedDocumentsCacheName, XIncludeReceiver.IncludedDocumentsCacheDefaultSize)
+            Option(cache.findValid(cacheKey, NetUtils.getLastModifiedIfFast(systemId)))
+        }
+
+        val firstEvents = read()
+        val included    = Seq("include42.xml", "include43.xml") map cached
+
+        // Included documents are cached and replayed the second time
+        assert(included forall (_.isDefined))
+        assert(firstEvents === read())
+        assert(included === (Seq("include42.xml", "include43.xml") map cached))
+    }
+
     // Collect the SAX events we are interested in
     class Collector extends XMLReceiverAdapter {
 
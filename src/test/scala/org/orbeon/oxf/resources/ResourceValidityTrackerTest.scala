@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.resources
+
+import java.util.concurrent.{TimeUnit, CountDownLatch, ConcurrentLinkedQueue}
+import java.util.concurrent.atomic.AtomicInteger
+import org.junit.Test
+import org.orbeon.oxf.resources.ResourceValidityTracker.ReloadMode._
+import org.scalatest.junit.AssertionsForJUnit
+
+class ResourceValidityTrackerTest extends AssertionsForJUnit {
+
+    // Resources "a" and "b" exist and change date every time they are checked
+    private class CountingChecker extends ResourceValidityTracker.Checker {
+        val checks = new AtomicInteger
+        def lastModified(key: String) =
+            if (Set("a", "b")(key)) checks.incrementAndGet() else ResourceValidityTracker.NOT_FOUND
+    }
+
+    @Test def onAccess(): Unit = {
+        val checker = new CountingChecker
+        val tracker = new ResourceValidityTracker(checker, ON_ACCESS, 200, 1000)
+
+        assert(1 === tracker.lastModified("a"))
+        assert(1 === tracker.lastModified("a"))
+        assert(ResourceValidityTracker.NOT_FOUND === tracker.lastModified("c"))
+
+        Thread.sleep(300)
+        assert(2 === tracker.lastModified("a"))
+
+        tracker.invalidate("a")
+        assert(3 === tracker.lastModified("a"))
+    }
+
+    @Test def never(): Unit = {
+        val checker = new CountingChecker
+        val tracker = new ResourceValidityTracker(checker, NEVER, 100, 1000)
+
+        assert(1 === tracker.lastModified("a"))
+        Thread.sleep(200)
+        assert(1 === tracker.lastModified("a"))
+        assert(1 === checker.checks.get)
+    }
+
+    @Test def background(): Unit = {
+        val checker = new CountingChecker
+        val tracker = new ResourceValidityTracker(checker, BACKGROUND, 100, 1000)
+
+        assert(1 === tracker.lastModified("a"))
+        assert(2 === tracker.lastModified("b"))
+
+        // Dates are refreshed without being accessed
+        Thread.sleep(550)
+        assert(checker.checks.get > 2)
+        assert(tracker.lastModified("a") > 1)
+        assert(tracker.lastModified("b") > 2)
+    }
+
+    @Test def bounded(): Unit = {
+        val checked = new ConcurrentLinkedQueue[String]
+        val checker = new ResourceValidityTracker.Checker {
+            def lastModified(key: String) = { checked.add(key); 1L }
+        }
+        val tracker = new ResourceValidityTracker(checker, NEVER, 100, 10)
+
+        for (i ← 1 to 10)
+            tracker.lastModified("r" + i)
+        assert(10 === tracker.size)
+
+        // Access "r1" again later, so that it is not among the resources accessed least recently
+        Thread.sleep(1100)
+        tracker.lastModified("r1")
+
+        // Going over the maximum forgets the resources accessed least recently
+        tracker.lastModified("r11")
+        assert(9 === tracker.size)
+
+        checked.clear()
+        tracker.lastModified("r1")
+        tracker.lastModified("r11")
+        assert(checked.isEmpty)
+    }
+
+    @Test def invalidateDuringCheck(): Unit = {
+        val started = new CountDownLatch(1)
+        val release = new CountDownLatch(1)
+        val checks  = new AtomicInteger
+
+        // The first check reads the date, then waits until the resource has been invalidated
+        val checker = new ResourceValidityTracker.Checker {
+            def lastModified(key: String) = {
+                val date = checks.incrementAndGet()
+                if (date == 1) {
+                    started.countDown()
+                    release.await(10, TimeUnit.SECONDS)
+                }
+                date
+            }
+        }
+        val tracker = new ResourceValidityTracker(checker, NEVER, 100, 1000)
+
+        val thread = new Thread {
+            override def run() = tracker.lastModified("a")
+        }
+        thread.start()
+
+        started.await(10, TimeUnit.SECONDS)
+        tracker.invalidate("a")
+        release.countDown()
+        thread.join()
+
+        // The date read before the invalidation was not stored
+        assert(2 === tracker.lastModified("a"))
+        assert(2 === tracker.lastModified("a"))
+    }
+}
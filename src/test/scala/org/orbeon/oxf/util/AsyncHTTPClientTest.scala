@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.util
+
+import java.io.{InputStreamReader, BufferedReader}
+import java.net.{SocketTimeoutException, URL, Socket, ServerSocket}
+import java.util.concurrent.{TimeUnit, CountDownLatch, ConcurrentLinkedQueue}
+import java.util.concurrent.atomic.AtomicInteger
+import org.apache.commons.io.IOUtils
+import org.junit.Test
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.util.ScalaUtils._
+import org.scalatest.junit.AssertionsForJUnit
+import scala.collection.JavaConverters._
+import scala.util.control.NonFatal
+import scala.util.{Failure, Success, Try}
+
+class AsyncHTTPClientTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+    // HTTP server answering each request after a delay, with the request path, repeated, as body, and optionally pausing
+    // in the middle of the body
+    private class SlowServer(latency: Long, chunked: Boolean = false, repeat: Int = 1, pause: Long = 0) {
+
+        val serverSocket  = new ServerSocket(0)
+        val concurrent    = new AtomicInteger
+        val maxConcurrent = new AtomicInteger
+
+        private val thread = new Thread {
+            override def run() =
+                try while (true) {
+                    val socket = serverSocket.accept()
+                    new Thread {
+                        override def run() = try serve(socket) catch { case NonFatal(_) ⇒ }
+                    }.start()
+                } catch { case NonFatal(_) ⇒ }
+        }
+        thread.setDaemon(true)
+        thread.start()
+
+        def url(path: String) = new URL("http://localhost:" + serverSocket.getLocalPort + path)
+        def close() = serverSocket.close()
+
+        private def serve(socket: Socket): Unit = useAndClose(socket) { _ ⇒
+            val in = new BufferedReader(new InputStreamReader(socket.getInputStream, "ISO-8859-1"))
+            val path = in.readLine().split(' ')(1)
+            while (in.readLine().nonEmpty) {}
+
+            val current = concurrent.incrementAndGet()
+            maxConcurrent.synchronized {
+                if (current > maxConcurrent.get)
+                    maxConcurrent.set(current)
+            }
+            Thread.sleep(latency)
+            concurrent.decrementAndGet()
+
+            val os = socket.getOutputStream
+            def write(s: String) = os.write(s.getBytes("ISO-8859-1"))
+            def pauseIfMiddle(i: Int) = if (i == repeat / 2) { os.flush(); Thread.sleep(pause) }
+
+            if (chunked) {
+                write("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nTransfer-Encoding: chunked\r\n\r\n")
+                for (i ← 1 to repeat) {
+                    pauseIfMiddle(i)
+                    write(Integer.toHexString(path.length) + "\r\n" + path + "\r\n")
+                }
+                write("0\r\n\r\n")
+            } else {
+                write("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: " + path.length * repeat + "\r\n\r\n")
+                for (i ← 1 to repeat) {
+                    pauseIfMiddle(i)
+                    write(path)
+                }
+            }
+            os.flush()
+        }
+    }
+
+    private def bodyAsString(response: AsyncHTTPClient.Response) =
+        useAndClose(response.body)(IOUtils.toString(_, "ISO-8859-1"))
+
+    private def executeAll(urls: Seq[URL], timeout: Long) = {
+        val results = new ConcurrentLinkedQueue[Try[AsyncHTTPClient.Response]]
+        val latch   = new CountDownLatch(urls.size)
+
+        for (url ← urls)
+            AsyncHTTPClient.execute("GET", url, Seq("Accept" → "text/plain"), None, timeout) { result ⇒
+                results.add(result)
+                latch.countDown()
+            }
+
+        assert(latch.await(30, TimeUnit.SECONDS))
+        results.asScala.toList
+    }
+
+    @Test def concurrentRequestsDontHoldThreads(): Unit = {
+        val server = new SlowServer(latency = 1000)
+        try {
+            val startTime = System.currentTimeMillis
+
+            val results = executeAll(1 to 50 map (i ⇒ server.url("/request/" + i)), 10000)
+            val elapsed = System.currentTimeMillis - startTime
+
+            // The requests were in progress at the same time, which would take 50 seconds one after the other
+            assert(50 === results.size)
+            assert(results forall (_.isSuccess))
+            assert((results map (r ⇒ bodyAsString(r.get))).toSet === (1 to 50 map ("/request/" + _)).toSet)
+            assert(results forall (_.get.header("content-type") == Some("text/plain")))
+            assert(server.maxConcurrent.get > 1)
+            assert(elapsed < 10 * 1000)
+        } finally
+            server.close()
+    }
+
+    @Test def chunkedResponse(): Unit = {
+        val server = new SlowServer(latency = 0, chunked = true)
+        try {
+            val List(Success(response)) = executeAll(Seq(server.url("/chunked")), 10000)
+            assert(200 === response.statusCode)
+            assert("/chunked" === bodyAsString(response))
+        } finally
+            server.close()
+    }
+
+    @Test def largeResponsesNotBuffered(): Unit =
+        for (chunked ← Seq(false, true)) {
+            val path   = "/large/" + ("x" * 1000)
+            val repeat = 3 * AsyncHTTPClient.MaxBufferedResponseSize / path.length
+            val server = new SlowServer(latency = 0, chunked = chunked, repeat = repeat, pause = 1000)
+            try {
+                // The callback is called with the start of the body, and the rest is read from the connection, which
+                // waits for the server to send the second half
+                val List(Success(response)) = executeAll(Seq(server.url(path)), 10000)
+                assert(200 === response.statusCode)
+
+                val startTime = System.currentTimeMillis
+                assert(path * repeat === bodyAsString(response))
+                assert(System.currentTimeMillis - startTime >= 500)
+            } finally
+                server.close()
+        }
+
+    @Test def timeout(): Unit = {
+        val server = new SlowServer(latency = 5000)
+        try {
+            val List(Failure(t)) = executeAll(Seq(server.url("/slow")), 200)
+            assert(t.isInstanceOf[SocketTimeoutException])
+        } finally
+            server.close()
+    }
+
+    @Test def connectionRefused(): Unit = {
+        val port = useAndClose(new ServerSocket(0))(_.getLocalPort)
+        val List(result) = executeAll(Seq(new URL("http://localhost:" + port + "/")), 10000)
+        assert(result.isFailure)
+    }
+}
@@ -14,6 +14,10 @@
 package org.orbeon.oxf.util
 
 import collection.JavaConverters._
+import java.io.{InputStreamReader, BufferedReader}
+import java.net.{URL, Socket, ServerSocket}
+import java.util.concurrent.{TimeUnit, LinkedBlockingQueue}
+import org.apache.commons.io.IOUtils
 import org.junit.Test
 import org.mockito.Mockito
 import org.orbeon.oxf.externalcontext.LocalRequest
@@ -21,10 +25,12 @@ import org.orbeon.oxf.externalcontext.RequestAdapter
 import org.orbeon.oxf.pipeline.api.ExternalContext
 import org.orbeon.oxf.pipeline.api.PipelineContext
 import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.util.ScalaUtils._
 import org.orbeon.oxf.webapp.WebAppContext
 import org.scalatest.junit.AssertionsForJUnit
 import org.scalatest.mock.MockitoSugar
 import collection.mutable
+import scala.util.control.NonFatal
 
 class ConnectionTest extends ResourceManagerTestBase with AssertionsForJUnit with MockitoSugar {
     
@@ -95,4 +101,91 @@ class ConnectionTest extends ResourceManagerTestBase with AssertionsForJUnit wit
         val parameters = wrapper.getParameterMap
         assert("name1=value1a&name1=value1b&name1=value1c&name2=value2a&name2=value2b&name3=value3" === NetUtils.encodeQueryString(parameters))
     }
-}
\ No newline at end of file
+
+    // HTTP server redirecting /redirect/... to /target, and answering /target with the request cookies
+    private class RedirectingServer {
+
+        val serverSocket = new ServerSocket(0)
+
+        private val thread = new Thread {
+            override def run() =
+                try while (true) {
+                    val socket = serverSocket.accept()
+                    new Thread {
+                        override def run() = try serve(socket) catch { case NonFatal(_) ⇒ }
+                    }.start()
+                } catch { case NonFatal(_) ⇒ }
+        }
+        thread.setDaemon(true)
+        thread.start()
+
+        def url(path: String) = new URL("http://localhost:" + serverSocket.getLocalPort + path)
+        def close() = serverSocket.close()
+
+        private def serve(socket: Socket): Unit = useAndClose(socket) { _ ⇒
+            val in = new BufferedReader(new InputStreamReader(socket.getInputStream, "ISO-8859-1"))
+            val path = in.readLine().split(' ')(1)
+            val cookie = Iterator.continually(in.readLine()) takeWhile (_.nonEmpty) collectFirst
+                { case line if line.toLowerCase.startsWith("cookie:") ⇒ line.substring("cookie:".length).trim }
+
+            val response =
+                path match {
+                    case "/target" ⇒
+                        val body = cookie getOrElse ""
+                        "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: " + body.length + "\r\n\r\n" + body
+                    case "/redirect/https" ⇒
+                        "HTTP/1.1 302 Found\r\nLocation: https://localhost/target\r\nContent-Length: 0\r\n\r\n"
+                    case _ ⇒
+                        "HTTP/1.1 302 Found\r\nLocation: /target\r\nSet-Cookie: visited=yes; Path=/\r\nContent-Length: 0\r\n\r\n"
+                }
+
+            val os = socket.getOutputStream
+            os.write(response.getBytes("ISO-8859-1"))
+            os.flush()
+        }
+    }
+
+    // Open the connection asynchronously and return what the callback was called with
+    private def connectAsync(connection: Connection): AnyRef = {
+        val result = new LinkedBlockingQueue[AnyRef]
+        connection.connectAsync(10000, new ConnectionCallback {
+            def completed(connectionResult: ConnectionResult) = result.add(connectionResult)
+            def failed(throwable: Throwable)                  = result.add(throwable)
+            def connect(connection: Connection)               = result.add(connection)
+        })
+        result.poll(30, TimeUnit.SECONDS)
+    }
+
+    private def bodyAsString(connectionResult: ConnectionResult) =
+        useAndClose(connectionResult.getResponseInputStream)(IOUtils.toString(_, "ISO-8859-1"))
+
+    @Test def connectAsyncFollowsRedirectsWithCookies(): Unit = {
+        implicit val logger = ResourceManagerTestBase.newIndentedLogger
+        val server = new RedirectingServer
+        try {
+            val connection = Connection("GET", server.url("/redirect/cookie"), None, None, Connection.EmptyHeaders, loadState = false, logBody = false)
+
+            // The cookie set with the redirect is sent to the target and kept in the state
+            val connectionResult = connectAsync(connection).asInstanceOf[ConnectionResult]
+            assert(200 === connectionResult.statusCode)
+            assert("visited=yes" === bodyAsString(connectionResult))
+            assert(connection.cookieStoreOption.toList flatMap (_.getCookies.asScala) exists (_.getName == "visited"))
+        } finally
+            server.close()
+    }
+
+    @Test def connectAsyncRedirects(): Unit = {
+        implicit val logger = ResourceManagerTestBase.newIndentedLogger
+        val server = new RedirectingServer
+        try {
+            // Like HttpClient, a POST isn't redirected on 302
+            val post = Connection("POST", server.url("/redirect/post"), None, Some(Array[Byte]()), Connection.EmptyHeaders, loadState = false, logBody = false)
+            assert(302 === connectAsync(post).asInstanceOf[ConnectionResult].statusCode)
+
+            // A redirect to a URL the asynchronous client doesn't support requires a blocking connection
+            val get = Connection("GET", server.url("/redirect/https"), None, None, Connection.EmptyHeaders, loadState = false, logBody = false)
+            assert(connectAsync(get).isInstanceOf[Connection])
+        } finally
+            server.close()
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.util
+
+import java.util.concurrent.CyclicBarrier
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicLong}
+import org.apache.commons.pool.{BasePoolableObjectFactory, ObjectPool}
+import org.apache.commons.pool.impl.{SoftReferenceObjectPool ⇒ SynchronizedSoftReferenceObjectPool}
+
+/**
+ * Throughput of borrowing and returning objects with SoftReferenceObjectPool, compared to the synchronized Commons
+ * Pool version it is derived from. This is not run as part of the tests, as results depend on the number of cores.
+ *
+ * Usage: SoftReferenceObjectPoolBenchmark [seconds per run] [thread counts...]
+ *
+ * e.g. SoftReferenceObjectPoolBenchmark 5 1 2 4 8 16
+ */
+object SoftReferenceObjectPoolBenchmark {
+
+    private val Pools = Seq[(String, () ⇒ ObjectPool[AnyRef])](
+        "lock-free"    → (() ⇒ new SoftReferenceObjectPool(new Factory)),
+        "synchronized" → (() ⇒ new SynchronizedSoftReferenceObjectPool(new Factory))
+    )
+
+    private class Factory extends BasePoolableObjectFactory[AnyRef] {
+        def makeObject() = new Object
+    }
+
+    def main(args: Array[String]): Unit = {
+
+        val seconds      = args.headOption map (_.toInt) getOrElse 3
+        val threadCounts = if (args.length > 1) args.tail.toSeq map (_.toInt) else Seq(1, 2, 4, 8, 16)
+
+        println(s"Available processors: ${Runtime.getRuntime.availableProcessors}")
+
+        // Warm up the code of both pools before measuring
+        for ((_, newPool) ← Pools)
+            run(newPool(), threadCounts.max, 1)
+
+        for (threads ← threadCounts; (name, newPool) ← Pools) {
+            val operations = run(newPool(), threads, seconds)
+            println(f"$name%-12s $threads%3d threads: ${operations / seconds / 1000}%,10d borrow/return per ms")
+        }
+    }
+
+    // Number of borrow/return pairs done by the given number of threads during the given time
+    private def run(pool: ObjectPool[AnyRef], threads: Int, seconds: Int): Long = {
+
+        val started    = new CyclicBarrier(threads + 1)
+        val stopped    = new AtomicBoolean
+        val operations = new AtomicLong
+
+        val workers =
+            for (_ ← 1 to threads)
+            yield new Thread {
+                override def run() = {
+                    started.await()
+                    var count = 0L
+                    while (! stopped.get) {
+                        pool.returnObject(pool.borrowObject())
+                        count += 1
+                    }
+                    operations.addAndGet(count)
+                }
+            }
+
+        workers foreach (_.start())
+        started.await()
+        Thread.sleep(seconds * 1000L)
+        stopped.set(true)
+        workers foreach (_.join())
+
+        pool.close()
+        operations.get
+    }
+}
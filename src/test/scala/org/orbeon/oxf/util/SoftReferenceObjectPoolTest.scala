@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.util
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{ConcurrentLinkedQueue, CountDownLatch, ConcurrentHashMap}
+import org.apache.commons.pool.BasePoolableObjectFactory
+import org.junit.Test
+import org.scalatest.junit.AssertionsForJUnit
+
+class SoftReferenceObjectPoolTest extends AssertionsForJUnit {
+
+    private class CountingFactory extends BasePoolableObjectFactory[AnyRef] {
+        val made      = new AtomicInteger
+        val destroyed = new AtomicInteger
+        def makeObject() = { made.incrementAndGet(); new Object }
+        override def destroyObject(obj: AnyRef): Unit = destroyed.incrementAndGet()
+    }
+
+    @Test def reuse(): Unit = {
+        val factory = new CountingFactory
+        val pool = new SoftReferenceObjectPool(factory)
+
+        val o1 = pool.borrowObject()
+        val o2 = pool.borrowObject()
+        assert(2 === pool.getNumActive)
+
+        pool.returnObject(o1)
+        pool.returnObject(o2)
+        assert(0 === pool.getNumActive)
+        assert(2 === pool.getNumIdle)
+
+        // Last returned is borrowed first
+        assert(o2 eq pool.borrowObject())
+        assert(o1 eq pool.borrowObject())
+        assert(2 === factory.made.get)
+
+        pool.invalidateObject(o1)
+        pool.returnObject(o2)
+        pool.clear()
+        assert(0 === pool.getNumIdle)
+        assert(2 === factory.destroyed.get)
+    }
+
+    @Test def concurrentAccess(): Unit = {
+        val factory = new CountingFactory
+        val pool = new SoftReferenceObjectPool(factory)
+
+        val Threads = 64
+        val go      = new CountDownLatch(1)
+        val inUse   = new ConcurrentHashMap[AnyRef, AnyRef]
+        val shared  = new AtomicInteger
+        val errors  = new ConcurrentLinkedQueue[Throwable]
+
+        val threads =
+            for (_ ← 1 to Threads)
+            yield new Thread {
+                override def run() =
+                    try {
+                        go.await()
+                        for (_ ← 1 to 10000) {
+                            val o = pool.borrowObject()
+                            if (inUse.put(o, o) ne null)
+                                shared.incrementAndGet()
+                            inUse.remove(o)
+                            pool.returnObject(o)
+                        }
+                    } catch {
+                        case t: Throwable ⇒ errors.add(t)
+                    }
+            }
+
+        threads foreach (_.start())
+        go.countDown()
+        threads foreach (_.join())
+
+        // Report failures of worker threads
+        Option(errors.peek) foreach (throw _)
+
+        // An object is never borrowed by two threads at the same time, and no more objects are created than threads
+        assert(0 === shared.get)
+        assert(0 === pool.getNumActive)
+        assert(factory.made.get <= Threads)
+        assert(factory.made.get === pool.getNumIdle)
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.util
+
+import collection.JavaConverters._
+import org.junit.Test
+import org.orbeon.oxf.cache.ObjectCache
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.util.XPathCache._
+import org.orbeon.oxf.xml.NamespaceMapping
+import org.orbeon.saxon.om.{Item, ValueRepresentation}
+import org.orbeon.saxon.value.StringValue
+import org.scalatest.junit.AssertionsForJUnit
+
+class XPathCacheTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+    @Test def expressionHandle(): Unit = {
+
+        val statistics = ObjectCache.instance(XPathCacheName, XPathCacheDefaultSize).getStatistics
+        def lookups = statistics.getHitCount + statistics.getMissCount
+
+        val handle = new XPathExpressionHandle("concat(., $v)", NamespaceMapping.EMPTY_MAPPING, isAVT = false)
+
+        def evaluate(variables: (String, String)*) = {
+            val variableToValueMap = (variables map { case (name, value) ⇒ name → (StringValue.makeStringValue(value): ValueRepresentation) }).toMap.asJava
+            XPathCache.evaluateAsString(Seq[Item](StringValue.makeStringValue("x")).asJava, 1, handle, variableToValueMap, null, null, null, null, null)
+        }
+
+        assert("x1" === evaluate("v" → "1"))
+
+        // Same variable names: the cache is not looked up
+        val lookupsAfterFirst = lookups
+        assert("x2" === evaluate("v" → "2"))
+        assert("x3" === evaluate("v" → "3"))
+        assert(lookupsAfterFirst === lookups)
+
+        // Different variable names: the expression is compiled for the new variables
+        assert("x4" === evaluate("v" → "4", "w" → "5"))
+        assert(lookupsAfterFirst + 1 === lookups)
+        assert("x6" === evaluate("v" → "6", "w" → "7"))
+        assert(lookupsAfterFirst + 1 === lookups)
+    }
+}
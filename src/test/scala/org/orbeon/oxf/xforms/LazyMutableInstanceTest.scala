@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms
+
+import org.dom4j.Document
+import org.junit.{Assume, Test}
+import org.orbeon.oxf.common.Version
+import org.orbeon.oxf.test.{DocumentTestBase, XFormsSupport}
+import org.orbeon.oxf.util.IndentedLogger
+import org.orbeon.oxf.xforms.processor.XFormsServer
+import org.orbeon.oxf.xml.Dom4j.elemToDocument
+import org.orbeon.saxon.om.VirtualNode
+import org.orbeon.scaxon.XML._
+import scala.xml.{Elem, NodeSeq}
+
+class LazyMutableInstanceTest extends DocumentTestBase with XFormsSupport {
+
+    // Dispatch to the model and process deferred updates, like for an external event
+    private def dispatchToModel(name: String) = {
+        document.startOutermostActionHandler()
+        dispatch(name, "model")
+        document.endOutermostActionHandler()
+    }
+
+    @Test def convertUponFirstMutation(): Unit =
+        withActionAndDoc(setupDocument(
+            <xh:html xmlns:xh="http://www.w3.org/1999/xhtml"
+                     xmlns:xf="http://www.w3.org/2002/xforms"
+                     xmlns:ev="http://www.w3.org/2001/xml-events"
+                     xmlns:xxf="http://orbeon.org/oxf/xml/xforms">
+                <xh:head>
+                    <xf:model id="model">
+                        <xf:instance id="instance" xxf:lazy-mutable="true">
+                            <items><item>1</item><item>2</item></items>
+                        </xf:instance>
+                        <xf:action ev:event="update" iterate="item">
+                            <xf:setvalue ref="." value=". * 10"/>
+                        </xf:action>
+                        <xf:insert ev:event="add" ref="item"/>
+                        <xf:delete ev:event="remove" ref="item[1]"/>
+                    </xf:model>
+                </xh:head>
+                <xh:body>
+                    <xf:output id="output" ref="item[1]"/>
+                </xh:body>
+            </xh:html>
+        )) {
+            def lazyInstance = instance("instance").get
+            def itemValues   = lazyInstance.rootElement \ "item" map (_.getStringValue)
+
+            // Content is a readonly tree until mutated
+            assert(lazyInstance.isLazyMutable)
+            assert(! lazyInstance.documentInfo.isInstanceOf[VirtualNode])
+            assert(getControlValue("output") === "1")
+
+            // All the nodes obtained before the conversion are updated
+            dispatchToModel("update")
+            assert(! lazyInstance.isLazyMutable)
+            assert(lazyInstance.documentInfo.isInstanceOf[VirtualNode])
+            assert(itemValues === Seq("10", "20"))
+            assert(getControlValue("output") === "10")
+
+            dispatchToModel("add")
+            dispatchToModel("remove")
+            assert(itemValues === Seq("20", "20"))
+            assert(getControlValue("output") === "20")
+        }
+
+    // Document with an instance holding a book and an input bound to the title
+    private def bookDoc(instance: Elem, modelContent: NodeSeq = NodeSeq.Empty, modelSchema: Option[String] = None): Document =
+        <xh:html xmlns:xh="http://www.w3.org/1999/xhtml"
+                 xmlns:xf="http://www.w3.org/2002/xforms">
+            <xh:head>
+                <xf:model id="model" schema={modelSchema.orNull}>
+                    {instance}
+                    {modelContent}
+                </xf:model>
+            </xh:head>
+            <xh:body>
+                <xf:input id="input" ref="details/title"/>
+            </xh:body>
+        </xh:html>
+
+    private val cachedInstance =
+        <xf:instance xmlns:xf="http://www.w3.org/2002/xforms" xmlns:xxf="http://orbeon.org/oxf/xml/xforms"
+                     id="instance" src="oxf:/ops/unit-tests/test-data/book-diderot.xml" xxf:cache="true"/>
+
+    private val lazyMutableInstance =
+        <xf:instance xmlns:xf="http://www.w3.org/2002/xforms" xmlns:xxf="http://orbeon.org/oxf/xml/xforms"
+                     id="instance" xxf:lazy-mutable="true">
+            <book><details><title>Jacques le fataliste et son maître</title></details></book>
+        </xf:instance>
+
+    @Test def shareCachedInstanceAcrossDocuments(): Unit = {
+
+        Assume.assumeTrue(Version.isPE) // only test this feature if we are the PE version
+
+        // Start with a tree which no other document shares
+        XFormsServerSharedInstancesCache.removeAll(new IndentedLogger(XFormsServer.logger, "test"))
+
+        // Both documents refer to the tree loaded by the first one
+        val first  = setupDocument(bookDoc(cachedInstance)).findInstance("instance").get
+        val second = setupDocument(bookDoc(cachedInstance)).findInstance("instance").get
+
+        val sharedDocumentInfo = first.documentInfo
+        assert(first.isLazyMutable && second.isLazyMutable)
+        assert(second.documentInfo eq sharedDocumentInfo)
+        assert(XFormsServerSharedInstancesCache.sharingCount(sharedDocumentInfo) === 2)
+
+        // Controls bound to the shared tree are writable
+        assert(! isReadonly("input"))
+
+        // Writing through the control of the second document only converts its own instance
+        setControlValueWithEvent("input", "Jacques the Fatalist")
+
+        assert(! second.isLazyMutable)
+        assert(second.documentInfo.isInstanceOf[VirtualNode])
+        assert(getControlValue("input") === "Jacques the Fatalist")
+
+        assert(first.isLazyMutable)
+        assert(first.documentInfo eq sharedDocumentInfo)
+        assert((first.rootElement \ "details" \ "title" stringValue) === "Jacques le fataliste et son maître")
+        assert(XFormsServerSharedInstancesCache.sharingCount(sharedDocumentInfo) === 1)
+    }
+
+    @Test def convertUponSetValueThroughControl(): Unit = {
+        setupDocument(bookDoc(lazyMutableInstance))
+
+        val lazyInstance = instance("instance").get
+        assert(lazyInstance.isLazyMutable)
+        assert(! isReadonly("input"))
+
+        setControlValueWithEvent("input", "Jacques the Fatalist")
+
+        assert(! lazyInstance.isLazyMutable)
+        assert(lazyInstance.documentInfo.isInstanceOf[VirtualNode])
+        assert(getControlValue("input") === "Jacques the Fatalist")
+        assert(! isReadonly("input"))
+    }
+
+    @Test def convertUponRebuildWithBinds(): Unit = {
+        setupDocument(bookDoc(lazyMutableInstance, <xf:bind xmlns:xf="http://www.w3.org/2002/xforms" ref="details/title" required="true()"/>))
+
+        // Binds require a mutable document
+        val converted = instance("instance").get
+        assert(! converted.isLazyMutable)
+        assert(converted.documentInfo.isInstanceOf[VirtualNode])
+        assert(isRequired("input"))
+        assert(! isReadonly("input"))
+    }
+
+    @Test def convertUponRebuildWithSchema(): Unit = {
+        setupDocument(bookDoc(lazyMutableInstance, modelSchema = Some("oxf:/ops/unit-tests/xforms-test-schema.xsd")))
+
+        // Schema validation requires a mutable document
+        val converted = instance("instance").get
+        assert(! converted.isLazyMutable)
+        assert(converted.documentInfo.isInstanceOf[VirtualNode])
+        assert(! isReadonly("input"))
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{ExecutionException, TimeUnit, Callable, Executors, CountDownLatch}
+import org.junit.{After, Test}
+import org.orbeon.oxf.common.OXFException
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.util.IndentedLogger
+import org.orbeon.oxf.xforms.XFormsServerSharedInstancesCache.Loader
+import org.orbeon.oxf.xforms.analysis.model.ThrowawayInstance
+import org.orbeon.oxf.xforms.processor.XFormsServer
+import org.orbeon.oxf.xml.Dom4j.elemToDocument
+import org.orbeon.saxon.om.DocumentInfo
+import org.scalatest.junit.AssertionsForJUnit
+
+class XFormsServerSharedInstancesCacheTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+    private implicit val logger = new IndentedLogger(XFormsServer.logger, "test")
+
+    private val instance = new ThrowawayInstance(elemToDocument(<xf:instance xmlns:xf="http://www.w3.org/2002/xforms" id="instance"/>).getRootElement)
+    private val executor = Executors.newCachedThreadPool
+
+    @After def shutdownExecutor(): Unit = executor.shutdownNow()
+
+    private def newDocument(value: String) =
+        XFormsInstance.createDocumentInfo("<value>" + value + "</value>", readonly = true, exposeXPathTypes = false)
+
+    // Caching information for a source URI which no other test uses
+    private def newCaching(timeToLive: Long = -1) =
+        InstanceCaching(timeToLive, handleXInclude = false, "test:" + System.nanoTime, None)
+
+    private def findContentOrLoad(caching: InstanceCaching)(content: ⇒ DocumentInfo) =
+        XFormsServerSharedInstancesCache.findContentOrLoad(logger, instance, caching, readonly = true, new Loader {
+            def load(instanceSourceURI: String, handleXInclude: Boolean) = content
+        })
+
+    private def inBackground[T](body: ⇒ T) =
+        executor.submit(new Callable[T] { def call() = body })
+
+    // Loader which blocks until released
+    private class BlockingLoad(result: ⇒ DocumentInfo) {
+        val calls    = new AtomicInteger
+        val started  = new CountDownLatch(1)
+        val released = new CountDownLatch(1)
+
+        def load() = {
+            calls.incrementAndGet()
+            started.countDown()
+            released.await()
+            result
+        }
+    }
+
+    private def coalescedLoads =
+        XFormsServerSharedInstancesCache.statistics.toMap.apply("coalesced loads").toLong
+
+    // Wait until the given number of requests wait for a load by another request
+    private def awaitCoalescedLoads(count: Long): Unit =
+        while (coalescedLoads < count)
+            Thread.sleep(10)
+
+    @Test def coalesceConcurrentLoads(): Unit = {
+        val caching  = newCaching()
+        val document = newDocument("1")
+        val blocking = new BlockingLoad(document)
+
+        val first = inBackground(findContentOrLoad(caching)(blocking.load()))
+        blocking.started.await()
+
+        val coalesced = coalescedLoads
+        val second = inBackground(findContentOrLoad(caching)(blocking.load()))
+        awaitCoalescedLoads(coalesced + 1)
+
+        blocking.released.countDown()
+
+        // Both requests get the content of the single load
+        assert(first.get(10, TimeUnit.SECONDS) eq document)
+        assert(second.get(10, TimeUnit.SECONDS) eq document)
+        assert(blocking.calls.get === 1)
+
+        // Then the content is cached
+        assert(findContentOrLoad(caching)(fail("instance loaded again")) eq document)
+    }
+
+    @Test def reentrantLoad(): Unit = {
+        val caching = newCaching()
+        val calls   = new AtomicInteger
+
+        // The loader requires the instance it is loading, so the nested request loads it as well instead of waiting
+        def load(): DocumentInfo =
+            if (calls.incrementAndGet() == 1) {
+                findContentOrLoad(caching)(load())
+                newDocument("outer")
+            } else
+                newDocument("nested")
+
+        val result = inBackground(findContentOrLoad(caching)(load())).get(10, TimeUnit.SECONDS)
+
+        assert(result.getStringValue === "outer")
+        assert(calls.get === 2)
+    }
+
+    @Test def propagateFailureToWaitingRequests(): Unit = {
+        val caching  = newCaching()
+        val blocking = new BlockingLoad(throw new OXFException("load failed"))
+
+        val first = inBackground(findContentOrLoad(caching)(blocking.load()))
+        blocking.started.await()
+
+        val coalesced = coalescedLoads
+        val second = inBackground(findContentOrLoad(caching)(blocking.load()))
+        awaitCoalescedLoads(coalesced + 1)
+
+        blocking.released.countDown()
+
+        // Both requests fail with the exception of the single load, and nothing is cached
+        for (request ← Seq(first, second)) {
+            val e = intercept[ExecutionException](request.get(10, TimeUnit.SECONDS))
+            assert(e.getCause.isInstanceOf[OXFException])
+            assert(e.getCause.getMessage === "load failed")
+        }
+        assert(blocking.calls.get === 1)
+
+        val document = newDocument("1")
+        assert(findContentOrLoad(caching)(document) eq document)
+    }
+
+    @Test def serveStaleContentWhileLoading(): Unit = {
+        val caching  = newCaching(timeToLive = 100)
+        val existing = newDocument("existing")
+        val loaded   = newDocument("loaded")
+
+        assert(findContentOrLoad(caching)(existing) eq existing)
+        Thread.sleep(200)
+
+        // The first request after the time to live loads the instance again
+        val blocking = new BlockingLoad(loaded)
+        val reload = inBackground(findContentOrLoad(caching)(blocking.load()))
+        blocking.started.await()
+
+        // Other requests are served the existing content in the meanwhile
+        assert(findContentOrLoad(caching)(fail("instance loaded concurrently")) eq existing)
+
+        blocking.released.countDown()
+        assert(reload.get(10, TimeUnit.SECONDS) eq loaded)
+        assert(findContentOrLoad(caching)(fail("instance loaded again")) eq loaded)
+        assert(blocking.calls.get === 1)
+    }
+
+    @Test def serveCachedContentWhenRefreshFails(): Unit = {
+        val caching  = newCaching(timeToLive = 2000)
+        val existing = newDocument("existing")
+
+        assert(findContentOrLoad(caching)(existing) eq existing)
+
+        // Past the refresh time but before the content expires, a failed load doesn't fail the request
+        Thread.sleep(1900)
+        assert(findContentOrLoad(caching)(throw new OXFException("load failed")) eq existing)
+    }
+}
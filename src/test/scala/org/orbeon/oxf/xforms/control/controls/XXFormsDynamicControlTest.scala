@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2011 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.control.controls
+
+import org.junit.Test
+import org.orbeon.oxf.test.DocumentTestBase
+import org.orbeon.oxf.xml.Dom4j.elemToDocument
+import org.scalatest.junit.AssertionsForJUnit
+
+class XXFormsDynamicControlTest extends DocumentTestBase with AssertionsForJUnit {
+
+    @Test def maxControls(): Unit = {
+
+        this setupDocument
+            <xh:html xmlns:xh="http://www.w3.org/1999/xhtml"
+                     xmlns:xf="http://www.w3.org/2002/xforms"
+                     xmlns:xxf="http://orbeon.org/oxf/xml/xforms">
+                <xh:head>
+                    <xf:model id="model">
+                        <xf:instance id="fixed">
+                            <xh:html>
+                                <xh:head>
+                                    <xf:model id="fixed-model">
+                                        <xf:instance id="fixed-instance">
+                                            <value/>
+                                        </xf:instance>
+                                    </xf:model>
+                                </xh:head>
+                                <xh:body>
+                                    <xf:input id="fixed-input" ref="instance()"/>
+                                </xh:body>
+                            </xh:html>
+                        </xf:instance>
+                        <xf:instance id="repeated">
+                            <xh:html>
+                                <xh:head>
+                                    <xf:model id="repeated-model">
+                                        <xf:instance id="repeated-instance">
+                                            <values><value/></values>
+                                        </xf:instance>
+                                    </xf:model>
+                                </xh:head>
+                                <xh:body>
+                                    <xf:repeat id="repeated-repeat" ref="value">
+                                        <xf:input id="repeated-input" ref="."/>
+                                    </xf:repeat>
+                                </xh:body>
+                            </xh:html>
+                        </xf:instance>
+                        <xf:instance id="empty">
+                            <empty/>
+                        </xf:instance>
+                    </xf:model>
+                </xh:head>
+                <xh:body>
+                    <xxf:dynamic id="fixed-dynamic" ref="instance('fixed')"/>
+                    <xxf:dynamic id="repeated-dynamic" ref="instance('repeated')"/>
+                    <xxf:dynamic id="missing-dynamic" ref="instance('empty')/missing"/>
+                </xh:body>
+            </xh:html>
+
+        def dynamic(id: String) = document.getObjectByEffectiveId(id).asInstanceOf[XXFormsDynamicControl]
+
+        // Without repeats, the bound is given by the number of elements analyzed in the nested part
+        val fixed = dynamic("fixed-dynamic")
+        assert(fixed.maxControls === fixed.nested.get.partAnalysis.maxConcreteControls + 1)
+        assert(fixed.maxControls <= 5)
+
+        // Repeats can create any number of controls
+        assert(dynamic("repeated-dynamic").maxControls === Int.MaxValue)
+
+        // Without content, there is only the xxf:dynamic control itself
+        assert(dynamic("missing-dynamic").maxControls === 1)
+    }
+}
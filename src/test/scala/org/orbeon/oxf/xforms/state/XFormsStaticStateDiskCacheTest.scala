@@ -0,0 +1,112 @@
+/**
+ *  Copyright (C) 2013 Orbeon, Inc.
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the
+ *  GNU Lesser General Public License as published by the Free Software Foundation; either version
+ *  2.1 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *  See the GNU Lesser General Public License for more details.
+ *
+ *  The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.state
+
+import java.io.File
+import java.util.concurrent.TimeUnit
+import org.dom4j.Document
+import org.junit.{After, Test}
+import org.orbeon.oxf.cache.MemoryCacheImpl
+import org.orbeon.oxf.common.Version
+import org.orbeon.oxf.test.DocumentTestBase
+import org.orbeon.oxf.xforms.XFormsContainingDocument
+import org.orbeon.oxf.xforms.control.XFormsControl
+import org.orbeon.oxf.xml.Dom4j.elemToDocument
+import org.scalatest.junit.AssertionsForJUnit
+import scala.collection.JavaConverters._
+
+class XFormsStaticStateDiskCacheTest extends DocumentTestBase with AssertionsForJUnit {
+
+    val simpleDoc: Document =
+        <xh:html xmlns:xf="http://www.w3.org/2002/xforms"
+                 xmlns:xh="http://www.w3.org/1999/xhtml">
+            <xh:head>
+                <xf:model>
+                    <xf:instance id="instance">
+                        <value>0</value>
+                    </xf:instance>
+                </xf:model>
+            </xh:head>
+            <xh:body>
+                <xf:input id="input" ref="instance()"/>
+            </xh:body>
+        </xh:html>
+
+    val directory = {
+        val file = File.createTempFile("static-state-cache", "")
+        file.delete()
+        file
+    }
+
+    @After def deleteDirectory(): Unit = {
+        Option(directory.listFiles) foreach (_ foreach (_.delete()))
+        directory.delete()
+    }
+
+    @Test def roundTrip(): Unit = {
+        val staticState = setupDocument(simpleDoc).getStaticState
+        val diskCache   = new XFormsStaticStateDiskCache(directory, "stamp")
+
+        assert(diskCache.find(staticState.digest) eq null)
+
+        diskCache.store(staticState)
+        assert(diskCache.getRecentDigests(10).asScala === Seq(staticState.digest))
+
+        val restoredState = diskCache.find(staticState.digest)
+        assert(restoredState ne null)
+        assert(restoredState.digest === staticState.digest)
+        assert(restoredState.encodedState === staticState.encodedState)
+        assert(restoredState.topLevelPart.getControlAnalysis("input") ne null)
+    }
+
+    @Test def staleStamp(): Unit = {
+        val staticState = setupDocument(simpleDoc).getStaticState
+
+        new XFormsStaticStateDiskCache(directory, "old build").store(staticState)
+
+        // An entry written by another build is not restored and is removed
+        val diskCache = new XFormsStaticStateDiskCache(directory, "new build")
+        assert(diskCache.find(staticState.digest) eq null)
+        assert(diskCache.getRecentDigests(10).isEmpty)
+    }
+
+    @Test def warmThenServe(): Unit = {
+        val staticState = setupDocument(simpleDoc).getStaticState
+        val diskCache   = new XFormsStaticStateDiskCache(directory, "stamp")
+        diskCache.store(staticState)
+
+        // Restore on the warming threads
+        val cache = new XFormsStaticStateCache(new MemoryCacheImpl("test", 10), diskCache)
+        val executor = cache.warm(10, 2)
+        assert(executor.awaitTermination(10, TimeUnit.SECONDS))
+        deleteDirectory()
+
+        // The request finds the restored static state in memory and creates a document from it
+        val warmedState = cache.getDocument(staticState.digest)
+        assert(warmedState ne null)
+        assert(warmedState ne staticState)
+        assert(warmedState.digest === staticState.digest)
+
+        val document = new XFormsContainingDocument(warmedState, warmedState.template.orNull, null, null)
+        val input    = document.getObjectByEffectiveId("input").asInstanceOf[XFormsControl]
+        assert(input ne null)
+        assert(input.isRelevant)
+    }
+
+    @Test def buildStamp(): Unit = {
+        val stamp = XFormsStaticStateDiskCache.buildStamp
+        assert(stamp.startsWith(Version.getVersionString + " "))
+        assert(stamp === XFormsStaticStateDiskCache.buildStamp)
+    }
+}
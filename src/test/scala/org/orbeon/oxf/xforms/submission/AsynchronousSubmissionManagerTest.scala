@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.submission
+
+import java.util.concurrent.{RejectedExecutionException, CancellationException, TimeUnit, CountDownLatch, Callable}
+import org.junit.{After, Test}
+import org.orbeon.oxf.common.OXFException
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.util.ConnectionResult
+import org.orbeon.oxf.xforms.submission.AsynchronousSubmissionManager.AsynchronousSubmissions
+import org.scalatest.junit.AssertionsForJUnit
+
+class AsynchronousSubmissionManagerTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+    private var pools: List[java.util.concurrent.ThreadPoolExecutor] = Nil
+
+    private def newPool(threads: Int, queueSize: Int, callerRuns: Boolean) = {
+        val pool = AsynchronousSubmissionManager.createThreadPool(threads, queueSize, callerRuns)
+        pools ::= pool
+        pool
+    }
+
+    @After def shutdownPools(): Unit = pools foreach (_.shutdownNow())
+
+    private def result(id: String) = new SubmissionResult(id, null: Replacer, null: ConnectionResult)
+
+    // Submission which runs until released
+    private class BlockingSubmission(id: String) extends Callable[SubmissionResult] {
+        val started  = new CountDownLatch(1)
+        val released = new CountDownLatch(1)
+        @volatile var thread: Thread = _
+
+        def call() = {
+            thread = Thread.currentThread
+            started.countDown()
+            released.await()
+            result(id)
+        }
+    }
+
+    private def take(submissions: AsynchronousSubmissions) =
+        submissions.poll(10000).get.getSubmissionEffectiveId
+
+    @Test def poolBound(): Unit = {
+        val submissions = new AsynchronousSubmissions(newPool(1, 1, callerRuns = false), 10)
+        val running     = new BlockingSubmission("running")
+        val queued      = new BlockingSubmission("queued")
+
+        submissions.submit(running)
+        running.started.await()
+        submissions.submit(queued)
+
+        // The pool's thread and queue are full, so the next submission fails and isn't pending
+        val e = intercept[OXFException](submissions.submit(new BlockingSubmission("rejected")))
+        assert(e.getMessage.contains("Too many asynchronous submissions"))
+        assert(2 === submissions.getPendingCount)
+
+        running.released.countDown()
+        queued.released.countDown()
+        assert(Set("running", "queued") === Set(take(submissions), take(submissions)))
+        assert(0 === submissions.getPendingCount)
+    }
+
+    @Test def perDocumentLimit(): Unit = {
+        val pool        = newPool(4, 10, callerRuns = false)
+        val submissions = new AsynchronousSubmissions(pool, 1)
+        val first       = new BlockingSubmission("first")
+        val second      = new BlockingSubmission("second")
+
+        submissions.submit(first)
+        submissions.submit(second)
+        first.started.await()
+
+        // The second submission waits in the document even though the pool has free threads
+        assert(! second.started.await(100, TimeUnit.MILLISECONDS))
+        assert(1 === pool.getActiveCount)
+        assert(2 === submissions.getPendingCount)
+
+        // It starts once the first one completes
+        first.released.countDown()
+        assert("first" === take(submissions))
+        assert(second.started.await(10, TimeUnit.SECONDS))
+        second.released.countDown()
+        assert("second" === take(submissions))
+    }
+
+    @Test def callerRuns(): Unit = {
+        val submissions = new AsynchronousSubmissions(newPool(1, 1, callerRuns = true), 10)
+        val running     = new BlockingSubmission("running")
+        val queued      = new BlockingSubmission("queued")
+
+        submissions.submit(running)
+        running.started.await()
+        submissions.submit(queued)
+
+        // The pool is full, so the submission runs in the requesting thread before submit() returns
+        var callerThread: Thread = null
+        submissions.submit(new Callable[SubmissionResult] {
+            def call() = { callerThread = Thread.currentThread; result("caller") }
+        })
+        assert(Thread.currentThread eq callerThread)
+        assert("caller" === take(submissions))
+
+        running.released.countDown()
+        queued.released.countDown()
+        assert(Set("running", "queued") === Set(take(submissions), take(submissions)))
+    }
+
+    @Test def pendingSubmissionNeverRunsInCaller(): Unit = {
+        val submissions = new AsynchronousSubmissions(newPool(1, 1, callerRuns = true), 10)
+        val running     = new BlockingSubmission("running")
+        val queued      = new BlockingSubmission("queued")
+
+        submissions.submit(running)
+        running.started.await()
+        submissions.submit(queued)
+
+        // Even with the caller-runs policy, a pending submission completed by an I/O thread is rejected when the pool
+        // is full, and the same thread can still run submissions itself afterwards
+        submissions.addPending()
+        var ran = false
+        intercept[RejectedExecutionException](submissions.submitPendingWithoutRunning(new Callable[SubmissionResult] {
+            def call() = { ran = true; result("pending") }
+        }))
+        assert(! ran)
+
+        submissions.submit(new Callable[SubmissionResult] { def call() = result("caller") })
+        assert("caller" === take(submissions))
+
+        running.released.countDown()
+        queued.released.countDown()
+        assert(Set("running", "queued") === Set(take(submissions), take(submissions)))
+    }
+
+    @Test def timeout(): Unit = {
+        val submissions = new AsynchronousSubmissions(newPool(2, 10, callerRuns = false), 1)
+        val expired     = new BlockingSubmission("expired")
+        val waiting     = new BlockingSubmission("waiting")
+
+        submissions.submit(expired)
+        submissions.submit(waiting)
+        expired.started.await()
+
+        // Nothing has run for longer than the timeout yet
+        assert(0 === submissions.cancelExpired(10000))
+
+        Thread.sleep(50)
+        assert(1 === submissions.cancelExpired(10))
+
+        // The expired submission completes as cancelled, and the waiting one starts in its place
+        intercept[CancellationException](submissions.poll(10000).get)
+        assert(waiting.started.await(10, TimeUnit.SECONDS))
+        waiting.released.countDown()
+        assert("waiting" === take(submissions))
+        assert(0 === submissions.getPendingCount)
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xml
+
+import java.io.ByteArrayOutputStream
+import javax.xml.transform.stream.StreamResult
+import org.junit.Test
+import org.orbeon.oxf.util.StringBuilderWriter
+import org.scalatest.junit.AssertionsForJUnit
+
+class StreamXMLSerializerTest extends AssertionsForJUnit {
+
+    private case class Output(
+        publicDoctype: String = null,
+        systemDoctype: String = null,
+        encoding: String = "utf-8",
+        omitXMLDeclaration: Boolean = true,
+        standalone: java.lang.Boolean = null)
+
+    private def serialize(xml: String, output: Output = Output()) = {
+        import output._
+        val writer = new StringBuilderWriter
+        val serializer = new StreamXMLSerializer(writer, "1.0", publicDoctype, systemDoctype, encoding, omitXMLDeclaration, standalone)
+        XMLUtils.stringToSAX(xml, null, serializer, XMLUtils.ParserConfiguration.PLAIN, true)
+        writer.toString
+    }
+
+    // Output of the identity transformer, which StreamXMLSerializer replaces
+    private def serializeWithIdentity(xml: String, output: Output = Output()) = {
+        import output._
+        val writer = new StringBuilderWriter
+        val identity = TransformerUtils.getIdentityTransformerHandler
+        TransformerUtils.applyOutputProperties(identity.getTransformer, "xml", "1.0", publicDoctype, systemDoctype, encoding, omitXMLDeclaration, standalone, false, 0)
+        identity.setResult(new StreamResult(writer))
+        XMLUtils.stringToSAX(xml, null, identity, XMLUtils.ParserConfiguration.PLAIN, true)
+        writer.toString
+    }
+
+    private def assertSameAsIdentity(xml: String, output: Output = Output()) =
+        assert(serializeWithIdentity(xml, output) === serialize(xml, output))
+
+    @Test def escaping(): Unit = {
+        assertSameAsIdentity("""<a b="1&lt;2&amp;&quot;>&#10;&#9;&#13;">1&lt;2&amp;"></a>""")
+        assertSameAsIdentity("<a>&#13;\n\t</a>")
+    }
+
+    @Test def namespaces(): Unit = {
+        assertSameAsIdentity("""<a xmlns="urn:a" xmlns:p="urn:p"><p:b xmlns:p="urn:p"><c xmlns="urn:c"/></p:b></a>""")
+        assertSameAsIdentity("""<a><b xmlns="urn:b"><c xmlns=""/></b></a>""")
+    }
+
+    @Test def prolog(): Unit = {
+        assertSameAsIdentity("<a/>", Output(omitXMLDeclaration = false))
+        assertSameAsIdentity("<a/>", Output(omitXMLDeclaration = false, standalone = true))
+        assertSameAsIdentity("<a/>", Output(publicDoctype = "-//P", systemDoctype = "a.dtd"))
+        assertSameAsIdentity("<a/>", Output(systemDoctype = "a.dtd"))
+        assertSameAsIdentity("<!--c--><?p d?><a><!--c--><?p?></a>")
+    }
+
+    @Test def whitespace(): Unit =
+        assertSameAsIdentity("<a> <b>\n  <c/>\n</b> <!--c-->\n<?p d?> text <d/> </a>")
+
+    @Test def characterEncoding(): Unit = {
+        assertSameAsIdentity("<a b=\"€\">é€😀</a>", Output(encoding = "iso-8859-1"))
+        assertSameAsIdentity("<a>é€</a>", Output(encoding = "us-ascii"))
+        assertSameAsIdentity("<a>é€😀</a>")
+
+        // Bytes are encoded with the requested encoding
+        val os = new ByteArrayOutputStream
+        val serializer = new StreamXMLSerializer(os, null, null, null, "iso-8859-1", true, null)
+        XMLUtils.stringToSAX("<a>é</a>", null, serializer, XMLUtils.ParserConfiguration.PLAIN, true)
+        assert("<a>é</a>" === new String(os.toByteArray, "iso-8859-1"))
+    }
+
+    @Test def largeOutput(): Unit = {
+        val text = "x" * 100000
+        assertSameAsIdentity("<a b=\"" + text + "\">" + text + "</a>")
+    }
+
+    @Test def formDocument(): Unit = {
+        val xml =
+            (1 to 500).map(i ⇒
+                s"""<section id="s$i" label="a &amp; b &lt; &quot;c&quot;">
+                   |    <xf:input xmlns:xf="http://www.w3.org/2002/xforms" ref="control-$i">
+                   |        <xf:label>Label é $i</xf:label>
+                   |    </xf:input>
+                   |    <!-- comment $i -->
+                   |    <?pi data?>
+                   |    <mixed>a <b>b</b> c</mixed>
+                   |    <empty/>
+                   |</section>""".stripMargin
+            ).mkString("<form xmlns:fr=\"http://orbeon.org/oxf/xml/form-runner\">", "", "</form>")
+
+        assertSameAsIdentity(xml, Output(omitXMLDeclaration = false))
+    }
+
+    // The XHTML method adds a content type meta element and escapes URI attributes, and indentation follows the
+    // transformer's own rules, so these go through the identity transformer
+    @Test def transformerOutput(): Unit = {
+        assert(StreamXMLSerializer.isSupported(null, false))
+        assert(StreamXMLSerializer.isSupported("xml", false))
+        assert(! StreamXMLSerializer.isSupported("xml", true))
+        assert(! StreamXMLSerializer.isSupported("xhtml", false))
+        assert(! StreamXMLSerializer.isSupported("xhtml", true))
+        assert(! StreamXMLSerializer.isSupported("html", false))
+    }
+}
@@ -13,8 +13,11 @@
  */
 package org.orbeon.oxf.xml
 
-import org.scalatest.junit.AssertionsForJUnit
+import java.util.concurrent.{TimeUnit, Executors, Callable}
 import org.junit.Test
+import org.orbeon.oxf.common.OXFException
+import org.scalatest.junit.AssertionsForJUnit
+import scala.collection.JavaConverters._
 
 class XMLUtilsTest extends AssertionsForJUnit {
 
@@ -33,4 +36,65 @@ class XMLUtilsTest extends AssertionsForJUnit {
         assert("_2foos"   === XMLUtils.makeNCName("42foos"))
         assert("foo_bar_" === XMLUtils.makeNCName("foo(bar)"))
     }
-}
\ No newline at end of file
+
+    // Collect the text of a document, and check events are balanced
+    private class TextReceiver extends XMLReceiverAdapter {
+        val text = new StringBuilder
+        var depth = 0
+        override def startElement(uri: String, localname: String, qName: String, attributes: org.xml.sax.Attributes) = depth += 1
+        override def endElement(uri: String, localname: String, qName: String) = depth -= 1
+        override def characters(chars: Array[Char], start: Int, length: Int) = text.appendAll(chars, start, length)
+    }
+
+    private def parseText(xml: String) = {
+        val receiver = new TextReceiver
+        XMLUtils.stringToSAX(xml, null, receiver, XMLUtils.ParserConfiguration.PLAIN, false)
+        assert(0 === receiver.depth)
+        receiver.text.toString
+    }
+
+    @Test def concurrentParsing() {
+
+        def document(i: Int) = "<root>" + ("<value>" + i + "</value>") * (1 + i % 100) + "</root>"
+
+        val executor = Executors.newFixedThreadPool(8)
+        try {
+            val tasks =
+                for (i ← 1 to 2000)
+                yield new Callable[Boolean] {
+                    def call() = parseText(document(i)) == i.toString * (1 + i % 100)
+                }
+
+            val results = executor.invokeAll(tasks.asJava, 60, TimeUnit.SECONDS).asScala
+            assert(results forall (_.get))
+        } finally
+            executor.shutdown()
+    }
+
+    @Test def parseAfterError() {
+
+        intercept[OXFException] {
+            parseText("<root><unclosed></root>")
+        }
+
+        // Parsers are still in a usable state
+        assert("ok" === parseText("<root>ok</root>"))
+        assert(! XMLUtils.isWellFormedXML("<root>"))
+        assert(XMLUtils.isWellFormedXML("<root/>"))
+        assert("ok" === parseText("<root>ok</root>"))
+    }
+
+    @Test def nestedParsing() {
+
+        // Parsing from a handler doesn't reuse the parser in use
+        val receiver = new TextReceiver {
+            override def startElement(uri: String, localname: String, qName: String, attributes: org.xml.sax.Attributes) = {
+                super.startElement(uri, localname, qName, attributes)
+                if (localname == "outer")
+                    text.append(parseText("<inner>nested</inner>"))
+            }
+        }
+        XMLUtils.stringToSAX("<outer>after</outer>", null, receiver, XMLUtils.ParserConfiguration.PLAIN, false)
+        assert("nestedafter" === receiver.text.toString)
+    }
+}